@@ -31,12 +31,20 @@ public class GameDetector {
     private String mCurrentGamePackage;
     private boolean mIsRunning;
     
+    // Predictor of game launches, trained on the usage history when monitoring
+    // starts and replaced by the trained one once the history is loaded
+    private LaunchPredictor mLaunchPredictor;
+    private boolean mHistoryLoaded;
+    private String mLastForegroundPackage;
+    private String mPredictedGamePackage;
+    
     /**
      * Interface for listening to game state changes
      */
     public interface GameListener {
         void onGameStarted(String packageName);
         void onGameStopped(String packageName);
+        void onGameLaunchPredicted(String packageName, float confidence);
     }
     
     public GameDetector(Context context) {
@@ -46,6 +54,7 @@ public class GameDetector {
         mListeners = new ArrayList<>();
         mCurrentGamePackage = null;
         mIsRunning = false;
+        mLaunchPredictor = new LaunchPredictor();
         
         // Initialize the list of known game packages
         initializeKnownGames();
@@ -57,6 +66,7 @@ public class GameDetector {
     public void startMonitoring() {
         if (!mIsRunning) {
             mIsRunning = true;
+            loadUsageHistory();
             mHandler.post(mGameCheckRunnable);
             Log.i(TAG, "Game detection started");
         }
@@ -145,6 +155,37 @@ public class GameDetector {
         }
     };
     
+    /**
+     * Train a launch predictor on the usage history once. Querying weeks of
+     * usage events takes long, so a new predictor is trained on a worker
+     * thread and replaces the current one on the main thread.
+     */
+    private void loadUsageHistory() {
+        if (mHistoryLoaded) {
+            return;
+        }
+        mHistoryLoaded = true;
+        
+        final UsageStatsManager usageStatsManager = (UsageStatsManager) mContext.getSystemService(Context.USAGE_STATS_SERVICE);
+        if (usageStatsManager == null) {
+            return;
+        }
+        
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final LaunchPredictor predictor = new LaunchPredictor();
+                predictor.loadHistory(usageStatsManager, System.currentTimeMillis());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLaunchPredictor = predictor;
+                    }
+                });
+            }
+        }, "UsageHistory").start();
+    }
+    
     /**
      * Check if a game is in the foreground
      */
@@ -163,6 +204,17 @@ public class GameDetector {
                 }
             }
             
+            // Learn the change and predict the next game from the new foreground app
+            if (!foregroundPackage.equals(mLastForegroundPackage)) {
+                mLastForegroundPackage = foregroundPackage;
+                mLaunchPredictor.record(foregroundPackage, System.currentTimeMillis());
+                if (isGame) {
+                    mPredictedGamePackage = null;
+                } else {
+                    predictGameLaunch(foregroundPackage);
+                }
+            }
+            
             // Handle game state changes
             if (isGame) {
                 if (mCurrentGamePackage == null || !mCurrentGamePackage.equals(foregroundPackage)) {
@@ -185,6 +237,24 @@ public class GameDetector {
         }
     }
     
+    /**
+     * Notify listeners if a game launch is likely from the foreground app
+     */
+    private void predictGameLaunch(String foregroundPackage) {
+        LaunchPredictor.Prediction prediction = mLaunchPredictor.predict(
+                foregroundPackage, System.currentTimeMillis(), mKnownGamePackages);
+        if (prediction == null) {
+            mPredictedGamePackage = null;
+            return;
+        }
+        
+        // Pre-warm a game once while switching between apps before it
+        if (!prediction.getPackageName().equals(mPredictedGamePackage)) {
+            mPredictedGamePackage = prediction.getPackageName();
+            notifyGameLaunchPredicted(mPredictedGamePackage, prediction.getConfidence());
+        }
+    }
+    
     /**
      * Get the package name of the foreground app
      */
@@ -232,7 +302,7 @@ public class GameDetector {
             String appName = pm.getApplicationLabel(appInfo).toString().toLowerCase();
             return appName.contains("game") || appName.contains("play") || 
                    appName.contains("racing") || appName.contains("shooter");
-            
+        
         } catch (Exception e) {
             Log.e(TAG, "Error checking if package is game: " + e.getMessage());
             return false;
@@ -249,6 +319,16 @@ public class GameDetector {
         }
     }
     
+    /**
+     * Notify listeners that a game is likely to be launched next
+     */
+    private void notifyGameLaunchPredicted(String packageName, float confidence) {
+        Log.i(TAG, "Game launch predicted: " + packageName + " (" + confidence + ")");
+        for (GameListener listener : mListeners) {
+            listener.onGameLaunchPredicted(packageName, confidence);
+        }
+    }
+    
     /**
      * Notify listeners that a game has stopped
      */
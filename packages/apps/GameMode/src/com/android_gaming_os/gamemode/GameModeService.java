@@ -35,6 +35,13 @@ public class GameModeService extends Service implements GameDetector.GameListene
     public static final int PROFILE_PERFORMANCE = 1;
     public static final int PROFILE_BATTERY = 2;
     
+    // Performance optimizer service, which applies the optimizations for the running game
+    private static final String OPTIMIZER_PACKAGE = "com.android_gaming_os.performanceoptimizer";
+    private static final String OPTIMIZER_SERVICE = OPTIMIZER_PACKAGE + ".OptimizerService";
+    private static final String ACTION_GAME_STARTED = OPTIMIZER_PACKAGE + ".ACTION_GAME_STARTED";
+    private static final String ACTION_GAME_STOPPED = OPTIMIZER_PACKAGE + ".ACTION_GAME_STOPPED";
+    private static final String ACTION_PREWARM_GAME = OPTIMIZER_PACKAGE + ".ACTION_PREWARM_GAME";
+    
     private int mCurrentState = STATE_DISABLED;
     private int mCurrentProfile = PROFILE_BALANCED;
     private boolean mAutoDetectGames = true;
@@ -202,6 +209,9 @@ public class GameModeService extends Service implements GameDetector.GameListene
         if (mCurrentState == STATE_AUTO) {
             enableGamingMode();
         }
+        
+        // Let the optimizer manage the game's threads
+        notifyOptimizer(ACTION_GAME_STARTED, packageName);
     }
     
     @Override
@@ -212,6 +222,33 @@ public class GameModeService extends Service implements GameDetector.GameListene
         if (mCurrentState == STATE_AUTO) {
             disableGamingMode();
         }
+        
+        notifyOptimizer(ACTION_GAME_STOPPED, packageName);
+    }
+    
+    @Override
+    public void onGameLaunchPredicted(String packageName, float confidence) {
+        // Pre-warm only when the game would be optimized once it starts
+        if (mCurrentState == STATE_AUTO) {
+            notifyOptimizer(ACTION_PREWARM_GAME, packageName);
+        }
+    }
+    
+    /**
+     * Send a game event to the performance optimizer service
+     */
+    private void notifyOptimizer(String action, String packageName) {
+        Intent intent = new Intent(action);
+        intent.setClassName(OPTIMIZER_PACKAGE, OPTIMIZER_SERVICE);
+        intent.putExtra("package", packageName);
+        intent.putExtra("reserve_prime_core", mCurrentProfile == PROFILE_PERFORMANCE);
+        
+        try {
+            startService(intent);
+        } catch (SecurityException | IllegalStateException e) {
+            // IllegalStateException when background service starts are not allowed
+            Log.e(TAG, "Cannot reach the performance optimizer", e);
+        }
     }
     
     /**
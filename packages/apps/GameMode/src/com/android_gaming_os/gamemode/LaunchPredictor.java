@@ -0,0 +1,169 @@
+package com.android_gaming_os.gamemode;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.util.Log;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Predicts game launches from the app usage history.
+ * Foreground app changes are counted as a first-order Markov chain over
+ * packages, with separate counts per time of day. The probability that a game
+ * follows the current app is its share of the transitions out of the current
+ * app at this time of day, smoothed towards its share over the whole day so
+ * sparse time slots still predict. Predictions are only made with enough
+ * transitions out of the current app and above a confidence threshold.
+ */
+public class LaunchPredictor {
+    private static final String TAG = "LaunchPredictor";
+    
+    // Days of usage history loaded at start
+    private static final int HISTORY_DAYS = 14;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    
+    // Time of day slots of four hours each
+    private static final int TIME_SLOTS = 6;
+    
+    // Weight of the whole day share against the time slot counts, in transitions
+    private static final float WHOLE_DAY_WEIGHT = 2.0f;
+    
+    // Transitions out of the current app needed before predicting
+    private static final int MIN_TRANSITIONS = 3;
+    
+    // Probability at which a launch is predicted
+    private static final float MIN_CONFIDENCE = 0.5f;
+    
+    // Foreground changes further apart are not a transition, such as across screen off
+    private static final long MAX_TRANSITION_GAP_MS = 30 * 60 * 1000;
+    
+    /**
+     * A predicted launch and its probability
+     */
+    public static final class Prediction {
+        private final String mPackageName;
+        private final float mConfidence;
+        
+        Prediction(String packageName, float confidence) {
+            mPackageName = packageName;
+            mConfidence = confidence;
+        }
+        
+        public String getPackageName() {
+            return mPackageName;
+        }
+        
+        public float getConfidence() {
+            return mConfidence;
+        }
+    }
+    
+    // Transition counts per time slot from a package to the next, with the
+    // whole day count in the last slot, and their totals per package
+    private final Map<String, Map<String, int[]>> mTransitions = new HashMap<>();
+    private final Map<String, int[]> mTransitionTotals = new HashMap<>();
+    
+    private final Calendar mCalendar = Calendar.getInstance();
+    private String mLastPackage;
+    private long mLastTimeMillis;
+    
+    /**
+     * Learn from the foreground changes of the usage history
+     */
+    public void loadHistory(UsageStatsManager usageStatsManager, long nowMillis) {
+        long startNanos = System.nanoTime();
+        int count = 0;
+        try {
+            UsageEvents events = usageStatsManager.queryEvents(nowMillis - HISTORY_DAYS * DAY_MS, nowMillis);
+            UsageEvents.Event event = new UsageEvents.Event();
+            while (events != null && events.hasNextEvent()) {
+                events.getNextEvent(event);
+                if (event.getEventType() == UsageEvents.Event.MOVE_TO_FOREGROUND) {
+                    record(event.getPackageName(), event.getTimeStamp());
+                    count++;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error loading usage history: " + e.getMessage());
+        }
+        
+        Log.i(TAG, "Learned " + count + " foreground changes of " + mTransitionTotals.size() +
+                   " apps in " + (System.nanoTime() - startNanos) / 1000000 + "ms");
+    }
+    
+    /**
+     * Record that an app moved to the foreground
+     * @param timeMillis wall clock time of the change
+     */
+    public void record(String packageName, long timeMillis) {
+        if (packageName == null || packageName.equals(mLastPackage)) {
+            return;
+        }
+        
+        if (mLastPackage != null && timeMillis - mLastTimeMillis <= MAX_TRANSITION_GAP_MS) {
+            Map<String, int[]> next = mTransitions.get(mLastPackage);
+            if (next == null) {
+                next = new HashMap<>();
+                mTransitions.put(mLastPackage, next);
+            }
+            int slot = getTimeSlot(timeMillis);
+            increment(next, packageName, slot);
+            increment(mTransitionTotals, mLastPackage, slot);
+        }
+        
+        mLastPackage = packageName;
+        mLastTimeMillis = timeMillis;
+    }
+    
+    /**
+     * Predict the most likely next launch among candidates, given the app in
+     * the foreground
+     * @return the prediction, or null if no candidate is likely enough
+     */
+    public Prediction predict(String currentPackage, long timeMillis, Set<String> candidates) {
+        Map<String, int[]> next = mTransitions.get(currentPackage);
+        int[] totals = mTransitionTotals.get(currentPackage);
+        if (next == null || totals == null || totals[TIME_SLOTS] < MIN_TRANSITIONS) {
+            return null;
+        }
+        
+        int slot = getTimeSlot(timeMillis);
+        String best = null;
+        float bestProbability = 0;
+        for (Map.Entry<String, int[]> entry : next.entrySet()) {
+            String packageName = entry.getKey();
+            if (!candidates.contains(packageName)) {
+                continue;
+            }
+            
+            int[] counts = entry.getValue();
+            float wholeDayShare = (float) counts[TIME_SLOTS] / totals[TIME_SLOTS];
+            float probability = (counts[slot] + WHOLE_DAY_WEIGHT * wholeDayShare) /
+                                (totals[slot] + WHOLE_DAY_WEIGHT);
+            if (probability > bestProbability) {
+                best = packageName;
+                bestProbability = probability;
+            }
+        }
+        
+        return bestProbability >= MIN_CONFIDENCE ? new Prediction(best, bestProbability) : null;
+    }
+    
+    private int getTimeSlot(long timeMillis) {
+        mCalendar.setTimeInMillis(timeMillis);
+        return mCalendar.get(Calendar.HOUR_OF_DAY) * TIME_SLOTS / 24;
+    }
+    
+    private static void increment(Map<String, int[]> counts, String key, int slot) {
+        int[] count = counts.get(key);
+        if (count == null) {
+            count = new int[TIME_SLOTS + 1];
+            counts.put(key, count);
+        }
+        count[slot]++;
+        count[TIME_SLOTS]++;
+    }
+}
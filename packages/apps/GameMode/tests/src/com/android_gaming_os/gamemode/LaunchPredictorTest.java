@@ -0,0 +1,122 @@
+package com.android_gaming_os.gamemode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+public class LaunchPredictorTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+    
+    // Monday 2024-03-04 00:00 UTC, the first day of the recorded streams
+    private static final long START_MILLIS = 1709510400000L;
+    
+    private static final String LAUNCHER = "com.android.launcher3";
+    private static final String CHAT = "com.discord";
+    private static final String GAME = "com.tencent.ig";
+    private static final Set<String> GAMES = new HashSet<>(Arrays.asList(
+            GAME, "com.supercell.clashofclans", "com.mojang.minecraftpe"));
+    
+    private TimeZone mTimeZone;
+    private LaunchPredictor mPredictor;
+    
+    @Before
+    public void setUp() {
+        // Time of day slots are in the default time zone
+        mTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        mPredictor = new LaunchPredictor();
+    }
+    
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mTimeZone);
+    }
+    
+    @Test
+    public void noPredictionWithoutEnoughTransitions() {
+        long time = START_MILLIS + 19 * HOUR_MS;
+        for (int i = 0; i < 2; i++) {
+            mPredictor.record(CHAT, time);
+            mPredictor.record(GAME, time + MINUTE_MS);
+            time += DAY_MS;
+        }
+        mPredictor.record(CHAT, time);
+        
+        assertNull(mPredictor.predict(CHAT, time, GAMES));
+    }
+    
+    @Test
+    public void predictsRepeatedTransition() {
+        long time = START_MILLIS + 19 * HOUR_MS;
+        for (int i = 0; i < 4; i++) {
+            mPredictor.record(CHAT, time);
+            mPredictor.record(GAME, time + MINUTE_MS);
+            time += DAY_MS;
+        }
+        mPredictor.record(CHAT, time);
+        
+        LaunchPredictor.Prediction prediction = mPredictor.predict(CHAT, time, GAMES);
+        assertNotNull(prediction);
+        assertEquals(GAME, prediction.getPackageName());
+        assertTrue(prediction.getConfidence() >= 0.5f);
+    }
+    
+    @Test
+    public void onlyCandidatesArePredicted() {
+        long time = START_MILLIS + 19 * HOUR_MS;
+        for (int i = 0; i < 4; i++) {
+            mPredictor.record(CHAT, time);
+            mPredictor.record(GAME, time + MINUTE_MS);
+            time += DAY_MS;
+        }
+        
+        assertNull(mPredictor.predict(CHAT, time, new HashSet<>(Arrays.asList("com.mojang.minecraftpe"))));
+    }
+    
+    @Test
+    public void longGapIsNotATransition() {
+        long time = START_MILLIS + 19 * HOUR_MS;
+        for (int i = 0; i < 4; i++) {
+            mPredictor.record(CHAT, time);
+            mPredictor.record(GAME, time + 2 * HOUR_MS);
+            time += DAY_MS;
+        }
+        
+        assertNull(mPredictor.predict(CHAT, time, GAMES));
+    }
+    
+    @Test
+    public void replayEveningGamer() throws Exception {
+        List<UsageReplay.Event> events = UsageReplay.load("/usage/evening_gamer.tsv");
+        
+        // Train on the first ten days and score the last four
+        UsageReplay.Result result = UsageReplay.replay(mPredictor, events, GAMES, START_MILLIS + 10 * DAY_MS);
+        
+        assertTrue(result.toString(), result.mPredictions > 0);
+        assertTrue(result.toString(), result.getPrecision() >= 0.75f);
+        assertTrue(result.toString(), result.getRecall() >= 0.5f);
+    }
+    
+    @Test
+    public void replayWithoutPatternRarelyPredicts() throws Exception {
+        List<UsageReplay.Event> events = UsageReplay.load("/usage/no_pattern.tsv");
+        
+        UsageReplay.Result result = UsageReplay.replay(mPredictor, events, GAMES, START_MILLIS + 10 * DAY_MS);
+        
+        // Prewarms are budgeted, so a stream without a pattern must not trigger many
+        assertTrue(result.toString(), result.mPredictions <= 5);
+    }
+}
@@ -0,0 +1,122 @@
+package com.android_gaming_os.gamemode;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Replays a recorded stream of foreground changes through a launch predictor
+ * the way GameDetector drives it, and scores its predictions.
+ * Streams are resources with one "<wall clock ms>\t<package>" line per change
+ * to the foreground, and lines starting with '#' as comments.
+ */
+final class UsageReplay {
+
+    /**
+     * A change of the foreground app
+     */
+    static final class Event {
+        final long mTimeMillis;
+        final String mPackageName;
+        
+        Event(long timeMillis, String packageName) {
+            mTimeMillis = timeMillis;
+            mPackageName = packageName;
+        }
+    }
+    
+    /**
+     * Scores of a replay
+     */
+    static final class Result {
+        // Predictions made, and those followed by the predicted game
+        int mPredictions;
+        int mHits;
+        
+        // Games launched from another app, and those predicted before launch
+        int mGameLaunches;
+        int mPredictedLaunches;
+        
+        float getPrecision() {
+            return mPredictions > 0 ? (float) mHits / mPredictions : 0;
+        }
+        
+        float getRecall() {
+            return mGameLaunches > 0 ? (float) mPredictedLaunches / mGameLaunches : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return mHits + "/" + mPredictions + " predictions hit, " +
+                   mPredictedLaunches + "/" + mGameLaunches + " game launches predicted";
+        }
+    }
+    
+    private UsageReplay() {
+    }
+    
+    /**
+     * Load a recorded stream from a resource
+     */
+    static List<Event> load(String resource) throws IOException {
+        List<Event> events = new ArrayList<>();
+        InputStream in = UsageReplay.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Missing usage stream " + resource);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                events.add(new Event(Long.parseLong(fields[0]), fields[1]));
+            }
+        }
+        return events;
+    }
+    
+    /**
+     * Feed the events to a predictor, predicting after each change to an app
+     * that is not a game. Events before a time only train the predictor.
+     * @param scoreFromMillis time from which predictions are scored
+     */
+    static Result replay(LaunchPredictor predictor, List<Event> events, Set<String> games, long scoreFromMillis) {
+        Result result = new Result();
+        String predicted = null;
+        String previous = null;
+        for (Event event : events) {
+            boolean scored = event.mTimeMillis >= scoreFromMillis;
+            boolean game = games.contains(event.mPackageName);
+            if (scored && predicted != null) {
+                result.mPredictions++;
+                if (predicted.equals(event.mPackageName)) {
+                    result.mHits++;
+                }
+            }
+            if (scored && game && previous != null && !games.contains(previous)) {
+                result.mGameLaunches++;
+                if (event.mPackageName.equals(predicted)) {
+                    result.mPredictedLaunches++;
+                }
+            }
+            
+            predictor.record(event.mPackageName, event.mTimeMillis);
+            predicted = null;
+            if (!game) {
+                LaunchPredictor.Prediction prediction = predictor.predict(event.mPackageName, event.mTimeMillis, games);
+                if (prediction != null) {
+                    predicted = prediction.getPackageName();
+                }
+            }
+            previous = event.mPackageName;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,616 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams the files of a starting game into the page cache so the load screen
+ * does not wait on cold reads from flash. The APKs, native libraries and OBB
+ * files of the game are read in chunks by a small pool of threads, within a
+ * budget of the available memory. While the game loads, the chunks that become
+ * resident are recorded in the order they appear; the next launch prefetches
+ * those chunks in that order. Residency is sampled once before prefetching,
+ * so chunks that were already cached or that the prefetcher reads itself are
+ * never recorded as touched by the game. The first launch without a profile
+ * prefetches nothing and serves as the baseline of the load time.
+ */
+public class AssetPrefetcher {
+    private static final String TAG = "AssetPrefetcher";
+
+    // Unit of prefetching and residency tracking
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // Threads reading chunks in parallel, which keeps the flash queue busy
+    private static final int PREFETCH_THREADS = 4;
+
+    // Bytes of a file checked by one mincore call
+    private static final long MINCORE_WINDOW = 64L * CHUNK_SIZE;
+
+    // Share of the available memory and absolute limit of one prefetch
+    private static final int BUDGET_DIVISOR = 4;
+    private static final long MAX_BUDGET_BYTES = 1L << 30;
+
+    // Residency sampling while the game loads, in milliseconds. The load is
+    // over once no new chunk became resident for the settle time.
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    private static final int MIN_LOAD_MS = 10 * 1000;
+    private static final int SETTLE_MS = 5 * 1000;
+    private static final int MAX_LOAD_MS = 2 * 60 * 1000;
+
+    // Directory of the launch profiles under the files directory
+    private static final String PROFILE_DIR = "prefetch";
+    private static final String PROFILE_VERSION = "v2";
+
+    private final Context mContext;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Launch being prefetched and tracked, only touched on the prefetcher thread
+    private Launch mLaunch;
+
+    public AssetPrefetcher(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Prefetch the files of a starting game and record what its load touches
+     */
+    public synchronized void start(final String packageName) {
+        startThread();
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeLaunch();
+                mLaunch = createLaunch(packageName);
+                if (mLaunch != null) {
+                    // Chunks cached before the launch were not loaded by it
+                    mLaunch.sample(false);
+                    mLaunch.prefetch();
+                    mSampleRunnable.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Prefetch the files of a game that is likely to start soon, without
+     * tracking its load. A game without a profile is not prefetched, so its
+     * first launch still measures the baseline.
+     */
+    public synchronized void prefetch(final String packageName) {
+        startThread();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // A launch being tracked has the files resident already
+                if (mLaunch != null) {
+                    return;
+                }
+                Launch launch = createLaunch(packageName);
+                if (launch != null) {
+                    launch.prefetch();
+                    launch.close();
+                }
+            }
+        });
+    }
+
+    private void startThread() {
+        if (mThread == null) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+    }
+
+    /**
+     * Stop tracking the current launch without saving its profile
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeLaunch();
+            }
+        });
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Runnable that samples the residency of the game files until the load is over
+     */
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Launch launch = mLaunch;
+            if (launch == null) {
+                return;
+            }
+
+            if (launch.sample(true)) {
+                launch.finish();
+                closeLaunch();
+                return;
+            }
+
+            synchronized (AssetPrefetcher.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+                }
+            }
+        }
+    };
+
+    private void closeLaunch() {
+        if (mLaunch != null) {
+            mLaunch.close();
+            mLaunch = null;
+        }
+    }
+
+    /**
+     * Resolve the files of a game, or return null if it is not installed
+     */
+    private Launch createLaunch(String packageName) {
+        ApplicationInfo info;
+        try {
+            info = mContext.getPackageManager().getApplicationInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Cannot prefetch " + packageName + ": not installed");
+            return null;
+        }
+
+        List<AssetFile> files = new ArrayList<>();
+        addFile(files, info.sourceDir);
+        if (info.splitSourceDirs != null) {
+            for (String split : info.splitSourceDirs) {
+                addFile(files, split);
+            }
+        }
+        if (info.nativeLibraryDir != null) {
+            String[] libraries = new File(info.nativeLibraryDir).list();
+            if (libraries != null) {
+                for (String library : libraries) {
+                    addFile(files, info.nativeLibraryDir + "/" + library);
+                }
+            }
+        }
+        File obbDir = new File(Environment.getExternalStorageDirectory(), "Android/obb/" + packageName);
+        String[] obbs = obbDir.list();
+        if (obbs != null) {
+            for (String obb : obbs) {
+                addFile(files, new File(obbDir, obb).getPath());
+            }
+        }
+
+        if (files.isEmpty()) {
+            return null;
+        }
+        return new Launch(packageName, files, getProfileFile(packageName));
+    }
+
+    private static void addFile(List<AssetFile> files, String path) {
+        if (path == null) {
+            return;
+        }
+        File file = new File(path);
+        if (file.isFile() && file.canRead() && file.length() > 0) {
+            files.add(new AssetFile(path, file.length()));
+        }
+    }
+
+    private File getProfileFile(String packageName) {
+        return new File(new File(mContext.getFilesDir(), PROFILE_DIR), packageName);
+    }
+
+    /**
+     * Get the bytes one prefetch may bring into the page cache
+     */
+    private long getBudget() {
+        ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return MAX_BUDGET_BYTES / BUDGET_DIVISOR;
+        }
+        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
+        am.getMemoryInfo(memoryInfo);
+        return Math.min(MAX_BUDGET_BYTES, memoryInfo.availMem / BUDGET_DIVISOR);
+    }
+
+    /**
+     * Encode a chunk of a file of the launch
+     */
+    private static long chunk(int file, int index) {
+        return (long) file << 32 | index;
+    }
+
+    /**
+     * A file of the game and its residency while the game loads
+     */
+    private static final class AssetFile {
+        final String mPath;
+        final long mLength;
+        final int mChunks;
+
+        // Chunks of the previous profile, and chunks seen resident during
+        // the current launch
+        final boolean[] mProfiled;
+        final boolean[] mResident;
+        int mResidentCount;
+
+        // Read-only mapping for mincore, or 0 if not mapped yet
+        long mAddress;
+        boolean mUnmappable;
+
+        AssetFile(String path, long length) {
+            mPath = path;
+            mLength = length;
+            mChunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            mProfiled = new boolean[mChunks];
+            mResident = new boolean[mChunks];
+        }
+
+        long getChunkLength(int index) {
+            return Math.min(CHUNK_SIZE, mLength - (long) index * CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * One launch of a game: its files, the previous profile and the residency
+     * recorded for the next one
+     */
+    private final class Launch {
+        final String mPackageName;
+        final List<AssetFile> mFiles;
+        final File mProfileFile;
+
+        // Chunks of the previous profile in touch order, and its baseline load time
+        final List<Long> mPrevious = new ArrayList<>();
+        long mBaselineMs;
+
+        // Chunks outside the previous profile that became resident during
+        // this launch, in order
+        final List<Long> mTouched = new ArrayList<>();
+        final long mStartMillis;
+        long mLastTouchMillis;
+        long mPrefetchedBytes;
+
+        // Page residency of one mincore window
+        final int mPageSize = (int) Os.sysconf(OsConstants._SC_PAGESIZE);
+        final byte[] mVector = new byte[(int) (MINCORE_WINDOW / mPageSize)];
+
+        Launch(String packageName, List<AssetFile> files, File profileFile) {
+            mPackageName = packageName;
+            mFiles = files;
+            mProfileFile = profileFile;
+            mStartMillis = SystemClock.uptimeMillis();
+            mLastTouchMillis = mStartMillis;
+            loadProfile();
+        }
+
+        /**
+         * Read the chunks of the previous profile in parallel, in touch order.
+         * Without a profile nothing is read, so the launch is a baseline.
+         */
+        void prefetch() {
+            if (mPrevious.isEmpty()) {
+                Log.i(TAG, "No prefetch profile of " + mPackageName + ", measuring the baseline");
+                return;
+            }
+
+            long budget = getBudget();
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            final AtomicLong loaded = new AtomicLong();
+            ExecutorService pool = Executors.newFixedThreadPool(PREFETCH_THREADS, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG + "-" + mCount++);
+                }
+            });
+            long planned = 0;
+            for (long entry : mPrevious) {
+                final AssetFile file = mFiles.get((int) (entry >>> 32));
+                final int index = (int) entry;
+                final long length = file.getChunkLength(index);
+                if (planned + length > budget) {
+                    break;
+                }
+                planned += length;
+
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadChunk(file, index, length)) {
+                            loaded.addAndGet(length);
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(MAX_LOAD_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+
+            // The load waits on the prefetched chunks, so it lasts at least as long
+            mLastTouchMillis = SystemClock.uptimeMillis();
+            mPrefetchedBytes = loaded.get();
+            Log.i(TAG, "Prefetched " + (mPrefetchedBytes >> 20) + " MB of " + mPackageName + " in " +
+                       (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000000 + "ms (" +
+                       mPrevious.size() + " profiled chunks, budget " + (budget >> 20) + " MB)");
+        }
+
+        /**
+         * Find the chunks that became resident since the last sample. A chunk
+         * counts as resident once any of its pages is.
+         * @param record true to record new chunks outside the previous profile
+         *        as touched by the game, false to only note them as resident
+         * @return true if the load is over
+         */
+        boolean sample(boolean record) {
+            long now = SystemClock.uptimeMillis();
+            int before = mTouched.size();
+
+            for (int f = 0; f < mFiles.size(); f++) {
+                AssetFile file = mFiles.get(f);
+                if (file.mResidentCount < file.mChunks && map(file)) {
+                    sampleFile(f, file, record);
+                }
+            }
+
+            if (mTouched.size() > before) {
+                mLastTouchMillis = now;
+            }
+            long elapsed = now - mStartMillis;
+            return elapsed >= MAX_LOAD_MS
+                    || elapsed >= MIN_LOAD_MS && now - mLastTouchMillis >= SETTLE_MS;
+        }
+
+        /**
+         * Check the residency of a file with one mincore call per window,
+         * skipping windows whose chunks are all resident
+         */
+        private void sampleFile(int f, AssetFile file, boolean record) {
+            int chunksPerWindow = (int) (MINCORE_WINDOW / CHUNK_SIZE);
+            int pagesPerChunk = CHUNK_SIZE / mPageSize;
+            for (int first = 0; first < file.mChunks; first += chunksPerWindow) {
+                int last = Math.min(file.mChunks, first + chunksPerWindow);
+                int c = first;
+                while (c < last && file.mResident[c]) {
+                    c++;
+                }
+                if (c == last) {
+                    continue;
+                }
+
+                long offset = (long) first * CHUNK_SIZE;
+                long length = Math.min(MINCORE_WINDOW, file.mLength - offset);
+                try {
+                    Os.mincore(file.mAddress + offset, length, mVector);
+                } catch (ErrnoException e) {
+                    Log.e(TAG, "Cannot check residency of " + file.mPath + ": " + e.getMessage());
+                    return;
+                }
+
+                int pages = (int) ((length + mPageSize - 1) / mPageSize);
+                for (; c < last; c++) {
+                    if (file.mResident[c]) {
+                        continue;
+                    }
+                    int page = (c - first) * pagesPerChunk;
+                    int end = Math.min(pages, page + pagesPerChunk);
+                    while (page < end && (mVector[page] & 1) == 0) {
+                        page++;
+                    }
+                    if (page == end) {
+                        continue;
+                    }
+
+                    file.mResident[c] = true;
+                    file.mResidentCount++;
+                    if (record && !file.mProfiled[c]) {
+                        mTouched.add(chunk(f, c));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Log the load time against the baseline and save the profile
+         */
+        void finish() {
+            long loadMs = mLastTouchMillis - mStartMillis;
+            if (mPrevious.isEmpty() || mBaselineMs <= 0) {
+                mBaselineMs = loadMs;
+            }
+            Log.i(TAG, mPackageName + " loaded in " + loadMs + "ms, baseline " + mBaselineMs + "ms, " +
+                       mTouched.size() + " new chunks touched, " + (mPrefetchedBytes >> 20) + " MB prefetched");
+            saveProfile();
+        }
+
+        void close() {
+            for (AssetFile file : mFiles) {
+                if (file.mAddress != 0) {
+                    try {
+                        Os.munmap(file.mAddress, file.mLength);
+                    } catch (ErrnoException e) {
+                        // Ignore
+                    }
+                    file.mAddress = 0;
+                }
+            }
+        }
+
+        /**
+         * Map a file read-only for residency checks, which reads none of it
+         * @return false if the file cannot be mapped
+         */
+        private boolean map(AssetFile file) {
+            if (file.mAddress != 0) {
+                return true;
+            } else if (file.mUnmappable) {
+                return false;
+            }
+
+            FileDescriptor fd = null;
+            try {
+                fd = Os.open(file.mPath, OsConstants.O_RDONLY | OsConstants.O_CLOEXEC, 0);
+                file.mAddress = Os.mmap(0, file.mLength, OsConstants.PROT_READ, OsConstants.MAP_SHARED, fd, 0);
+                return true;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Cannot map " + file.mPath + ": " + e.getMessage());
+                file.mUnmappable = true;
+                return false;
+            } finally {
+                if (fd != null) {
+                    try {
+                        Os.close(fd);
+                    } catch (ErrnoException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        /**
+         * Read a chunk into the page cache
+         */
+        private boolean loadChunk(AssetFile file, int index, long length) {
+            try (RandomAccessFile raf = new RandomAccessFile(file.mPath, "r")) {
+                raf.getChannel().map(FileChannel.MapMode.READ_ONLY, (long) index * CHUNK_SIZE, length).load();
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error prefetching " + file.mPath, e);
+                return false;
+            }
+        }
+
+        /**
+         * Load the previous profile, dropping the chunks of files that changed
+         */
+        private void loadProfile() {
+            if (!mProfileFile.isFile()) {
+                return;
+            }
+
+            List<Integer> fileMap = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(mProfileFile))) {
+                if (!PROFILE_VERSION.equals(reader.readLine())) {
+                    return;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields[0].equals("baseline") && fields.length == 2) {
+                        mBaselineMs = Long.parseLong(fields[1]);
+                    } else if (fields[0].equals("file") && fields.length == 3) {
+                        fileMap.add(findFile(fields[1], Long.parseLong(fields[2])));
+                    } else if (fields[0].equals("chunk") && fields.length == 3) {
+                        int f = fileMap.get(Integer.parseInt(fields[1]));
+                        int c = Integer.parseInt(fields[2]);
+                        if (f >= 0 && c < mFiles.get(f).mChunks && !mFiles.get(f).mProfiled[c]) {
+                            mFiles.get(f).mProfiled[c] = true;
+                            mPrevious.add(chunk(f, c));
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error reading prefetch profile of " + mPackageName, e);
+                for (long entry : mPrevious) {
+                    mFiles.get((int) (entry >>> 32)).mProfiled[(int) entry] = false;
+                }
+                mPrevious.clear();
+            }
+        }
+
+        private int findFile(String path, long length) {
+            for (int f = 0; f < mFiles.size(); f++) {
+                AssetFile file = mFiles.get(f);
+                if (file.mPath.equals(path) && file.mLength == length) {
+                    return f;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Save the chunks of the previous profile, followed by those this
+         * launch touched, as the profile of the next launch
+         */
+        private void saveProfile() {
+            File dir = mProfileFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                Log.e(TAG, "Cannot create " + dir);
+                return;
+            }
+
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(mProfileFile))) {
+                writer.write(PROFILE_VERSION);
+                writer.newLine();
+                writer.write("baseline\t" + mBaselineMs);
+                writer.newLine();
+                for (AssetFile file : mFiles) {
+                    writer.write("file\t" + file.mPath + "\t" + file.mLength);
+                    writer.newLine();
+                }
+                writeChunks(writer, mPrevious);
+                writeChunks(writer, mTouched);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing prefetch profile of " + mPackageName, e);
+            }
+        }
+
+        private void writeChunks(BufferedWriter writer, List<Long> chunks) throws IOException {
+            for (long entry : chunks) {
+                writer.write("chunk\t" + (entry >>> 32) + "\t" + (int) entry);
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -2,19 +2,20 @@ package com.android_gaming_os.performanceoptimizer;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+import com.android_gaming_os.performanceoptimizer.monitor.CpuLoadSampler;
+
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Class responsible for optimizing CPU performance.
  * Handles CPU frequency scaling, governor settings, and core management.
+ * Settings are applied once per cluster (cpufreq policy), using each
+ * cluster's own frequency table and governors.
  */
 public class CPUOptimizer {
     private static final String TAG = "CPUOptimizer";
@@ -22,11 +23,16 @@ public class CPUOptimizer {
     // CPU sysfs paths
     private static final String CPU_BASE_PATH = "/sys/devices/system/cpu/";
     private static final String CPU_ONLINE_PATH = CPU_BASE_PATH + "cpu%d/online";
-    private static final String CPU_GOVERNOR_PATH = CPU_BASE_PATH + "cpu%d/cpufreq/scaling_governor";
-    private static final String CPU_MIN_FREQ_PATH = CPU_BASE_PATH + "cpu%d/cpufreq/scaling_min_freq";
-    private static final String CPU_MAX_FREQ_PATH = CPU_BASE_PATH + "cpu%d/cpufreq/scaling_max_freq";
-    private static final String CPU_AVAILABLE_GOVERNORS_PATH = CPU_BASE_PATH + "cpu0/cpufreq/scaling_available_governors";
-    private static final String CPU_AVAILABLE_FREQUENCIES_PATH = CPU_BASE_PATH + "cpu0/cpufreq/scaling_available_frequencies";
+    
+    // Policy nodes, relative to the cluster's cpufreq directory
+    private static final String GOVERNOR_NODE = "scaling_governor";
+    private static final String MIN_FREQ_NODE = "scaling_min_freq";
+    private static final String MAX_FREQ_NODE = "scaling_max_freq";
+    private static final String AVAILABLE_GOVERNORS_NODE = "scaling_available_governors";
+    private static final String AVAILABLE_FREQUENCIES_NODE = "scaling_available_frequencies";
+    
+    // OPP table of a policy, exposing the voltage of each frequency
+    private static final String OPP_PATH = "/sys/kernel/debug/opp/cpu%d/";
     
     // CPU governors
     private static final String GOVERNOR_PERFORMANCE = "performance";
@@ -40,122 +46,158 @@ public class CPUOptimizer {
     public static final int LEVEL_MEDIUM = 1;   // Balanced
     public static final int LEVEL_HIGH = 2;     // Performance
     public static final int LEVEL_EXTREME = 3;  // Maximum performance
+    public static final int LEVEL_SUSTAINED = 4; // Sustained performance
+    
+    // Max frequency cap of the battery saving profile, as a percentage of max
+    private static final int BATTERY_MAX_PERCENT = 60;
     
+    // Min performance as a percentage of the max frequency, indexed by cluster role
+    private static final int[] PERFORMANCE_MIN_PERCENTS = { 0, 30, 50 };
+    private static final int[] EXTREME_MIN_PERCENTS = { 0, 50, 70 };
+    
+    private final SysfsEngine mSysfs;
+    private final EnergyModel mEnergyModel;
+    private final List<CpuCluster> mClusters;
     private int mNumCores;
-    private List<String> mAvailableGovernors;
-    private Map<Integer, String> mOriginalGovernors;
-    private Map<Integer, String> mOriginalMinFreqs;
-    private Map<Integer, String> mOriginalMaxFreqs;
-    private Map<Integer, Boolean> mOriginalOnlineStatus;
+    private SysfsNode[] mOnlineNodes;
+    
+    // Per-cluster nodes, indexed like mClusters
+    private SysfsNode[] mGovernorNodes;
+    private SysfsNode[] mMinFreqNodes;
+    private SysfsNode[] mMaxFreqNodes;
+    private SysfsNode[] mAvailableGovernorsNodes;
+    private SysfsNode[] mAvailableFrequenciesNodes;
+    private List<List<String>> mAvailableGovernors;
+    private FrequencyTable[] mFrequencyTables;
     
-    public CPUOptimizer() {
-        mNumCores = getNumCores();
+    public CPUOptimizer(SysfsEngine sysfs, CpuTopology topology, EnergyModel energyModel) {
+        mSysfs = sysfs;
+        mEnergyModel = energyModel;
+        mClusters = topology.getClusters();
+        mNumCores = topology.getNumCores();
+        resolveNodes();
         mAvailableGovernors = getAvailableGovernors();
-        mOriginalGovernors = new HashMap<>();
-        mOriginalMinFreqs = new HashMap<>();
-        mOriginalMaxFreqs = new HashMap<>();
-        mOriginalOnlineStatus = new HashMap<>();
+        mFrequencyTables = getFrequencyTables();
         
-        Log.i(TAG, "CPUOptimizer initialized with " + mNumCores + " cores");
+        Log.i(TAG, "CPUOptimizer initialized with " + mNumCores + " cores in " + mClusters.size() + " clusters");
         Log.i(TAG, "Available governors: " + mAvailableGovernors);
     }
     
     /**
-     * Apply CPU optimizations based on the specified level
+     * Compile the CPU optimizations for the specified level into a transaction
      */
-    public void applyOptimizations(int level) {
-        Log.i(TAG, "Applying CPU optimizations for level: " + level);
+    public void compileOptimizations(int level, TuningTransaction tx) {
+        Log.i(TAG, "Compiling CPU optimizations for level: " + level);
         
-        // Save original settings before applying optimizations
-        saveOriginalSettings();
+        // Capabilities may have changed since the last compilation
+        mAvailableGovernors = getAvailableGovernors();
+        mFrequencyTables = getFrequencyTables();
         
         switch (level) {
             case LEVEL_LOW:
-                applyBatterySavingProfile();
+                applyBatterySavingProfile(tx);
                 break;
             case LEVEL_MEDIUM:
-                applyBalancedProfile();
+                applyBalancedProfile(tx);
                 break;
             case LEVEL_HIGH:
-                applyPerformanceProfile();
+                applyPerformanceProfile(tx);
                 break;
             case LEVEL_EXTREME:
-                applyExtremePerformanceProfile();
+                applyExtremePerformanceProfile(tx);
+                break;
+            case LEVEL_SUSTAINED:
+                // The frequency caps are set at runtime by the frequency controller
+                applyBalancedProfile(tx);
                 break;
         }
     }
     
     /**
-     * Restore original CPU settings
+     * Get a signature of the CPU capabilities the compiled optimizations depend on
      */
-    public void restoreOriginalSettings() {
-        Log.i(TAG, "Restoring original CPU settings");
-        
-        for (int core = 0; core < mNumCores; core++) {
-            if (mOriginalGovernors.containsKey(core)) {
-                setGovernor(core, mOriginalGovernors.get(core));
-            }
-            
-            if (mOriginalMinFreqs.containsKey(core)) {
-                setMinFrequency(core, mOriginalMinFreqs.get(core));
-            }
-            
-            if (mOriginalMaxFreqs.containsKey(core)) {
-                setMaxFrequency(core, mOriginalMaxFreqs.get(core));
-            }
-            
-            if (mOriginalOnlineStatus.containsKey(core) && core > 0) {
-                setCoreOnline(core, mOriginalOnlineStatus.get(core));
-            }
+    public long getCapabilitySignature() {
+        long signature = mNumCores;
+        for (int i = 0; i < mClusters.size(); i++) {
+            signature = signature * 31 + mSysfs.readHash(mAvailableFrequenciesNodes[i]);
+            signature = signature * 31 + mSysfs.readHash(mAvailableGovernorsNodes[i]);
         }
+        return signature;
     }
     
     /**
-     * Save original CPU settings
+     * Get the frequency domain of each cluster with a frequency table, with
+     * utilization from a load sampler
      */
-    private void saveOriginalSettings() {
-        for (int core = 0; core < mNumCores; core++) {
-            mOriginalGovernors.put(core, getGovernor(core));
-            mOriginalMinFreqs.put(core, getMinFrequency(core));
-            mOriginalMaxFreqs.put(core, getMaxFrequency(core));
-            
-            if (core > 0) { // Core 0 is always online
-                mOriginalOnlineStatus.put(core, isCoreOnline(core));
+    public List<FrequencyDomain> getFrequencyDomains(CpuLoadSampler sampler) {
+        List<FrequencyDomain> domains = new ArrayList<>();
+        for (int i = 0; i < mClusters.size(); i++) {
+            if (!mFrequencyTables[i].isEmpty()) {
+                domains.add(new ClusterDomain(i, sampler));
             }
         }
+        return domains;
+    }
+    
+    /**
+     * Compile a short boost that raises the min frequency of all clusters to a
+     * percentage of their max; reverted by committing the level again
+     */
+    public void compileBoost(int percent, TuningTransaction tx) {
+        mFrequencyTables = getFrequencyTables();
+        for (int i = 0; i < mClusters.size(); i++) {
+            setMinFrequencyFloor(tx, i, percent);
+        }
+    }
+    
+    /**
+     * Capture the original CPU settings into a session snapshot
+     */
+    public void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        for (int core = 1; core < mNumCores; core++) { // Core 0 is always online
+            snapshot.addOnline(mOnlineNodes[core]);
+        }
+        
+        for (int i = 0; i < mClusters.size(); i++) {
+            snapshot.addGovernor(mGovernorNodes[i]);
+            snapshot.addRange(mMinFreqNodes[i], mMaxFreqNodes[i]);
+        }
     }
     
     /**
      * Apply battery saving profile
      * - Use powersave governor
      * - Limit max frequency
-     * - Disable some cores
+     * - Run on the efficiency cluster only
      */
-    private void applyBatterySavingProfile() {
+    private void applyBatterySavingProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying battery saving CPU profile");
         
-        // Use powersave governor on all cores
-        String governor = getBestAvailableGovernor(GOVERNOR_POWERSAVE, GOVERNOR_ONDEMAND);
-        for (int core = 0; core < mNumCores; core++) {
-            setGovernor(core, governor);
+        for (int i = 0; i < mClusters.size(); i++) {
+            // Use powersave governor on all clusters
+            String governor = getBestAvailableGovernor(i, GOVERNOR_POWERSAVE, GOVERNOR_ONDEMAND);
+            setGovernor(tx, i, governor);
+            
+            // Limit max frequency to 60% of max
+            FrequencyTable table = mFrequencyTables[i];
+            if (!table.isEmpty()) {
+                setFrequencyRange(tx, i, table.getMin(), table.floorPercent(BATTERY_MAX_PERCENT));
+            }
         }
         
-        // Limit max frequency to 60% of max
-        List<String> freqs = getAvailableFrequencies();
-        if (!freqs.isEmpty()) {
-            int maxIndex = (int) (freqs.size() * 0.6);
-            if (maxIndex < freqs.size()) {
-                String limitedFreq = freqs.get(maxIndex);
-                for (int core = 0; core < mNumCores; core++) {
-                    setMaxFrequency(core, limitedFreq);
+        if (mClusters.size() > 1) {
+            // Disable all cores outside the efficiency cluster
+            for (CpuCluster cluster : mClusters) {
+                if (cluster.getRole() != CpuCluster.ROLE_EFFICIENCY) {
+                    for (int core : cluster.getCpus()) {
+                        setCoreOnline(tx, core, false);
+                    }
                 }
             }
-        }
-        
-        // Disable half of the cores if we have more than 2
-        if (mNumCores > 2) {
+        } else if (mNumCores > 2) {
+            // Disable half of the cores if we have more than 2
             for (int core = mNumCores / 2; core < mNumCores; core++) {
-                setCoreOnline(core, false);
+                setCoreOnline(tx, core, false);
             }
         }
     }
@@ -166,270 +208,284 @@ public class CPUOptimizer {
      * - Normal frequency range
      * - All cores enabled
      */
-    private void applyBalancedProfile() {
+    private void applyBalancedProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying balanced CPU profile");
         
-        // Use balanced governor on all cores
-        String governor = getBestAvailableGovernor(GOVERNOR_INTERACTIVE, GOVERNOR_ONDEMAND, GOVERNOR_SCHEDUTIL);
-        for (int core = 0; core < mNumCores; core++) {
-            setGovernor(core, governor);
-        }
-        
-        // Use full frequency range
-        List<String> freqs = getAvailableFrequencies();
-        if (!freqs.isEmpty()) {
-            String minFreq = freqs.get(0);
-            String maxFreq = freqs.get(freqs.size() - 1);
-            
-            for (int core = 0; core < mNumCores; core++) {
-                setMinFrequency(core, minFreq);
-                setMaxFrequency(core, maxFreq);
-            }
+        for (int i = 0; i < mClusters.size(); i++) {
+            applyBalancedCluster(tx, i);
         }
         
         // Enable all cores
-        for (int core = 0; core < mNumCores; core++) {
-            setCoreOnline(core, true);
-        }
+        setAllCoresOnline(tx);
     }
     
     /**
      * Apply performance profile
-     * - Use performance governor
-     * - Higher min frequency
-     * - Max frequency at 100%
+     * - Raise the min performance of the big and prime clusters
+     * - Higher min performance, highest on the prime cluster
+     * - Efficiency cluster stays balanced
      * - All cores enabled
      */
-    private void applyPerformanceProfile() {
+    private void applyPerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying performance CPU profile");
         
-        // Use performance governor on all cores
-        String governor = getBestAvailableGovernor(GOVERNOR_PERFORMANCE, GOVERNOR_INTERACTIVE);
-        for (int core = 0; core < mNumCores; core++) {
-            setGovernor(core, governor);
-        }
-        
-        // Set min frequency to 30% of max
-        List<String> freqs = getAvailableFrequencies();
-        if (!freqs.isEmpty()) {
-            int minIndex = (int) (freqs.size() * 0.3);
-            String minFreq = freqs.get(minIndex);
-            String maxFreq = freqs.get(freqs.size() - 1);
-            
-            for (int core = 0; core < mNumCores; core++) {
-                setMinFrequency(core, minFreq);
-                setMaxFrequency(core, maxFreq);
+        for (int i = 0; i < mClusters.size(); i++) {
+            int role = mClusters.get(i).getRole();
+            if (role == CpuCluster.ROLE_EFFICIENCY) {
+                applyBalancedCluster(tx, i);
+                continue;
             }
+            
+            applyPerformanceCluster(tx, i, PERFORMANCE_MIN_PERCENTS[role],
+                    GOVERNOR_PERFORMANCE, GOVERNOR_INTERACTIVE);
         }
         
         // Enable all cores
-        for (int core = 0; core < mNumCores; core++) {
-            setCoreOnline(core, true);
-        }
+        setAllCoresOnline(tx);
     }
     
     /**
      * Apply extreme performance profile
-     * - Use performance governor
-     * - High min frequency
-     * - Max frequency at 100%
+     * - Raise the min performance of the big and prime clusters further
+     * - High min performance, highest on the prime cluster
+     * - Efficiency cluster stays balanced
      * - All cores enabled
      */
-    private void applyExtremePerformanceProfile() {
+    private void applyExtremePerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying extreme performance CPU profile");
         
-        // Use performance governor on all cores
-        String governor = getBestAvailableGovernor(GOVERNOR_PERFORMANCE);
-        for (int core = 0; core < mNumCores; core++) {
-            setGovernor(core, governor);
-        }
-        
-        // Set min frequency to 50% of max
-        List<String> freqs = getAvailableFrequencies();
-        if (!freqs.isEmpty()) {
-            int minIndex = (int) (freqs.size() * 0.5);
-            String minFreq = freqs.get(minIndex);
-            String maxFreq = freqs.get(freqs.size() - 1);
-            
-            for (int core = 0; core < mNumCores; core++) {
-                setMinFrequency(core, minFreq);
-                setMaxFrequency(core, maxFreq);
+        for (int i = 0; i < mClusters.size(); i++) {
+            int role = mClusters.get(i).getRole();
+            if (role == CpuCluster.ROLE_EFFICIENCY) {
+                applyBalancedCluster(tx, i);
+                continue;
             }
+            
+            applyPerformanceCluster(tx, i, EXTREME_MIN_PERCENTS[role], GOVERNOR_PERFORMANCE);
         }
         
         // Enable all cores
-        for (int core = 0; core < mNumCores; core++) {
-            setCoreOnline(core, true);
-        }
+        setAllCoresOnline(tx);
     }
     
     /**
-     * Get the best available governor from the provided options
+     * Set the balanced governor and the full frequency range on a cluster
      */
-    private String getBestAvailableGovernor(String... preferredGovernors) {
-        for (String governor : preferredGovernors) {
-            if (mAvailableGovernors.contains(governor)) {
-                return governor;
-            }
-        }
+    private void applyBalancedCluster(TuningTransaction tx, int cluster) {
+        String governor = getBestAvailableGovernor(cluster,
+                GOVERNOR_INTERACTIVE, GOVERNOR_ONDEMAND, GOVERNOR_SCHEDUTIL);
+        setGovernor(tx, cluster, governor);
         
-        // Default to the first available governor if none of the preferred ones are available
-        return mAvailableGovernors.isEmpty() ? GOVERNOR_ONDEMAND : mAvailableGovernors.get(0);
-    }
-    
-    /**
-     * Get the number of CPU cores
-     */
-    private int getNumCores() {
-        int cores = 0;
-        while (new File(String.format(CPU_BASE_PATH + "cpu%d", cores)).exists()) {
-            cores++;
+        FrequencyTable table = mFrequencyTables[cluster];
+        if (!table.isEmpty()) {
+            setFrequencyRange(tx, cluster, table.getMin(), table.getMax());
         }
-        return Math.max(1, cores); // Ensure at least 1 core
     }
     
     /**
-     * Get available CPU governors
+     * Guarantee a cluster a min performance as a percentage of its max frequency.
+     * With power data for the cluster, a scaling governor runs above the
+     * frequency with the lowest energy per cycle that meets the minimum, which
+     * delivers the same performance as pinning frequencies with the performance
+     * governor at lower energy. Without it the preferred governors and the
+     * minimum as a frequency floor are set.
      */
-    private List<String> getAvailableGovernors() {
-        List<String> governors = new ArrayList<>();
-        String content = readFile(CPU_AVAILABLE_GOVERNORS_PATH);
-        
-        if (content != null) {
-            for (String governor : content.split("\\s+")) {
-                if (!governor.trim().isEmpty()) {
-                    governors.add(governor.trim());
-                }
-            }
+    private void applyPerformanceCluster(TuningTransaction tx, int cluster, int minPercent,
+            String... preferredGovernors) {
+        FrequencyTable table = mFrequencyTables[cluster];
+        String domain = "policy" + mClusters.get(cluster).getPolicy();
+        if (mEnergyModel == null || !mEnergyModel.canSelect(domain, table)) {
+            setGovernor(tx, cluster, getBestAvailableGovernor(cluster, preferredGovernors));
+            setMinFrequencyFloor(tx, cluster, minPercent);
+            return;
         }
         
-        // Add default governors if none were found
-        if (governors.isEmpty()) {
-            governors.add(GOVERNOR_ONDEMAND);
-            governors.add(GOVERNOR_PERFORMANCE);
-            governors.add(GOVERNOR_POWERSAVE);
-        }
+        String governor = getBestAvailableGovernor(cluster,
+                GOVERNOR_SCHEDUTIL, GOVERNOR_INTERACTIVE, GOVERNOR_ONDEMAND);
+        int floor = mEnergyModel.getEfficientFrequency(domain, table, table.percentOfMax(minPercent));
+        setGovernor(tx, cluster, governor);
+        setFrequencyRange(tx, cluster, floor, table.getMax());
         
-        return governors;
+        Log.i(TAG, "Energy efficient floor of " + domain + ": " + floor + " kHz with " + governor +
+                   " (min " + table.ceilPercent(minPercent) + " kHz)");
     }
     
     /**
-     * Get available CPU frequencies
+     * Raise the min frequency of a cluster to a percentage of its max, with max at 100%
      */
-    private List<String> getAvailableFrequencies() {
-        List<String> frequencies = new ArrayList<>();
-        String content = readFile(CPU_AVAILABLE_FREQUENCIES_PATH);
-        
-        if (content != null) {
-            for (String freq : content.split("\\s+")) {
-                if (!freq.trim().isEmpty()) {
-                    frequencies.add(freq.trim());
-                }
-            }
+    private void setMinFrequencyFloor(TuningTransaction tx, int cluster, int percent) {
+        FrequencyTable table = mFrequencyTables[cluster];
+        if (!table.isEmpty()) {
+            setFrequencyRange(tx, cluster, table.ceilPercent(percent), table.getMax());
         }
-        
-        return frequencies;
     }
     
     /**
-     * Get current governor for a CPU core
+     * Enable all cores
      */
-    private String getGovernor(int core) {
-        return readFile(String.format(CPU_GOVERNOR_PATH, core));
+    private void setAllCoresOnline(TuningTransaction tx) {
+        for (int core = 0; core < mNumCores; core++) {
+            setCoreOnline(tx, core, true);
+        }
     }
     
     /**
-     * Set governor for a CPU core
+     * Get the best available governor of a cluster from the provided options
      */
-    private boolean setGovernor(int core, String governor) {
-        return writeFile(String.format(CPU_GOVERNOR_PATH, core), governor);
+    private String getBestAvailableGovernor(int cluster, String... preferredGovernors) {
+        List<String> available = mAvailableGovernors.get(cluster);
+        for (String governor : preferredGovernors) {
+            if (available.contains(governor)) {
+                return governor;
+            }
+        }
+        
+        // Default to the first available governor if none of the preferred ones are available
+        return available.get(0);
     }
     
     /**
-     * Get minimum frequency for a CPU core
+     * Resolve the per-core and per-cluster tuning nodes once
      */
-    private String getMinFrequency(int core) {
-        return readFile(String.format(CPU_MIN_FREQ_PATH, core));
+    private void resolveNodes() {
+        mOnlineNodes = new SysfsNode[mNumCores];
+        for (int core = 0; core < mNumCores; core++) {
+            mOnlineNodes[core] = mSysfs.node(String.format(CPU_ONLINE_PATH, core));
+        }
+        
+        int count = mClusters.size();
+        mGovernorNodes = new SysfsNode[count];
+        mMinFreqNodes = new SysfsNode[count];
+        mMaxFreqNodes = new SysfsNode[count];
+        mAvailableGovernorsNodes = new SysfsNode[count];
+        mAvailableFrequenciesNodes = new SysfsNode[count];
+        
+        for (int i = 0; i < count; i++) {
+            String path = mClusters.get(i).getCpufreqPath();
+            mGovernorNodes[i] = mSysfs.node(path + GOVERNOR_NODE);
+            mMinFreqNodes[i] = mSysfs.node(path + MIN_FREQ_NODE);
+            mMaxFreqNodes[i] = mSysfs.node(path + MAX_FREQ_NODE);
+            mAvailableGovernorsNodes[i] = mSysfs.node(path + AVAILABLE_GOVERNORS_NODE);
+            mAvailableFrequenciesNodes[i] = mSysfs.node(path + AVAILABLE_FREQUENCIES_NODE);
+        }
     }
     
     /**
-     * Set minimum frequency for a CPU core
+     * Get available CPU governors of each cluster
      */
-    private boolean setMinFrequency(int core, String frequency) {
-        return writeFile(String.format(CPU_MIN_FREQ_PATH, core), frequency);
+    private List<List<String>> getAvailableGovernors() {
+        List<List<String>> result = new ArrayList<>();
+        for (int i = 0; i < mClusters.size(); i++) {
+            List<String> governors = new ArrayList<>();
+            String content = mSysfs.read(mAvailableGovernorsNodes[i]);
+            
+            if (content != null) {
+                for (String governor : content.split("\\s+")) {
+                    if (!governor.trim().isEmpty()) {
+                        governors.add(governor.trim());
+                    }
+                }
+            }
+            
+            // Add default governors if none were found
+            if (governors.isEmpty()) {
+                governors.add(GOVERNOR_ONDEMAND);
+                governors.add(GOVERNOR_PERFORMANCE);
+                governors.add(GOVERNOR_POWERSAVE);
+            }
+            
+            result.add(governors);
+        }
+        return result;
     }
     
     /**
-     * Get maximum frequency for a CPU core
+     * Get the frequency table of each cluster
      */
-    private String getMaxFrequency(int core) {
-        return readFile(String.format(CPU_MAX_FREQ_PATH, core));
+    private FrequencyTable[] getFrequencyTables() {
+        FrequencyTable[] tables = new FrequencyTable[mClusters.size()];
+        for (int i = 0; i < tables.length; i++) {
+            String oppPath = String.format(OPP_PATH, mClusters.get(i).getPolicy());
+            tables[i] = FrequencyTable.read(mSysfs, mAvailableFrequenciesNodes[i], 1)
+                    .withOppVoltages(mSysfs, oppPath);
+        }
+        return tables;
     }
     
     /**
-     * Set maximum frequency for a CPU core
+     * Set governor for a cluster
      */
-    private boolean setMaxFrequency(int core, String frequency) {
-        return writeFile(String.format(CPU_MAX_FREQ_PATH, core), frequency);
+    private void setGovernor(TuningTransaction tx, int cluster, String governor) {
+        tx.setGovernor(mGovernorNodes[cluster], governor);
     }
     
     /**
-     * Check if a CPU core is online
+     * Set the frequency range for a cluster
      */
-    private boolean isCoreOnline(int core) {
-        if (core == 0) return true; // Core 0 is always online
-        
-        String status = readFile(String.format(CPU_ONLINE_PATH, core));
-        return status != null && status.trim().equals("1");
+    private void setFrequencyRange(TuningTransaction tx, int cluster, int minFreq, int maxFreq) {
+        tx.setRange(mMinFreqNodes[cluster], mMaxFreqNodes[cluster], minFreq, maxFreq);
     }
     
     /**
      * Set a CPU core online or offline
      */
-    private boolean setCoreOnline(int core, boolean online) {
-        if (core == 0) return true; // Core 0 is always online
+    private void setCoreOnline(TuningTransaction tx, int core, boolean online) {
+        if (core == 0) return; // Core 0 is always online
         
-        return writeFile(String.format(CPU_ONLINE_PATH, core), online ? "1" : "0");
+        tx.setOnline(mOnlineNodes[core], online);
     }
     
     /**
-     * Read content from a file
+     * Frequency domain of a cluster. Utilization is that of its busiest core.
      */
-    private String readFile(String filePath) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canRead()) {
-                return null;
-            }
-            
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            String content = reader.readLine();
-            reader.close();
-            return content;
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading file: " + filePath, e);
-            return null;
+    private final class ClusterDomain implements FrequencyDomain {
+        private final int mCluster;
+        private final int[] mCpus;
+        private final FrequencyTable mTable;
+        private final CpuLoadSampler mSampler;
+        private final SysfsNode mCurFreqNode;
+        
+        ClusterDomain(int cluster, CpuLoadSampler sampler) {
+            mCluster = cluster;
+            mCpus = mClusters.get(cluster).getCpus();
+            mTable = mFrequencyTables[cluster];
+            mSampler = sampler;
+            mCurFreqNode = mSysfs.node(mClusters.get(cluster).getCpufreqPath() + "scaling_cur_freq");
         }
-    }
-    
-    /**
-     * Write content to a file
-     */
-    private boolean writeFile(String filePath, String content) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canWrite()) {
-                Log.e(TAG, "Cannot write to file: " + filePath);
-                return false;
+        
+        @Override
+        public String getName() {
+            return "policy" + mClusters.get(mCluster).getPolicy();
+        }
+        
+        @Override
+        public CpuCluster getCluster() {
+            return mClusters.get(mCluster);
+        }
+        
+        @Override
+        public FrequencyTable getFrequencyTable() {
+            return mTable;
+        }
+        
+        @Override
+        public int getBusy() {
+            int busy = -1;
+            for (int cpu : mCpus) {
+                busy = Math.max(busy, mSampler.getBusy().getAverage(CpuLoadSampler.channelOf(cpu), 2, -1));
             }
-            
-            FileWriter writer = new FileWriter(file);
-            writer.write(content);
-            writer.close();
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to file: " + filePath, e);
-            return false;
+            return busy;
+        }
+        
+        @Override
+        public int getCurrentFrequency() {
+            return (int) mSysfs.readLong(mCurFreqNode, -1);
+        }
+        
+        @Override
+        public boolean setRange(int minIndex, int maxIndex) {
+            return mSysfs.writeRange(mMinFreqNodes[mCluster], mMaxFreqNodes[mCluster],
+                    mTable.get(minIndex), mTable.get(maxIndex));
         }
     }
 }
@@ -0,0 +1,76 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+/**
+ * A cooling device of /sys/class/thermal. A state above 0 means the kernel
+ * is limiting the device, such as capping the frequency of a CPU cluster.
+ */
+public final class CoolingDevice {
+    private final SysfsEngine mSysfs;
+    private final int mId;
+    private final String mType;
+    private final int mKind;
+    private final CpuCluster mCluster;
+    private final long mMaxState;
+    private final SysfsNode mCurStateNode;
+
+    CoolingDevice(SysfsEngine sysfs, int id, String type, int kind, CpuCluster cluster,
+                  long maxState, SysfsNode curStateNode) {
+        mSysfs = sysfs;
+        mId = id;
+        mType = type;
+        mKind = kind;
+        mCluster = cluster;
+        mMaxState = maxState;
+        mCurStateNode = curStateNode;
+    }
+
+    /**
+     * Get the number of the device, as in cooling_device<id>
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Get the type string of the device
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * Get what the device cools, one of the {@link ThermalZone} KIND constants
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * Get the CPU cluster the device limits, or null
+     */
+    public CpuCluster getCluster() {
+        return mCluster;
+    }
+
+    /**
+     * Get the highest cooling state
+     */
+    public long getMaxState() {
+        return mMaxState;
+    }
+
+    /**
+     * Read the current cooling state, or -1 if it cannot be read
+     */
+    public long getCurState() {
+        return mSysfs.readLong(mCurStateNode, -1);
+    }
+
+    @Override
+    public String toString() {
+        return "cooling_device" + mId + " (" + mType + ")";
+    }
+}
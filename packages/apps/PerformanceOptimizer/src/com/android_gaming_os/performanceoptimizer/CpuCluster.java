@@ -0,0 +1,110 @@
+package com.android_gaming_os.performanceoptimizer;
+
+/**
+ * A group of CPU cores that share one cpufreq policy.
+ * All cores in a cluster run at the same frequency, so tuning is done once
+ * per cluster through its policy directory.
+ */
+public class CpuCluster {
+    // Cluster roles, from slowest to fastest
+    public static final int ROLE_EFFICIENCY = 0;   // LITTLE cores
+    public static final int ROLE_PERFORMANCE = 1;  // big cores
+    public static final int ROLE_PRIME = 2;        // Prime core(s) of tri-cluster SoCs
+
+    private final int mPolicy;
+    private final int[] mCpus;
+    private final String mCpufreqPath;
+    private final int mCapacity;
+    private final long mMaxFreq;
+    private int mRole;
+
+    CpuCluster(int policy, int[] cpus, String cpufreqPath, int capacity, long maxFreq) {
+        mPolicy = policy;
+        mCpus = cpus;
+        mCpufreqPath = cpufreqPath;
+        mCapacity = capacity;
+        mMaxFreq = maxFreq;
+        mRole = ROLE_PERFORMANCE;
+    }
+
+    /**
+     * Get the cpufreq policy number (the first CPU of the policy)
+     */
+    public int getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Get the CPUs of the cluster
+     */
+    public int[] getCpus() {
+        return mCpus.clone();
+    }
+
+    /**
+     * Get the number of CPUs in the cluster
+     */
+    public int getNumCpus() {
+        return mCpus.length;
+    }
+
+    /**
+     * Check if a CPU belongs to the cluster
+     */
+    public boolean contains(int cpu) {
+        for (int c : mCpus) {
+            if (c == cpu) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the cpufreq directory of the cluster, with a trailing slash
+     */
+    public String getCpufreqPath() {
+        return mCpufreqPath;
+    }
+
+    /**
+     * Get the scheduler capacity of the cluster's cores (0-1024), or 0 if unknown
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Get the hardware maximum frequency in kHz, or 0 if unknown
+     */
+    public long getMaxFreq() {
+        return mMaxFreq;
+    }
+
+    /**
+     * Get the role of the cluster
+     */
+    public int getRole() {
+        return mRole;
+    }
+
+    void setRole(int role) {
+        mRole = role;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("policy").append(mPolicy).append(" [");
+        for (int i = 0; i < mCpus.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mCpus[i]);
+        }
+        sb.append("] role=").append(mRole)
+          .append(" capacity=").append(mCapacity)
+          .append(" maxFreq=").append(mMaxFreq);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,236 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+import com.android_gaming_os.performanceoptimizer.io.WritePlan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limits the idle states of the game cores while a game runs at a
+ * performance level. Waking from a deep idle state takes hundreds of
+ * microseconds, which delays input and frame work, so the states whose exit
+ * latency is above a budget are disabled on the cores outside the efficiency
+ * cluster and restored afterwards. The usage and time counters of the
+ * states are reported before and while they are limited, which shows how
+ * much deep idle, and so power, the limit costs.
+ */
+public class CpuIdleManager {
+    private static final String TAG = "CpuIdleManager";
+
+    // Idle states of a core, relative to its directory
+    private static final String CPU_PATH = "/sys/devices/system/cpu/cpu";
+    private static final String CPUIDLE_PATH = "/cpuidle/";
+    private static final String STATE_PREFIX = "state";
+
+    /**
+     * An idle state of one core
+     */
+    private static final class IdleState {
+        final String mName;
+        final long mLatencyUs;
+        final long mResidencyUs;
+        final SysfsNode mDisableNode;
+        final SysfsNode mUsageNode;
+        final SysfsNode mTimeNode;
+
+        IdleState(SysfsEngine sysfs, String path) {
+            String name = sysfs.read(path + "name");
+            mName = name != null ? name.trim() : path;
+            mLatencyUs = sysfs.readLong(sysfs.node(path + "latency"), 0);
+            mResidencyUs = sysfs.readLong(sysfs.node(path + "residency"), 0);
+            mDisableNode = sysfs.node(path + "disable");
+            mUsageNode = sysfs.node(path + "usage");
+            mTimeNode = sysfs.node(path + "time");
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+
+    // Idle states of the game cores
+    private final List<IdleState> mStates = new ArrayList<>();
+
+    // Usage and time counters at the last report
+    private final long[] mUsage;
+    private final long[] mTimeUs;
+
+    private int mBudgetUs = -1;
+    private WritePlan mLimitPlan;
+    private TuningSnapshot mRestore;
+
+    public CpuIdleManager(SysfsEngine sysfs, CpuTopology topology) {
+        mSysfs = sysfs;
+
+        for (CpuCluster cluster : topology.getClusters()) {
+            // A single cluster runs the game on all its cores
+            if (cluster.getRole() == CpuCluster.ROLE_EFFICIENCY && topology.getClusters().size() > 1) {
+                continue;
+            }
+            for (int cpu : cluster.getCpus()) {
+                findStates(cpu);
+            }
+        }
+
+        mUsage = new long[mStates.size()];
+        mTimeUs = new long[mStates.size()];
+        Log.i(TAG, "Found " + mStates.size() + " idle states on the game cores");
+    }
+
+    /**
+     * Find the idle states of a core
+     */
+    private void findStates(int cpu) {
+        String path = CPU_PATH + cpu + CPUIDLE_PATH;
+        for (int index = 0; mSysfs.isDirectory(path + STATE_PREFIX + index); index++) {
+            IdleState state = new IdleState(mSysfs, path + STATE_PREFIX + index + "/");
+            if (state.mDisableNode.isReadable()) {
+                mStates.add(state);
+            }
+        }
+    }
+
+    /**
+     * Check if the game cores have idle states that can be disabled
+     */
+    public boolean isSupported() {
+        return !mStates.isEmpty();
+    }
+
+    /**
+     * Capture the original idle state settings and start counting their usage
+     */
+    public synchronized void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        for (IdleState state : mStates) {
+            snapshot.addValue(state.mDisableNode);
+        }
+        readCounters(mUsage, mTimeUs);
+    }
+
+    /**
+     * Disable the idle states of the game cores whose exit latency is above a
+     * budget. If a write fails, only the idle states are restored.
+     * @return true if the states were limited
+     */
+    public synchronized boolean limit(int budgetUs) {
+        if (!isSupported()) {
+            return false;
+        }
+
+        // Capture the settings as they are now, which may differ from the session start
+        if (mRestore == null) {
+            TuningSnapshot.Builder restore = new TuningSnapshot.Builder(mSysfs);
+            for (IdleState state : mStates) {
+                restore.addValue(state.mDisableNode);
+            }
+            mRestore = restore.build();
+            reportUsage("before the limit");
+        }
+
+        if (mLimitPlan == null || mBudgetUs != budgetUs) {
+            // States disabled for a lower budget are enabled again first
+            if (mLimitPlan != null) {
+                mRestore.restore();
+            }
+            mLimitPlan = compileLimitPlan(budgetUs);
+            mBudgetUs = budgetUs;
+        }
+        if (!mLimitPlan.commit(mRestore)) {
+            Log.e(TAG, "Limiting idle states failed");
+            mRestore = null;
+            return false;
+        }
+
+        Log.i(TAG, "Disabled " + mLimitPlan.size() + " idle states with exit latency above " + budgetUs + "us");
+        return true;
+    }
+
+    /**
+     * Restore the idle state settings captured when they were limited
+     */
+    public synchronized void release() {
+        if (mRestore != null) {
+            reportUsage("while limited");
+            mRestore.restore();
+            mRestore = null;
+            Log.i(TAG, "Idle states restored");
+        }
+    }
+
+    /**
+     * Check if the idle states are limited
+     */
+    public synchronized boolean isLimited() {
+        return mRestore != null;
+    }
+
+    /**
+     * Compile the writes that disable the states above a latency budget
+     */
+    private WritePlan compileLimitPlan(int budgetUs) {
+        TuningTransaction tx = new TuningTransaction(mSysfs);
+        for (IdleState state : mStates) {
+            if (state.mLatencyUs > budgetUs) {
+                tx.set(state.mDisableNode, "1");
+            }
+        }
+        return tx.compile();
+    }
+
+    /**
+     * Log the time and entries of each idle state on the game cores since the
+     * last report, summed per state name
+     */
+    private void reportUsage(String period) {
+        long[] usage = new long[mStates.size()];
+        long[] timeUs = new long[mStates.size()];
+        readCounters(usage, timeUs);
+
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        long idleUs = 0;
+        for (int i = 0; i < mStates.size(); i++) {
+            IdleState state = mStates.get(i);
+            long[] total = totals.get(state.mName);
+            if (total == null) {
+                total = new long[4];
+                totals.put(state.mName, total);
+            }
+            total[0] += Math.max(0, usage[i] - mUsage[i]);
+            total[1] += Math.max(0, timeUs[i] - mTimeUs[i]);
+            total[2] = Math.max(total[2], state.mLatencyUs);
+            total[3] = Math.max(total[3], state.mResidencyUs);
+            idleUs += Math.max(0, timeUs[i] - mTimeUs[i]);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            sb.append(' ').append(entry.getKey()).append(" (exit ").append(total[2])
+              .append("us, residency ").append(total[3]).append("us): ")
+              .append(total[1] / 1000).append("ms ")
+              .append(idleUs > 0 ? total[1] * 100 / idleUs : 0).append("% ")
+              .append(total[0]).append(" entries;");
+        }
+        Log.i(TAG, "Idle state usage of the game cores " + period + ":" + sb);
+
+        System.arraycopy(usage, 0, mUsage, 0, usage.length);
+        System.arraycopy(timeUs, 0, mTimeUs, 0, timeUs.length);
+    }
+
+    /**
+     * Read the usage and time counters of all states
+     */
+    private void readCounters(long[] usage, long[] timeUs) {
+        for (int i = 0; i < mStates.size(); i++) {
+            IdleState state = mStates.get(i);
+            usage[i] = mSysfs.readLong(state.mUsageNode, 0);
+            timeUs[i] = mSysfs.readLong(state.mTimeNode, 0);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU topology of the device.
+ * Discovers the cpufreq policies (clusters) from cpufreq/policyN and their
+ * related_cpus, ranks them by cpu_capacity and maximum frequency, and assigns
+ * each one a role (efficiency, performance or prime). Devices without policy
+ * directories are grouped by per-core related_cpus or topology/cluster_id.
+ */
+public class CpuTopology {
+    private static final String TAG = "CpuTopology";
+
+    // CPU sysfs paths
+    private static final String CPU_BASE_PATH = "/sys/devices/system/cpu/";
+    private static final String CPUFREQ_PATH = CPU_BASE_PATH + "cpufreq/";
+    private static final String POLICY_PREFIX = "policy";
+
+    private final SysfsEngine mSysfs;
+    private final int mNumCores;
+    private final List<CpuCluster> mClusters;
+
+    public CpuTopology(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+        mNumCores = discoverNumCores();
+        mClusters = new ArrayList<>();
+
+        discoverPolicies();
+        if (mClusters.isEmpty()) {
+            discoverFromCores();
+        }
+        rankClusters();
+
+        Log.i(TAG, "CPU topology: " + mNumCores + " cores in " + mClusters.size() + " clusters");
+        for (CpuCluster cluster : mClusters) {
+            Log.i(TAG, "  " + cluster);
+        }
+    }
+
+    /**
+     * Get the number of CPU cores
+     */
+    public int getNumCores() {
+        return mNumCores;
+    }
+
+    /**
+     * Get all clusters, ordered from slowest to fastest
+     */
+    public List<CpuCluster> getClusters() {
+        return Collections.unmodifiableList(mClusters);
+    }
+
+    /**
+     * Get the cluster a CPU belongs to, or null if unknown
+     */
+    public CpuCluster getCluster(int cpu) {
+        for (CpuCluster cluster : mClusters) {
+            if (cluster.contains(cpu)) {
+                return cluster;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the slowest (most efficient) cluster
+     */
+    public CpuCluster getEfficiencyCluster() {
+        return mClusters.get(0);
+    }
+
+    /**
+     * Get the fastest cluster
+     */
+    public CpuCluster getFastestCluster() {
+        return mClusters.get(mClusters.size() - 1);
+    }
+
+    /**
+     * Count the CPU cores
+     */
+    private int discoverNumCores() {
+        int cores = 0;
+        while (mSysfs.exists(CPU_BASE_PATH + "cpu" + cores)) {
+            cores++;
+        }
+        return Math.max(1, cores); // Ensure at least 1 core
+    }
+
+    /**
+     * Discover clusters from the cpufreq policy directories
+     */
+    private void discoverPolicies() {
+        for (String name : mSysfs.list(CPUFREQ_PATH)) {
+            if (!name.startsWith(POLICY_PREFIX)) {
+                continue;
+            }
+
+            int policy;
+            try {
+                policy = Integer.parseInt(name.substring(POLICY_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            String path = CPUFREQ_PATH + name + "/";
+            int[] cpus = parseCpuList(mSysfs.read(path + "related_cpus"));
+            if (cpus.length == 0) {
+                cpus = parseCpuList(mSysfs.read(path + "affected_cpus"));
+            }
+            if (cpus.length == 0) {
+                cpus = new int[] { policy };
+            }
+            addCluster(policy, cpus, path);
+        }
+    }
+
+    /**
+     * Discover clusters from the per-core cpufreq and topology nodes
+     */
+    private void discoverFromCores() {
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int cpu = 0; cpu < mNumCores; cpu++) {
+            String key = mSysfs.read(CPU_BASE_PATH + "cpu" + cpu + "/cpufreq/related_cpus");
+            if (key == null) {
+                key = mSysfs.read(CPU_BASE_PATH + "cpu" + cpu + "/topology/cluster_id");
+            }
+            if (key == null) {
+                key = mSysfs.read(CPU_BASE_PATH + "cpu" + cpu + "/topology/physical_package_id");
+            }
+            if (key == null) {
+                key = "";
+            }
+
+            List<Integer> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(cpu);
+        }
+
+        for (List<Integer> group : groups.values()) {
+            int[] cpus = new int[group.size()];
+            for (int i = 0; i < cpus.length; i++) {
+                cpus[i] = group.get(i);
+            }
+            addCluster(cpus[0], cpus, CPU_BASE_PATH + "cpu" + cpus[0] + "/cpufreq/");
+        }
+    }
+
+    /**
+     * Add a cluster, reading its capacity and maximum frequency
+     */
+    private void addCluster(int policy, int[] cpus, String cpufreqPath) {
+        int capacity = (int) mSysfs.readLong(
+                mSysfs.node(CPU_BASE_PATH + "cpu" + cpus[0] + "/cpu_capacity"), 0);
+        long maxFreq = mSysfs.readLong(mSysfs.node(cpufreqPath + "cpuinfo_max_freq"), 0);
+        mClusters.add(new CpuCluster(policy, cpus, cpufreqPath, capacity, maxFreq));
+    }
+
+    /**
+     * Sort clusters from slowest to fastest and assign their roles
+     */
+    private void rankClusters() {
+        Collections.sort(mClusters, new Comparator<CpuCluster>() {
+            @Override
+            public int compare(CpuCluster a, CpuCluster b) {
+                if (a.getCapacity() != b.getCapacity() && a.getCapacity() > 0 && b.getCapacity() > 0) {
+                    return a.getCapacity() < b.getCapacity() ? -1 : 1;
+                }
+                if (a.getMaxFreq() != b.getMaxFreq()) {
+                    return a.getMaxFreq() < b.getMaxFreq() ? -1 : 1;
+                }
+                return a.getPolicy() - b.getPolicy();
+            }
+        });
+
+        int count = mClusters.size();
+        for (int i = 0; i < count; i++) {
+            int role;
+            if (count == 1) {
+                role = CpuCluster.ROLE_PERFORMANCE;
+            } else if (i == 0) {
+                role = CpuCluster.ROLE_EFFICIENCY;
+            } else if (i == count - 1 && count >= 3) {
+                role = CpuCluster.ROLE_PRIME;
+            } else {
+                role = CpuCluster.ROLE_PERFORMANCE;
+            }
+            mClusters.get(i).setRole(role);
+        }
+    }
+
+    /**
+     * Parse a kernel CPU list, either space separated ("0 1 2 3") or
+     * ranges ("0-3,6")
+     */
+    static int[] parseCpuList(String list) {
+        if (list == null) {
+            return new int[0];
+        }
+
+        List<Integer> cpus = new ArrayList<>();
+        for (String token : list.trim().split("[,\\s]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            try {
+                int dash = token.indexOf('-');
+                if (dash > 0) {
+                    int first = Integer.parseInt(token.substring(0, dash));
+                    int last = Integer.parseInt(token.substring(dash + 1));
+                    for (int cpu = first; cpu <= last; cpu++) {
+                        cpus.add(cpu);
+                    }
+                } else {
+                    cpus.add(Integer.parseInt(token));
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Error parsing CPU list: " + list);
+            }
+        }
+
+        int[] result = new int[cpus.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cpus.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Format CPUs as a kernel CPU list in the form the kernel reads it back,
+     * sorted with runs as ranges ("0-3,6"), so a write of the same CPUs is
+     * recognized as unchanged
+     */
+    static String formatCpuList(int[] cpus) {
+        int[] sorted = cpus.clone();
+        Arrays.sort(sorted);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < sorted.length) {
+            int first = sorted[i];
+            int last = first;
+            while (i < sorted.length && sorted[i] <= last + 1) {
+                last = sorted[i++];
+            }
+
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(first);
+            if (last > first) {
+                sb.append('-').append(last);
+            }
+        }
+        return sb.toString();
+    }
+}
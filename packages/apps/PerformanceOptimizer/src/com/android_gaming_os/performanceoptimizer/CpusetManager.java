@@ -0,0 +1,182 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+import com.android_gaming_os.performanceoptimizer.io.WritePlan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Partitions the CPUs between the game and the rest of the system while a game
+ * is active. The top-app cpuset, which holds the game, keeps all CPUs; the
+ * cpusets of foreground, background and system work are confined to the
+ * efficiency cluster. Both the cgroup v1 cpuset hierarchy and the cpuset
+ * controller of the cgroup v2 hierarchy are supported.
+ */
+public class CpusetManager {
+    private static final String TAG = "CpusetManager";
+
+    // Cpuset hierarchies: directory and name of the CPU mask node
+    private static final String CPUSET_V1_PATH = "/dev/cpuset/";
+    private static final String CPUSET_V1_CPUS = "cpus";
+    private static final String CPUSET_V2_PATH = "/sys/fs/cgroup/";
+    private static final String CPUSET_V2_CPUS = "cpuset.cpus";
+
+    // Cpusets of work that is not the game
+    private static final String[] CONFINED_CPUSETS = {
+        "foreground",
+        "background",
+        "system-background",
+        "restricted",
+    };
+
+    private final SysfsEngine mSysfs;
+    private final CpuTopology mTopology;
+
+    // Mask nodes of the confined cpusets, parents before their children
+    private final List<SysfsNode> mCpusNodes = new ArrayList<>();
+
+    private WritePlan mConfinePlan;
+    private TuningSnapshot mRestore;
+
+    public CpusetManager(SysfsEngine sysfs, CpuTopology topology) {
+        mSysfs = sysfs;
+        mTopology = topology;
+
+        if (!findCpusets(CPUSET_V1_PATH, CPUSET_V1_CPUS)) {
+            findCpusets(CPUSET_V2_PATH, CPUSET_V2_CPUS);
+        }
+        Log.i(TAG, "Found " + mCpusNodes.size() + " cpusets to confine");
+    }
+
+    /**
+     * Find the confined cpusets and their child cpusets in a hierarchy
+     * @return true if any cpuset was found
+     */
+    private boolean findCpusets(String root, String cpusName) {
+        for (String name : CONFINED_CPUSETS) {
+            String path = root + name + "/";
+            if (!mSysfs.exists(path + cpusName)) {
+                continue;
+            }
+            mCpusNodes.add(mSysfs.node(path + cpusName));
+
+            for (String child : mSysfs.list(path)) {
+                if (mSysfs.exists(path + child + "/" + cpusName)) {
+                    mCpusNodes.add(mSysfs.node(path + child + "/" + cpusName));
+                }
+            }
+        }
+        return !mCpusNodes.isEmpty();
+    }
+
+    /**
+     * Check if the CPUs can be partitioned, which needs cpusets and more than one cluster
+     */
+    public boolean isSupported() {
+        return !mCpusNodes.isEmpty() && mTopology.getClusters().size() > 1;
+    }
+
+    /**
+     * Capture the original CPU masks. Parents are restored before their children,
+     * so a child mask never exceeds its parent.
+     */
+    public void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        for (SysfsNode node : mCpusNodes) {
+            snapshot.addValue(node);
+        }
+    }
+
+    /**
+     * Confine the work outside top-app to the efficiency cluster
+     * @param rollback snapshot to restore if a write fails
+     * @return true if the cpusets were confined
+     */
+    public synchronized boolean confine(TuningSnapshot rollback) {
+        if (!isSupported()) {
+            return false;
+        }
+
+        // Capture the masks as they are now, which may differ from the session start
+        if (mRestore == null) {
+            TuningSnapshot.Builder restore = new TuningSnapshot.Builder(mSysfs);
+            saveOriginalSettings(restore);
+            mRestore = restore.build();
+        }
+
+        if (mConfinePlan == null) {
+            mConfinePlan = compileConfinePlan();
+        }
+        if (!mConfinePlan.commit(rollback)) {
+            Log.e(TAG, "Confining cpusets failed");
+            mRestore = null;
+            return false;
+        }
+
+        Log.i(TAG, "Confined " + mConfinePlan.size() + " cpusets to the efficiency cluster");
+        return true;
+    }
+
+    /**
+     * Restore the CPU masks captured when the cpusets were confined
+     */
+    public synchronized void release() {
+        if (mRestore != null) {
+            mRestore.restore();
+            mRestore = null;
+            Log.i(TAG, "Cpuset masks restored");
+        }
+    }
+
+    /**
+     * Check if the cpusets are confined
+     */
+    public synchronized boolean isConfined() {
+        return mRestore != null;
+    }
+
+    /**
+     * Compile the writes that confine each cpuset, children before their parents
+     * so a child mask never exceeds its parent
+     */
+    private WritePlan compileConfinePlan() {
+        int[] efficiencyCpus = mTopology.getEfficiencyCluster().getCpus();
+        TuningTransaction tx = new TuningTransaction(mSysfs);
+
+        for (int i = mCpusNodes.size() - 1; i >= 0; i--) {
+            SysfsNode node = mCpusNodes.get(i);
+
+            // Keep the cpuset within its original mask where that leaves any CPU
+            int[] original = CpuTopology.parseCpuList(mSysfs.read(node));
+            int[] cpus = intersect(efficiencyCpus, original);
+            if (cpus.length == 0) {
+                cpus = efficiencyCpus;
+            }
+            tx.set(node, CpuTopology.formatCpuList(cpus));
+        }
+
+        return tx.compile();
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int x : a) {
+            for (int y : b) {
+                if (x == y) {
+                    result[count++] = x;
+                    break;
+                }
+            }
+        }
+
+        int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+}
@@ -0,0 +1,378 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.monitor.SampleRing;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Closed-loop frequency controller for a target frame time.
+ * Every control period the 90th percentile of the frame times reported since
+ * the previous period is compared with the target. Missed frames raise the
+ * cap and then the floor of the busy domains, in steps that grow with the
+ * error; frames comfortably under the target for several periods lower the
+ * floors and then the caps by one step. Frame times inside the band between
+ * the two thresholds leave the frequencies alone. Without frame reports the
+ * controller keeps each domain's utilization inside a busy band instead.
+ */
+public class DvfsController {
+    private static final String TAG = "DvfsController";
+
+    // Control period in milliseconds
+    private static final int CONTROL_PERIOD_MS = 100;
+
+    // Frame time band around the target, in permille of the target
+    private static final int RAISE_THRESHOLD = 1050;
+    private static final int LOWER_THRESHOLD = 850;
+
+    // Error per additional step when raising, in permille of the target
+    private static final int STEP_ERROR = 100;
+    private static final int MAX_STEPS = 3;
+
+    // Periods below the band before lowering
+    private static final int LOWER_HOLD_PERIODS = 5;
+
+    // Percentile of the frame times that is controlled
+    private static final int FRAME_PERCENTILE = 90;
+
+    // Time without frame reports after which utilization is controlled instead
+    private static final int FRAME_TIMEOUT_MS = 1000;
+
+    // Number of frame times kept
+    private static final int FRAME_HISTORY = 256;
+
+    // Utilization thresholds, in permille
+    private static final int BOTTLENECK_BUSY = 700;
+    private static final int RAISE_BUSY = 850;
+    private static final int LOWER_BUSY = 500;
+
+    // Caps are never lowered below this percentage of the max frequency
+    private static final int MIN_CAP_PERCENT = 50;
+
+    private final FrequencyDomain[] mDomains;
+    private final int[] mMinIndex;
+    private final int[] mMaxIndex;
+    private final int[] mLowestCapIndex;
+    private final int[] mCapLimit;
+    private final int[] mBelowPeriods;
+
+    // Frame times in microseconds, written by the reporting thread
+    private final SampleRing mFrames;
+    private final int[] mFrameScratch;
+    private long mFrameCount;
+
+    private volatile int mTargetFrameUs;
+    private int mFramesBelowPeriods;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    public DvfsController(List<FrequencyDomain> domains) {
+        mDomains = domains.toArray(new FrequencyDomain[domains.size()]);
+        mMinIndex = new int[mDomains.length];
+        mMaxIndex = new int[mDomains.length];
+        mLowestCapIndex = new int[mDomains.length];
+        mCapLimit = new int[mDomains.length];
+        mBelowPeriods = new int[mDomains.length];
+
+        for (int i = 0; i < mDomains.length; i++) {
+            FrequencyTable table = mDomains[i].getFrequencyTable();
+            mMaxIndex[i] = table.size() - 1;
+            mCapLimit[i] = table.size() - 1;
+
+            // A domain without frequencies keeps a max index of -1 and is not controlled
+            if (table.isEmpty()) {
+                Log.e(TAG, "Domain " + mDomains[i].getName() + " has no frequency table, not controlling it");
+                mLowestCapIndex[i] = -1;
+                continue;
+            }
+            mLowestCapIndex[i] = table.ceilIndex(table.percentOfMax(MIN_CAP_PERCENT));
+        }
+
+        mFrames = new SampleRing(1, FRAME_HISTORY);
+        mFrameScratch = new int[FRAME_HISTORY];
+    }
+
+    /**
+     * Set the target frame time in microseconds
+     */
+    public void setTargetFrameTime(int frameUs) {
+        mTargetFrameUs = frameUs;
+        Log.i(TAG, "Target frame time set to " + frameUs + "us");
+    }
+
+    /**
+     * Get the target frame time in microseconds
+     */
+    public int getTargetFrameTime() {
+        return mTargetFrameUs;
+    }
+
+    /**
+     * Limit the cap of each domain, such as to a thermally sustainable frequency.
+     * Caps above a limit are lowered to it and never raised past it.
+     * @param limits frequency index limit of each domain
+     */
+    public synchronized void setCapLimits(int[] limits) {
+        final int[] copy = limits.clone();
+        if (mHandler == null) {
+            updateCapLimits(copy, false);
+            return;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                updateCapLimits(copy, true);
+            }
+        });
+    }
+
+    private void updateCapLimits(int[] limits, boolean apply) {
+        for (int i = 0; i < mDomains.length; i++) {
+            int top = mDomains[i].getFrequencyTable().size() - 1;
+            if (top < 0) {
+                continue;
+            }
+            mCapLimit[i] = Math.max(0, Math.min(top, limits[i]));
+            if (mMaxIndex[i] > mCapLimit[i]) {
+                mMaxIndex[i] = mCapLimit[i];
+                mMinIndex[i] = Math.min(mMinIndex[i], mMaxIndex[i]);
+                if (apply) {
+                    apply(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Report observed frame times in microseconds. Always called from the same thread.
+     */
+    public void reportFrameTimes(int[] frameUs) {
+        long now = SystemClock.uptimeMillis();
+        for (int frame : frameUs) {
+            mFrames.put(0, frame);
+            mFrames.publish(now);
+        }
+    }
+
+    /**
+     * Check if the controller is running
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Start controlling from the full frequency range of each domain
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mResyncRunnable);
+        mHandler.postDelayed(mControlRunnable, CONTROL_PERIOD_MS);
+
+        Log.i(TAG, "DVFS control started for " + mDomains.length + " domains");
+    }
+
+    /**
+     * Stop controlling. The frequency ranges are left as they are.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mControlRunnable);
+        mHandler.removeCallbacks(mResyncRunnable);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+
+        Log.i(TAG, "DVFS control stopped");
+    }
+
+    /**
+     * Write the controlled ranges again, after something else changed them
+     */
+    public synchronized void resync() {
+        if (mHandler != null) {
+            mHandler.post(mResyncRunnable);
+        }
+    }
+
+    /**
+     * Runnable that writes the current ranges of all domains
+     */
+    private final Runnable mResyncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (int i = 0; i < mDomains.length; i++) {
+                apply(i);
+            }
+        }
+    };
+
+    /**
+     * Runnable that runs one control period and schedules the next
+     */
+    private final Runnable mControlRunnable = new Runnable() {
+        @Override
+        public void run() {
+            control();
+
+            synchronized (DvfsController.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(this, CONTROL_PERIOD_MS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Run one control period. Frames are reported in batches, so periods
+     * without new frames hold the ranges until the reports time out.
+     */
+    void control() {
+        int target = mTargetFrameUs;
+        long count = mFrames.getCount();
+        int frames = (int) Math.min(count - mFrameCount, mFrameScratch.length);
+        mFrameCount = count;
+
+        if (target > 0 && frames > 0) {
+            controlFrameTime(target, frames);
+        } else if (target <= 0 || SystemClock.uptimeMillis() - mFrames.getLatestTime() > FRAME_TIMEOUT_MS) {
+            controlUtilization();
+        }
+    }
+
+    /**
+     * Move the ranges so the frame time percentile meets the target
+     */
+    private void controlFrameTime(int target, int frames) {
+        int n = mFrames.copy(0, mFrameScratch, frames);
+        Arrays.sort(mFrameScratch, 0, n);
+        long frameUs = mFrameScratch[(n - 1) * FRAME_PERCENTILE / 100];
+        long error = frameUs * 1000 / target;
+
+        if (error > RAISE_THRESHOLD) {
+            mFramesBelowPeriods = 0;
+            int steps = (int) Math.min(MAX_STEPS, 1 + (error - RAISE_THRESHOLD) / STEP_ERROR);
+            raiseBottlenecks(steps);
+        } else if (error < LOWER_THRESHOLD) {
+            if (++mFramesBelowPeriods >= LOWER_HOLD_PERIODS) {
+                mFramesBelowPeriods = 0;
+                for (int i = 0; i < mDomains.length; i++) {
+                    lower(i, true);
+                }
+            }
+        } else {
+            mFramesBelowPeriods = 0;
+        }
+    }
+
+    /**
+     * Raise the domains that limit the frame rate, or the busiest one if none is busy
+     */
+    private void raiseBottlenecks(int steps) {
+        int busiest = -1;
+        int busiestLoad = -1;
+        boolean raised = false;
+        for (int i = 0; i < mDomains.length; i++) {
+            int busy = mDomains[i].getBusy();
+            if (busy < 0 || busy >= BOTTLENECK_BUSY) {
+                raised |= raise(i, steps);
+            }
+            if (busy > busiestLoad) {
+                busiest = i;
+                busiestLoad = busy;
+            }
+        }
+
+        if (!raised && busiest >= 0) {
+            raise(busiest, steps);
+        }
+    }
+
+    /**
+     * Keep the utilization of each domain inside the busy band
+     */
+    private void controlUtilization() {
+        for (int i = 0; i < mDomains.length; i++) {
+            int busy = mDomains[i].getBusy();
+            if (busy < 0) {
+                continue;
+            }
+
+            if (busy > RAISE_BUSY) {
+                mBelowPeriods[i] = 0;
+                raise(i, 1);
+            } else if (busy < LOWER_BUSY) {
+                if (++mBelowPeriods[i] >= LOWER_HOLD_PERIODS) {
+                    mBelowPeriods[i] = 0;
+                    lower(i, false);
+                }
+            } else {
+                mBelowPeriods[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Raise the cap of a domain, or its floor once the cap is at the top
+     * @return true if the range changed
+     */
+    private boolean raise(int domain, int steps) {
+        int top = mCapLimit[domain];
+        if (top < 0) {
+            return false;
+        } else if (mMaxIndex[domain] < top) {
+            mMaxIndex[domain] = Math.min(top, mMaxIndex[domain] + steps);
+        } else if (mMinIndex[domain] < top) {
+            mMinIndex[domain] = Math.min(top, mMinIndex[domain] + steps);
+        } else {
+            return false;
+        }
+        apply(domain);
+        return true;
+    }
+
+    /**
+     * Lower the floor of a domain, or its cap once the floor is at the bottom
+     * @param capHeadroom true if frames show headroom, which allows lowering the
+     *        cap of a busy domain
+     * @return true if the range changed
+     */
+    private boolean lower(int domain, boolean capHeadroom) {
+        if (mMaxIndex[domain] < 0) {
+            return false;
+        } else if (mMinIndex[domain] > 0) {
+            mMinIndex[domain]--;
+        } else if (mMaxIndex[domain] > mLowestCapIndex[domain]
+                && (capHeadroom || mDomains[domain].getBusy() < LOWER_BUSY)) {
+            mMaxIndex[domain]--;
+        } else {
+            return false;
+        }
+        apply(domain);
+        return true;
+    }
+
+    private void apply(int domain) {
+        if (mMaxIndex[domain] < 0) {
+            return;
+        }
+        mDomains[domain].setRange(mMinIndex[domain], mMaxIndex[domain]);
+    }
+}
@@ -0,0 +1,329 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.monitor.ResidencyCollector;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Power of each operating point of the CPU policies and the GPU.
+ * Power comes from the kernel Energy Model in debugfs where available, and
+ * for the domains it does not cover from a per-device power table file.
+ * Combined with frequency residency it estimates the energy a session used,
+ * and it picks the frequency with the lowest energy per cycle that still
+ * meets a performance floor. Without power data the operating point
+ * voltages are used for that choice, since dynamic energy per cycle scales
+ * with the square of the voltage.
+ */
+public class EnergyModel {
+    private static final String TAG = "EnergyModel";
+
+    // Kernel Energy Model, one directory per performance domain
+    private static final String ENERGY_MODEL_PATH = "/sys/kernel/debug/energy_model/";
+    private static final String[] STATE_PREFIXES = { "ps:", "cs:" };
+
+    // Per-device power table, "<domain> <kHz> <mW>" per line, e.g. "policy4 1800000 620"
+    private static final String POWER_TABLE_PATH = "/system/etc/performanceoptimizer/power_table";
+
+    // Domain name of the GPU and the device names of GPUs in the Energy Model
+    public static final String GPU_DOMAIN = "gpu";
+    private static final String[] GPU_DEVICE_NAMES = { "gpu", "kgsl", "mali" };
+
+    // Energy Model power is in mW up to Linux 5.x and in uW since; a domain
+    // whose highest state is below this is in mW
+    private static final long MAX_MILLIWATTS = 20000;
+
+    /**
+     * Power per CPU of the operating points of one domain
+     */
+    private static final class PowerTable {
+        final int[] mFrequencies;
+        final long[] mPowerUw;
+        final int mCpus;
+
+        PowerTable(int[] frequencies, long[] powerUw, int cpus) {
+            mFrequencies = frequencies;
+            mPowerUw = powerUw;
+            mCpus = cpus;
+        }
+
+        /**
+         * Get the power at a frequency, interpolated between operating points
+         */
+        long getPowerUw(int khz) {
+            int index = Arrays.binarySearch(mFrequencies, khz);
+            if (index >= 0) {
+                return mPowerUw[index];
+            }
+
+            int upper = -index - 1;
+            if (upper == 0) {
+                return mPowerUw[0];
+            }
+            if (upper == mFrequencies.length) {
+                return mPowerUw[mFrequencies.length - 1];
+            }
+            int lower = upper - 1;
+            return mPowerUw[lower] + (mPowerUw[upper] - mPowerUw[lower]) *
+                    (khz - mFrequencies[lower]) / (mFrequencies[upper] - mFrequencies[lower]);
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+    private final CpuTopology mTopology;
+    private final Map<String, PowerTable> mTables = new HashMap<>();
+
+    public EnergyModel(SysfsEngine sysfs, CpuTopology topology) {
+        mSysfs = sysfs;
+        mTopology = topology;
+
+        loadKernelModel();
+        int kernelDomains = mTables.size();
+        loadPowerTable();
+
+        Log.i(TAG, "Energy model has " + mTables.size() + " domains (" + kernelDomains +
+                   " from the kernel): " + mTables.keySet());
+    }
+
+    /**
+     * Check if power is known for a domain
+     */
+    public boolean hasDomain(String domain) {
+        return mTables.containsKey(domain);
+    }
+
+    /**
+     * Check if an efficient frequency can be chosen for a domain, from its
+     * power or from the voltages of its frequency table
+     */
+    public boolean canSelect(String domain, FrequencyTable table) {
+        return !table.isEmpty() && (mTables.containsKey(domain) || table.hasVoltages());
+    }
+
+    /**
+     * Get the power of one CPU of a domain at a frequency
+     * @return the power in microwatts, or -1 if unknown
+     */
+    public long getPowerUw(String domain, int khz) {
+        PowerTable table = mTables.get(domain);
+        return table != null ? table.getPowerUw(khz) : -1;
+    }
+
+    /**
+     * Get the frequency of a table with the lowest energy per cycle at or above
+     * a minimum. Frequencies below the most efficient one cost more energy for
+     * the same work, so a floor is raised to it when it is above the minimum.
+     * @return the frequency in kHz, or the lowest one meeting the minimum if
+     *         neither power nor voltages are known
+     */
+    public int getEfficientFrequency(String domain, FrequencyTable table, int minKhz) {
+        int start = table.ceilIndex(minKhz);
+        PowerTable power = mTables.get(domain);
+        if (power == null && !table.hasVoltages()) {
+            return table.get(start);
+        }
+
+        int best = start;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = start; i < table.size(); i++) {
+            double cost;
+            if (power != null) {
+                cost = (double) power.getPowerUw(table.get(i)) / table.get(i);
+            } else if (table.getVoltage(i) > 0) {
+                double volts = table.getVoltage(i);
+                cost = volts * volts;
+            } else {
+                // An unknown voltage is not free
+                continue;
+            }
+
+            // Ties keep the lower frequency
+            if (cost < bestCost) {
+                best = i;
+                bestCost = cost;
+            }
+        }
+        return table.get(best);
+    }
+
+    /**
+     * Estimate the energy of a residency delta. Time at a frequency counts at
+     * the power of that frequency on every CPU of the domain, so idle time is
+     * overestimated alike for every level and estimates stay comparable.
+     * @return the energy in microjoules, or -1 if no domain has known power
+     */
+    public long estimateEnergyUj(ResidencyCollector collector, ResidencyCollector.Snapshot delta) {
+        long energyUj = 0;
+        boolean known = false;
+        for (int d = 0; d < collector.getDomainCount(); d++) {
+            PowerTable table = mTables.get(collector.getDomainName(d));
+            if (table == null) {
+                continue;
+            }
+
+            known = true;
+            for (int i = 0; i < collector.getFrequencyCount(d); i++) {
+                long ms = delta.getResidencyMs(d, i);
+                if (ms > 0) {
+                    energyUj += ms * table.getPowerUw((int) collector.getFrequency(d, i)) / 1000 * table.mCpus;
+                }
+            }
+        }
+        return known ? energyUj : -1;
+    }
+
+    /**
+     * Load the performance domains of the kernel Energy Model
+     */
+    private void loadKernelModel() {
+        if (!mSysfs.isDirectory(ENERGY_MODEL_PATH)) {
+            return;
+        }
+
+        for (String name : mSysfs.list(ENERGY_MODEL_PATH)) {
+            String path = ENERGY_MODEL_PATH + name + "/";
+            String domain;
+            int cpus = 1;
+
+            String cpuList = mSysfs.read(path + "cpus");
+            if (cpuList != null) {
+                int[] list = CpuTopology.parseCpuList(cpuList);
+                if (list.length == 0) {
+                    continue;
+                }
+                CpuCluster cluster = mTopology.getCluster(list[0]);
+                if (cluster == null) {
+                    continue;
+                }
+                domain = "policy" + cluster.getPolicy();
+                cpus = cluster.getNumCpus();
+            } else if (isGpuDevice(name)) {
+                domain = GPU_DOMAIN;
+            } else {
+                continue;
+            }
+
+            PowerTable table = readStates(path, cpus);
+            if (table != null) {
+                mTables.put(domain, table);
+            }
+        }
+    }
+
+    /**
+     * Read the performance states of an Energy Model domain
+     */
+    private PowerTable readStates(String path, int cpus) {
+        Map<Integer, Long> states = new HashMap<>();
+        for (String name : mSysfs.list(path)) {
+            for (String prefix : STATE_PREFIXES) {
+                if (!name.startsWith(prefix)) {
+                    continue;
+                }
+                long khz = mSysfs.readLong(mSysfs.node(path + name + "/frequency"), 0);
+                long power = mSysfs.readLong(mSysfs.node(path + name + "/power"), 0);
+                if (khz > 0 && power > 0) {
+                    states.put((int) khz, power);
+                }
+            }
+        }
+        if (states.isEmpty()) {
+            return null;
+        }
+
+        long maxPower = 0;
+        for (long power : states.values()) {
+            maxPower = Math.max(maxPower, power);
+        }
+        if (maxPower < MAX_MILLIWATTS) {
+            for (Map.Entry<Integer, Long> state : states.entrySet()) {
+                state.setValue(state.getValue() * 1000);
+            }
+        }
+        return createTable(states, cpus);
+    }
+
+    /**
+     * Load the domains of the per-device power table that the kernel does not cover
+     */
+    private void loadPowerTable() {
+        Map<String, Map<Integer, Long>> domains = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(mSysfs.resolve(POWER_TABLE_PATH)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] fields = line.split("\\s+");
+                if (fields.length < 3 || mTables.containsKey(fields[0])) {
+                    continue;
+                }
+                try {
+                    Map<Integer, Long> states = domains.get(fields[0]);
+                    if (states == null) {
+                        states = new HashMap<>();
+                        domains.put(fields[0], states);
+                    }
+                    states.put(Integer.parseInt(fields[1]), Long.parseLong(fields[2]) * 1000);
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Invalid power table line: " + line);
+                }
+            }
+        } catch (IOException e) {
+            // Most devices have no power table
+            return;
+        }
+
+        for (Map.Entry<String, Map<Integer, Long>> entry : domains.entrySet()) {
+            mTables.put(entry.getKey(), createTable(entry.getValue(), getNumCpus(entry.getKey())));
+        }
+    }
+
+    /**
+     * Create a power table from the power in microwatts per frequency
+     */
+    private static PowerTable createTable(Map<Integer, Long> states, int cpus) {
+        int[] frequencies = new int[states.size()];
+        int count = 0;
+        for (int khz : states.keySet()) {
+            frequencies[count++] = khz;
+        }
+        Arrays.sort(frequencies);
+
+        long[] powerUw = new long[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            powerUw[i] = states.get(frequencies[i]);
+        }
+        return new PowerTable(frequencies, powerUw, cpus);
+    }
+
+    /**
+     * Get the number of CPUs of a policy domain, or 1 for other domains
+     */
+    private int getNumCpus(String domain) {
+        for (CpuCluster cluster : mTopology.getClusters()) {
+            if (domain.equals("policy" + cluster.getPolicy())) {
+                return cluster.getNumCpus();
+            }
+        }
+        return 1;
+    }
+
+    private static boolean isGpuDevice(String name) {
+        for (String gpuName : GPU_DEVICE_NAMES) {
+            if (name.contains(gpuName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
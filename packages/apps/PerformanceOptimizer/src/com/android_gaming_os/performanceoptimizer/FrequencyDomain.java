@@ -0,0 +1,38 @@
+package com.android_gaming_os.performanceoptimizer;
+
+/**
+ * A CPU cluster or GPU whose frequency range can be moved at runtime.
+ * Frequencies are addressed by index into the domain's {@link FrequencyTable}.
+ */
+public interface FrequencyDomain {
+    /**
+     * Get a short name of the domain for logging
+     */
+    String getName();
+
+    /**
+     * Get the CPU cluster of the domain, or null if it is not a CPU cluster
+     */
+    CpuCluster getCluster();
+
+    /**
+     * Get the supported frequencies of the domain
+     */
+    FrequencyTable getFrequencyTable();
+
+    /**
+     * Get the recent utilization of the domain in permille, or -1 if unknown
+     */
+    int getBusy();
+
+    /**
+     * Get the current frequency in the unit of the frequency table, or -1 if unknown
+     */
+    int getCurrentFrequency();
+
+    /**
+     * Set the frequency floor and cap as indices into the frequency table
+     * @return true if the range was written
+     */
+    boolean setRange(int minIndex, int maxIndex);
+}
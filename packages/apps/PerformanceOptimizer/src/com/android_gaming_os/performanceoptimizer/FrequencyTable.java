@@ -0,0 +1,271 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+import java.util.Arrays;
+
+/**
+ * Supported frequencies of a cpufreq policy or GPU, in kHz.
+ * Frequencies are kept as a sorted, de-duplicated int array regardless of the
+ * order the kernel lists them in, so targets are resolved with a binary search
+ * and expressed as a percentage of the maximum frequency rather than of the
+ * number of table entries. Operating point voltages are attached where the
+ * kernel exposes the OPP table.
+ */
+public final class FrequencyTable {
+    private static final FrequencyTable EMPTY = new FrequencyTable(new int[0], null);
+
+    // OPP voltage nodes, relative to an opp:<Hz> directory
+    private static final String[] OPP_VOLTAGE_NODES = {
+        "u_volt_target",
+        "supply-0/u_volt_target",
+    };
+    private static final String OPP_PREFIX = "opp:";
+
+    private final int[] mFrequencies;
+    private final int[] mVoltages;
+
+    private FrequencyTable(int[] frequencies, int[] voltages) {
+        mFrequencies = frequencies;
+        mVoltages = voltages;
+    }
+
+    /**
+     * Read a frequency table from a node listing the available frequencies
+     * @param divisor divisor converting the node's unit to kHz (1 for cpufreq, 1000 for Hz)
+     */
+    public static FrequencyTable read(SysfsEngine sysfs, SysfsNode node, int divisor) {
+        return parse(sysfs.read(node), divisor);
+    }
+
+    /**
+     * Parse a whitespace separated list of frequencies
+     * @param divisor divisor converting the listed unit to kHz
+     */
+    public static FrequencyTable parse(String content, int divisor) {
+        if (content == null) {
+            return EMPTY;
+        }
+
+        int[] frequencies = new int[16];
+        int count = 0;
+        long value = -1;
+        for (int i = 0; i <= content.length(); i++) {
+            char c = i < content.length() ? content.charAt(i) : ' ';
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else if (value >= 0) {
+                long khz = value / divisor;
+                if (khz > 0 && khz <= Integer.MAX_VALUE) {
+                    if (count == frequencies.length) {
+                        frequencies = Arrays.copyOf(frequencies, count * 2);
+                    }
+                    frequencies[count++] = (int) khz;
+                }
+                value = -1;
+            }
+        }
+        return count == 0 ? EMPTY : new FrequencyTable(sortUnique(frequencies, count), null);
+    }
+
+    /**
+     * Get a copy of this table with the voltages of an OPP table directory
+     * (e.g. /sys/kernel/debug/opp/cpu0/), or this table if none are exposed.
+     * Frequencies without an operating point get a voltage interpolated
+     * from their neighbours, so every entry of a table with voltages has one.
+     */
+    public FrequencyTable withOppVoltages(SysfsEngine sysfs, String oppPath) {
+        if (mFrequencies.length == 0 || !sysfs.isDirectory(oppPath)) {
+            return this;
+        }
+
+        int[] voltages = new int[mFrequencies.length];
+        boolean found = false;
+        for (String name : sysfs.list(oppPath)) {
+            if (!name.startsWith(OPP_PREFIX)) {
+                continue;
+            }
+
+            int index;
+            try {
+                long hz = Long.parseLong(name.substring(OPP_PREFIX.length()));
+                index = Arrays.binarySearch(mFrequencies, (int) (hz / 1000));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (index < 0) {
+                continue;
+            }
+
+            for (String voltageNode : OPP_VOLTAGE_NODES) {
+                long microvolts = sysfs.readLong(sysfs.node(oppPath + name + "/" + voltageNode), 0);
+                if (microvolts > 0) {
+                    voltages[index] = (int) microvolts;
+                    found = true;
+                    break;
+                }
+            }
+        }
+        if (!found) {
+            return this;
+        }
+        fillVoltages(mFrequencies, voltages);
+        return new FrequencyTable(mFrequencies, voltages);
+    }
+
+    /**
+     * Check if the table has no frequencies
+     */
+    public boolean isEmpty() {
+        return mFrequencies.length == 0;
+    }
+
+    /**
+     * Get the number of frequencies
+     */
+    public int size() {
+        return mFrequencies.length;
+    }
+
+    /**
+     * Get the frequency at an index, in ascending order
+     */
+    public int get(int index) {
+        return mFrequencies[index];
+    }
+
+    /**
+     * Get the lowest frequency
+     */
+    public int getMin() {
+        return mFrequencies[0];
+    }
+
+    /**
+     * Get the highest frequency
+     */
+    public int getMax() {
+        return mFrequencies[mFrequencies.length - 1];
+    }
+
+    /**
+     * Get the index of the lowest frequency at or above a target,
+     * or of the highest frequency if the target is above it
+     */
+    public int ceilIndex(int khz) {
+        int index = Arrays.binarySearch(mFrequencies, khz);
+        if (index >= 0) {
+            return index;
+        }
+        return Math.min(-index - 1, mFrequencies.length - 1);
+    }
+
+    /**
+     * Get the index of the highest frequency at or below a target,
+     * or of the lowest frequency if the target is below it
+     */
+    public int floorIndex(int khz) {
+        int index = Arrays.binarySearch(mFrequencies, khz);
+        if (index >= 0) {
+            return index;
+        }
+        return Math.max(-index - 2, 0);
+    }
+
+    /**
+     * Get the lowest supported frequency at or above a target
+     */
+    public int ceil(int khz) {
+        return mFrequencies[ceilIndex(khz)];
+    }
+
+    /**
+     * Get the highest supported frequency at or below a target
+     */
+    public int floor(int khz) {
+        return mFrequencies[floorIndex(khz)];
+    }
+
+    /**
+     * Get the lowest supported frequency at or above a percentage of the maximum
+     */
+    public int ceilPercent(int percent) {
+        return ceil(percentOfMax(percent));
+    }
+
+    /**
+     * Get the highest supported frequency at or below a percentage of the maximum
+     */
+    public int floorPercent(int percent) {
+        return floor(percentOfMax(percent));
+    }
+
+    /**
+     * Check if operating point voltages are known
+     */
+    public boolean hasVoltages() {
+        return mVoltages != null;
+    }
+
+    /**
+     * Get the voltage of the frequency at an index in microvolts, or 0 if unknown
+     */
+    public int getVoltage(int index) {
+        return mVoltages != null ? mVoltages[index] : 0;
+    }
+
+    /**
+     * Get a percentage of the highest frequency, which need not be supported
+     */
+    public int percentOfMax(int percent) {
+        return (int) ((long) getMax() * percent / 100);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(mFrequencies);
+    }
+
+    /**
+     * Fill the unknown (zero) voltages of a table with at least one known
+     * voltage, linearly in frequency between the nearest known ones, or
+     * with the nearest known one past either end
+     */
+    private static void fillVoltages(int[] frequencies, int[] voltages) {
+        int lower = -1;
+        for (int i = 0; i < voltages.length; i++) {
+            if (voltages[i] > 0) {
+                lower = i;
+                continue;
+            }
+
+            int upper = i + 1;
+            while (upper < voltages.length && voltages[upper] == 0) {
+                upper++;
+            }
+            if (upper == voltages.length) {
+                voltages[i] = voltages[lower];
+            } else if (lower < 0) {
+                voltages[i] = voltages[upper];
+            } else {
+                voltages[i] = (int) (voltages[lower] + (long) (voltages[upper] - voltages[lower]) *
+                        (frequencies[i] - frequencies[lower]) / (frequencies[upper] - frequencies[lower]));
+            }
+        }
+    }
+
+    /**
+     * Sort the first count values and drop duplicates
+     */
+    private static int[] sortUnique(int[] values, int count) {
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, unique);
+    }
+}
@@ -2,13 +2,10 @@ package com.android_gaming_os.performanceoptimizer;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
 
 /**
  * Class responsible for optimizing GPU performance.
@@ -42,6 +39,30 @@ public class GPUOptimizer {
         "dvfs_max_lock",
     };
     
+    // Available frequency nodes, in Hz
+    private static final String KGSL_AVAILABLE_FREQUENCIES = "gpu_available_frequencies";
+    private static final String AVAILABLE_FREQUENCIES = "available_frequencies";
+    private static final int HZ_PER_KHZ = 1000;
+    
+    // GPU utilization paths, in percent
+    private static final String[] BUSY_PATHS = {
+        "gpu_busy_percentage",                      // Adreno
+        "utilization",                              // Mali
+    };
+    
+    // GPU current frequency paths, in Hz
+    private static final String[] CUR_FREQ_PATHS = {
+        "gpuclk",                                   // Adreno
+        "cur_freq",                                 // devfreq
+        "devfreq/cur_freq",
+    };
+    
+    // GPU frequency statistics paths, in the devfreq trans_stat format
+    private static final String[] TRANS_STAT_PATHS = {
+        "devfreq/trans_stat",                       // Adreno
+        "trans_stat",                               // devfreq
+    };
+    
     // GPU governor paths
     private static final String[] GOVERNOR_PATHS = {
         "governor",
@@ -54,16 +75,26 @@ public class GPUOptimizer {
     public static final int LEVEL_MEDIUM = 1;   // Balanced
     public static final int LEVEL_HIGH = 2;     // Performance
     public static final int LEVEL_EXTREME = 3;  // Maximum performance
+    public static final int LEVEL_SUSTAINED = 4; // Sustained performance
+    
+    // Frequency targets as a percentage of max
+    private static final int BATTERY_MAX_PERCENT = 60;
+    private static final int PERFORMANCE_MIN_PERCENT = 33;
+    private static final int EXTREME_MIN_PERCENT = 50;
     
+    private final SysfsEngine mSysfs;
     private String mGpuBasePath;
     private String mMinFreqPath;
     private String mMaxFreqPath;
     private String mGovernorPath;
+    private SysfsNode mAvailableFrequenciesNode;
+    private FrequencyTable mFrequencyTable;
+    private SysfsNode mBusyNode;
+    private SysfsNode mCurFreqNode;
+    private String mTransStatPath;
     
-    private Map<String, String> mOriginalSettings;
-    
-    public GPUOptimizer() {
-        mOriginalSettings = new HashMap<>();
+    public GPUOptimizer(SysfsEngine sysfs) {
+        mSysfs = sysfs;
         detectGpuPaths();
         
         Log.i(TAG, "GPUOptimizer initialized");
@@ -74,74 +105,87 @@ public class GPUOptimizer {
     }
     
     /**
-     * Apply GPU optimizations based on the specified level
+     * Compile the GPU optimizations for the specified level into a transaction
      */
-    public void applyOptimizations(int level) {
-        Log.i(TAG, "Applying GPU optimizations for level: " + level);
+    public void compileOptimizations(int level, TuningTransaction tx) {
+        Log.i(TAG, "Compiling GPU optimizations for level: " + level);
         
         if (mGpuBasePath == null) {
             Log.e(TAG, "Cannot apply GPU optimizations: GPU path not found");
             return;
         }
         
-        // Save original settings before applying optimizations
-        saveOriginalSettings();
+        // Capabilities may have changed since the last compilation
+        mFrequencyTable = FrequencyTable.read(mSysfs, mAvailableFrequenciesNode, HZ_PER_KHZ);
         
         switch (level) {
             case LEVEL_LOW:
-                applyBatterySavingProfile();
+                applyBatterySavingProfile(tx);
                 break;
             case LEVEL_MEDIUM:
-                applyBalancedProfile();
+                applyBalancedProfile(tx);
                 break;
             case LEVEL_HIGH:
-                applyPerformanceProfile();
+                applyPerformanceProfile(tx);
                 break;
             case LEVEL_EXTREME:
-                applyExtremePerformanceProfile();
+                applyExtremePerformanceProfile(tx);
+                break;
+            case LEVEL_SUSTAINED:
+                // The frequency caps are set at runtime by the frequency controller
+                applyBalancedProfile(tx);
                 break;
         }
     }
     
     /**
-     * Restore original GPU settings
+     * Get a signature of the GPU capabilities the compiled optimizations depend on
      */
-    public void restoreOriginalSettings() {
-        Log.i(TAG, "Restoring original GPU settings");
-        
+    public long getCapabilitySignature() {
         if (mGpuBasePath == null) {
-            Log.e(TAG, "Cannot restore GPU settings: GPU path not found");
-            return;
+            return 0;
         }
         
-        for (Map.Entry<String, String> entry : mOriginalSettings.entrySet()) {
-            writeFile(entry.getKey(), entry.getValue());
-        }
+        long signature = mGpuBasePath.hashCode();
+        signature = signature * 31 + mSysfs.readHash(mAvailableFrequenciesNode);
+        return signature;
     }
     
     /**
-     * Save original GPU settings
+     * Get the frequency domain of the GPU, or null if its range cannot be set
      */
-    private void saveOriginalSettings() {
-        if (mMinFreqPath != null) {
-            String minFreq = readFile(mMinFreqPath);
-            if (minFreq != null) {
-                mOriginalSettings.put(mMinFreqPath, minFreq);
-            }
+    public FrequencyDomain getFrequencyDomain() {
+        if (mGpuBasePath == null || mMinFreqPath == null || mMaxFreqPath == null) {
+            return null;
         }
         
-        if (mMaxFreqPath != null) {
-            String maxFreq = readFile(mMaxFreqPath);
-            if (maxFreq != null) {
-                mOriginalSettings.put(mMaxFreqPath, maxFreq);
-            }
+        FrequencyTable table = FrequencyTable.read(mSysfs, mAvailableFrequenciesNode, HZ_PER_KHZ);
+        return table.isEmpty() ? null : new GpuDomain(table);
+    }
+    
+    /**
+     * Get the frequency statistics node of the GPU, or null if it has none
+     */
+    public String getTransStatPath() {
+        return mTransStatPath;
+    }
+    
+    /**
+     * Capture the original GPU settings into a session snapshot
+     */
+    public void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        if (mGovernorPath != null) {
+            snapshot.addGovernor(mSysfs.node(mGovernorPath));
         }
         
-        if (mGovernorPath != null) {
-            String governor = readFile(mGovernorPath);
-            if (governor != null) {
-                mOriginalSettings.put(mGovernorPath, governor);
+        if (mGpuBasePath != null && mGpuBasePath.contains("kgsl")) {
+            // Power levels are restored as a range with the bounds swapped,
+            // as in setFrequencyRange
+            if (mMinFreqPath != null && mMaxFreqPath != null) {
+                snapshot.addRange(mSysfs.node(mMaxFreqPath), mSysfs.node(mMinFreqPath));
             }
+        } else if (mMinFreqPath != null && mMaxFreqPath != null) {
+            snapshot.addRange(mSysfs.node(mMinFreqPath), mSysfs.node(mMaxFreqPath));
         }
     }
     
@@ -150,36 +194,18 @@ public class GPUOptimizer {
      * - Lower max frequency
      * - Power-saving governor
      */
-    private void applyBatterySavingProfile() {
+    private void applyBatterySavingProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying battery saving GPU profile");
         
         // Set governor to powersave if available
         if (mGovernorPath != null) {
-            writeFile(mGovernorPath, "powersave");
+            setGovernor(tx, "powersave");
         }
         
-        // Limit max frequency if possible
-        if (mMaxFreqPath != null && mMinFreqPath != null) {
-            // For Adreno, higher pwrlevel value means lower frequency
-            if (mGpuBasePath.contains("kgsl")) {
-                // Set to a higher power level (lower frequency)
-                writeFile(mMaxFreqPath, "3"); // Higher number = lower frequency
-            } else {
-                // For other GPUs, try to set to 60% of max frequency
-                String maxFreq = readFile(mMaxFreqPath);
-                String minFreq = readFile(mMinFreqPath);
-                
-                if (maxFreq != null && minFreq != null) {
-                    try {
-                        long max = Long.parseLong(maxFreq.trim());
-                        long min = Long.parseLong(minFreq.trim());
-                        long target = min + (long)((max - min) * 0.6);
-                        writeFile(mMaxFreqPath, String.valueOf(target));
-                    } catch (NumberFormatException e) {
-                        Log.e(TAG, "Error parsing GPU frequencies", e);
-                    }
-                }
-            }
+        // Limit max frequency to 60% of max
+        if (mMaxFreqPath != null && mMinFreqPath != null && !mFrequencyTable.isEmpty()) {
+            int maxIndex = mFrequencyTable.floorIndex(mFrequencyTable.percentOfMax(BATTERY_MAX_PERCENT));
+            setFrequencyRange(tx, 0, maxIndex);
         }
     }
     
@@ -188,38 +214,21 @@ public class GPUOptimizer {
      * - Normal frequency range
      * - Balanced governor
      */
-    private void applyBalancedProfile() {
+    private void applyBalancedProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying balanced GPU profile");
         
         // Set governor to msm-adreno-tz or simple_ondemand if available
         if (mGovernorPath != null) {
             if (mGpuBasePath.contains("kgsl")) {
-                writeFile(mGovernorPath, "msm-adreno-tz");
+                setGovernor(tx, "msm-adreno-tz");
             } else {
-                writeFile(mGovernorPath, "simple_ondemand");
+                setGovernor(tx, "simple_ondemand");
             }
         }
         
-        // Reset to default frequency range
-        if (mMaxFreqPath != null && mMinFreqPath != null) {
-            // For Adreno
-            if (mGpuBasePath.contains("kgsl")) {
-                writeFile(mMinFreqPath, "7"); // Lower number = higher frequency
-                writeFile(mMaxFreqPath, "0");
-            } else {
-                // Try to read available frequencies and set accordingly
-                // This is a simplified approach
-                String maxFreq = readFile(mMaxFreqPath.replace("dvfs_max_lock", "available_frequencies"));
-                String minFreq = readFile(mMinFreqPath.replace("dvfs_min_lock", "available_frequencies"));
-                
-                if (maxFreq != null && minFreq != null) {
-                    String[] freqs = maxFreq.split("\\s+");
-                    if (freqs.length > 0) {
-                        writeFile(mMinFreqPath, freqs[0]);
-                        writeFile(mMaxFreqPath, freqs[freqs.length - 1]);
-                    }
-                }
-            }
+        // Reset to the full frequency range
+        if (!mFrequencyTable.isEmpty()) {
+            setFrequencyRange(tx, 0, mFrequencyTable.size() - 1);
         }
     }
     
@@ -229,33 +238,18 @@ public class GPUOptimizer {
      * - Max frequency at 100%
      * - Performance-oriented governor
      */
-    private void applyPerformanceProfile() {
+    private void applyPerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying performance GPU profile");
         
         // Set governor to performance if available
         if (mGovernorPath != null) {
-            writeFile(mGovernorPath, "performance");
+            setGovernor(tx, "performance");
         }
         
-        // Set frequency range for performance
-        if (mMaxFreqPath != null && mMinFreqPath != null) {
-            // For Adreno
-            if (mGpuBasePath.contains("kgsl")) {
-                writeFile(mMinFreqPath, "5"); // Set min to a moderate level
-                writeFile(mMaxFreqPath, "0"); // Set max to highest
-            } else {
-                // Try to read available frequencies and set accordingly
-                String maxFreq = readFile(mMaxFreqPath.replace("dvfs_max_lock", "available_frequencies"));
-                
-                if (maxFreq != null) {
-                    String[] freqs = maxFreq.split("\\s+");
-                    if (freqs.length > 0) {
-                        int minIndex = Math.max(0, freqs.length / 3); // Set min to ~33% of max
-                        writeFile(mMinFreqPath, freqs[minIndex]);
-                        writeFile(mMaxFreqPath, freqs[freqs.length - 1]);
-                    }
-                }
-            }
+        // Set min to ~33% of max, max to highest
+        if (!mFrequencyTable.isEmpty()) {
+            int minIndex = mFrequencyTable.ceilIndex(mFrequencyTable.percentOfMax(PERFORMANCE_MIN_PERCENT));
+            setFrequencyRange(tx, minIndex, mFrequencyTable.size() - 1);
         }
     }
     
@@ -265,44 +259,65 @@ public class GPUOptimizer {
      * - Max frequency at 100%
      * - Performance governor
      */
-    private void applyExtremePerformanceProfile() {
+    private void applyExtremePerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying extreme performance GPU profile");
         
         // Set governor to performance if available
         if (mGovernorPath != null) {
-            writeFile(mGovernorPath, "performance");
+            setGovernor(tx, "performance");
         }
         
-        // Set frequency range for extreme performance
-        if (mMaxFreqPath != null && mMinFreqPath != null) {
-            // For Adreno
-            if (mGpuBasePath.contains("kgsl")) {
-                writeFile(mMinFreqPath, "3"); // Set min to a high level
-                writeFile(mMaxFreqPath, "0"); // Set max to highest
-            } else {
-                // Try to read available frequencies and set accordingly
-                String maxFreq = readFile(mMaxFreqPath.replace("dvfs_max_lock", "available_frequencies"));
-                
-                if (maxFreq != null) {
-                    String[] freqs = maxFreq.split("\\s+");
-                    if (freqs.length > 0) {
-                        int minIndex = Math.max(0, freqs.length / 2); // Set min to ~50% of max
-                        writeFile(mMinFreqPath, freqs[minIndex]);
-                        writeFile(mMaxFreqPath, freqs[freqs.length - 1]);
-                    }
-                }
-            }
+        // Set min to ~50% of max, max to highest
+        if (!mFrequencyTable.isEmpty()) {
+            int minIndex = mFrequencyTable.ceilIndex(mFrequencyTable.percentOfMax(EXTREME_MIN_PERCENT));
+            setFrequencyRange(tx, minIndex, mFrequencyTable.size() - 1);
+        }
+    }
+    
+    /**
+     * Set the GPU governor
+     */
+    private void setGovernor(TuningTransaction tx, String governor) {
+        tx.setGovernor(mSysfs.node(mGovernorPath), governor);
+    }
+    
+    /**
+     * Get the Adreno power level of a frequency table index.
+     * Power level 0 is the highest frequency.
+     */
+    private int toPowerLevel(int index) {
+        return mFrequencyTable.size() - 1 - index;
+    }
+    
+    /**
+     * Set the GPU frequency range from frequency table indices
+     */
+    private void setFrequencyRange(TuningTransaction tx, int minIndex, int maxIndex) {
+        if (mMaxFreqPath == null || mMinFreqPath == null) {
+            return;
+        }
+        
+        if (mGpuBasePath.contains("kgsl")) {
+            // kgsl clamps each power level against the other, so write them as
+            // one ordered range. Levels run opposite to frequencies: max_pwrlevel
+            // is the lower bound of the level range and min_pwrlevel the upper.
+            tx.setRange(mSysfs.node(mMaxFreqPath), mSysfs.node(mMinFreqPath),
+                    toPowerLevel(maxIndex), toPowerLevel(minIndex));
+        } else {
+            tx.setRange(mSysfs.node(mMinFreqPath), mSysfs.node(mMaxFreqPath),
+                    (long) mFrequencyTable.get(minIndex) * HZ_PER_KHZ,
+                    (long) mFrequencyTable.get(maxIndex) * HZ_PER_KHZ);
         }
     }
     
+    
     /**
      * Detect GPU paths based on device
      */
     private void detectGpuPaths() {
         // Find GPU base path
         for (String path : POSSIBLE_GPU_PATHS) {
-            File dir = new File(path);
-            if (dir.exists() && dir.isDirectory()) {
+            if (mSysfs.isDirectory(path)) {
                 mGpuBasePath = path;
                 break;
             }
@@ -313,11 +328,13 @@ public class GPUOptimizer {
             return;
         }
         
+        mAvailableFrequenciesNode = mSysfs.node(mGpuBasePath
+                + (mGpuBasePath.contains("kgsl") ? KGSL_AVAILABLE_FREQUENCIES : AVAILABLE_FREQUENCIES));
+        
         // Find min frequency path
         for (String subPath : FREQ_MIN_PATHS) {
             String fullPath = mGpuBasePath + subPath;
-            File file = new File(fullPath);
-            if (file.exists() && file.canRead()) {
+            if (mSysfs.node(fullPath).isReadable()) {
                 mMinFreqPath = fullPath;
                 break;
             }
@@ -326,18 +343,43 @@ public class GPUOptimizer {
         // Find max frequency path
         for (String subPath : FREQ_MAX_PATHS) {
             String fullPath = mGpuBasePath + subPath;
-            File file = new File(fullPath);
-            if (file.exists() && file.canRead()) {
+            if (mSysfs.node(fullPath).isReadable()) {
                 mMaxFreqPath = fullPath;
                 break;
             }
         }
         
+        // Find utilization path
+        for (String subPath : BUSY_PATHS) {
+            SysfsNode node = mSysfs.node(mGpuBasePath + subPath);
+            if (node.isReadable()) {
+                mBusyNode = node;
+                break;
+            }
+        }
+        
+        // Find current frequency path
+        for (String subPath : CUR_FREQ_PATHS) {
+            SysfsNode node = mSysfs.node(mGpuBasePath + subPath);
+            if (node.isReadable()) {
+                mCurFreqNode = node;
+                break;
+            }
+        }
+        
+        // Find frequency statistics path
+        for (String subPath : TRANS_STAT_PATHS) {
+            String fullPath = mGpuBasePath + subPath;
+            if (mSysfs.node(fullPath).isReadable()) {
+                mTransStatPath = fullPath;
+                break;
+            }
+        }
+        
         // Find governor path
         for (String subPath : GOVERNOR_PATHS) {
             String fullPath = mGpuBasePath + subPath;
-            File file = new File(fullPath);
-            if (file.exists() && file.canRead()) {
+            if (mSysfs.node(fullPath).isReadable()) {
                 mGovernorPath = fullPath;
                 break;
             }
@@ -345,43 +387,68 @@ public class GPUOptimizer {
     }
     
     /**
-     * Read content from a file
+     * Frequency domain of the GPU
      */
-    private String readFile(String filePath) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canRead()) {
-                return null;
-            }
-            
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            String content = reader.readLine();
-            reader.close();
-            return content;
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading file: " + filePath, e);
+    private final class GpuDomain implements FrequencyDomain {
+        private final FrequencyTable mTable;
+        private final SysfsNode mMinNode;
+        private final SysfsNode mMaxNode;
+        private final boolean mPowerLevels;
+        
+        GpuDomain(FrequencyTable table) {
+            mTable = table;
+            mMinNode = mSysfs.node(mMinFreqPath);
+            mMaxNode = mSysfs.node(mMaxFreqPath);
+            mPowerLevels = mGpuBasePath.contains("kgsl");
+        }
+        
+        @Override
+        public String getName() {
+            return "gpu";
+        }
+        
+        @Override
+        public CpuCluster getCluster() {
             return null;
         }
-    }
-    
-    /**
-     * Write content to a file
-     */
-    private boolean writeFile(String filePath, String content) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canWrite()) {
-                Log.e(TAG, "Cannot write to file: " + filePath);
-                return false;
+        
+        @Override
+        public FrequencyTable getFrequencyTable() {
+            return mTable;
+        }
+        
+        @Override
+        public int getBusy() {
+            if (mBusyNode == null) {
+                return -1;
+            }
+            long percent = mSysfs.readLong(mBusyNode, -1);
+            return percent < 0 ? -1 : (int) Math.min(percent * 10, 1000);
+        }
+        
+        @Override
+        public int getCurrentFrequency() {
+            if (mCurFreqNode == null) {
+                return -1;
+            }
+            long hz = mSysfs.readLong(mCurFreqNode, -1);
+            return hz < 0 ? -1 : (int) (hz / HZ_PER_KHZ);
+        }
+        
+        @Override
+        public boolean setRange(int minIndex, int maxIndex) {
+            if (!mPowerLevels) {
+                return mSysfs.writeRange(mMinNode, mMaxNode,
+                        (long) mTable.get(minIndex) * HZ_PER_KHZ, (long) mTable.get(maxIndex) * HZ_PER_KHZ);
             }
             
-            FileWriter writer = new FileWriter(file);
-            writer.write(content);
-            writer.close();
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to file: " + filePath, e);
-            return false;
+            // Power level 0 is the highest frequency; raise max first when raising
+            int minLevel = mTable.size() - 1 - minIndex;
+            int maxLevel = mTable.size() - 1 - maxIndex;
+            if (maxLevel < mSysfs.readLong(mMaxNode, 0)) {
+                return mSysfs.write(mMaxNode, maxLevel) && mSysfs.write(mMinNode, minLevel);
+            }
+            return mSysfs.write(mMinNode, minLevel) && mSysfs.write(mMaxNode, maxLevel);
         }
     }
 }
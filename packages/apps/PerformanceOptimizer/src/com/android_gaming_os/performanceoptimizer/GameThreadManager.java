@@ -0,0 +1,537 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcParser;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessTable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the hot threads of the running game and keeps them on the fast cores.
+ * The threads of the game process are scanned periodically from
+ * /proc/<pid>/task; render and engine threads with known names and threads that
+ * use a large share of a core are moved to a cpuset on the fast clusters, given
+ * a higher priority and a small timer slack. Optionally one core of the fastest
+ * cluster is reserved for the main render thread. All changes are reverted per
+ * thread when the game stops.
+ */
+public class GameThreadManager {
+    private static final String TAG = "GameThreadManager";
+
+    // Thread name prefixes of render and engine threads (comm is at most 15 chars)
+    private static final String[] RENDER_THREAD_NAMES = {
+        "RenderThread",
+        "UnityMain",
+        "UnityGfx",
+        "GameThread",
+        "RHIThread",
+        "RenderingThread",
+        "GLThread",
+    };
+
+    // Paths
+    private static final String PROC_PATH = "/proc/";
+    private static final String CPUSET_PATH = "/dev/cpuset/";
+    private static final String HOT_CPUSET = "game-hot";
+    private static final String RENDER_CPUSET = "game-render";
+
+    // Interval between thread scans in milliseconds
+    private static final int SCAN_INTERVAL_MS = 2000;
+
+    // Clock ticks per second of /proc/<pid>/stat times
+    private static final int CLOCK_TICKS_PER_SECOND = 100;
+
+    // Share of a core above which a thread is hot, in percent
+    private static final int HOT_THREAD_PERCENT = 20;
+
+    // Maximum number of threads boosted per game
+    private static final int MAX_BOOSTED_THREADS = 6;
+
+    // Scans a boosted thread may stay cold before it is restored
+    private static final int DEMOTE_COLD_SCANS = 3;
+
+    // Priorities and timer slack of boosted threads
+    private static final int RENDER_THREAD_PRIORITY = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+    private static final int HOT_THREAD_PRIORITY = Process.THREAD_PRIORITY_DISPLAY;
+    private static final long BOOSTED_TIMER_SLACK_NS = 1000;
+
+    private static final Comparator<GameThread> HOTTEST_FIRST = new Comparator<GameThread>() {
+        @Override
+        public int compare(GameThread a, GameThread b) {
+            return Long.compare(b.mDelta, a.mDelta);
+        }
+    };
+
+    private final SysfsEngine mSysfs;
+    private final CpuTopology mTopology;
+    private final ProcessTable mProcessTable;
+
+    // Buffer for the files of the game threads, which are read uncached
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(4096);
+
+    // Game state, only touched on the manager thread
+    private final Map<Integer, GameThread> mThreads = new HashMap<>();
+    private final List<GameThread> mCandidates = new ArrayList<>();
+    private String mPackageName;
+    private int mPid;
+    private boolean mReservePrimeCore;
+    private boolean mCpusetsReady;
+    private GameThread mRenderThread;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    public GameThreadManager(SysfsEngine sysfs, CpuTopology topology, ProcessTable processTable) {
+        mSysfs = sysfs;
+        mTopology = topology;
+        mProcessTable = processTable;
+    }
+
+    /**
+     * Start managing the threads of a game
+     * @param reservePrimeCore true to keep one fast core for the main render thread only
+     */
+    public synchronized void start(final String packageName, final boolean reservePrimeCore) {
+        if (mThread == null) {
+            mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
+
+        mHandler.removeCallbacks(mScanRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreThreads();
+                removeCpusets();
+                mPackageName = packageName;
+                mPid = 0;
+                mReservePrimeCore = reservePrimeCore;
+                Log.i(TAG, "Managing threads of " + packageName);
+            }
+        });
+        mHandler.post(mScanRunnable);
+    }
+
+    /**
+     * Stop managing the game threads and restore their original settings
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mScanRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreThreads();
+                removeCpusets();
+                mPackageName = null;
+            }
+        });
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Runnable that scans the game threads and schedules the next scan
+     */
+    private final Runnable mScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scan();
+
+            synchronized (GameThreadManager.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(this, SCAN_INTERVAL_MS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Scan the game threads and boost the hot ones
+     */
+    void scan() {
+        if (mPackageName == null) {
+            return;
+        }
+
+        // The game process is looked up again when it exits or restarts
+        mProcessTable.update();
+        int pid = mProcessTable.findPid(mPackageName);
+        if (pid != mPid) {
+            restoreThreads();
+            mPid = pid;
+            if (mPid != 0) {
+                Log.i(TAG, "Game " + mPackageName + " running as pid " + mPid);
+            }
+        }
+        if (mPid == 0) {
+            return;
+        }
+
+        if (!mCpusetsReady) {
+            mCpusetsReady = createCpusets();
+        }
+
+        updateThreads();
+        selectThreads();
+    }
+
+    /**
+     * Update the CPU time of all threads of the game, dropping threads that exited
+     */
+    private void updateThreads() {
+        String taskPath = PROC_PATH + mPid + "/task/";
+        for (GameThread thread : mThreads.values()) {
+            thread.mAlive = false;
+        }
+
+        for (String name : mSysfs.list(taskPath)) {
+            int tid;
+            try {
+                tid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            // Known threads keep the path of their stat file
+            GameThread thread = mThreads.get(tid);
+            long cpuTime = readCpuTime(thread != null ? thread.mStatPath : taskPath + name + "/stat");
+            if (cpuTime < 0) {
+                continue;
+            }
+
+            if (thread == null) {
+                thread = new GameThread(tid, readLine(taskPath + name + "/comm"), taskPath + name + "/stat");
+                thread.mCpuTime = cpuTime;
+                mThreads.put(tid, thread);
+            }
+            thread.mDelta = cpuTime - thread.mCpuTime;
+            thread.mCpuTime = cpuTime;
+            thread.mAlive = true;
+        }
+
+        Iterator<GameThread> it = mThreads.values().iterator();
+        while (it.hasNext()) {
+            GameThread thread = it.next();
+            if (!thread.mAlive) {
+                if (thread == mRenderThread) {
+                    mRenderThread = null;
+                }
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Boost the render threads and the hottest threads, up to MAX_BOOSTED_THREADS.
+     * Boosted threads that stay cold for DEMOTE_COLD_SCANS scans are restored,
+     * so their slots go to threads that are hot now.
+     */
+    private void selectThreads() {
+        long hotTicks = (long) CLOCK_TICKS_PER_SECOND * SCAN_INTERVAL_MS / 1000 * HOT_THREAD_PERCENT / 100;
+
+        // The main render thread is the busiest named render thread, or else the busiest thread
+        mCandidates.clear();
+        GameThread render = null;
+        GameThread busiest = null;
+        for (GameThread thread : mThreads.values()) {
+            boolean renderName = isRenderThreadName(thread.mName);
+            if ((renderName && thread.mDelta > 0) || thread.mDelta >= hotTicks) {
+                thread.mColdScans = 0;
+                mCandidates.add(thread);
+            } else {
+                thread.mColdScans++;
+            }
+            if (renderName && thread.mDelta > 0 && (render == null || thread.mDelta > render.mDelta)) {
+                render = thread;
+            }
+            if (thread.mDelta > 0 && (busiest == null || thread.mDelta > busiest.mDelta)) {
+                busiest = thread;
+            }
+        }
+        if (render == null) {
+            render = busiest;
+        }
+
+        if (render != null && render != mRenderThread) {
+            if (mRenderThread != null) {
+                boost(mRenderThread, false);
+            }
+            mRenderThread = render;
+            boost(render, true);
+        }
+
+        int boosted = 0;
+        for (GameThread thread : mThreads.values()) {
+            if (thread.mBoosted && thread != mRenderThread && thread.mColdScans >= DEMOTE_COLD_SCANS) {
+                restoreThread(thread);
+                Log.i(TAG, "Restored cold thread " + thread.mTid + " (" + thread.mName + ")");
+            } else if (thread.mBoosted) {
+                boosted++;
+            }
+        }
+
+        // Boost the hottest candidates first
+        Collections.sort(mCandidates, HOTTEST_FIRST);
+        for (GameThread thread : mCandidates) {
+            if (boosted >= MAX_BOOSTED_THREADS) {
+                break;
+            }
+            if (!thread.mBoosted) {
+                boost(thread, false);
+                boosted++;
+            }
+        }
+    }
+
+    /**
+     * Move a thread to its cpuset and raise its priority, remembering the
+     * original settings the first time
+     */
+    private void boost(GameThread thread, boolean render) {
+        String slackPath = PROC_PATH + thread.mTid + "/timerslack_ns";
+        if (!thread.mBoosted) {
+            thread.mOriginalCpuset = readLine(PROC_PATH + mPid + "/task/" + thread.mTid + "/cpuset");
+            thread.mOriginalPriority = getThreadPriority(thread.mTid);
+            thread.mOriginalTimerSlack = readLong(slackPath);
+            thread.mBoosted = true;
+        }
+
+        String cpuset = render && mReservePrimeCore ? RENDER_CPUSET : HOT_CPUSET;
+        if (mCpusetsReady) {
+            mSysfs.write(mSysfs.node(CPUSET_PATH + cpuset + "/tasks"), thread.mTid);
+        }
+
+        int priority = render ? RENDER_THREAD_PRIORITY : HOT_THREAD_PRIORITY;
+        setThreadPriority(thread.mTid, Math.min(priority, thread.mOriginalPriority));
+        mSysfs.writeOnce(slackPath, Long.toString(BOOSTED_TIMER_SLACK_NS));
+
+        Log.i(TAG, "Boosted " + (render ? "render" : "hot") + " thread " + thread.mTid + " (" + thread.mName + ")");
+    }
+
+    /**
+     * Restore the original settings of all boosted threads
+     */
+    private void restoreThreads() {
+        for (GameThread thread : mThreads.values()) {
+            if (thread.mBoosted) {
+                restoreThread(thread);
+            }
+        }
+
+        mThreads.clear();
+        mRenderThread = null;
+    }
+
+    /**
+     * Restore the original settings of a boosted thread, if it still runs
+     */
+    private void restoreThread(GameThread thread) {
+        thread.mBoosted = false;
+        if (!mSysfs.isDirectory(PROC_PATH + thread.mTid)) {
+            return;
+        }
+
+        // The cpuset file holds the path of the cpuset, such as "/top-app"
+        String original = thread.mOriginalCpuset != null ? thread.mOriginalCpuset.trim() : "";
+        if (original.startsWith("/")) {
+            String cpuset = CPUSET_PATH + original.substring(1);
+            if (!cpuset.endsWith("/")) {
+                cpuset += "/";
+            }
+            mSysfs.write(mSysfs.node(cpuset + "tasks"), thread.mTid);
+        }
+        setThreadPriority(thread.mTid, thread.mOriginalPriority);
+        if (thread.mOriginalTimerSlack > 0) {
+            mSysfs.writeOnce(PROC_PATH + thread.mTid + "/timerslack_ns", Long.toString(thread.mOriginalTimerSlack));
+        }
+    }
+
+    /**
+     * Create the cpusets of the hot and render threads on the fast clusters
+     */
+    private boolean createCpusets() {
+        if (!mSysfs.isDirectory(CPUSET_PATH)) {
+            Log.e(TAG, "Cpusets not available, threads will not be pinned");
+            return false;
+        }
+
+        List<Integer> fastCpus = new ArrayList<>();
+        List<CpuCluster> clusters = mTopology.getClusters();
+        for (CpuCluster cluster : clusters) {
+            if (cluster.getRole() != CpuCluster.ROLE_EFFICIENCY) {
+                for (int cpu : cluster.getCpus()) {
+                    fastCpus.add(cpu);
+                }
+            }
+        }
+
+        // Reserve the last core of the fastest cluster if another fast core remains
+        int[] renderCpus = null;
+        if (mReservePrimeCore && fastCpus.size() > 1) {
+            int[] fastest = mTopology.getFastestCluster().getCpus();
+            int reserved = fastest[fastest.length - 1];
+            fastCpus.remove(Integer.valueOf(reserved));
+            renderCpus = new int[] { reserved };
+        } else {
+            mReservePrimeCore = false;
+        }
+
+        String mems = mSysfs.read(CPUSET_PATH + "mems");
+        int[] hotCpus = new int[fastCpus.size()];
+        for (int i = 0; i < hotCpus.length; i++) {
+            hotCpus[i] = fastCpus.get(i);
+        }
+        boolean ok = createCpuset(HOT_CPUSET, CpuTopology.formatCpuList(hotCpus), mems);
+        if (renderCpus != null) {
+            ok &= createCpuset(RENDER_CPUSET, Integer.toString(renderCpus[0]), mems);
+        }
+        return ok;
+    }
+
+    private boolean createCpuset(String name, String cpus, String mems) {
+        String path = CPUSET_PATH + name + "/";
+        if (!mSysfs.isDirectory(path) && !mSysfs.resolve(path).mkdir()) {
+            Log.e(TAG, "Could not create cpuset " + name);
+            return false;
+        }
+
+        return mSysfs.write(mSysfs.node(path + "cpus"), cpus)
+                && mSysfs.write(mSysfs.node(path + "mems"), mems != null ? mems : "0");
+    }
+
+    /**
+     * Remove the game cpusets, which the kernel only allows once they are empty
+     */
+    private void removeCpusets() {
+        if (!mCpusetsReady) {
+            return;
+        }
+
+        for (String name : new String[] { HOT_CPUSET, RENDER_CPUSET }) {
+            String path = CPUSET_PATH + name + "/";
+            mSysfs.release(mSysfs.node(path + "tasks"));
+            mSysfs.release(mSysfs.node(path + "cpus"));
+            mSysfs.release(mSysfs.node(path + "mems"));
+            mSysfs.resolve(path).delete();
+        }
+        mCpusetsReady = false;
+    }
+
+    /**
+     * Read the user and system CPU time of a thread from its stat file, in clock ticks
+     * @return the CPU time, or -1 if the thread exited or is a zombie
+     */
+    private long readCpuTime(String path) {
+        if (mSysfs.readOnce(path, mBuffer) <= 0) {
+            return -1;
+        }
+
+        // State is field 3, utime and stime are fields 14 and 15
+        int pos = ProcParser.findStatField(mBuffer, 3);
+        if (pos < 0 || mBuffer.get(pos) == 'Z' || mBuffer.get(pos) == 'X') {
+            return -1;
+        }
+        pos = ProcParser.skipFields(mBuffer, pos, 11);
+        if (pos < 0) {
+            return -1;
+        }
+        long utime = ProcParser.parseLong(mBuffer, pos);
+        pos = ProcParser.skipFields(mBuffer, pos, 1);
+        return pos >= 0 ? utime + ProcParser.parseLong(mBuffer, pos) : -1;
+    }
+
+    /**
+     * Read the first line of a file of a thread
+     * @return the line, or null if the thread exited
+     */
+    private String readLine(String path) {
+        int length = mSysfs.readOnce(path, mBuffer);
+        if (length < 0) {
+            return null;
+        }
+        int end = 0;
+        while (end < length && mBuffer.get(end) != '\n') {
+            end++;
+        }
+        mBuffer.limit(end);
+        return StandardCharsets.UTF_8.decode(mBuffer).toString();
+    }
+
+    /**
+     * Read a number from a file of a thread
+     * @return the number, or -1 if the thread exited
+     */
+    private long readLong(String path) {
+        return mSysfs.readOnce(path, mBuffer) > 0 ? ProcParser.parseLong(mBuffer, 0) : -1;
+    }
+
+    private static int getThreadPriority(int tid) {
+        try {
+            return Process.getThreadPriority(tid);
+        } catch (IllegalArgumentException e) {
+            return Process.THREAD_PRIORITY_DEFAULT;
+        }
+    }
+
+    private static void setThreadPriority(int tid, int priority) {
+        try {
+            Process.setThreadPriority(tid, priority);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Error setting priority of thread " + tid, e);
+        }
+    }
+
+    private static boolean isRenderThreadName(String name) {
+        if (name == null) {
+            return false;
+        }
+        for (String prefix : RENDER_THREAD_NAMES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A thread of the game process
+     */
+    private static final class GameThread {
+        final int mTid;
+        final String mName;
+        final String mStatPath;
+        long mCpuTime;
+        long mDelta;
+        boolean mAlive;
+        boolean mBoosted;
+        int mColdScans;
+        String mOriginalCpuset;
+        int mOriginalPriority;
+        long mOriginalTimerSlack;
+
+        GameThread(int tid, String name, String statPath) {
+            mTid = tid;
+            mName = name != null ? name.trim() : "";
+            mStatPath = statPath;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class responsible for optimizing storage I/O.
+ * Handles the request queues of the block devices and the I/O weight of
+ * background processes against the foreground game.
+ */
+public class IOOptimizer {
+    private static final String TAG = "IOOptimizer";
+
+    // Block devices and the queue attributes of each
+    private static final String BLOCK_PATH = "/sys/block/";
+    private static final String SCHEDULER = "/queue/scheduler";
+    private static final String READ_AHEAD_KB = "/queue/read_ahead_kb";
+    private static final String NR_REQUESTS = "/queue/nr_requests";
+    private static final String IOSTATS = "/queue/iostats";
+    private static final String RQ_AFFINITY = "/queue/rq_affinity";
+    private static final String ADD_RANDOM = "/queue/add_random";
+
+    // Virtual and special purpose block devices that are not tuned
+    private static final String[] IGNORED_DEVICE_PREFIXES = {
+        "loop", "ram", "zram", "dm-", "md", "sr", "nbd",
+    };
+    private static final String[] IGNORED_DEVICE_SUFFIXES = {
+        "boot0", "boot1", "rpmb",
+    };
+
+    // I/O weight of the background processes, which the framework moves to the
+    // background blkio group while the foreground app stays in the root group
+    private static final String BLKIO_WEIGHT_PATH = "/dev/blkio/background/blkio.weight";
+    private static final String BLKIO_BFQ_WEIGHT_PATH = "/dev/blkio/background/blkio.bfq.weight";
+    private static final String IO_WEIGHT_PATH = "/sys/fs/cgroup/background/io.weight";
+    private static final int BLKIO_MAX_WEIGHT = 1000;   // Weight of the root group
+    private static final int BLKIO_MIN_WEIGHT = 10;
+    private static final int IO_DEFAULT_WEIGHT = 100;   // Weight of the foreground group
+
+    // Optimization levels
+    public static final int LEVEL_LOW = 0;      // Battery saving
+    public static final int LEVEL_MEDIUM = 1;   // Balanced
+    public static final int LEVEL_HIGH = 2;     // Performance
+    public static final int LEVEL_EXTREME = 3;  // Maximum performance
+    public static final int LEVEL_SUSTAINED = 4; // Sustained performance
+
+    // Preferred schedulers per level. The performance levels prefer deadline
+    // schedulers, which bound read latency so asset loads are not starved by
+    // writes and honor the lower I/O priority of background processes.
+    private static final String[] BATTERY_SCHEDULERS = { "none", "noop", "mq-deadline", "deadline" };
+    private static final String[] BALANCED_SCHEDULERS = { "bfq", "cfq", "mq-deadline", "deadline" };
+    private static final String[] PERFORMANCE_SCHEDULERS = { "mq-deadline", "deadline", "bfq", "cfq", "kyber" };
+
+    // Read-ahead per level, in KB; large reads favor streaming game assets
+    private static final int BATTERY_READ_AHEAD_KB = 128;
+    private static final int BALANCED_READ_AHEAD_KB = 512;
+    private static final int PERFORMANCE_READ_AHEAD_KB = 1024;
+    private static final int EXTREME_READ_AHEAD_KB = 2048;
+
+    // Queue depth of the performance levels; a short queue keeps reads from
+    // waiting behind queued background writes
+    private static final int PERFORMANCE_NR_REQUESTS = 64;
+
+    // I/O weight of the background group as a percentage of the foreground
+    private static final int DEFAULT_BACKGROUND_WEIGHT_PERCENT = 20;  // Android default
+    private static final int PERFORMANCE_BACKGROUND_WEIGHT_PERCENT = 10;
+    private static final int EXTREME_BACKGROUND_WEIGHT_PERCENT = 1;
+
+    private final SysfsEngine mSysfs;
+    private final List<BlockDevice> mDevices;
+
+    public IOOptimizer(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+        mDevices = detectBlockDevices();
+
+        Log.i(TAG, "IOOptimizer initialized");
+        Log.i(TAG, "Block devices: " + mDevices);
+    }
+
+    /**
+     * Compile the I/O optimizations for the specified level into a transaction
+     */
+    public void compileOptimizations(int level, TuningTransaction tx) {
+        Log.i(TAG, "Compiling I/O optimizations for level: " + level);
+
+        // Capabilities may have changed since the last compilation
+        for (BlockDevice device : mDevices) {
+            device.mSchedulers = parseChoices(mSysfs.read(device.mScheduler));
+        }
+
+        switch (level) {
+            case LEVEL_LOW:
+                applyBatterySavingProfile(tx);
+                break;
+            case LEVEL_MEDIUM:
+                applyBalancedProfile(tx);
+                break;
+            case LEVEL_HIGH:
+                applyPerformanceProfile(tx);
+                break;
+            case LEVEL_EXTREME:
+                applyExtremePerformanceProfile(tx);
+                break;
+            case LEVEL_SUSTAINED:
+                applyPerformanceProfile(tx);
+                break;
+        }
+    }
+
+    /**
+     * Get a signature of the I/O capabilities the compiled optimizations depend on
+     */
+    public long getCapabilitySignature() {
+        long signature = mDevices.size();
+        for (BlockDevice device : mDevices) {
+            signature = signature * 31 + device.mName.hashCode();
+            // Hash the choices only, the selection changes with every level
+            signature = signature * 31 + parseChoices(mSysfs.read(device.mScheduler)).hashCode();
+        }
+        return signature;
+    }
+
+    /**
+     * Capture the original I/O settings into a session snapshot
+     */
+    public void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        for (BlockDevice device : mDevices) {
+            // The scheduler is restored first, switching it resets the queue depth
+            snapshot.addSelection(device.mScheduler);
+            snapshot.addValue(device.mReadAhead);
+            snapshot.addValue(device.mNrRequests);
+            snapshot.addValue(device.mIoStats);
+            snapshot.addValue(device.mRqAffinity);
+            snapshot.addValue(device.mAddRandom);
+        }
+
+        snapshot.addValue(mSysfs.node(BLKIO_WEIGHT_PATH));
+        snapshot.addValue(mSysfs.node(BLKIO_BFQ_WEIGHT_PATH));
+        snapshot.addValue(mSysfs.node(IO_WEIGHT_PATH));
+    }
+
+    /**
+     * Apply battery saving profile
+     * - Scheduler with the least overhead
+     * - Small read-ahead
+     * - Default queue depth
+     */
+    private void applyBatterySavingProfile(TuningTransaction tx) {
+        Log.i(TAG, "Applying battery saving I/O profile");
+
+        for (BlockDevice device : mDevices) {
+            setScheduler(tx, device, BATTERY_SCHEDULERS);
+            setValue(tx, device.mReadAhead, BATTERY_READ_AHEAD_KB);
+            setValue(tx, device.mNrRequests, device.mDefaultNrRequests);
+            setValue(tx, device.mIoStats, 1);
+            setValue(tx, device.mRqAffinity, 1);
+            setValue(tx, device.mAddRandom, 0);
+        }
+
+        setBackgroundWeight(tx, DEFAULT_BACKGROUND_WEIGHT_PERCENT);
+    }
+
+    /**
+     * Apply balanced profile
+     * - Fair scheduler
+     * - Moderate read-ahead
+     * - Default queue depth
+     */
+    private void applyBalancedProfile(TuningTransaction tx) {
+        Log.i(TAG, "Applying balanced I/O profile");
+
+        for (BlockDevice device : mDevices) {
+            setScheduler(tx, device, BALANCED_SCHEDULERS);
+            setValue(tx, device.mReadAhead, BALANCED_READ_AHEAD_KB);
+            setValue(tx, device.mNrRequests, device.mDefaultNrRequests);
+            setValue(tx, device.mIoStats, 1);
+            setValue(tx, device.mRqAffinity, 1);
+            setValue(tx, device.mAddRandom, 0);
+        }
+
+        setBackgroundWeight(tx, DEFAULT_BACKGROUND_WEIGHT_PERCENT);
+    }
+
+    /**
+     * Apply performance profile
+     * - Deadline scheduler
+     * - Large read-ahead
+     * - Short queue, no I/O accounting
+     * - Completions on the submitting CPU
+     * - Lower background I/O weight
+     */
+    private void applyPerformanceProfile(TuningTransaction tx) {
+        Log.i(TAG, "Applying performance I/O profile");
+
+        applyPerformanceQueues(tx, PERFORMANCE_READ_AHEAD_KB);
+        setBackgroundWeight(tx, PERFORMANCE_BACKGROUND_WEIGHT_PERCENT);
+    }
+
+    /**
+     * Apply extreme performance profile
+     * - Deadline scheduler
+     * - Largest read-ahead
+     * - Short queue, no I/O accounting
+     * - Completions on the submitting CPU
+     * - Minimal background I/O weight
+     */
+    private void applyExtremePerformanceProfile(TuningTransaction tx) {
+        Log.i(TAG, "Applying extreme performance I/O profile");
+
+        applyPerformanceQueues(tx, EXTREME_READ_AHEAD_KB);
+        setBackgroundWeight(tx, EXTREME_BACKGROUND_WEIGHT_PERCENT);
+    }
+
+    /**
+     * Set the queue attributes of the performance levels on all devices
+     */
+    private void applyPerformanceQueues(TuningTransaction tx, int readAheadKb) {
+        for (BlockDevice device : mDevices) {
+            setScheduler(tx, device, PERFORMANCE_SCHEDULERS);
+            setValue(tx, device.mReadAhead, readAheadKb);
+            setValue(tx, device.mNrRequests, Math.min(PERFORMANCE_NR_REQUESTS, device.mDefaultNrRequests));
+            setValue(tx, device.mIoStats, 0);
+            setValue(tx, device.mRqAffinity, 2);
+            setValue(tx, device.mAddRandom, 0);
+        }
+    }
+
+    /**
+     * Set the first available scheduler of a device from the provided options
+     */
+    private void setScheduler(TuningTransaction tx, BlockDevice device, String[] preferredSchedulers) {
+        for (String scheduler : preferredSchedulers) {
+            if (device.mSchedulers.contains(scheduler)) {
+                tx.setGovernor(device.mScheduler, scheduler);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Set the I/O weight of the background group relative to the foreground
+     */
+    private void setBackgroundWeight(TuningTransaction tx, int percent) {
+        int weight = Math.max(BLKIO_MIN_WEIGHT, BLKIO_MAX_WEIGHT * percent / 100);
+        setValue(tx, mSysfs.node(BLKIO_WEIGHT_PATH), weight);
+        setValue(tx, mSysfs.node(BLKIO_BFQ_WEIGHT_PATH), weight);
+        setValue(tx, mSysfs.node(IO_WEIGHT_PATH), Math.max(1, IO_DEFAULT_WEIGHT * percent / 100));
+    }
+
+    /**
+     * Set a value, unless it is unknown
+     */
+    private void setValue(TuningTransaction tx, SysfsNode node, long value) {
+        if (value >= 0) {
+            tx.set(node, Long.toString(value));
+        }
+    }
+
+    /**
+     * Find the tunable block devices
+     */
+    private List<BlockDevice> detectBlockDevices() {
+        List<BlockDevice> devices = new ArrayList<>();
+        String[] names = mSysfs.list(BLOCK_PATH);
+        Arrays.sort(names);
+        for (String name : names) {
+            if (isIgnoredDevice(name)) {
+                continue;
+            }
+
+            SysfsNode scheduler = mSysfs.node(BLOCK_PATH + name + SCHEDULER);
+            if (!mSysfs.canWrite(scheduler)) {
+                mSysfs.release(scheduler);
+                continue;
+            }
+
+            BlockDevice device = new BlockDevice(name, scheduler);
+            device.mDefaultNrRequests = mSysfs.readLong(device.mNrRequests, -1);
+            devices.add(device);
+        }
+        return devices;
+    }
+
+    private static boolean isIgnoredDevice(String name) {
+        for (String prefix : IGNORED_DEVICE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String suffix : IGNORED_DEVICE_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the choices of a node such as "[mq-deadline] kyber none"
+     */
+    static List<String> parseChoices(String value) {
+        List<String> choices = new ArrayList<>();
+        if (value == null) {
+            return choices;
+        }
+        for (String token : value.trim().split("\\s+")) {
+            if (token.startsWith("[") && token.endsWith("]")) {
+                token = token.substring(1, token.length() - 1);
+            }
+            if (!token.isEmpty()) {
+                choices.add(token);
+            }
+        }
+        return choices;
+    }
+
+    /**
+     * Queue attributes of a block device
+     */
+    private final class BlockDevice {
+        final String mName;
+        final SysfsNode mScheduler;
+        final SysfsNode mReadAhead;
+        final SysfsNode mNrRequests;
+        final SysfsNode mIoStats;
+        final SysfsNode mRqAffinity;
+        final SysfsNode mAddRandom;
+
+        // Queue depth when the optimizer started, or -1 if unknown
+        long mDefaultNrRequests;
+
+        // Available schedulers at the last compilation
+        List<String> mSchedulers = new ArrayList<>();
+
+        BlockDevice(String name, SysfsNode scheduler) {
+            String base = BLOCK_PATH + name;
+            mName = name;
+            mScheduler = scheduler;
+            mReadAhead = mSysfs.node(base + READ_AHEAD_KB);
+            mNrRequests = mSysfs.node(base + NR_REQUESTS);
+            mIoStats = mSysfs.node(base + IOSTATS);
+            mRqAffinity = mSysfs.node(base + RQ_AFFINITY);
+            mAddRandom = mSysfs.node(base + ADD_RANDOM);
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+}
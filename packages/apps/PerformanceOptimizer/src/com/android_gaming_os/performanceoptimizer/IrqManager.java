@@ -0,0 +1,452 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps interrupts off the cores of the running game.
+ * /proc/interrupts is read periodically into a reused direct buffer and the
+ * counts of each IRQ are parsed in place; the name of an IRQ is only parsed
+ * the first time it is seen. IRQs are ranked by their rate since the previous
+ * scan and the busiest ones are moved to the efficiency cluster, while input
+ * IRQs such as the touch controller get one efficiency core of their own so
+ * they are not queued behind other interrupts. The affinity of an IRQ is
+ * captured in a snapshot of its own the first time it is moved, and restored
+ * from it when the game stops, so IRQs that are never moved are not touched.
+ */
+public class IrqManager {
+    private static final String TAG = "IrqManager";
+
+    // Paths
+    private static final String INTERRUPTS_PATH = "/proc/interrupts";
+    private static final String IRQ_PATH = "/proc/irq/";
+    private static final String AFFINITY_NAME = "/smp_affinity_list";
+
+    // Interval between scans in milliseconds
+    private static final int SCAN_INTERVAL_MS = 2000;
+
+    // Rate above which an IRQ is moved, in interrupts per second
+    private static final int MIN_STEER_RATE = 50;
+
+    // Maximum number of IRQs moved besides the input IRQs
+    private static final int MAX_STEERED_IRQS = 16;
+
+    // Initial size of the /proc/interrupts buffer, grown when the file does not fit
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    // Name fragments of input IRQs, matched against the lower case IRQ description
+    private static final String[] INPUT_IRQ_NAMES = {
+        "touch",
+        "tsp",
+        "fts",
+        "synaptics",
+        "goodix",
+        "himax",
+        "novatek",
+        "ilitek",
+        "focaltech",
+        "gpio-keys",
+        "gpio_keys",
+    };
+
+    // IRQ states
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_STEERED = 1;
+    private static final int STATE_FIXED = 2; // Affinity cannot be changed
+
+    private final SysfsEngine mSysfs;
+    private final CpuTopology mTopology;
+    private final SysfsNode mInterruptsNode;
+    private ByteBuffer mBuffer;
+
+    // IRQs in /proc/interrupts order, and by number for when the order changes
+    private final List<Irq> mIrqs = new ArrayList<>();
+    private final Map<Integer, Irq> mIrqsByNumber = new HashMap<>();
+    private int mNumCpus;
+    private long mLastScanMillis;
+
+    // Ranking scratch, indices into mIrqs
+    private int[] mRanking = new int[0];
+
+    // Affinities of the game session
+    private String mInputCpus;
+    private String mSteeredCpus;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    public IrqManager(SysfsEngine sysfs, CpuTopology topology) {
+        mSysfs = sysfs;
+        mTopology = topology;
+        mInterruptsNode = sysfs.node(INTERRUPTS_PATH);
+        mBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Check if IRQs can be moved off the game cores, which needs more than one cluster
+     */
+    public boolean isSupported() {
+        return mTopology.getClusters().size() > 1 && mSysfs.isDirectory(IRQ_PATH);
+    }
+
+    /**
+     * Start moving IRQs off the game cores
+     */
+    public synchronized void start() {
+        if (mThread != null || !isSupported()) {
+            return;
+        }
+
+        // The last efficiency core serves input, the others take the busy IRQs
+        int[] efficiencyCpus = mTopology.getEfficiencyCluster().getCpus();
+        int inputCpu = efficiencyCpus[efficiencyCpus.length - 1];
+        mInputCpus = CpuTopology.formatCpuList(new int[] { inputCpu });
+        if (efficiencyCpus.length > 1) {
+            int[] steeredCpus = new int[efficiencyCpus.length - 1];
+            System.arraycopy(efficiencyCpus, 0, steeredCpus, 0, steeredCpus.length);
+            mSteeredCpus = CpuTopology.formatCpuList(steeredCpus);
+        } else {
+            mSteeredCpus = mInputCpus;
+        }
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mScanRunnable);
+
+        Log.i(TAG, "IRQ steering started, input IRQs on CPU " + mInputCpus +
+                   ", busy IRQs on CPUs " + mSteeredCpus);
+    }
+
+    /**
+     * Stop moving IRQs and restore the original affinity of the moved ones
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mScanRunnable);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreIrqs();
+            }
+        });
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+    }
+
+    /**
+     * Runnable that scans the IRQs and schedules the next scan
+     */
+    private final Runnable mScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scan();
+
+            synchronized (IrqManager.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(this, SCAN_INTERVAL_MS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Update the IRQ rates and move the input IRQs and the busiest IRQs
+     */
+    synchronized void scan() {
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastScanMillis;
+        boolean primed = mLastScanMillis != 0;
+        mLastScanMillis = now;
+        if (!parse() || !primed || elapsed <= 0) {
+            return;
+        }
+
+        // Rank the IRQs that are not moved yet by rate, busiest first
+        int candidates = 0;
+        for (int i = 0; i < mIrqs.size(); i++) {
+            Irq irq = mIrqs.get(i);
+            irq.mRate = (int) ((irq.mCount - irq.mPreviousCount) * 1000 / elapsed);
+
+            if (irq.mState == STATE_FIXED) {
+                continue;
+            }
+            if (irq.mInput) {
+                if (irq.mRate > 0 || irq.mState == STATE_STEERED) {
+                    steer(irq, mInputCpus);
+                }
+            } else if (irq.mState == STATE_STEERED) {
+                // Write again in case something else moved it back
+                steer(irq, mSteeredCpus);
+            } else if (irq.mRate >= MIN_STEER_RATE) {
+                mRanking[candidates++] = i;
+            }
+        }
+        sortByRate(candidates);
+
+        int steered = countSteered();
+        for (int i = 0; i < candidates && steered < MAX_STEERED_IRQS; i++) {
+            Irq irq = mIrqs.get(mRanking[i]);
+            if (steer(irq, mSteeredCpus)) {
+                steered++;
+                Log.i(TAG, "Moved IRQ " + irq.mNumber + " (" + irq.mName + ", " + irq.mRate +
+                           "/s) to CPUs " + mSteeredCpus);
+            }
+        }
+    }
+
+    /**
+     * Set the affinity of an IRQ, capturing the original affinity the first time
+     * @return true if the affinity was set
+     */
+    private boolean steer(Irq irq, String cpus) {
+        if (irq.mNode == null) {
+            irq.mNode = mSysfs.node(irq.mAffinityPath);
+            irq.mRestore = new TuningSnapshot.Builder(mSysfs).addValue(irq.mNode).build();
+        }
+
+        if (irq.mRestore.size() == 0 || !mSysfs.write(irq.mNode, cpus)) {
+            // Per-CPU and chained IRQs cannot be moved
+            irq.mState = STATE_FIXED;
+            release(irq);
+            return false;
+        }
+        irq.mState = STATE_STEERED;
+        return true;
+    }
+
+    /**
+     * Restore the original affinity of all moved IRQs
+     */
+    private synchronized void restoreIrqs() {
+        int restored = 0;
+        for (Irq irq : mIrqsByNumber.values()) {
+            if (irq.mState == STATE_STEERED && irq.mRestore.restore()) {
+                restored++;
+            }
+            release(irq);
+            irq.mState = STATE_IDLE;
+        }
+        mLastScanMillis = 0;
+
+        Log.i(TAG, "Restored the affinity of " + restored + " IRQs");
+    }
+
+    /**
+     * Drop the affinity node and snapshot of an IRQ
+     */
+    private void release(Irq irq) {
+        if (irq.mNode != null) {
+            mSysfs.release(irq.mNode);
+            irq.mNode = null;
+        }
+        irq.mRestore = null;
+    }
+
+    private int countSteered() {
+        int steered = 0;
+        for (Irq irq : mIrqsByNumber.values()) {
+            if (irq.mState == STATE_STEERED && !irq.mInput) {
+                steered++;
+            }
+        }
+        return steered;
+    }
+
+    /**
+     * Sort the first candidates of the ranking by rate, highest first.
+     * The list is short, so an insertion sort does not allocate and is fast enough.
+     */
+    private void sortByRate(int candidates) {
+        for (int i = 1; i < candidates; i++) {
+            int index = mRanking[i];
+            int rate = mIrqs.get(index).mRate;
+            int j = i - 1;
+            while (j >= 0 && mIrqs.get(mRanking[j]).mRate < rate) {
+                mRanking[j + 1] = mRanking[j];
+                j--;
+            }
+            mRanking[j + 1] = index;
+        }
+    }
+
+    /**
+     * Read /proc/interrupts and update the counts of all numbered IRQs
+     * @return true if the file was read
+     */
+    private boolean parse() {
+        int length = mSysfs.read(mInterruptsNode, mBuffer);
+        while (length == mBuffer.capacity()) {
+            mBuffer = ByteBuffer.allocateDirect(mBuffer.capacity() * 2);
+            length = mSysfs.read(mInterruptsNode, mBuffer);
+        }
+        if (length <= 0) {
+            return false;
+        }
+
+        ByteBuffer buffer = mBuffer;
+        int limit = buffer.limit();
+
+        // The header has one column per CPU
+        int pos = 0;
+        int cpus = 0;
+        while (pos < limit && buffer.get(pos) != '\n') {
+            if (buffer.get(pos) == 'C') {
+                cpus++;
+            }
+            pos++;
+        }
+        mNumCpus = cpus;
+        pos++;
+
+        int line = 0;
+        while (pos < limit) {
+            while (pos < limit && buffer.get(pos) == ' ') {
+                pos++;
+            }
+
+            // Only numbered IRQs can be moved; IPIs and totals are skipped
+            if (pos >= limit || !isDigit(buffer.get(pos))) {
+                pos = skipLine(buffer, pos);
+                continue;
+            }
+            int number = 0;
+            while (pos < limit && isDigit(buffer.get(pos))) {
+                number = number * 10 + (buffer.get(pos++) - '0');
+            }
+            pos++;
+
+            long count = 0;
+            for (int cpu = 0; cpu < mNumCpus; cpu++) {
+                while (pos < limit && buffer.get(pos) == ' ') {
+                    pos++;
+                }
+                long value = 0;
+                while (pos < limit && isDigit(buffer.get(pos))) {
+                    value = value * 10 + (buffer.get(pos++) - '0');
+                }
+                count += value;
+            }
+
+            // A new IRQ has no rate until the next scan
+            Irq irq = findIrq(line, number, buffer, pos);
+            irq.mPreviousCount = irq.mCount >= 0 ? irq.mCount : count;
+            irq.mCount = count;
+            line++;
+            pos = skipLine(buffer, pos);
+        }
+
+        // Drop the IRQs that were removed; their state is kept by number
+        while (mIrqs.size() > line) {
+            mIrqs.remove(mIrqs.size() - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Get the IRQ of a line, which is the IRQ of the same line in the previous
+     * scan unless IRQs were added or removed
+     */
+    private Irq findIrq(int line, int number, ByteBuffer buffer, int pos) {
+        if (line < mIrqs.size()) {
+            Irq irq = mIrqs.get(line);
+            if (irq.mNumber == number) {
+                return irq;
+            }
+        }
+
+        Irq irq = mIrqsByNumber.get(number);
+        if (irq == null) {
+            irq = new Irq(number, parseName(buffer, pos));
+            mIrqsByNumber.put(number, irq);
+        }
+        if (line < mIrqs.size()) {
+            mIrqs.set(line, irq);
+        } else {
+            mIrqs.add(irq);
+            if (mRanking.length < mIrqs.size()) {
+                mRanking = new int[mIrqs.size() * 2];
+            }
+        }
+        return irq;
+    }
+
+    /**
+     * Parse the description after the counts of a line, such as "GICv3 25 Level fts_ts"
+     */
+    private static String parseName(ByteBuffer buffer, int pos) {
+        int end = pos;
+        while (end < buffer.limit() && buffer.get(end) != '\n') {
+            end++;
+        }
+
+        byte[] bytes = new byte[end - pos];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(pos + i);
+        }
+        return new String(bytes).trim().replaceAll("\\s+", " ");
+    }
+
+    private static boolean isInputName(String name) {
+        String lower = name.toLowerCase(Locale.US);
+        for (String fragment : INPUT_IRQ_NAMES) {
+            if (lower.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipLine(ByteBuffer buffer, int pos) {
+        int limit = buffer.limit();
+        while (pos < limit && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        return pos + 1;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * A numbered IRQ of /proc/interrupts
+     */
+    private static final class Irq {
+        final int mNumber;
+        final String mName;
+        final String mAffinityPath;
+        final boolean mInput;
+        long mCount = -1;
+        long mPreviousCount;
+        int mRate;
+        int mState = STATE_IDLE;
+        SysfsNode mNode;
+        TuningSnapshot mRestore;
+
+        Irq(int number, String name) {
+            mNumber = number;
+            mName = name;
+            mAffinityPath = IRQ_PATH + number + AFFINITY_NAME;
+            mInput = isInputName(name);
+        }
+    }
+}
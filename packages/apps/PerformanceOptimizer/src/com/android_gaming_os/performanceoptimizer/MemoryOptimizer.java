@@ -1,19 +1,24 @@
 package com.android_gaming_os.performanceoptimizer;
 
 import android.app.ActivityManager;
+import android.app.usage.UsageStats;
+import android.app.usage.UsageStatsManager;
 import android.content.Context;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+import com.android_gaming_os.performanceoptimizer.monitor.MemoryPressureMonitor;
+import com.android_gaming_os.performanceoptimizer.monitor.MemorySampler;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessMemoryScanner;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessTable;
+
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,107 +35,162 @@ public class MemoryOptimizer {
     private static final String VM_DIRTY_RATIO_PATH = "/proc/sys/vm/dirty_ratio";
     private static final String VM_DIRTY_BACKGROUND_RATIO_PATH = "/proc/sys/vm/dirty_background_ratio";
     private static final String VM_MIN_FREE_KBYTES_PATH = "/proc/sys/vm/min_free_kbytes";
+    private static final String VM_COMPACT_MEMORY_PATH = "/proc/sys/vm/compact_memory";
     
     // LMK paths
     private static final String LMK_MINFREE_PATH = "/sys/module/lowmemorykiller/parameters/minfree";
     private static final String LMK_ADJ_PATH = "/sys/module/lowmemorykiller/parameters/adj";
     
+    // Age of the last memory sample above which reclaim is measured over a
+    // new window, and the length of that window, in milliseconds
+    private static final long MAX_SAMPLE_AGE_MS = 2000;
+    private static final long RECLAIM_WINDOW_MS = 250;
+    
+    // Minimum time between cleanups, since pressure persists while processes exit
+    private static final long MIN_CLEANUP_INTERVAL_MS = 5000;
+    
+    // Share of the total memory a cleanup makes available, in percent, and
+    // the memory it frees at least under moderate pressure, in kB; critical
+    // pressure frees twice that
+    private static final int TARGET_AVAILABLE_PERCENT = 15;
+    private static final long MIN_CLEANUP_KB = 64 * 1024;
+    
+    // oom_score_adj that ActivityManager gives visible apps and the first
+    // cached apps; apps in between run services or were used just before
+    private static final int VISIBLE_APP_ADJ = 100;
+    private static final int CACHED_APP_MIN_ADJ = 900;
+    
+    // Time before a cleanup within which the last use of packages is looked up
+    private static final long LAST_USED_WINDOW_MS = 60 * 60 * 1000;
+    
     // Optimization levels
     public static final int LEVEL_LOW = 0;      // Battery saving
     public static final int LEVEL_MEDIUM = 1;   // Balanced
     public static final int LEVEL_HIGH = 2;     // Performance
     public static final int LEVEL_EXTREME = 3;  // Maximum performance
+    public static final int LEVEL_SUSTAINED = 4; // Sustained performance
     
     private final Context mContext;
-    private final Handler mHandler;
-    private final Map<String, String> mOriginalSettings;
-    private boolean mIsRunning;
-    private int mCurrentLevel;
+    private final SysfsEngine mSysfs;
+    private final MemorySampler mMemorySampler;
+    private final MemoryPressureMonitor mPressureMonitor;
+    private final ProcessMemoryScanner mProcessScanner;
+    private final ProcessTable mProcessTable;
+    private final VictimSelector mVictimSelector;
+    private volatile int mCurrentLevel;
+    private long mLastCleanupMillis;
     
     // Background app limits for different profiles
     private static final int[] BG_APP_LIMITS = {
         3,  // LEVEL_LOW - Battery saving
         5,  // LEVEL_MEDIUM - Balanced
         10, // LEVEL_HIGH - Performance
-        15  // LEVEL_EXTREME - Maximum performance
+        15, // LEVEL_EXTREME - Maximum performance
+        10  // LEVEL_SUSTAINED - Sustained performance
     };
     
-    public MemoryOptimizer(Context context) {
+    public MemoryOptimizer(Context context, SysfsEngine sysfs, ProcessMemoryScanner processScanner,
+                           ProcessTable processTable) {
         mContext = context;
-        mHandler = new Handler(Looper.getMainLooper());
-        mOriginalSettings = new HashMap<>();
-        mIsRunning = false;
+        mSysfs = sysfs;
+        mProcessScanner = processScanner;
+        mProcessTable = processTable;
+        mMemorySampler = new MemorySampler(sysfs);
+        mPressureMonitor = new MemoryPressureMonitor(sysfs, mMemorySampler, new MemoryPressureMonitor.Listener() {
+            @Override
+            public void onMemoryPressure(int level) {
+                optimizeMemory(level);
+            }
+        });
+        mVictimSelector = new VictimSelector();
         mCurrentLevel = LEVEL_MEDIUM;
         
         Log.i(TAG, "MemoryOptimizer initialized");
     }
     
     /**
-     * Apply memory optimizations based on the specified level
+     * Compile the memory tunables for the specified level into a transaction
      */
-    public void applyOptimizations(int level) {
-        Log.i(TAG, "Applying memory optimizations for level: " + level);
-        
-        // Save original settings before applying optimizations
-        saveOriginalSettings();
-        
-        mCurrentLevel = level;
+    public void compileOptimizations(int level, TuningTransaction tx) {
+        Log.i(TAG, "Compiling memory optimizations for level: " + level);
         
         switch (level) {
             case LEVEL_LOW:
-                applyBatterySavingProfile();
+                applyBatterySavingProfile(tx);
                 break;
             case LEVEL_MEDIUM:
-                applyBalancedProfile();
+                applyBalancedProfile(tx);
                 break;
             case LEVEL_HIGH:
-                applyPerformanceProfile();
+                applyPerformanceProfile(tx);
                 break;
             case LEVEL_EXTREME:
-                applyExtremePerformanceProfile();
+                applyExtremePerformanceProfile(tx);
+                break;
+            case LEVEL_SUSTAINED:
+                applyPerformanceProfile(tx);
                 break;
         }
+    }
+    
+    /**
+     * Apply the memory optimizations for the specified level that are not
+     * sysfs tunables: background app limit and memory pressure handling
+     */
+    public void applyOptimizations(int level) {
+        Log.i(TAG, "Applying memory optimizations for level: " + level);
         
-        // Start periodic memory optimization
-        startPeriodicOptimization();
+        mCurrentLevel = level;
+        
+        // Limit background processes
+        if (level >= 0 && level < BG_APP_LIMITS.length) {
+            setBackgroundProcessLimit(BG_APP_LIMITS[level]);
+        }
+        
+        // Start handling memory pressure
+        mPressureMonitor.start();
     }
     
     /**
-     * Restore original memory settings
+     * Restore original memory settings that are not part of the session snapshot
      */
     public void restoreOriginalSettings() {
         Log.i(TAG, "Restoring original memory settings");
         
-        // Stop periodic optimization
-        stopPeriodicOptimization();
-        
-        // Restore original settings
-        for (Map.Entry<String, String> entry : mOriginalSettings.entrySet()) {
-            writeFile(entry.getKey(), entry.getValue());
-        }
+        // Stop handling memory pressure
+        mPressureMonitor.stop();
         
         // Reset background app limit
         setBackgroundProcessLimit(-1); // Default
     }
     
     /**
-     * Save original memory settings
+     * Compact memory in the background so a starting game gets large
+     * contiguous allocations without direct compaction
      */
-    private void saveOriginalSettings() {
-        saveFileSetting(VM_SWAPPINESS_PATH);
-        saveFileSetting(VM_VFS_CACHE_PRESSURE_PATH);
-        saveFileSetting(VM_DIRTY_RATIO_PATH);
-        saveFileSetting(VM_DIRTY_BACKGROUND_RATIO_PATH);
-        saveFileSetting(VM_MIN_FREE_KBYTES_PATH);
-        saveFileSetting(LMK_MINFREE_PATH);
-        saveFileSetting(LMK_ADJ_PATH);
+    public void compactMemory() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long startNanos = System.nanoTime();
+                if (mSysfs.write(VM_COMPACT_MEMORY_PATH, "1")) {
+                    Log.i(TAG, "Compacted memory in " + (System.nanoTime() - startNanos) / 1000000 + "ms");
+                }
+            }
+        }, "MemoryCompaction").start();
     }
     
-    private void saveFileSetting(String path) {
-        String value = readFile(path);
-        if (value != null) {
-            mOriginalSettings.put(path, value);
-        }
+    /**
+     * Capture the original memory settings into a session snapshot
+     */
+    public void saveOriginalSettings(TuningSnapshot.Builder snapshot) {
+        snapshot.addValue(mSysfs.node(VM_SWAPPINESS_PATH));
+        snapshot.addValue(mSysfs.node(VM_VFS_CACHE_PRESSURE_PATH));
+        snapshot.addValue(mSysfs.node(VM_DIRTY_RATIO_PATH));
+        snapshot.addValue(mSysfs.node(VM_DIRTY_BACKGROUND_RATIO_PATH));
+        snapshot.addValue(mSysfs.node(VM_MIN_FREE_KBYTES_PATH));
+        snapshot.addValue(mSysfs.node(LMK_MINFREE_PATH));
+        snapshot.addValue(mSysfs.node(LMK_ADJ_PATH));
     }
     
     /**
@@ -139,27 +199,24 @@ public class MemoryOptimizer {
      * - Lower background app limit
      * - More aggressive LMK
      */
-    private void applyBatterySavingProfile() {
+    private void applyBatterySavingProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying battery saving memory profile");
         
         // Set swappiness to a higher value to use swap more aggressively
-        writeFile(VM_SWAPPINESS_PATH, "80");
+        setValue(tx, VM_SWAPPINESS_PATH, "80");
         
         // Increase cache pressure to free memory more aggressively
-        writeFile(VM_VFS_CACHE_PRESSURE_PATH, "200");
+        setValue(tx, VM_VFS_CACHE_PRESSURE_PATH, "200");
         
         // Set dirty ratios to flush to disk more frequently
-        writeFile(VM_DIRTY_RATIO_PATH, "20");
-        writeFile(VM_DIRTY_BACKGROUND_RATIO_PATH, "10");
+        setValue(tx, VM_DIRTY_RATIO_PATH, "20");
+        setValue(tx, VM_DIRTY_BACKGROUND_RATIO_PATH, "10");
         
         // Set min free kbytes to a moderate value
-        writeFile(VM_MIN_FREE_KBYTES_PATH, "4096");
+        setValue(tx, VM_MIN_FREE_KBYTES_PATH, "4096");
         
         // Set LMK parameters to be more aggressive
-        setLowMemoryKiller(true);
-        
-        // Limit background processes
-        setBackgroundProcessLimit(BG_APP_LIMITS[LEVEL_LOW]);
+        setLowMemoryKiller(tx, true);
     }
     
     /**
@@ -168,27 +225,24 @@ public class MemoryOptimizer {
      * - Moderate background app limit
      * - Default LMK
      */
-    private void applyBalancedProfile() {
+    private void applyBalancedProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying balanced memory profile");
         
         // Set swappiness to a moderate value
-        writeFile(VM_SWAPPINESS_PATH, "60");
+        setValue(tx, VM_SWAPPINESS_PATH, "60");
         
         // Set cache pressure to default
-        writeFile(VM_VFS_CACHE_PRESSURE_PATH, "100");
+        setValue(tx, VM_VFS_CACHE_PRESSURE_PATH, "100");
         
         // Set dirty ratios to default values
-        writeFile(VM_DIRTY_RATIO_PATH, "30");
-        writeFile(VM_DIRTY_BACKGROUND_RATIO_PATH, "15");
+        setValue(tx, VM_DIRTY_RATIO_PATH, "30");
+        setValue(tx, VM_DIRTY_BACKGROUND_RATIO_PATH, "15");
         
         // Set min free kbytes to a moderate value
-        writeFile(VM_MIN_FREE_KBYTES_PATH, "8192");
+        setValue(tx, VM_MIN_FREE_KBYTES_PATH, "8192");
         
         // Set LMK parameters to default
-        setLowMemoryKiller(false);
-        
-        // Set moderate background process limit
-        setBackgroundProcessLimit(BG_APP_LIMITS[LEVEL_MEDIUM]);
+        setLowMemoryKiller(tx, false);
     }
     
     /**
@@ -197,27 +251,24 @@ public class MemoryOptimizer {
      * - Higher background app limit
      * - Less aggressive LMK
      */
-    private void applyPerformanceProfile() {
+    private void applyPerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying performance memory profile");
         
         // Set swappiness to a lower value to keep more in RAM
-        writeFile(VM_SWAPPINESS_PATH, "40");
+        setValue(tx, VM_SWAPPINESS_PATH, "40");
         
         // Decrease cache pressure to keep more in cache
-        writeFile(VM_VFS_CACHE_PRESSURE_PATH, "50");
+        setValue(tx, VM_VFS_CACHE_PRESSURE_PATH, "50");
         
         // Set dirty ratios to higher values to flush less frequently
-        writeFile(VM_DIRTY_RATIO_PATH, "40");
-        writeFile(VM_DIRTY_BACKGROUND_RATIO_PATH, "20");
+        setValue(tx, VM_DIRTY_RATIO_PATH, "40");
+        setValue(tx, VM_DIRTY_BACKGROUND_RATIO_PATH, "20");
         
         // Set min free kbytes to a higher value
-        writeFile(VM_MIN_FREE_KBYTES_PATH, "16384");
+        setValue(tx, VM_MIN_FREE_KBYTES_PATH, "16384");
         
         // Set LMK parameters to be less aggressive
-        setLowMemoryKiller(false);
-        
-        // Allow more background processes
-        setBackgroundProcessLimit(BG_APP_LIMITS[LEVEL_HIGH]);
+        setLowMemoryKiller(tx, false);
     }
     
     /**
@@ -226,34 +277,31 @@ public class MemoryOptimizer {
      * - Maximum background app limit
      * - Least aggressive LMK
      */
-    private void applyExtremePerformanceProfile() {
+    private void applyExtremePerformanceProfile(TuningTransaction tx) {
         Log.i(TAG, "Applying extreme performance memory profile");
         
         // Set swappiness to a very low value to keep as much as possible in RAM
-        writeFile(VM_SWAPPINESS_PATH, "10");
+        setValue(tx, VM_SWAPPINESS_PATH, "10");
         
         // Decrease cache pressure significantly
-        writeFile(VM_VFS_CACHE_PRESSURE_PATH, "10");
+        setValue(tx, VM_VFS_CACHE_PRESSURE_PATH, "10");
         
         // Set dirty ratios to high values
-        writeFile(VM_DIRTY_RATIO_PATH, "60");
-        writeFile(VM_DIRTY_BACKGROUND_RATIO_PATH, "30");
+        setValue(tx, VM_DIRTY_RATIO_PATH, "60");
+        setValue(tx, VM_DIRTY_BACKGROUND_RATIO_PATH, "30");
         
         // Set min free kbytes to a high value
-        writeFile(VM_MIN_FREE_KBYTES_PATH, "32768");
+        setValue(tx, VM_MIN_FREE_KBYTES_PATH, "32768");
         
         // Set LMK parameters to be least aggressive
-        setLowMemoryKiller(false);
-        
-        // Allow maximum background processes
-        setBackgroundProcessLimit(BG_APP_LIMITS[LEVEL_EXTREME]);
+        setLowMemoryKiller(tx, false);
     }
     
     /**
      * Set low memory killer parameters
      * @param aggressive Whether to be more aggressive in killing apps
      */
-    private void setLowMemoryKiller(boolean aggressive) {
+    private void setLowMemoryKiller(TuningTransaction tx, boolean aggressive) {
         // LMK minfree values (in pages)
         // Format: pages at which to kill processes with adj values 0, 1, 2, 4, 9, 15
         String minfree;
@@ -266,13 +314,20 @@ public class MemoryOptimizer {
             minfree = "2048,3072,4096,8192,12288,16384";
         }
         
-        writeFile(LMK_MINFREE_PATH, minfree);
+        setValue(tx, LMK_MINFREE_PATH, minfree);
         
         // LMK adj values
         // Default is "0,1,2,4,9,15"
         // We'll keep the default
     }
     
+    /**
+     * Set a vm or LMK tunable
+     */
+    private void setValue(TuningTransaction tx, String path, String value) {
+        tx.set(mSysfs.node(path), value);
+    }
+    
     /**
      * Set the background process limit
      */
@@ -292,131 +347,128 @@ public class MemoryOptimizer {
     }
     
     /**
-     * Start periodic memory optimization
+     * Perform memory optimization when memory pressure builds, on the pressure
+     * monitor thread. Background processes are cleaned up under critical
+     * pressure, or under moderate pressure when the reclaim activity shows
+     * direct reclaim or a working set that no longer fits.
      */
-    private void startPeriodicOptimization() {
-        if (!mIsRunning) {
-            mIsRunning = true;
-            mHandler.postDelayed(mOptimizeRunnable, 60000); // Run every minute
+    private void optimizeMemory(int pressure) {
+        long now = SystemClock.uptimeMillis();
+        if (now - mLastCleanupMillis < MIN_CLEANUP_INTERVAL_MS) {
+            return;
         }
-    }
-    
-    /**
-     * Stop periodic memory optimization
-     */
-    private void stopPeriodicOptimization() {
-        mIsRunning = false;
-        mHandler.removeCallbacks(mOptimizeRunnable);
-    }
-    
-    /**
-     * Runnable that performs periodic memory optimization
-     */
-    private final Runnable mOptimizeRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (mIsRunning) {
-                optimizeMemory();
-                mHandler.postDelayed(this, 60000); // Run every minute
-            }
-        }
-    };
-    
-    /**
-     * Perform memory optimization
-     */
-    private void optimizeMemory() {
-        Log.i(TAG, "Performing memory optimization");
         
-        // Get memory info
-        ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-        ActivityManager.MemoryInfo memoryInfo = new ActivityManager.MemoryInfo();
-        am.getMemoryInfo(memoryInfo);
+        Log.i(TAG, "Performing memory optimization at pressure level " + pressure);
         
-        // Calculate available memory percentage
-        long totalMem = memoryInfo.totalMem;
-        long availMem = memoryInfo.availMem;
-        float memoryPercentage = (float) availMem / totalMem * 100;
+        // Measure the reclaim activity over a short window unless the pressure
+        // monitor just sampled it
+        if (now - mMemorySampler.getSampleMillis() > MAX_SAMPLE_AGE_MS) {
+            mMemorySampler.sample();
+            SystemClock.sleep(RECLAIM_WINDOW_MS);
+            mMemorySampler.sample();
+        }
+        int reclaimPressure = MemoryPressureMonitor.getReclaimPressure(mMemorySampler);
         
-        Log.i(TAG, "Memory: " + availMem / 1048576 + "MB available out of " + 
-                   totalMem / 1048576 + "MB total (" + memoryPercentage + "%)");
+        Log.i(TAG, "Memory at reclaim pressure level " + reclaimPressure + ": " + mMemorySampler.summarize());
         
-        // If memory is low, take action based on current level
-        if (memoryPercentage < 15) {
-            Log.i(TAG, "Memory is low, performing cleanup");
+        // If memory is contended, free what is missing at the lowest relaunch cost
+        if (pressure == MemoryPressureMonitor.PRESSURE_CRITICAL
+                || reclaimPressure > MemoryPressureMonitor.PRESSURE_NONE) {
+            mLastCleanupMillis = now;
             
-            // Kill background processes based on level
-            List<ActivityManager.RunningAppProcessInfo> processes = am.getRunningAppProcesses();
-            if (processes != null) {
-                for (ActivityManager.RunningAppProcessInfo process : processes) {
-                    // Only kill background processes
-                    if (process.importance > ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND) {
-                        // In extreme performance mode, be less aggressive
-                        if (mCurrentLevel == LEVEL_EXTREME && 
-                            process.importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_SERVICE) {
-                            continue;
-                        }
-                        
-                        // In high performance mode, keep services
-                        if (mCurrentLevel == LEVEL_HIGH && 
-                            process.importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_SERVICE) {
-                            continue;
-                        }
-                        
-                        // Kill the process
-                        if (process.pkgList != null && process.pkgList.length > 0) {
-                            for (String pkg : process.pkgList) {
-                                Log.i(TAG, "Killing background process: " + pkg);
-                                am.killBackgroundProcesses(pkg);
-                            }
-                        }
-                    }
-                }
+            long targetKb = mMemorySampler.get(MemorySampler.MEM_TOTAL) * TARGET_AVAILABLE_PERCENT / 100
+                    - mMemorySampler.get(MemorySampler.MEM_AVAILABLE);
+            int minCleanupFactor = Math.max(pressure, reclaimPressure);
+            targetKb = Math.max(targetKb, MIN_CLEANUP_KB * minCleanupFactor);
+            
+            Log.i(TAG, "Memory is contended, freeing " + targetKb / 1024 + "MB");
+            
+            ProcessMemoryScanner.Snapshot snapshot = mProcessScanner.refresh();
+            if (snapshot == null) {
+                return;
             }
             
-            // Force garbage collection
-            System.gc();
+            ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            List<VictimSelector.Candidate> victims = mVictimSelector.select(getCandidates(snapshot), snapshot,
+                    targetKb, now, System.currentTimeMillis());
+            for (VictimSelector.Candidate victim : victims) {
+                Log.i(TAG, "Killing background package: " + victim.getPackageName());
+                am.killBackgroundProcesses(victim.getPackageName());
+            }
         }
     }
     
     /**
-     * Read content from a file
+     * Collect the background packages that may be killed at the current level,
+     * with the processes they would free and when they were last used
      */
-    private String readFile(String filePath) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canRead()) {
-                return null;
+    private List<VictimSelector.Candidate> getCandidates(ProcessMemoryScanner.Snapshot snapshot) {
+        Map<String, VictimSelector.Candidate> candidates = new LinkedHashMap<>();
+        mProcessTable.update();
+        
+        for (int i = 0; i < snapshot.size(); i++) {
+            // Only kill background app processes
+            int adj = snapshot.getOomScoreAdj(i);
+            if (adj < VISIBLE_APP_ADJ || snapshot.getUid(i) < Process.FIRST_APPLICATION_UID) {
+                continue;
             }
             
-            BufferedReader reader = new BufferedReader(new FileReader(file));
-            String content = reader.readLine();
-            reader.close();
-            return content;
-        } catch (IOException e) {
-            Log.e(TAG, "Error reading file: " + filePath, e);
-            return null;
+            // In performance modes, keep services
+            boolean service = adj < CACHED_APP_MIN_ADJ;
+            if (service && (mCurrentLevel == LEVEL_HIGH || mCurrentLevel == LEVEL_EXTREME
+                    || mCurrentLevel == LEVEL_SUSTAINED)) {
+                continue;
+            }
+            
+            String pkg = getPackage(snapshot.getPid(i), snapshot.getUid(i));
+            if (pkg == null) {
+                continue;
+            }
+            VictimSelector.Candidate candidate = candidates.get(pkg);
+            if (candidate == null) {
+                candidate = new VictimSelector.Candidate(pkg);
+                candidates.put(pkg, candidate);
+            }
+            candidate.addProcess(snapshot.getPid(i), service);
         }
+        
+        // Recently used packages are likely to be relaunched
+        UsageStatsManager usm = (UsageStatsManager) mContext.getSystemService(Context.USAGE_STATS_SERVICE);
+        if (usm != null && !candidates.isEmpty()) {
+            long wallMillis = System.currentTimeMillis();
+            Map<String, UsageStats> stats = usm.queryAndAggregateUsageStats(wallMillis - LAST_USED_WINDOW_MS, wallMillis);
+            for (VictimSelector.Candidate candidate : candidates.values()) {
+                UsageStats usage = stats != null ? stats.get(candidate.getPackageName()) : null;
+                if (usage != null) {
+                    candidate.setLastUsedMillis(usage.getLastTimeUsed());
+                }
+            }
+        }
+        
+        return new ArrayList<>(candidates.values());
     }
     
     /**
-     * Write content to a file
+     * Get the package a process belongs to: the package its process name
+     * starts with, or the first package of its uid
+     * @return the package, or null if the uid has none
      */
-    private boolean writeFile(String filePath, String content) {
-        try {
-            File file = new File(filePath);
-            if (!file.exists() || !file.canWrite()) {
-                Log.e(TAG, "Cannot write to file: " + filePath);
-                return false;
+    private String getPackage(int pid, int uid) {
+        String[] packages = mProcessTable.getPackages(uid);
+        if (packages.length == 0) {
+            return null;
+        }
+        
+        String name = mProcessTable.getName(pid);
+        if (name != null) {
+            int colon = name.indexOf(':');
+            String base = colon >= 0 ? name.substring(0, colon) : name;
+            for (String pkg : packages) {
+                if (pkg.equals(base)) {
+                    return pkg;
+                }
             }
-            
-            FileWriter writer = new FileWriter(file);
-            writer.write(content);
-            writer.close();
-            return true;
-        } catch (IOException e) {
-            Log.e(TAG, "Error writing to file: " + filePath, e);
-            return false;
         }
+        return packages[0];
     }
 }
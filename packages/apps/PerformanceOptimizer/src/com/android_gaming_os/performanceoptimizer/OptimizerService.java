@@ -3,9 +3,26 @@ package com.android_gaming_os.performanceoptimizer;
 import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.TuningSnapshot;
+import com.android_gaming_os.performanceoptimizer.io.TuningTransaction;
+import com.android_gaming_os.performanceoptimizer.io.WritePlan;
+import com.android_gaming_os.performanceoptimizer.monitor.CpuLoadSampler;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessMemoryScanner;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessTable;
+import com.android_gaming_os.performanceoptimizer.monitor.ResidencyCollector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Service that optimizes system performance for gaming.
  * This service is responsible for:
@@ -24,23 +41,130 @@ public class OptimizerService extends Service {
     // Preference keys
     private static final String KEY_OPTIMIZATION_LEVEL = "optimization_level";
     private static final String KEY_AUTO_OPTIMIZE = "auto_optimize";
+    private static final String KEY_IDLE_LATENCY_BUDGET = "idle_latency_budget_us";
 
     // Optimization levels
     public static final int LEVEL_LOW = 0;
     public static final int LEVEL_MEDIUM = 1;
     public static final int LEVEL_HIGH = 2;
     public static final int LEVEL_EXTREME = 3;
+    public static final int LEVEL_SUSTAINED = 4;
+
+    // CPU load sampling rate during a session, in Hz
+    private static final int CPU_SAMPLING_RATE = 20;
+
+    // Interval between frequency residency snapshots during a session, in milliseconds
+    private static final int RESIDENCY_INTERVAL_MS = 60 * 1000;
+
+    // Number of processes with the largest PSS in a memory report
+    private static final int MEMORY_REPORT_PROCESSES = 10;
+
+    // Exit latency above which idle states of the game cores are disabled at
+    // the performance levels, in microseconds
+    private static final int DEFAULT_IDLE_LATENCY_BUDGET_US = 100;
+
+    // Session length over which the frequency caps must not cause throttling, in seconds
+    private static final int THERMAL_HORIZON_SECONDS = 20 * 60;
+
+    // Interval between updates of the thermally sustainable caps, in milliseconds
+    private static final int THERMAL_CAP_INTERVAL_MS = 5000;
+
+    // CPU floor of a predicted game launch, as a percentage of max, and its duration
+    private static final int PREWARM_BOOST_PERCENT = 50;
+    private static final int PREWARM_BOOST_MS = 3000;
 
-    private int mCurrentLevel = LEVEL_MEDIUM;
+    // Time after a prewarm in which the game start counts as predicted, in milliseconds
+    private static final int PREWARM_HIT_WINDOW_MS = 60 * 1000;
+
+    // Prewarms not followed by their game allowed per hour, which caps the wasted energy
+    private static final int MAX_WASTED_PREWARMS = 4;
+    private static final int PREWARM_BUDGET_WINDOW_MS = 60 * 60 * 1000;
+
+    private volatile int mCurrentLevel = LEVEL_MEDIUM;
     private boolean mAutoOptimize = true;
+    private int mIdleLatencyBudgetUs = DEFAULT_IDLE_LATENCY_BUDGET_US;
     private boolean mIsRunning = false;
 
     private SharedPreferences mPrefs;
+    private Handler mHandler;
+
+    // Shared sysfs I/O engine used by all optimization components
+    private SysfsEngine mSysfs;
+
+    // Values of all tuning nodes before the current session, or null if not running
+    private TuningSnapshot mSessionSnapshot;
+
+    // Compiled write plans per level, valid for the hardware capability signature
+    private final WritePlan[] mWritePlans = new WritePlan[LEVEL_SUSTAINED + 1];
+    private long mWritePlanSignature;
+
+    // CPU cluster topology shared by the CPU-related components
+    private CpuTopology mCpuTopology;
 
     // Optimization components
     private CPUOptimizer mCpuOptimizer;
     private GPUOptimizer mGpuOptimizer;
     private MemoryOptimizer mMemoryOptimizer;
+    private IOOptimizer mIoOptimizer;
+
+    // Memory of every process, refreshed by the memory optimizer under
+    // pressure and by memory reports
+    private ProcessMemoryScanner mProcessScanner;
+
+    // Running processes, updated by the game thread manager and the memory optimizer
+    private ProcessTable mProcessTable;
+
+    // Per-core CPU utilization, sampled while the optimizer is running
+    private CpuLoadSampler mCpuLoadSampler;
+
+    // Time per frequency of the CPU policies and the GPU, collected while the
+    // optimizer is running, and the reused residency of the last report
+    private ResidencyCollector mResidencyCollector;
+    private ResidencyCollector.Snapshot mResidency;
+
+    // Power of the operating points, and the estimated energy, time and frames
+    // per level of the session
+    private EnergyModel mEnergyModel;
+    private final long[] mLevelEnergyUj = new long[LEVEL_SUSTAINED + 1];
+    private final long[] mLevelMillis = new long[LEVEL_SUSTAINED + 1];
+    private final long[] mLevelFrames = new long[LEVEL_SUSTAINED + 1];
+    private long mFrameCount;
+    private long mMarkFrameCount;
+
+    // Temperatures and thermal states, sampled while the optimizer is running
+    private ThermalMonitor mThermalMonitor;
+
+    // Target frame time of the closed-loop control mode in microseconds, or 0 if disabled
+    private int mTargetFrameUs;
+
+    // Frequency controller, running while the control mode or the extreme level is enabled
+    private volatile DvfsController mDvfsController;
+
+    // Frequency domains of the session, shared by the controller and the thermal model
+    private List<FrequencyDomain> mCpuDomains;
+    private FrequencyDomain mGpuDomain;
+
+    // Thermal model of the session and the sustainable caps it last produced
+    private volatile ThermalModel mThermalModel;
+    private volatile int[] mSustainableCaps;
+    private long mLastThermalCapMillis;
+
+    // Caps of the sustained level learned across sessions, or null if not running
+    private volatile SustainedCaps mSustainedCaps;
+
+    // Thread placement of the running game, reported by the game mode service
+    private GameThreadManager mGameThreadManager;
+    private CpusetManager mCpusetManager;
+    private IrqManager mIrqManager;
+    private CpuIdleManager mCpuIdleManager;
+    private String mGamePackage;
+    private boolean mReservePrimeCore;
+
+    // Prewarms for predicted launches that were not followed by their game yet
+    private AssetPrefetcher mAssetPrefetcher;
+    private final ArrayDeque<Long> mWastedPrewarms = new ArrayDeque<>();
+    private String mPrewarmedPackage;
+    private long mPrewarmMillis;
 
     @Override
     public void onCreate() {
@@ -49,6 +173,7 @@ public class OptimizerService extends Service {
 
         // Initialize preferences
         mPrefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        mHandler = new Handler(Looper.getMainLooper());
 
         // Load saved preferences
         loadPreferences();
@@ -62,10 +187,14 @@ public class OptimizerService extends Service {
      */
     private void loadPreferences() {
         mCurrentLevel = mPrefs.getInt(KEY_OPTIMIZATION_LEVEL, LEVEL_MEDIUM);
+        if (!isValidLevel(mCurrentLevel)) {
+            mCurrentLevel = LEVEL_MEDIUM;
+        }
         mAutoOptimize = mPrefs.getBoolean(KEY_AUTO_OPTIMIZE, true);
+        mIdleLatencyBudgetUs = mPrefs.getInt(KEY_IDLE_LATENCY_BUDGET, DEFAULT_IDLE_LATENCY_BUDGET_US);
 
         Log.i(TAG, "Loaded preferences: level=" + mCurrentLevel +
-                   ", autoOptimize=" + mAutoOptimize);
+                   ", autoOptimize=" + mAutoOptimize + ", idleLatencyBudget=" + mIdleLatencyBudgetUs + "us");
     }
 
     /**
@@ -75,6 +204,7 @@ public class OptimizerService extends Service {
         SharedPreferences.Editor editor = mPrefs.edit();
         editor.putInt(KEY_OPTIMIZATION_LEVEL, mCurrentLevel);
         editor.putBoolean(KEY_AUTO_OPTIMIZE, mAutoOptimize);
+        editor.putInt(KEY_IDLE_LATENCY_BUDGET, mIdleLatencyBudgetUs);
         editor.apply();
 
         Log.i(TAG, "Saved preferences: level=" + mCurrentLevel +
@@ -98,12 +228,50 @@ public class OptimizerService extends Service {
                         break;
                     case "com.android_gaming_os.performanceoptimizer.ACTION_SET_LEVEL":
                         int level = intent.getIntExtra("level", LEVEL_MEDIUM);
+                        if (!isValidLevel(level)) {
+                            Log.e(TAG, "Ignoring invalid optimization level: " + level);
+                            break;
+                        }
                         setOptimizationLevel(level);
                         break;
                     case "com.android_gaming_os.performanceoptimizer.ACTION_SET_AUTO_OPTIMIZE":
                         boolean autoOptimize = intent.getBooleanExtra("auto_optimize", true);
                         setAutoOptimize(autoOptimize);
                         break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_SET_TARGET_FRAME_TIME":
+                        int targetFrameUs = intent.getIntExtra("target_frame_time_us", 0);
+                        setTargetFrameTime(targetFrameUs);
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_SET_IDLE_LATENCY_BUDGET":
+                        int latencyUs = intent.getIntExtra("latency_us", DEFAULT_IDLE_LATENCY_BUDGET_US);
+                        setIdleLatencyBudget(latencyUs);
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_GAME_STARTED":
+                        String packageName = intent.getStringExtra("package");
+                        boolean reservePrimeCore = intent.getBooleanExtra("reserve_prime_core", false);
+                        onGameStarted(packageName, reservePrimeCore);
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_GAME_STOPPED":
+                        onGameStopped();
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_PREWARM_GAME":
+                        prewarmGame(intent.getStringExtra("package"));
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_REPORT_RESIDENCY":
+                        reportResidency();
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_REPORT_MEMORY":
+                        reportMemory();
+                        break;
+                    case "com.android_gaming_os.performanceoptimizer.ACTION_REPORT_FRAME_TIMES":
+                        int[] frameTimesUs = intent.getIntArrayExtra("frame_times_us");
+                        if (frameTimesUs != null) {
+                            mFrameCount += frameTimesUs.length;
+                        }
+                        if (frameTimesUs != null && mDvfsController != null) {
+                            mDvfsController.reportFrameTimes(frameTimesUs);
+                        }
+                        break;
                 }
             }
         }
@@ -130,6 +298,11 @@ public class OptimizerService extends Service {
         // Clean up optimizer
         stopOptimizer();
 
+        // Release the open sysfs nodes
+        if (mSysfs != null) {
+            mSysfs.close();
+        }
+
         super.onDestroy();
     }
 
@@ -140,9 +313,31 @@ public class OptimizerService extends Service {
         Log.i(TAG, "Initializing performance optimizer");
 
         // Initialize optimization components
-        mCpuOptimizer = new CPUOptimizer();
-        mGpuOptimizer = new GPUOptimizer();
-        mMemoryOptimizer = new MemoryOptimizer(this);
+        mSysfs = new SysfsEngine();
+        mCpuTopology = new CpuTopology(mSysfs);
+        mEnergyModel = new EnergyModel(mSysfs, mCpuTopology);
+        mCpuOptimizer = new CPUOptimizer(mSysfs, mCpuTopology, mEnergyModel);
+        mGpuOptimizer = new GPUOptimizer(mSysfs);
+        mProcessScanner = new ProcessMemoryScanner(mSysfs);
+        mProcessTable = new ProcessTable(mSysfs, getPackageManager());
+        mProcessTable.addListener(mGameProcessListener);
+        mMemoryOptimizer = new MemoryOptimizer(this, mSysfs, mProcessScanner, mProcessTable);
+        mIoOptimizer = new IOOptimizer(mSysfs);
+        mCpuLoadSampler = new CpuLoadSampler(mSysfs, mCpuTopology.getNumCores());
+        mResidencyCollector = new ResidencyCollector(mSysfs);
+        for (CpuCluster cluster : mCpuTopology.getClusters()) {
+            mResidencyCollector.addCpuPolicy("policy" + cluster.getPolicy(), cluster.getCpufreqPath());
+        }
+        if (mGpuOptimizer.getTransStatPath() != null) {
+            mResidencyCollector.addDevfreq("gpu", mGpuOptimizer.getTransStatPath());
+        }
+        mResidency = mResidencyCollector.newSnapshot();
+        mThermalMonitor = new ThermalMonitor(mSysfs, mCpuTopology);
+        mGameThreadManager = new GameThreadManager(mSysfs, mCpuTopology, mProcessTable);
+        mCpusetManager = new CpusetManager(mSysfs, mCpuTopology);
+        mIrqManager = new IrqManager(mSysfs, mCpuTopology);
+        mCpuIdleManager = new CpuIdleManager(mSysfs, mCpuTopology);
+        mAssetPrefetcher = new AssetPrefetcher(this);
 
         Log.i(TAG, "Optimization components initialized");
     }
@@ -163,11 +358,20 @@ public class OptimizerService extends Service {
         }
     }
 
+    /**
+     * Check if a level is one of the optimization levels, which index the
+     * per-level write plans and energy counters
+     */
+    private static boolean isValidLevel(int level) {
+        return level >= LEVEL_LOW && level <= LEVEL_SUSTAINED;
+    }
+
     /**
      * Set the optimization level
      */
     private void setOptimizationLevel(int level) {
         if (mCurrentLevel != level) {
+            markResidency();
             mCurrentLevel = level;
             savePreferences();
 
@@ -175,8 +379,350 @@ public class OptimizerService extends Service {
             if (mIsRunning) {
                 // Re-apply optimizations with the new level
                 applyOptimizations();
+                updateThermalCaps();
+                updateDvfsController();
+                updateIdleStates();
+            }
+        }
+    }
+
+    /**
+     * Handle a game coming to the foreground
+     */
+    private void onGameStarted(String packageName, boolean reservePrimeCore) {
+        if (packageName == null) {
+            return;
+        }
+
+        Log.i(TAG, "Game started: " + packageName);
+        mGamePackage = packageName;
+        mReservePrimeCore = reservePrimeCore;
+
+        // A predicted launch does not count against the prewarm budget
+        if (packageName.equals(mPrewarmedPackage)
+                && SystemClock.uptimeMillis() - mPrewarmMillis <= PREWARM_HIT_WINDOW_MS) {
+            Log.i(TAG, "Launch of " + packageName + " was prewarmed " +
+                       (SystemClock.uptimeMillis() - mPrewarmMillis) + "ms ahead");
+            mWastedPrewarms.pollLast();
+        }
+        mPrewarmedPackage = null;
+
+        if (mIsRunning) {
+            // Load the game files while the game starts up
+            mAssetPrefetcher.start(mGamePackage);
+
+            mCpusetManager.confine(mSessionSnapshot);
+            mIrqManager.start();
+            mGameThreadManager.start(mGamePackage, mReservePrimeCore);
+            updateIdleStates();
+        }
+    }
+
+    /**
+     * Prepare for a game launch predicted by the game mode service: compact
+     * memory, prefetch the game files and raise the CPU floor briefly.
+     * Prewarms that are not followed by the game are limited per hour.
+     */
+    private void prewarmGame(String packageName) {
+        if (!mIsRunning || packageName == null || mGamePackage != null) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        while (!mWastedPrewarms.isEmpty() && now - mWastedPrewarms.peekFirst() > PREWARM_BUDGET_WINDOW_MS) {
+            mWastedPrewarms.pollFirst();
+        }
+        if (mWastedPrewarms.size() >= MAX_WASTED_PREWARMS) {
+            Log.i(TAG, "Not prewarming " + packageName + ", " + mWastedPrewarms.size() +
+                       " prewarms in the last hour were not followed by their game");
+            return;
+        }
+
+        Log.i(TAG, "Prewarming predicted launch of " + packageName);
+        mWastedPrewarms.addLast(now);
+        mPrewarmedPackage = packageName;
+        mPrewarmMillis = now;
+
+        mMemoryOptimizer.compactMemory();
+        mAssetPrefetcher.prefetch(packageName);
+
+        // The controller sets the frequencies itself while it runs
+        if (mDvfsController == null) {
+            TuningTransaction tx = new TuningTransaction(mSysfs);
+            mCpuOptimizer.compileBoost(PREWARM_BOOST_PERCENT, tx);
+            tx.commit(mSessionSnapshot);
+            mHandler.removeCallbacks(mEndBoostRunnable);
+            mHandler.postDelayed(mEndBoostRunnable, PREWARM_BOOST_MS);
+        }
+    }
+
+    /**
+     * Runnable that returns from the prewarm boost to the current level
+     */
+    private final Runnable mEndBoostRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsRunning) {
+                commitLevel();
             }
         }
+    };
+
+    /**
+     * Handle the game leaving the foreground
+     */
+    private void onGameStopped() {
+        Log.i(TAG, "Game stopped: " + mGamePackage);
+        mGamePackage = null;
+        mAssetPrefetcher.stop();
+        mGameThreadManager.stop();
+        mIrqManager.stop();
+        mCpusetManager.release();
+        mCpuIdleManager.release();
+    }
+
+    /**
+     * Logs when a process of the game starts or exits during a session, which
+     * shows crashes and restarts. Events arrive on the thread that updated the
+     * process table and are handled on the main thread.
+     */
+    private final ProcessTable.Listener mGameProcessListener = new ProcessTable.Listener() {
+        @Override
+        public void onProcessStarted(int pid, int uid, String name) {
+            logGameProcess("started", pid, name);
+        }
+
+        @Override
+        public void onProcessExited(int pid, int uid, String name) {
+            logGameProcess("exited", pid, name);
+        }
+
+        private void logGameProcess(final String event, final int pid, final String name) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    String game = mGamePackage;
+                    if (game != null && (name.equals(game) || name.startsWith(game + ":"))) {
+                        Log.i(TAG, "Game process " + name + " " + event + " as pid " + pid);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Set the exit latency above which idle states of the game cores are disabled
+     */
+    private void setIdleLatencyBudget(int latencyUs) {
+        if (latencyUs < 0 || mIdleLatencyBudgetUs == latencyUs) {
+            return;
+        }
+
+        mIdleLatencyBudgetUs = latencyUs;
+        savePreferences();
+        if (mIsRunning) {
+            updateIdleStates();
+        }
+    }
+
+    /**
+     * Limit the idle states of the game cores while a game runs at the high or
+     * extreme level, and restore them otherwise
+     */
+    private void updateIdleStates() {
+        if (mIsRunning && mGamePackage != null
+                && (mCurrentLevel == LEVEL_HIGH || mCurrentLevel == LEVEL_EXTREME)) {
+            mCpuIdleManager.limit(mIdleLatencyBudgetUs);
+        } else {
+            mCpuIdleManager.release();
+        }
+    }
+
+    /**
+     * Set the target frame time of the closed-loop control mode, or 0 to
+     * return to the static optimization level
+     */
+    private void setTargetFrameTime(int frameUs) {
+        if (mTargetFrameUs != Math.max(0, frameUs)) {
+            markResidency();
+        }
+        mTargetFrameUs = Math.max(0, frameUs);
+
+        if (mIsRunning) {
+            updateDvfsController();
+        }
+    }
+
+    /**
+     * Check if the frequency controller owns the frequency ranges. Besides the
+     * control mode, the extreme level runs it within thermally sustainable caps
+     * instead of holding high frequency floors until the kernel throttles, and
+     * the sustained level within the caps learned for the device.
+     */
+    private boolean isDvfsControlEnabled() {
+        return mTargetFrameUs > 0 || mCurrentLevel == LEVEL_EXTREME || mCurrentLevel == LEVEL_SUSTAINED;
+    }
+
+    /**
+     * Start or stop the frequency controller after the control settings changed
+     */
+    private void updateDvfsController() {
+        if (isDvfsControlEnabled()) {
+            startDvfsController();
+        } else if (mDvfsController != null) {
+            stopDvfsController();
+
+            // Return to the ranges of the static level
+            applyOptimizations();
+        }
+    }
+
+    /**
+     * Start the frequency controller, for the target frame time if one is set
+     */
+    private void startDvfsController() {
+        if (mDvfsController == null) {
+            DvfsController controller = new DvfsController(getFrequencyDomains());
+            if (mSustainableCaps != null) {
+                controller.setCapLimits(mSustainableCaps);
+            }
+            mDvfsController = controller;
+        }
+
+        mDvfsController.setTargetFrameTime(mTargetFrameUs);
+        mDvfsController.start();
+    }
+
+    /**
+     * Get the frequency domains of the session, CPU clusters first
+     */
+    private List<FrequencyDomain> getFrequencyDomains() {
+        if (mCpuDomains == null) {
+            mCpuDomains = mCpuOptimizer.getFrequencyDomains(mCpuLoadSampler);
+            mGpuDomain = mGpuOptimizer.getFrequencyDomain();
+        }
+
+        List<FrequencyDomain> domains = new ArrayList<>(mCpuDomains);
+        if (mGpuDomain != null) {
+            domains.add(mGpuDomain);
+        }
+        return domains;
+    }
+
+    /**
+     * Start fitting the thermal model of the session
+     */
+    private void startThermalModel() {
+        mSustainedCaps = new SustainedCaps(mPrefs, getFrequencyDomains());
+        mThermalModel = new ThermalModel(mCpuTopology, mThermalMonitor, mCpuDomains, mGpuDomain);
+        mSustainableCaps = null;
+        mLastThermalCapMillis = 0;
+        mThermalMonitor.addListener(mThermalModel);
+        mThermalMonitor.addListener(mThermalCapListener);
+
+        // The learned caps apply before the model has seen enough samples
+        updateThermalCaps();
+    }
+
+    /**
+     * Stop the thermal model and drop the frequency domains of the session
+     */
+    private void stopThermalModel() {
+        if (mThermalModel != null) {
+            mThermalMonitor.removeListener(mThermalCapListener);
+            mThermalMonitor.removeListener(mThermalModel);
+            mThermalModel = null;
+        }
+        if (mSustainedCaps != null) {
+            mSustainedCaps.save();
+            mSustainedCaps = null;
+        }
+        mSustainableCaps = null;
+        mCpuDomains = null;
+        mGpuDomain = null;
+    }
+
+    /**
+     * Listener that limits the controller to the thermally sustainable caps and
+     * learns the caps of the sustained level, on the thermal monitor thread
+     */
+    private final ThermalMonitor.Listener mThermalCapListener = new ThermalMonitor.Listener() {
+        @Override
+        public void onThermalStateChanged(ThermalZone zone, int previousState) {
+            ThermalModel model = mThermalModel;
+            SustainedCaps learned = mSustainedCaps;
+            if (mCurrentLevel != LEVEL_SUSTAINED || model == null || learned == null
+                    || previousState >= ThermalZone.STATE_THROTTLING
+                    || zone.getState() < ThermalZone.STATE_THROTTLING) {
+                return;
+            }
+
+            // The operating point was not sustainable, back off right away
+            if (learned.onThrottled(model.getZoneDomains(zone), SystemClock.uptimeMillis())) {
+                updateThermalCaps();
+            }
+        }
+
+        @Override
+        public void onTemperaturesSampled(long timeMillis) {
+            SustainedCaps learned = mSustainedCaps;
+            boolean raised = mCurrentLevel == LEVEL_SUSTAINED && learned != null
+                    && learned.onSampled(mThermalMonitor.getMaxState() >= ThermalZone.STATE_WARNING, timeMillis);
+            if (!raised && timeMillis - mLastThermalCapMillis < THERMAL_CAP_INTERVAL_MS) {
+                return;
+            }
+            mLastThermalCapMillis = timeMillis;
+            updateThermalCaps();
+        }
+    };
+
+    /**
+     * Limit the controller to the caps the thermal model predicts to be
+     * sustainable, and at the sustained level also to the learned caps
+     */
+    private synchronized void updateThermalCaps() {
+        ThermalModel model = mThermalModel;
+        if (model == null) {
+            return;
+        }
+
+        boolean sustained = mCurrentLevel == LEVEL_SUSTAINED && mSustainedCaps != null;
+        int[] caps = new int[model.getDomainCount()];
+        if (model.isReady()) {
+            model.getSustainableCaps(THERMAL_HORIZON_SECONDS, caps);
+        } else if (sustained || mSustainableCaps != null) {
+            // Nothing predicted yet, start from the top of each domain
+            List<FrequencyDomain> domains = getFrequencyDomains();
+            for (int d = 0; d < caps.length; d++) {
+                caps[d] = Math.max(0, domains.get(d).getFrequencyTable().size() - 1);
+            }
+        } else {
+            return;
+        }
+        if (sustained) {
+            mSustainedCaps.limit(caps);
+        }
+        if (Arrays.equals(caps, mSustainableCaps)) {
+            return;
+        }
+
+        Log.i(TAG, "Frequency caps for " + THERMAL_HORIZON_SECONDS + "s" +
+                   (sustained ? " at the sustained level: " : ": ") + Arrays.toString(caps));
+        mSustainableCaps = caps;
+        DvfsController controller = mDvfsController;
+        if (controller != null) {
+            controller.setCapLimits(caps);
+        }
+    }
+
+    /**
+     * Stop the frequency controller
+     */
+    private void stopDvfsController() {
+        if (mDvfsController != null) {
+            mDvfsController.stop();
+            mDvfsController = null;
+        }
     }
 
     /**
@@ -187,8 +733,31 @@ public class OptimizerService extends Service {
             mIsRunning = true;
             Log.i(TAG, "Starting performance optimizer");
 
+            // Capture the original settings once for the whole session
+            saveOriginalSettings();
+
             // Apply optimizations
             applyOptimizations();
+
+            // Start monitoring CPU load, frequency residency and temperatures
+            mCpuLoadSampler.start(CPU_SAMPLING_RATE);
+            resetLevelEnergy();
+            mResidencyCollector.start(RESIDENCY_INTERVAL_MS);
+            startThermalModel();
+            mThermalMonitor.start();
+
+            // Start the frequency controller if the control mode or extreme level is enabled
+            if (isDvfsControlEnabled()) {
+                startDvfsController();
+            }
+
+            // Partition the CPUs and place the threads of a running game
+            if (mGamePackage != null) {
+                mCpusetManager.confine(mSessionSnapshot);
+                mIrqManager.start();
+                mGameThreadManager.start(mGamePackage, mReservePrimeCore);
+                updateIdleStates();
+            }
         }
     }
 
@@ -197,39 +766,289 @@ public class OptimizerService extends Service {
      */
     private void stopOptimizer() {
         if (mIsRunning) {
+            // Close the period of the current level while the session still runs
+            markResidency();
             mIsRunning = false;
             Log.i(TAG, "Stopping performance optimizer");
 
+            // Stop the control mode, game thread and IRQ placement and monitoring
+            stopDvfsController();
+            mHandler.removeCallbacks(mEndBoostRunnable);
+            mAssetPrefetcher.stop();
+            mGameThreadManager.stop();
+            mIrqManager.stop();
+            mCpuIdleManager.release();
+            mCpuLoadSampler.stop();
+            mThermalMonitor.stop();
+            stopThermalModel();
+
+            // Report where the session spent its time
+            mResidencyCollector.stop(mResidency);
+            Log.i(TAG, "Frequency residency of the session over " + mResidencyCollector.summarize(mResidency));
+            reportLevelEnergy();
+
             // Restore normal settings
             restoreNormalSettings();
         }
     }
 
     /**
-     * Apply all optimizations based on the current level
+     * Log the frequency residency under the current profile since it was
+     * applied. Called before every profile change, so the effect of each
+     * profile can be checked against where the cores actually spent their time.
+     */
+    private void markResidency() {
+        if (!mIsRunning || !mResidencyCollector.mark(mResidency)) {
+            return;
+        }
+
+        Log.i(TAG, "Frequency residency at " + getProfileName() + " over " +
+                   mResidencyCollector.summarize(mResidency));
+
+        long frames = mFrameCount - mMarkFrameCount;
+        mMarkFrameCount = mFrameCount;
+        long energyUj = mEnergyModel.estimateEnergyUj(mResidencyCollector, mResidency);
+        if (energyUj >= 0) {
+            mLevelEnergyUj[mCurrentLevel] += energyUj;
+            mLevelMillis[mCurrentLevel] += mResidency.getUptimeMillis();
+            mLevelFrames[mCurrentLevel] += frames;
+        }
+    }
+
+    /**
+     * Clear the energy per level at session start
+     */
+    private void resetLevelEnergy() {
+        Arrays.fill(mLevelEnergyUj, 0);
+        Arrays.fill(mLevelMillis, 0);
+        Arrays.fill(mLevelFrames, 0);
+        mMarkFrameCount = mFrameCount;
+    }
+
+    /**
+     * Log the estimated average power and energy per frame of each level used
+     * in the session, and the level with the lowest energy per frame among
+     * those within 5% of the best frame rate
+     */
+    private void reportLevelEnergy() {
+        long bestFramesPerMinute = 0;
+        for (int level = 0; level < mLevelMillis.length; level++) {
+            if (mLevelMillis[level] > 0) {
+                long framesPerMinute = mLevelFrames[level] * 60000 / mLevelMillis[level];
+                bestFramesPerMinute = Math.max(bestFramesPerMinute, framesPerMinute);
+            }
+        }
+
+        int efficientLevel = -1;
+        long efficientEnergyUj = Long.MAX_VALUE;
+        for (int level = 0; level < mLevelMillis.length; level++) {
+            long millis = mLevelMillis[level];
+            if (millis <= 0) {
+                continue;
+            }
+
+            long frames = mLevelFrames[level];
+            Log.i(TAG, "Level " + level + ": " + millis / 1000 + "s, estimated " +
+                       mLevelEnergyUj[level] / millis + " mW" +
+                       (frames > 0 ? ", " + mLevelEnergyUj[level] / frames + " uJ per frame at " +
+                                     frames * 1000 / millis + " fps" : ""));
+
+            if (frames > 0 && frames * 60000 / millis * 100 >= bestFramesPerMinute * 95
+                    && mLevelEnergyUj[level] / frames < efficientEnergyUj) {
+                efficientLevel = level;
+                efficientEnergyUj = mLevelEnergyUj[level] / frames;
+            }
+        }
+
+        if (efficientLevel >= 0) {
+            Log.i(TAG, "Most energy efficient level at equal frame rate: " + efficientLevel);
+        }
+    }
+
+    /**
+     * Log the frequency residency of the session so far and of the last interval
+     */
+    private void reportResidency() {
+        if (!mIsRunning) {
+            Log.i(TAG, "No frequency residency, the optimizer is not running");
+            return;
+        }
+
+        if (mResidencyCollector.getSessionResidency(mResidency)) {
+            Log.i(TAG, "Frequency residency of the session over " + mResidencyCollector.summarize(mResidency));
+        }
+        if (mResidencyCollector.getIntervalResidency(mResidency)) {
+            Log.i(TAG, "Frequency residency of the last interval over " +
+                       mResidencyCollector.summarize(mResidency));
+        }
+
+        // Close the current level's period so its energy is included
+        markResidency();
+        reportLevelEnergy();
+    }
+
+    /**
+     * Log the memory of the processes with the largest PSS. The scan waits
+     * for the scanner workers, so it runs off the main thread.
+     */
+    private void reportMemory() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ProcessMemoryScanner.Snapshot snapshot = mProcessScanner.refresh();
+                if (snapshot != null) {
+                    Log.i(TAG, "Process memory: " + snapshot.summarize(MEMORY_REPORT_PROCESSES));
+                }
+            }
+        }, "MemoryReport").start();
+    }
+
+    /**
+     * Describe the current level and control mode
+     */
+    private String getProfileName() {
+        return "level " + mCurrentLevel +
+               (mTargetFrameUs > 0 ? " with target frame time " + mTargetFrameUs + "us" : "");
+    }
+
+    /**
+     * Capture the original values of all tuning nodes before the session
+     */
+    private void saveOriginalSettings() {
+        TuningSnapshot.Builder snapshot = new TuningSnapshot.Builder(mSysfs);
+        mCpuOptimizer.saveOriginalSettings(snapshot);
+        mGpuOptimizer.saveOriginalSettings(snapshot);
+        mMemoryOptimizer.saveOriginalSettings(snapshot);
+        mIoOptimizer.saveOriginalSettings(snapshot);
+        mCpusetManager.saveOriginalSettings(snapshot);
+        mCpuIdleManager.saveOriginalSettings(snapshot);
+        mSessionSnapshot = snapshot.build();
+
+        Log.i(TAG, "Captured " + mSessionSnapshot.size() + " original settings");
+    }
+
+    /**
+     * Apply all optimizations based on the current level.
+     * The writes of all components are committed as one compiled plan that rolls
+     * back to the session snapshot if any write fails.
      */
     private void applyOptimizations() {
         Log.i(TAG, "Applying optimizations for level: " + mCurrentLevel);
 
-        // Apply CPU optimizations
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        long writes = mSysfs.getWriteCount();
+        long skippedWrites = mSysfs.getSkippedWriteCount();
+
+        // Commit all tunable writes as one batch
+        commitLevel();
+
+        long commitNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+
+        // Apply memory optimizations that are not tunables
+        if (mMemoryOptimizer != null) {
+            mMemoryOptimizer.applyOptimizations(mCurrentLevel);
+        }
+
+        // Apply additional system optimizations
+        applySystemOptimizations();
+
+        Log.i(TAG, "All optimizations applied for level: " + mCurrentLevel +
+                   " in " + commitNanos / 1000 + "us (" + (mSysfs.getWriteCount() - writes) + " writes, " +
+                   (mSysfs.getSkippedWriteCount() - skippedWrites) + " unchanged writes skipped)");
+    }
+
+    /**
+     * Commit the compiled write plan of the current level
+     */
+    private void commitLevel() {
+        WritePlan plan = getWritePlan(mCurrentLevel);
+        if (!plan.commit(mSessionSnapshot)) {
+            Log.e(TAG, "Optimizations for level " + mCurrentLevel + " failed, original settings restored");
+
+            // The rollback also restored the cpuset masks and idle states of an active game
+            if (mCpusetManager.isConfined()) {
+                mCpusetManager.confine(mSessionSnapshot);
+            }
+            if (mCpuIdleManager.isLimited()) {
+                mCpuIdleManager.limit(mIdleLatencyBudgetUs);
+            }
+        }
+
+        // The controller owns the frequency ranges while it runs
+        if (mDvfsController != null) {
+            mDvfsController.resync();
+        }
+    }
+
+    /**
+     * Get the compiled write plan for a level, compiling it only if it does not
+     * exist yet or the hardware capabilities changed since it was compiled
+     */
+    private WritePlan getWritePlan(int level) {
+        long signature = getCapabilitySignature();
+        if (signature != mWritePlanSignature) {
+            Log.i(TAG, "Hardware capabilities changed, discarding compiled write plans");
+            for (int i = 0; i < mWritePlans.length; i++) {
+                mWritePlans[i] = null;
+            }
+            mWritePlanSignature = signature;
+        }
+
+        if (level < 0 || level >= mWritePlans.length) {
+            return compileWritePlan(level);
+        }
+        if (mWritePlans[level] == null) {
+            mWritePlans[level] = compileWritePlan(level);
+        }
+        return mWritePlans[level];
+    }
+
+    /**
+     * Compile the tunable writes of all components for a level into one plan
+     */
+    private WritePlan compileWritePlan(int level) {
+        TuningTransaction tx = new TuningTransaction(mSysfs);
+
+        // Collect CPU optimizations
         if (mCpuOptimizer != null) {
-            mCpuOptimizer.applyOptimizations(mCurrentLevel);
+            mCpuOptimizer.compileOptimizations(level, tx);
         }
 
-        // Apply GPU optimizations
+        // Collect GPU optimizations
         if (mGpuOptimizer != null) {
-            mGpuOptimizer.applyOptimizations(mCurrentLevel);
+            mGpuOptimizer.compileOptimizations(level, tx);
         }
 
-        // Apply memory optimizations
+        // Collect memory optimizations
         if (mMemoryOptimizer != null) {
-            mMemoryOptimizer.applyOptimizations(mCurrentLevel);
+            mMemoryOptimizer.compileOptimizations(level, tx);
         }
 
-        // Apply additional system optimizations
-        applySystemOptimizations();
+        // Collect I/O optimizations
+        if (mIoOptimizer != null) {
+            mIoOptimizer.compileOptimizations(level, tx);
+        }
 
-        Log.i(TAG, "All optimizations applied for level: " + mCurrentLevel);
+        WritePlan plan = tx.compile();
+        Log.i(TAG, "Compiled write plan for level " + level + " with " + plan.size() + " writes");
+        return plan;
+    }
+
+    /**
+     * Get a signature of the hardware capabilities the write plans depend on
+     */
+    private long getCapabilitySignature() {
+        long signature = 1;
+        if (mCpuOptimizer != null) {
+            signature = signature * 31 + mCpuOptimizer.getCapabilitySignature();
+        }
+        if (mGpuOptimizer != null) {
+            signature = signature * 31 + mGpuOptimizer.getCapabilitySignature();
+        }
+        if (mIoOptimizer != null) {
+            signature = signature * 31 + mIoOptimizer.getCapabilitySignature();
+        }
+        return signature;
     }
 
     /**
@@ -258,6 +1077,10 @@ public class OptimizerService extends Service {
             case LEVEL_EXTREME:
                 // Extreme performance mode
                 break;
+
+            case LEVEL_SUSTAINED:
+                // Sustained performance mode
+                break;
         }
     }
 
@@ -267,14 +1090,15 @@ public class OptimizerService extends Service {
     private void restoreNormalSettings() {
         Log.i(TAG, "Restoring normal system settings");
 
-        // Restore CPU settings
-        if (mCpuOptimizer != null) {
-            mCpuOptimizer.restoreOriginalSettings();
+        // Give the CPUs of an active game back to the rest of the system
+        if (mCpusetManager != null) {
+            mCpusetManager.release();
         }
 
-        // Restore GPU settings
-        if (mGpuOptimizer != null) {
-            mGpuOptimizer.restoreOriginalSettings();
+        // Restore the tuning nodes captured at session start
+        if (mSessionSnapshot != null) {
+            mSessionSnapshot.restore();
+            mSessionSnapshot = null;
         }
 
         // Restore memory settings
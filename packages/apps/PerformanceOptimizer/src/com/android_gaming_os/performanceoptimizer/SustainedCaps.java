@@ -0,0 +1,148 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Frequency caps of the sustained performance level, learned per device
+ * across sessions. A cap is lowered one step whenever a zone its domain heats
+ * starts throttling, and all caps are raised one step after a quiet period
+ * without any zone near a trip point, so the caps settle at the highest
+ * operating point the device holds in thermal steady state. The caps are
+ * persisted in kHz per domain name, which stays valid if the frequency table
+ * of a domain changes between sessions.
+ */
+public class SustainedCaps {
+    private static final String TAG = "SustainedCaps";
+
+    // Preference key prefix of the learned cap of a domain
+    private static final String KEY_PREFIX = "sustained_cap_";
+
+    // Time without any zone at the warning state before the caps are raised one step
+    private static final long RAISE_INTERVAL_MS = 10 * 60 * 1000;
+
+    private final SharedPreferences mPrefs;
+    private final FrequencyDomain[] mDomains;
+
+    // Learned cap of each domain as an index into its frequency table
+    private final int[] mCaps;
+
+    // Time of the last throttling, warning or raise, or 0 before the first sample
+    private long mQuietSinceMillis;
+    private boolean mChanged;
+
+    /**
+     * @param domains frequency domains in the order of the thermal model
+     */
+    public SustainedCaps(SharedPreferences prefs, List<FrequencyDomain> domains) {
+        mPrefs = prefs;
+        mDomains = domains.toArray(new FrequencyDomain[domains.size()]);
+        mCaps = new int[mDomains.length];
+
+        for (int d = 0; d < mDomains.length; d++) {
+            FrequencyTable table = mDomains[d].getFrequencyTable();
+            int khz = mPrefs.getInt(KEY_PREFIX + mDomains[d].getName(), 0);
+            mCaps[d] = khz > 0 ? Math.max(0, table.floorIndex(khz)) : Math.max(0, table.size() - 1);
+        }
+
+        Log.i(TAG, "Loaded sustained caps: " + describe());
+    }
+
+    /**
+     * Lower the caps of the domains that heat a zone that started throttling
+     * @param domains indices of the domains that heat the zone
+     * @return true if any cap was lowered
+     */
+    public synchronized boolean onThrottled(int[] domains, long timeMillis) {
+        mQuietSinceMillis = timeMillis;
+
+        boolean lowered = false;
+        for (int d : domains) {
+            if (mCaps[d] > 0) {
+                mCaps[d]--;
+                lowered = true;
+            }
+        }
+        if (lowered) {
+            mChanged = true;
+            Log.i(TAG, "Throttled, lowered sustained caps to " + describe());
+        }
+        return lowered;
+    }
+
+    /**
+     * Track the thermal headroom after a sample and raise all caps one step
+     * after a quiet period
+     * @param warm true if any zone is at the warning state or above
+     * @return true if any cap was raised
+     */
+    public synchronized boolean onSampled(boolean warm, long timeMillis) {
+        if (warm || mQuietSinceMillis == 0) {
+            mQuietSinceMillis = timeMillis;
+            return false;
+        }
+        if (timeMillis - mQuietSinceMillis < RAISE_INTERVAL_MS) {
+            return false;
+        }
+        mQuietSinceMillis = timeMillis;
+
+        boolean raised = false;
+        for (int d = 0; d < mDomains.length; d++) {
+            if (mCaps[d] < mDomains[d].getFrequencyTable().size() - 1) {
+                mCaps[d]++;
+                raised = true;
+            }
+        }
+        if (raised) {
+            mChanged = true;
+            Log.i(TAG, "No thermal pressure, raised sustained caps to " + describe());
+        }
+        return raised;
+    }
+
+    /**
+     * Limit frequency caps to the learned caps
+     * @param caps frequency index cap of each domain, lowered in place
+     */
+    public synchronized void limit(int[] caps) {
+        for (int d = 0; d < mCaps.length; d++) {
+            caps[d] = Math.min(caps[d], mCaps[d]);
+        }
+    }
+
+    /**
+     * Persist the learned caps if they changed in this session
+     */
+    public synchronized void save() {
+        if (!mChanged) {
+            return;
+        }
+        mChanged = false;
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (int d = 0; d < mDomains.length; d++) {
+            FrequencyTable table = mDomains[d].getFrequencyTable();
+            if (!table.isEmpty()) {
+                editor.putInt(KEY_PREFIX + mDomains[d].getName(), table.get(mCaps[d]));
+            }
+        }
+        editor.apply();
+
+        Log.i(TAG, "Saved sustained caps: " + describe());
+    }
+
+    private String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int d = 0; d < mDomains.length; d++) {
+            FrequencyTable table = mDomains[d].getFrequencyTable();
+            if (d > 0) {
+                sb.append(", ");
+            }
+            sb.append(mDomains[d].getName()).append('=')
+              .append(table.isEmpty() ? 0 : table.get(mCaps[d]));
+        }
+        return sb.toString();
+    }
+}
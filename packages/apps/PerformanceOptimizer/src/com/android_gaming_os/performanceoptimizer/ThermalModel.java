@@ -0,0 +1,461 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Online first-order thermal model of each sampled zone, used to predict how
+ * long an operating point can be held before the kernel starts throttling.
+ * Every zone is modelled as a thermal RC circuit heated by the domains near it:
+ *
+ *     dT/dt = c - a * T + b * P
+ *
+ * where T is the zone temperature, P the estimated power of its domains, 1 / a
+ * the time constant and c / a the ambient temperature. The three parameters
+ * are fitted per zone by recursive least squares with exponential forgetting,
+ * so the model follows changes in ambient temperature and cooling. The power
+ * of a domain is estimated from its frequency, voltage and utilization, and at
+ * a candidate frequency the work the domain does now is assumed to stay the same.
+ */
+public class ThermalModel implements ThermalMonitor.Listener {
+    private static final String TAG = "ThermalModel";
+
+    // Minimum time between fits of a zone, in milliseconds
+    private static final int UPDATE_INTERVAL_MS = 1000;
+
+    // Forgetting factor per fit; older samples lose weight with a horizon of ~200 fits
+    private static final double FORGETTING_FACTOR = 0.995;
+
+    // Prior of each zone: time constant in seconds, ambient temperature and
+    // temperature rise at full power in degrees Celsius
+    private static final double PRIOR_TIME_CONSTANT = 60;
+    private static final double PRIOR_AMBIENT = 35;
+    private static final double PRIOR_FULL_POWER_RISE = 40;
+    private static final double PRIOR_COVARIANCE = 10;
+
+    // Bound of the covariance trace, which grows without excitation
+    private static final double MAX_COVARIANCE_TRACE = 1e4;
+
+    // Fits before a zone model is trusted
+    private static final int MIN_FITS = 30;
+
+    // Range of plausible fitted time constants, in seconds
+    private static final double MIN_TIME_CONSTANT = 2;
+    private static final double MAX_TIME_CONSTANT = 3600;
+
+    // Relative power of the GPU at its max frequency, in big cores at theirs
+    private static final double GPU_POWER_WEIGHT = 3;
+
+    // Utilization assumed for domains that do not report one
+    private static final double DEFAULT_BUSY = 0.5;
+
+    // Utilization above which a domain is saturated, in permille
+    private static final int SATURATED_BUSY = 950;
+
+    private final FrequencyDomain[] mDomains;
+    private final double[] mWeights;
+    private final ZoneModel[] mZones;
+
+    // Work of each domain at the last sample: utilization times frequency, in kHz,
+    // or Double.MAX_VALUE if the domain is saturated
+    private final double[] mWork;
+
+    // Scratch of the candidate operating point and its power per domain
+    private final int[] mCurrentIndices;
+    private final double[] mPower;
+
+    /**
+     * @param cpuDomains frequency domains of the CPU clusters; clusters without
+     *        a frequency table have none
+     * @param gpuDomain frequency domain of the GPU, or null
+     */
+    public ThermalModel(CpuTopology topology, ThermalMonitor monitor, List<FrequencyDomain> cpuDomains,
+                        FrequencyDomain gpuDomain) {
+        int numDomains = cpuDomains.size() + (gpuDomain != null ? 1 : 0);
+        int gpu = gpuDomain != null ? cpuDomains.size() : -1;
+
+        mDomains = new FrequencyDomain[numDomains];
+        mWeights = new double[numDomains];
+        mWork = new double[numDomains];
+        mCurrentIndices = new int[numDomains];
+        mPower = new double[numDomains];
+
+        // Weight each cluster by its core count and the cube of its relative max frequency
+        double fastest = topology.getFastestCluster().getMaxFreq();
+        for (int i = 0; i < cpuDomains.size(); i++) {
+            mDomains[i] = cpuDomains.get(i);
+            CpuCluster cluster = mDomains[i].getCluster();
+            double relative = fastest > 0 && cluster != null ? cluster.getMaxFreq() / fastest : 1;
+            mWeights[i] = (cluster != null ? cluster.getNumCpus() : 1) * relative * relative * relative;
+        }
+        if (gpuDomain != null) {
+            mDomains[gpu] = gpuDomain;
+            mWeights[gpu] = GPU_POWER_WEIGHT;
+        }
+
+        // Map each zone to the domains that heat it
+        List<ThermalZone> zones = monitor.getZones();
+        mZones = new ZoneModel[zones.size()];
+        for (int i = 0; i < mZones.length; i++) {
+            ThermalZone zone = zones.get(i);
+            int[] inputs;
+            if (zone.getKind() == ThermalZone.KIND_CPU && zone.getCluster() != null) {
+                // A cluster without a domain has no inputs
+                int domain = findDomain(zone.getCluster(), cpuDomains.size());
+                inputs = domain >= 0 ? new int[] { domain } : new int[0];
+            } else if (zone.getKind() == ThermalZone.KIND_CPU) {
+                inputs = range(cpuDomains.size());
+            } else if (zone.getKind() == ThermalZone.KIND_GPU) {
+                inputs = gpu >= 0 ? new int[] { gpu } : new int[0];
+            } else {
+                inputs = range(numDomains);
+            }
+            mZones[i] = new ZoneModel(zone, inputs, mWeights);
+        }
+
+        Log.i(TAG, "Thermal model created for " + mZones.length + " zones and " + numDomains + " domains");
+    }
+
+    /**
+     * Get the number of domains of an operating point
+     */
+    public int getDomainCount() {
+        return mDomains.length;
+    }
+
+    /**
+     * Check if any zone model is trusted
+     */
+    public synchronized boolean isReady() {
+        for (ZoneModel model : mZones) {
+            if (model.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onThermalStateChanged(ThermalZone zone, int previousState) {
+    }
+
+    @Override
+    public synchronized void onTemperaturesSampled(long timeMillis) {
+        // Current power of each domain
+        for (int d = 0; d < mDomains.length; d++) {
+            FrequencyTable table = mDomains[d].getFrequencyTable();
+            if (table.isEmpty()) {
+                continue;
+            }
+            int frequency = mDomains[d].getCurrentFrequency();
+            if (frequency <= 0) {
+                frequency = table.getMax();
+            }
+            int busy = mDomains[d].getBusy();
+            // A saturated domain may do more work at a higher frequency; assume it stays saturated
+            mWork[d] = busy >= SATURATED_BUSY ? Double.MAX_VALUE
+                    : (busy >= 0 ? busy / 1000.0 : DEFAULT_BUSY) * frequency;
+            mCurrentIndices[d] = Math.max(0, table.floorIndex(frequency));
+        }
+        computePower(mCurrentIndices);
+
+        for (ZoneModel model : mZones) {
+            model.update(timeMillis, mPower);
+        }
+    }
+
+    /**
+     * Estimate the seconds until a zone reaches a temperature at the current
+     * operating point
+     * @param temperature temperature in millidegrees Celsius
+     * @return the seconds, 0 if already reached, Float.POSITIVE_INFINITY if never
+     *         reached or Float.NaN if the zone model is not trusted yet
+     */
+    public synchronized float getTimeToTemperature(ThermalZone zone, int temperature) {
+        ZoneModel model = findModel(zone);
+        if (model == null) {
+            return Float.NaN;
+        }
+        computePower(mCurrentIndices);
+        return model.getTimeTo(temperature / 1000.0, mPower);
+    }
+
+    /**
+     * Estimate the seconds until a zone reaches one of its trip points at the
+     * current operating point
+     */
+    public float getTimeToTrip(ThermalZone zone, int trip) {
+        return getTimeToTemperature(zone, zone.getTripTemperature(trip));
+    }
+
+    /**
+     * Estimate the seconds until the kernel starts throttling a zone at a
+     * candidate operating point
+     * @param frequencyIndices frequency index of each domain
+     */
+    public synchronized float getTimeToThrottle(ThermalZone zone, int[] frequencyIndices) {
+        ZoneModel model = findModel(zone);
+        if (model == null || zone.getPassiveTemperature() == Integer.MAX_VALUE) {
+            return model == null ? Float.NaN : Float.POSITIVE_INFINITY;
+        }
+        computePower(frequencyIndices);
+        return model.getTimeTo(zone.getPassiveTemperature() / 1000.0, mPower);
+    }
+
+    /**
+     * Find the highest frequency cap of each domain at which no trusted zone
+     * reaches its passive trip within a horizon. Caps are lowered one step at
+     * a time on the domain that contributes the most power to the zone that
+     * would throttle first.
+     * @param caps receives the frequency index cap of each domain
+     * @return true if all zones stay below their passive trip with the caps
+     */
+    public synchronized boolean getSustainableCaps(int horizonSeconds, int[] caps) {
+        for (int d = 0; d < mDomains.length; d++) {
+            caps[d] = mDomains[d].getFrequencyTable().size() - 1;
+        }
+
+        while (true) {
+            computePower(caps);
+
+            // Zone that reaches its passive trip first within the horizon
+            ZoneModel worst = null;
+            float worstTime = horizonSeconds;
+            for (ZoneModel model : mZones) {
+                int passive = model.mZone.getPassiveTemperature();
+                if (!model.isReady() || passive == Integer.MAX_VALUE || model.mInputs.length == 0) {
+                    continue;
+                }
+                float time = model.getTimeTo(passive / 1000.0, mPower);
+                if (time < worstTime) {
+                    worst = model;
+                    worstTime = time;
+                }
+            }
+            if (worst == null) {
+                return true;
+            }
+
+            // Lower the input of that zone with the most power
+            int lowered = -1;
+            for (int d : worst.mInputs) {
+                if (caps[d] > 0 && (lowered < 0 || mPower[d] > mPower[lowered])) {
+                    lowered = d;
+                }
+            }
+            if (lowered < 0) {
+                return false;
+            }
+            caps[lowered]--;
+        }
+    }
+
+    /**
+     * Estimate the power of each domain at an operating point into mPower,
+     * keeping the work of each domain and scaling with frequency and voltage squared
+     */
+    private void computePower(int[] frequencyIndices) {
+        for (int d = 0; d < mDomains.length; d++) {
+            FrequencyTable table = mDomains[d].getFrequencyTable();
+            if (table.isEmpty()) {
+                mPower[d] = 0;
+                continue;
+            }
+            int index = Math.max(0, Math.min(table.size() - 1, frequencyIndices[d]));
+            double frequency = table.get(index);
+            double relative = frequency / table.getMax();
+            int topVoltage = table.getVoltage(table.size() - 1);
+            double voltage = topVoltage > 0 && table.getVoltage(index) > 0
+                    ? (double) table.getVoltage(index) / topVoltage : relative;
+            double busy = Math.min(1, mWork[d] / frequency);
+            mPower[d] = mWeights[d] * busy * relative * voltage * voltage;
+        }
+    }
+
+    /**
+     * Get the indices of the domains that heat a zone, or an empty array if the
+     * zone is not modelled
+     */
+    public int[] getZoneDomains(ThermalZone zone) {
+        for (ZoneModel model : mZones) {
+            if (model.mZone == zone) {
+                return model.mInputs.clone();
+            }
+        }
+        return new int[0];
+    }
+
+    private ZoneModel findModel(ThermalZone zone) {
+        for (ZoneModel model : mZones) {
+            if (model.mZone == zone) {
+                return model.isReady() ? model : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the CPU domain of a cluster
+     * @return the domain index, or -1 if the cluster has no domain
+     */
+    private int findDomain(CpuCluster cluster, int numCpuDomains) {
+        for (int d = 0; d < numCpuDomains; d++) {
+            if (mDomains[d].getCluster() == cluster) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] range(int count) {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    /**
+     * Fitted RC model of one zone. Temperatures are in degrees Celsius and
+     * power is relative to a big core at its max frequency.
+     */
+    private static final class ZoneModel {
+        final ThermalZone mZone;
+        final int[] mInputs;
+
+        // Parameters c, a and b of dT/dt = c - a * T + b * P, per second
+        private final double[] mTheta = new double[3];
+        private final double[] mCovariance = new double[9];
+
+        // Fit scratch
+        private final double[] mX = new double[3];
+        private final double[] mPx = new double[3];
+
+        // Start of the current fit interval and the power integrated over it
+        private long mStartMillis;
+        private double mStartTemp;
+        private long mLastMillis;
+        private double mEnergy;
+        private double mLastPower;
+        private int mFits;
+
+        ZoneModel(ThermalZone zone, int[] inputs, double[] weights) {
+            mZone = zone;
+            mInputs = inputs;
+
+            double maxPower = 0;
+            for (int d : inputs) {
+                maxPower += weights[d];
+            }
+            double a = 1 / PRIOR_TIME_CONSTANT;
+            mTheta[0] = a * PRIOR_AMBIENT;
+            mTheta[1] = a;
+            mTheta[2] = maxPower > 0 ? a * PRIOR_FULL_POWER_RISE / maxPower : 0;
+            for (int i = 0; i < 3; i++) {
+                mCovariance[i * 3 + i] = PRIOR_COVARIANCE;
+            }
+        }
+
+        boolean isReady() {
+            double a = mTheta[1];
+            return mFits >= MIN_FITS && a >= 1 / MAX_TIME_CONSTANT && a <= 1 / MIN_TIME_CONSTANT
+                    && mTheta[2] >= 0;
+        }
+
+        /**
+         * Integrate the power of the inputs and fit once the interval is long enough
+         */
+        void update(long timeMillis, double[] power) {
+            double temp = mZone.getTemperature() / 1000.0;
+            double input = sum(power);
+
+            if (mStartMillis == 0) {
+                mStartMillis = timeMillis;
+                mLastMillis = timeMillis;
+                mStartTemp = temp;
+                mLastPower = input;
+                return;
+            }
+
+            // The power of the previous sample is held until this one
+            mEnergy += mLastPower * (timeMillis - mLastMillis) / 1000.0;
+            mLastMillis = timeMillis;
+            mLastPower = input;
+
+            long elapsed = timeMillis - mStartMillis;
+            if (elapsed < UPDATE_INTERVAL_MS) {
+                return;
+            }
+
+            double seconds = elapsed / 1000.0;
+            fit(mStartTemp, mEnergy / seconds, (temp - mStartTemp) / seconds);
+            mStartMillis = timeMillis;
+            mStartTemp = temp;
+            mEnergy = 0;
+        }
+
+        /**
+         * Recursive least squares step for one observed temperature slope
+         */
+        private void fit(double temp, double power, double slope) {
+            double[] x = mX;
+            double[] px = mPx;
+            double[] p = mCovariance;
+            x[0] = 1;
+            x[1] = -temp;
+            x[2] = power;
+
+            double denominator = FORGETTING_FACTOR;
+            double prediction = 0;
+            for (int i = 0; i < 3; i++) {
+                px[i] = p[i * 3] * x[0] + p[i * 3 + 1] * x[1] + p[i * 3 + 2] * x[2];
+                denominator += x[i] * px[i];
+                prediction += mTheta[i] * x[i];
+            }
+
+            double error = slope - prediction;
+            for (int i = 0; i < 3; i++) {
+                mTheta[i] += px[i] / denominator * error;
+            }
+
+            // Forget only while the covariance is bounded, so it cannot wind up
+            double trace = 0;
+            for (int i = 0; i < 3; i++) {
+                trace += p[i * 3 + i];
+            }
+            double forgetting = trace < MAX_COVARIANCE_TRACE ? FORGETTING_FACTOR : 1;
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    p[i * 3 + j] = (p[i * 3 + j] - px[i] * px[j] / denominator) / forgetting;
+                }
+            }
+            mFits++;
+        }
+
+        /**
+         * Seconds until the zone reaches a temperature with its inputs at a power
+         */
+        float getTimeTo(double target, double[] power) {
+            double temp = mZone.getTemperature() / 1000.0;
+            if (temp >= target) {
+                return 0;
+            }
+
+            double a = mTheta[1];
+            double steady = (mTheta[0] + mTheta[2] * sum(power)) / a;
+            if (steady <= target) {
+                return Float.POSITIVE_INFINITY;
+            }
+            return (float) (Math.log((steady - temp) / (steady - target)) / a);
+        }
+
+        private double sum(double[] power) {
+            double total = 0;
+            for (int d : mInputs) {
+                total += power[d];
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+import com.android_gaming_os.performanceoptimizer.monitor.SampleRing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Samples the thermal zones of the CPU clusters, GPU, skin and battery.
+ * Zones and cooling devices are discovered once from /sys/class/thermal and
+ * mapped to what they measure by their type strings, which differ per SoC
+ * vendor. Only mapped zones are sampled, each with a single read of an open
+ * node. Temperatures are published to a {@link SampleRing} with one channel
+ * per zone, and listeners are told when a zone changes its thermal state, so
+ * the optimizers can back off before the kernel starts throttling.
+ */
+public class ThermalMonitor {
+    private static final String TAG = "ThermalMonitor";
+
+    // Paths
+    private static final String THERMAL_PATH = "/sys/class/thermal/";
+    private static final String ZONE_PREFIX = "thermal_zone";
+    private static final String COOLING_PREFIX = "cooling_device";
+
+    // Sampling intervals in milliseconds; zones close to a trip are sampled faster
+    private static final int SAMPLE_INTERVAL_MS = 1000;
+    private static final int FAST_SAMPLE_INTERVAL_MS = 250;
+
+    // Number of samples kept per zone
+    private static final int HISTORY_SIZE = 64;
+
+    // Passive trip assumed for zones that a userspace thermal daemon throttles
+    // instead of the kernel, and which therefore have no passive trip point
+    private static final int ASSUMED_SKIN_PASSIVE_TEMP = 45000;
+    private static final int ASSUMED_SOC_PASSIVE_TEMP = 95000;
+
+    // Readings below this are in degrees rather than millidegrees
+    private static final int MAX_DEGREES_READING = 200;
+
+    // Type string fragments, matched against the lower case type
+    private static final String[] GPU_NAMES = { "gpu", "g3d", "mali", "kgsl" };
+    private static final String[] SKIN_NAMES = { "skin", "quiet", "shell", "case" };
+    private static final String[] BATTERY_NAMES = { "batt", "bms" };
+    private static final String[] PRIME_NAMES = { "prime", "gold-plus", "goldplus", "titanium" };
+    private static final String[] BIG_NAMES = { "big", "gold", "mid" };
+    private static final String[] LITTLE_NAMES = { "little", "silver" };
+
+    private static final Comparator<long[]> BY_TEMPERATURE = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+        }
+    };
+
+    /**
+     * Receives thermal events, on the monitor thread
+     */
+    public interface Listener {
+        /**
+         * Called when a zone changes its thermal state
+         */
+        void onThermalStateChanged(ThermalZone zone, int previousState);
+
+        /**
+         * Called after the temperatures of all zones were sampled
+         */
+        void onTemperaturesSampled(long timeMillis);
+    }
+
+    private final SysfsEngine mSysfs;
+    private final CpuTopology mTopology;
+    private final List<ThermalZone> mZones;
+    private final List<CoolingDevice> mCoolingDevices;
+    private final SampleRing mTemperatures;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    public ThermalMonitor(SysfsEngine sysfs, CpuTopology topology) {
+        mSysfs = sysfs;
+        mTopology = topology;
+        mZones = Collections.unmodifiableList(discoverZones());
+        mCoolingDevices = Collections.unmodifiableList(discoverCoolingDevices());
+        mTemperatures = new SampleRing(Math.max(1, mZones.size()), HISTORY_SIZE);
+
+        Log.i(TAG, "Monitoring " + mZones.size() + " thermal zones, found " +
+                   mCoolingDevices.size() + " cooling devices");
+    }
+
+    /**
+     * Get the sampled thermal zones
+     */
+    public List<ThermalZone> getZones() {
+        return mZones;
+    }
+
+    /**
+     * Get the sampled zones of a kind
+     */
+    public List<ThermalZone> getZones(int kind) {
+        List<ThermalZone> zones = new ArrayList<>();
+        for (ThermalZone zone : mZones) {
+            if (zone.getKind() == kind) {
+                zones.add(zone);
+            }
+        }
+        return zones;
+    }
+
+    /**
+     * Get the cooling devices
+     */
+    public List<CoolingDevice> getCoolingDevices() {
+        return mCoolingDevices;
+    }
+
+    /**
+     * Get the temperatures of the zones in millidegrees Celsius, one channel per zone
+     */
+    public SampleRing getTemperatures() {
+        return mTemperatures;
+    }
+
+    /**
+     * Get the hottest state of all zones
+     */
+    public int getMaxState() {
+        int state = ThermalZone.STATE_NORMAL;
+        for (int i = 0; i < mZones.size(); i++) {
+            state = Math.max(state, mZones.get(i).getState());
+        }
+        return state;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Check if the monitor is running
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Start sampling the zones
+     */
+    public synchronized void start() {
+        if (mThread != null || mZones.isEmpty()) {
+            return;
+        }
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mSampleRunnable);
+
+        Log.i(TAG, "Thermal monitoring started");
+    }
+
+    /**
+     * Stop sampling the zones
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mSampleRunnable);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+
+        Log.i(TAG, "Thermal monitoring stopped");
+    }
+
+    /**
+     * Runnable that samples the zones and schedules the next sample
+     */
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+
+            synchronized (ThermalMonitor.this) {
+                if (mHandler != null) {
+                    boolean fast = getMaxState() >= ThermalZone.STATE_WARNING;
+                    mHandler.postDelayed(this, fast ? FAST_SAMPLE_INTERVAL_MS : SAMPLE_INTERVAL_MS);
+                }
+            }
+        }
+    };
+
+    /**
+     * Read the temperature of all zones, publish them and report state changes
+     */
+    void sample() {
+        for (int i = 0; i < mZones.size(); i++) {
+            ThermalZone zone = mZones.get(i);
+            long value = mSysfs.readLong(zone.getTempNode(), Long.MIN_VALUE);
+            int temperature = value != Long.MIN_VALUE ? toMillidegrees(value) : zone.getTemperature();
+            mTemperatures.put(zone.getChannel(), temperature);
+
+            int previousState = zone.getState();
+            if (zone.update(temperature)) {
+                Log.i(TAG, zone + " state " + previousState + " -> " + zone.getState() +
+                           " at " + temperature + " mC");
+                for (Listener listener : mListeners) {
+                    listener.onThermalStateChanged(zone, previousState);
+                }
+            }
+        }
+        long now = SystemClock.uptimeMillis();
+        mTemperatures.publish(now);
+        for (Listener listener : mListeners) {
+            listener.onTemperaturesSampled(now);
+        }
+    }
+
+    /**
+     * Discover the thermal zones that measure a known part of the device
+     */
+    private List<ThermalZone> discoverZones() {
+        List<ThermalZone> zones = new ArrayList<>();
+        for (int id : listIds(ZONE_PREFIX)) {
+            String path = THERMAL_PATH + ZONE_PREFIX + id + "/";
+            String type = readOnce(path + "type");
+            if (type == null || !mSysfs.exists(path + "temp")) {
+                continue;
+            }
+
+            String lower = type.trim().toLowerCase(Locale.US);
+            int kind = getKind(lower);
+            if (kind == ThermalZone.KIND_OTHER) {
+                continue;
+            }
+
+            CpuCluster cluster = kind == ThermalZone.KIND_CPU ? findCluster(lower) : null;
+            int assumedPassive = kind == ThermalZone.KIND_SKIN || kind == ThermalZone.KIND_BATTERY
+                    ? ASSUMED_SKIN_PASSIVE_TEMP : ASSUMED_SOC_PASSIVE_TEMP;
+            ThermalZone zone = readZone(id, type.trim(), kind, cluster, path, zones.size(), assumedPassive);
+            zones.add(zone);
+
+            Log.i(TAG, "Found " + zone + (cluster != null ? " on " + cluster : "") +
+                       ", passive trip " + zone.getPassiveTemperature() + " mC");
+        }
+        return zones;
+    }
+
+    /**
+     * Read the trip points of a zone, sorted by temperature
+     */
+    private ThermalZone readZone(int id, String type, int kind, CpuCluster cluster, String path,
+                                 int channel, int assumedPassive) {
+        List<long[]> trips = new ArrayList<>();
+        for (int trip = 0; ; trip++) {
+            String tripPath = path + "trip_point_" + trip;
+            String tripType = readOnce(tripPath + "_type");
+            if (tripType == null) {
+                break;
+            }
+
+            long temp = readLongOnce(tripPath + "_temp", Long.MIN_VALUE);
+            int typeValue = parseTripType(tripType.trim());
+            if (temp != Long.MIN_VALUE && typeValue >= 0) {
+                trips.add(new long[] { toMillidegrees(temp), typeValue });
+            }
+        }
+
+        long[][] sorted = trips.toArray(new long[trips.size()][]);
+        Arrays.sort(sorted, BY_TEMPERATURE);
+        int[] tripTemps = new int[sorted.length];
+        int[] tripTypes = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            tripTemps[i] = (int) sorted[i][0];
+            tripTypes[i] = (int) sorted[i][1];
+        }
+
+        SysfsNode tempNode = mSysfs.node(path + "temp");
+        return new ThermalZone(id, type, kind, cluster, tempNode, channel, tripTemps, tripTypes,
+                               assumedPassive);
+    }
+
+    /**
+     * Discover the cooling devices
+     */
+    private List<CoolingDevice> discoverCoolingDevices() {
+        List<CoolingDevice> devices = new ArrayList<>();
+        for (int id : listIds(COOLING_PREFIX)) {
+            String path = THERMAL_PATH + COOLING_PREFIX + id + "/";
+            String type = readOnce(path + "type");
+            if (type == null || !mSysfs.exists(path + "cur_state")) {
+                continue;
+            }
+
+            String lower = type.trim().toLowerCase(Locale.US);
+            int kind = ThermalZone.KIND_OTHER;
+            CpuCluster cluster = null;
+            if (lower.startsWith("thermal-cpufreq-")) {
+                // Numbered by cpufreq policy order
+                kind = ThermalZone.KIND_CPU;
+                int index = parseNumber(lower, "thermal-cpufreq-".length());
+                List<CpuCluster> clusters = mTopology.getClusters();
+                if (index >= 0 && index < clusters.size()) {
+                    cluster = clusters.get(index);
+                }
+            } else if (lower.contains("cpu")) {
+                kind = ThermalZone.KIND_CPU;
+                cluster = findCluster(lower);
+            } else if (containsAny(lower, GPU_NAMES)) {
+                kind = ThermalZone.KIND_GPU;
+            }
+
+            long maxState = readLongOnce(path + "max_state", 0);
+            devices.add(new CoolingDevice(mSysfs, id, type.trim(), kind, cluster, maxState,
+                                          mSysfs.node(path + "cur_state")));
+        }
+        return devices;
+    }
+
+    /**
+     * Get the kind of a zone from its lower case type
+     */
+    private static int getKind(String type) {
+        if (containsAny(type, GPU_NAMES)) {
+            return ThermalZone.KIND_GPU;
+        }
+        if (containsAny(type, SKIN_NAMES)) {
+            return ThermalZone.KIND_SKIN;
+        }
+        if (containsAny(type, BATTERY_NAMES)) {
+            return ThermalZone.KIND_BATTERY;
+        }
+        if (type.contains("cpu") || containsAny(type, PRIME_NAMES) || containsAny(type, BIG_NAMES)
+                || containsAny(type, LITTLE_NAMES)) {
+            return ThermalZone.KIND_CPU;
+        }
+        return ThermalZone.KIND_OTHER;
+    }
+
+    /**
+     * Find the cluster named by a lower case type, or null if it covers all CPUs.
+     * Types name the cluster ("cpu-big", "cpu7-gold-usr"), a cluster and core
+     * ("cpu-1-2-usr") or a core ("cpu4").
+     */
+    private CpuCluster findCluster(String type) {
+        if (containsAny(type, PRIME_NAMES)) {
+            return findClusterWithRole(CpuCluster.ROLE_PRIME);
+        }
+        if (containsAny(type, BIG_NAMES)) {
+            return findClusterWithRole(CpuCluster.ROLE_PERFORMANCE);
+        }
+        if (containsAny(type, LITTLE_NAMES)) {
+            return mTopology.getEfficiencyCluster();
+        }
+
+        int index = type.indexOf("cpu");
+        if (index < 0) {
+            return null;
+        }
+        index += 3;
+
+        List<CpuCluster> clusters = mTopology.getClusters();
+        if (index < type.length() && type.charAt(index) == '-') {
+            int cluster = parseNumber(type, index + 1);
+            if (cluster >= 0 && type.indexOf('-', index + 1) > 0) {
+                return clusters.get(Math.min(cluster, clusters.size() - 1));
+            }
+            return null;
+        }
+
+        int cpu = parseNumber(type, index);
+        return cpu >= 0 && cpu < mTopology.getNumCores() ? mTopology.getCluster(cpu) : null;
+    }
+
+    private CpuCluster findClusterWithRole(int role) {
+        for (CpuCluster cluster : mTopology.getClusters()) {
+            if (cluster.getRole() == role) {
+                return cluster;
+            }
+        }
+        return mTopology.getFastestCluster();
+    }
+
+    /**
+     * List the numbers of the entries of /sys/class/thermal with a prefix, in order
+     */
+    private int[] listIds(String prefix) {
+        List<Integer> ids = new ArrayList<>();
+        for (String name : mSysfs.list(THERMAL_PATH)) {
+            if (name.startsWith(prefix)) {
+                int id = parseNumber(name, prefix.length());
+                if (id >= 0) {
+                    ids.add(id);
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Read a node that is only needed during discovery, without keeping it open
+     */
+    private String readOnce(String path) {
+        SysfsNode node = mSysfs.node(path);
+        String value = mSysfs.read(node);
+        mSysfs.release(node);
+        return value;
+    }
+
+    private long readLongOnce(String path, long defValue) {
+        SysfsNode node = mSysfs.node(path);
+        long value = mSysfs.readLong(node, defValue);
+        mSysfs.release(node);
+        return value;
+    }
+
+    private static int parseTripType(String type) {
+        switch (type) {
+            case "passive":
+                return ThermalZone.TRIP_PASSIVE;
+            case "active":
+                return ThermalZone.TRIP_ACTIVE;
+            case "hot":
+                return ThermalZone.TRIP_HOT;
+            case "critical":
+                return ThermalZone.TRIP_CRITICAL;
+            default:
+                return -1;
+        }
+    }
+
+    private static int toMillidegrees(long value) {
+        if (value > -MAX_DEGREES_READING && value < MAX_DEGREES_READING) {
+            return (int) value * 1000;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parse the decimal number at a position, or -1 if there is none
+     */
+    private static int parseNumber(String s, int index) {
+        int value = -1;
+        for (int i = index; i < s.length() && Character.isDigit(s.charAt(i)); i++) {
+            value = Math.max(value, 0) * 10 + (s.charAt(i) - '0');
+        }
+        return value;
+    }
+
+    private static boolean containsAny(String s, String[] fragments) {
+        for (String fragment : fragments) {
+            if (s.contains(fragment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,213 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+/**
+ * A thermal zone of /sys/class/thermal with its trip points.
+ * Temperatures are in millidegrees Celsius. The zone tracks a thermal state
+ * that rises as soon as a threshold is crossed and falls only once the
+ * temperature is a hysteresis below it, so consumers are not notified of
+ * every small fluctuation around a trip point.
+ */
+public final class ThermalZone {
+    // What a zone measures
+    public static final int KIND_OTHER = 0;
+    public static final int KIND_CPU = 1;
+    public static final int KIND_GPU = 2;
+    public static final int KIND_SKIN = 3;
+    public static final int KIND_BATTERY = 4;
+
+    // Thermal states, from coolest to hottest
+    public static final int STATE_NORMAL = 0;
+    public static final int STATE_WARNING = 1;     // Close to the first passive trip
+    public static final int STATE_THROTTLING = 2;  // Above a passive trip, the kernel throttles
+    public static final int STATE_HOT = 3;
+    public static final int STATE_CRITICAL = 4;
+
+    // Trip point types
+    public static final int TRIP_PASSIVE = 0;
+    public static final int TRIP_ACTIVE = 1;
+    public static final int TRIP_HOT = 2;
+    public static final int TRIP_CRITICAL = 3;
+
+    // Distance below the first passive trip at which the warning state starts
+    static final int WARNING_MARGIN = 5000;
+
+    // Temperature drop below a threshold before a state is left
+    static final int HYSTERESIS = 2000;
+
+    private final int mId;
+    private final String mType;
+    private final int mKind;
+    private final CpuCluster mCluster;
+    private final SysfsNode mTempNode;
+    private final int mChannel;
+
+    // Trip points in ascending temperature order
+    private final int[] mTripTemps;
+    private final int[] mTripTypes;
+
+    // Thresholds of the states above STATE_NORMAL, or Integer.MAX_VALUE if unused
+    private final int[] mThresholds;
+
+    private volatile int mTemperature;
+    private volatile int mState = STATE_NORMAL;
+
+    ThermalZone(int id, String type, int kind, CpuCluster cluster, SysfsNode tempNode, int channel,
+                int[] tripTemps, int[] tripTypes, int assumedPassiveTemp) {
+        mId = id;
+        mType = type;
+        mKind = kind;
+        mCluster = cluster;
+        mTempNode = tempNode;
+        mChannel = channel;
+        mTripTemps = tripTemps;
+        mTripTypes = tripTypes;
+
+        int passive = Integer.MAX_VALUE;
+        int hot = Integer.MAX_VALUE;
+        int critical = Integer.MAX_VALUE;
+        for (int i = 0; i < tripTemps.length; i++) {
+            switch (tripTypes[i]) {
+                case TRIP_PASSIVE:
+                    passive = Math.min(passive, tripTemps[i]);
+                    break;
+                case TRIP_HOT:
+                    hot = Math.min(hot, tripTemps[i]);
+                    break;
+                case TRIP_CRITICAL:
+                    critical = Math.min(critical, tripTemps[i]);
+                    break;
+            }
+        }
+        if (passive == Integer.MAX_VALUE) {
+            passive = assumedPassiveTemp;
+        }
+
+        mThresholds = new int[] {
+            passive == Integer.MAX_VALUE ? Integer.MAX_VALUE : passive - WARNING_MARGIN,
+            passive,
+            hot,
+            critical,
+        };
+    }
+
+    /**
+     * Get the number of the zone, as in thermal_zone<id>
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * Get the type string of the zone
+     */
+    public String getType() {
+        return mType;
+    }
+
+    /**
+     * Get what the zone measures, one of the KIND constants
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * Get the CPU cluster of a CPU zone, or null if it covers all CPUs or is not a CPU zone
+     */
+    public CpuCluster getCluster() {
+        return mCluster;
+    }
+
+    /**
+     * Get the channel of the zone in the temperature ring of the monitor
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Get the last sampled temperature in millidegrees Celsius
+     */
+    public int getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * Get the current thermal state, one of the STATE constants
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Get the temperature at which the kernel starts throttling, or
+     * Integer.MAX_VALUE if the zone has no passive trip
+     */
+    public int getPassiveTemperature() {
+        return mThresholds[STATE_THROTTLING - 1];
+    }
+
+    /**
+     * Get the number of trip points
+     */
+    public int getTripCount() {
+        return mTripTemps.length;
+    }
+
+    /**
+     * Get the temperature of a trip point
+     */
+    public int getTripTemperature(int trip) {
+        return mTripTemps[trip];
+    }
+
+    /**
+     * Get the type of a trip point, one of the TRIP constants
+     */
+    public int getTripType(int trip) {
+        return mTripTypes[trip];
+    }
+
+    SysfsNode getTempNode() {
+        return mTempNode;
+    }
+
+    /**
+     * Update the temperature and the state
+     * @return true if the state changed
+     */
+    boolean update(int temperature) {
+        mTemperature = temperature;
+
+        int state = mState;
+        int rising = stateAt(temperature);
+        if (rising > state) {
+            mState = rising;
+            return true;
+        }
+
+        int falling = stateAt(temperature + HYSTERESIS);
+        if (falling < state) {
+            mState = falling;
+            return true;
+        }
+        return false;
+    }
+
+    private int stateAt(int temperature) {
+        int state = STATE_NORMAL;
+        for (int i = 0; i < mThresholds.length; i++) {
+            if (temperature >= mThresholds[i]) {
+                state = i + 1;
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return "thermal_zone" + mId + " (" + mType + ")";
+    }
+}
@@ -0,0 +1,240 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessMemoryScanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses which background packages to kill to free a given amount of memory.
+ * Each candidate package frees the PSS of its processes and part of their
+ * swap, as scanned by the ProcessMemoryScanner, and costs an estimated relaunch:
+ * the memory it has to load again plus a fixed cold start, weighted by how
+ * recently it was used and whether it restarts itself. The set of packages
+ * with the lowest total cost that frees the target is chosen, instead of
+ * every background package, and a killed package is spared for a cooldown so
+ * a package that restarts right away is not killed over and over.
+ */
+public class VictimSelector {
+    private static final String TAG = "VictimSelector";
+
+    // Share of swapped memory a kill gives back, in percent, since zram
+    // compresses swapped pages about 3:1
+    private static final int SWAP_RECLAIM_PERCENT = 33;
+
+    // Relaunch cost of a package besides its memory, in kB of memory to load
+    private static final long COLD_START_COST_KB = 32 * 1024;
+
+    // Use within these times makes a relaunch likely, and multiplies its cost
+    private static final long RECENT_USE_MS = 5 * 60 * 1000;
+    private static final long LATE_USE_MS = 60 * 60 * 1000;
+    private static final int RECENT_USE_WEIGHT = 4;
+    private static final int LATE_USE_WEIGHT = 2;
+
+    // Cost multiplier of packages that run a service and restart themselves
+    private static final int SERVICE_WEIGHT = 2;
+
+    // Time a killed package is not chosen again, in milliseconds
+    private static final long KILL_COOLDOWN_MS = 5 * 60 * 1000;
+
+    private static final Comparator<Candidate> CHEAPEST_PER_KB_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            // Compare cost / freed without dividing
+            return Long.compare(a.mCost * b.mFreedKb, b.mCost * a.mFreedKb);
+        }
+    };
+
+    /**
+     * A background package and the processes it would free
+     */
+    public static final class Candidate {
+        final String mPackageName;
+        final List<Integer> mPids = new ArrayList<>();
+        boolean mService;
+        long mLastUsedMillis;
+        long mPssKb;
+        long mSwapKb;
+        long mFreedKb;
+        long mCost;
+
+        public Candidate(String packageName) {
+            mPackageName = packageName;
+        }
+
+        /**
+         * Add a process of the package
+         */
+        public void addProcess(int pid, boolean service) {
+            mPids.add(pid);
+            mService |= service;
+        }
+
+        /**
+         * Set the wall clock time the package was last used, or 0 if unknown
+         */
+        public void setLastUsedMillis(long lastUsedMillis) {
+            mLastUsedMillis = lastUsedMillis;
+        }
+
+        public String getPackageName() {
+            return mPackageName;
+        }
+
+        /**
+         * Get the memory a kill is expected to free in kB, once measured
+         */
+        public long getFreedKb() {
+            return mFreedKb;
+        }
+
+        @Override
+        public String toString() {
+            return mPackageName + " (pss " + mPssKb / 1024 + "MB, swap " + mSwapKb / 1024 +
+                   "MB, cost " + mCost / 1024 + ")";
+        }
+    }
+
+    // Uptime at which each killed package was last chosen
+    private final Map<String, Long> mKillMillis = new HashMap<>();
+
+    /**
+     * Choose the packages to kill to free memory
+     * @param snapshot memory of the running processes
+     * @param targetKb memory to free in kB
+     * @param nowMillis current uptime, for the cooldowns
+     * @param wallMillis current wall clock time, for the last use of the candidates
+     * @return the packages to kill, cheapest per kB first, which free less
+     *         than the target only if all candidates together do
+     */
+    public List<Candidate> select(List<Candidate> candidates, ProcessMemoryScanner.Snapshot snapshot, long targetKb, long nowMillis, long wallMillis) {
+        // Forget the packages whose cooldown is over
+        Iterator<Long> kills = mKillMillis.values().iterator();
+        while (kills.hasNext()) {
+            if (nowMillis - kills.next() >= KILL_COOLDOWN_MS) {
+                kills.remove();
+            }
+        }
+
+        List<Candidate> eligible = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (mKillMillis.containsKey(candidate.mPackageName)) {
+                continue;
+            }
+
+            measure(candidate, snapshot, wallMillis);
+            if (candidate.mFreedKb > 0) {
+                eligible.add(candidate);
+            }
+        }
+
+        List<Candidate> victims = selectCheapest(eligible, targetKb);
+
+        long freedKb = 0;
+        for (Candidate victim : victims) {
+            mKillMillis.put(victim.mPackageName, nowMillis);
+            freedKb += victim.mFreedKb;
+        }
+        Log.i(TAG, "Chose " + victims.size() + " of " + candidates.size() + " packages to free " +
+                   freedKb / 1024 + "MB of " + targetKb / 1024 + "MB: " + victims);
+        return victims;
+    }
+
+    /**
+     * Get the number of packages that are spared for a cooldown
+     */
+    int getCooldownCount() {
+        return mKillMillis.size();
+    }
+
+    /**
+     * Choose the set of candidates with the lowest total cost that frees the
+     * target, as a knapsack over the freed memory in MB
+     */
+    private static List<Candidate> selectCheapest(List<Candidate> eligible, long targetKb) {
+        List<Candidate> victims = new ArrayList<>();
+        if (targetKb <= 0) {
+            return victims;
+        }
+        Collections.sort(eligible, CHEAPEST_PER_KB_FIRST);
+
+        long totalKb = 0;
+        for (Candidate candidate : eligible) {
+            totalKb += candidate.mFreedKb;
+        }
+        int target = (int) ((Math.min(targetKb, totalKb) + 1023) / 1024);
+
+        // Lowest cost to free at least j MB, and whether candidate i is part of it
+        int count = eligible.size();
+        long[] best = new long[target + 1];
+        boolean[][] taken = new boolean[count][target + 1];
+        Arrays.fill(best, Long.MAX_VALUE);
+        best[0] = 0;
+        for (int i = 0; i < count; i++) {
+            Candidate candidate = eligible.get(i);
+            int freed = (int) Math.min(target, candidate.mFreedKb / 1024);
+            if (freed == 0) {
+                continue;
+            }
+            for (int j = target; j > 0; j--) {
+                long previous = best[Math.max(0, j - freed)];
+                if (previous != Long.MAX_VALUE && previous + candidate.mCost < best[j]) {
+                    best[j] = previous + candidate.mCost;
+                    taken[i][j] = true;
+                }
+            }
+        }
+
+        // Without a cover, which rounding down can cause, take all candidates
+        if (best[target] == Long.MAX_VALUE) {
+            victims.addAll(eligible);
+            return victims;
+        }
+
+        int j = target;
+        for (int i = count - 1; i >= 0 && j > 0; i--) {
+            if (taken[i][j]) {
+                victims.add(0, eligible.get(i));
+                j = Math.max(0, j - (int) Math.min(target, eligible.get(i).mFreedKb / 1024));
+            }
+        }
+        return victims;
+    }
+
+    /**
+     * Measure the memory and relaunch cost of a candidate
+     */
+    private static void measure(Candidate candidate, ProcessMemoryScanner.Snapshot snapshot, long wallMillis) {
+        candidate.mPssKb = 0;
+        candidate.mSwapKb = 0;
+        for (int pid : candidate.mPids) {
+            int index = snapshot.indexOf(pid);
+            if (index >= 0) {
+                candidate.mPssKb += snapshot.getPssKb(index);
+                candidate.mSwapKb += snapshot.getSwapKb(index);
+            }
+        }
+
+        candidate.mFreedKb = candidate.mPssKb + candidate.mSwapKb * SWAP_RECLAIM_PERCENT / 100;
+
+        long cost = COLD_START_COST_KB + candidate.mPssKb + candidate.mSwapKb;
+        long idleMillis = wallMillis - candidate.mLastUsedMillis;
+        if (candidate.mLastUsedMillis > 0 && idleMillis < RECENT_USE_MS) {
+            cost *= RECENT_USE_WEIGHT;
+        } else if (candidate.mLastUsedMillis > 0 && idleMillis < LATE_USE_MS) {
+            cost *= LATE_USE_WEIGHT;
+        }
+        if (candidate.mService) {
+            cost *= SERVICE_WEIGHT;
+        }
+        candidate.mCost = cost;
+    }
+}
@@ -0,0 +1,609 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared I/O engine for sysfs and procfs tuning nodes.
+ * Each node is resolved once and its file channel is kept open, so reading or
+ * writing a value costs a single pread/pwrite instead of a stat/open/close cycle.
+ * All paths are kernel paths (e.g. "/sys/devices/system/cpu/cpu0/online") that are
+ * resolved against a configurable root directory, which allows running against a
+ * fake sysfs tree.
+ *
+ * Writes are elided against a shadow copy of the last known value of each node.
+ * When the shadow is unknown or already equal to the new value, the node is read
+ * back first and the write is skipped if the kernel already holds that value, so
+ * re-applying a profile does not trigger cpufreq policy re-evaluation for nodes
+ * that did not change.
+ */
+public class SysfsEngine {
+    private static final String TAG = "SysfsEngine";
+
+    // Default root for kernel paths
+    public static final String DEFAULT_ROOT = "/";
+
+    // Size of the reusable I/O buffers (one page, the maximum size of a sysfs attribute)
+    private static final int BUFFER_SIZE = 4096;
+
+    // Initial capacity of the per-node shadow value
+    private static final int SHADOW_SIZE = 64;
+
+    // Interval before retrying the open of a missing node, unless a write
+    // that can create nodes happened in between
+    private static final long OPEN_RETRY_MS = 1000;
+
+    private final File mRoot;
+    private final boolean mRegularFiles;
+    private final Map<String, SysfsNode> mNodes;
+    private final ByteBuffer mReadBuffer;
+    private final ByteBuffer mWriteBuffer;
+    private final byte[] mScratch;
+    private final byte[] mReadback;
+
+    private long mWriteCount;
+    private long mSkippedWriteCount;
+
+    // Number of writes to nodes that can create other nodes
+    private long mNodeGeneration;
+
+    public SysfsEngine() {
+        this(DEFAULT_ROOT);
+    }
+
+    public SysfsEngine(String root) {
+        mRoot = new File(root);
+        // A non-default root is a tree of regular files, which need truncating
+        // after a write to emulate the store semantics of kernel attributes
+        mRegularFiles = !DEFAULT_ROOT.equals(root);
+        mNodes = new HashMap<>();
+        mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        mScratch = new byte[BUFFER_SIZE];
+        mReadback = new byte[BUFFER_SIZE];
+
+        Log.i(TAG, "SysfsEngine initialized with root: " + mRoot.getPath());
+    }
+
+    /**
+     * Get the node for a kernel path, resolving and opening it on first use
+     */
+    public synchronized SysfsNode node(String path) {
+        SysfsNode node = mNodes.get(path);
+        if (node == null) {
+            node = new SysfsNode(path, resolve(path));
+            node.mCreatesNodes = path.endsWith("/online") || path.endsWith("governor");
+            mNodes.put(path, node);
+            open(node);
+            // Nodes are often created before the kernel exposes them, so a
+            // failed first open is retried on first access
+            node.mFailedGeneration = -1;
+        }
+        return node;
+    }
+
+    /**
+     * Resolve a kernel path against the engine root
+     */
+    public File resolve(String path) {
+        return new File(mRoot, path);
+    }
+
+    /**
+     * Check if a kernel path exists
+     */
+    public boolean exists(String path) {
+        return resolve(path).exists();
+    }
+
+    /**
+     * Check if a kernel path is a directory
+     */
+    public boolean isDirectory(String path) {
+        return resolve(path).isDirectory();
+    }
+
+    /**
+     * List the entries of a kernel directory, or an empty array if it does not exist
+     */
+    public String[] list(String path) {
+        String[] names = resolve(path).list();
+        return names != null ? names : new String[0];
+    }
+
+    /**
+     * Check if the kernel exposes a node, whether or not it can be opened
+     */
+    public boolean exists(SysfsNode node) {
+        return channel(node) != null || node.mFailedExists;
+    }
+
+    /**
+     * Check if a node exists and can be written, retrying the open if it was missing
+     */
+    public boolean canWrite(SysfsNode node) {
+        return channel(node) != null && node.mWritable;
+    }
+
+    /**
+     * Read the first line of a node
+     */
+    public String read(String path) {
+        return read(node(path));
+    }
+
+    /**
+     * Read the first line of a node
+     */
+    public synchronized String read(SysfsNode node) {
+        int length = readFirst(node, mScratch);
+        if (length < 0) {
+            return null;
+        }
+
+        int end = 0;
+        while (end < length && mScratch[end] != '\n') {
+            end++;
+        }
+        return new String(mScratch, 0, end, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Read a node as a decimal number without allocating
+     */
+    public synchronized long readLong(SysfsNode node, long defValue) {
+        int length = readFirst(node, mScratch);
+        if (length <= 0) {
+            return defValue;
+        }
+
+        int i = 0;
+        while (i < length && (mScratch[i] == ' ' || mScratch[i] == '\t')) {
+            i++;
+        }
+
+        boolean negative = i < length && mScratch[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        int start = i;
+        long value = 0;
+        while (i < length && mScratch[i] >= '0' && mScratch[i] <= '9') {
+            value = value * 10 + (mScratch[i] - '0');
+            i++;
+        }
+
+        if (i == start) {
+            return defValue;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Read the first line of a node as an FNV-1a hash, without allocating.
+     * Used to detect changes of capability nodes.
+     * @return the hash, or 0 if the node cannot be read
+     */
+    public synchronized long readHash(SysfsNode node) {
+        int length = readFirst(node, mScratch);
+        if (length < 0) {
+            return 0;
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length && mScratch[i] != '\n'; i++) {
+            hash ^= mScratch[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Read the full content of a node into a caller-owned buffer.
+     * The buffer is cleared first and flipped for reading on return.
+     * This method does not use the shared buffers and is safe to call from
+     * sampling threads.
+     * @return the number of bytes read, or -1 if the node cannot be read
+     */
+    public int read(SysfsNode node, ByteBuffer dst) {
+        FileChannel channel = channel(node);
+        dst.clear();
+        if (channel == null || !node.mReadable) {
+            dst.flip();
+            return -1;
+        }
+
+        try {
+            long position = 0;
+            while (dst.hasRemaining()) {
+                int count = channel.read(dst, position);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+            dst.flip();
+            return (int) position;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading file: " + node.mPath, e);
+            synchronized (this) {
+                invalidate(node);
+            }
+            dst.flip();
+            return -1;
+        }
+    }
+
+    /**
+     * Read the full content of a file into a caller-owned buffer, opening it
+     * read-only for this read alone. For short-lived files such as those under
+     * /proc/<pid>, which must not fill or share the node cache.
+     * The buffer is cleared first and flipped for reading on return.
+     * @return the number of bytes read, or -1 if the file cannot be read
+     */
+    public int readOnce(String path, ByteBuffer dst) {
+        dst.clear();
+        int length = 0;
+        try (FileInputStream in = new FileInputStream(resolve(path))) {
+            FileChannel channel = in.getChannel();
+            while (dst.hasRemaining()) {
+                int count = channel.read(dst);
+                if (count <= 0) {
+                    break;
+                }
+                length += count;
+            }
+        } catch (IOException | SecurityException e) {
+            // The process exited or the file is not readable
+            length = -1;
+        }
+        dst.flip();
+        return length;
+    }
+
+    /**
+     * Write a value to a file, opening it for this write alone. For
+     * short-lived files such as those under /proc/<pid>, which must not fill
+     * the node cache. The value is not compared with the current one.
+     * @return true if the value was written
+     */
+    public boolean writeOnce(String path, String value) {
+        try (FileOutputStream out = new FileOutputStream(resolve(path))) {
+            out.write(value.getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch (IOException | SecurityException e) {
+            // The process exited or the file is not writable
+            return false;
+        }
+    }
+
+    /**
+     * Write a value to a node
+     */
+    public boolean write(String path, String value) {
+        return write(node(path), value);
+    }
+
+    /**
+     * Write a value to a node
+     */
+    public synchronized boolean write(SysfsNode node, String value) {
+        int length = value.length();
+        if (length > mScratch.length) {
+            Log.e(TAG, "Value too long for file: " + node.mPath);
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            mScratch[i] = (byte) value.charAt(i);
+        }
+        return writeScratch(node, length);
+    }
+
+    /**
+     * Write a decimal number to a node without allocating
+     */
+    public synchronized boolean write(SysfsNode node, long value) {
+        return writeScratch(node, encodeLong(value, mScratch));
+    }
+
+    /**
+     * Write a min/max pair without allocating, raising max first when raising
+     * and lowering min first when lowering, so min never exceeds max
+     */
+    public synchronized boolean writeRange(SysfsNode minNode, SysfsNode maxNode, long min, long max) {
+        if (max > readLong(maxNode, Long.MAX_VALUE)) {
+            return write(maxNode, max) && write(minNode, min);
+        }
+        return write(minNode, min) && write(maxNode, max);
+    }
+
+    /**
+     * Write pre-encoded bytes to a node
+     */
+    public synchronized boolean write(SysfsNode node, byte[] value, int length) {
+        if (length > mScratch.length) {
+            Log.e(TAG, "Value too long for file: " + node.mPath);
+            return false;
+        }
+
+        System.arraycopy(value, 0, mScratch, 0, length);
+        return writeScratch(node, length);
+    }
+
+    /**
+     * Get the number of writes that reached the kernel
+     */
+    public synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Get the number of writes skipped because the node already held the value
+     */
+    public synchronized long getSkippedWriteCount() {
+        return mSkippedWriteCount;
+    }
+
+    /**
+     * Close a node and drop it from the cache. Used for short-lived nodes,
+     * such as those of a process or thread, which would otherwise stay open.
+     */
+    public synchronized void release(SysfsNode node) {
+        invalidate(node);
+        mNodes.remove(node.mPath);
+    }
+
+    /**
+     * Close all open nodes
+     */
+    public synchronized void close() {
+        for (SysfsNode node : mNodes.values()) {
+            invalidate(node);
+        }
+        mNodes.clear();
+    }
+
+    /**
+     * Encode a decimal number as ASCII into a byte array
+     * @return the number of bytes written
+     */
+    static int encodeLong(long value, byte[] out) {
+        if (value == 0) {
+            out[0] = '0';
+            return 1;
+        }
+
+        int length = 0;
+        long remaining = value;
+        if (remaining < 0) {
+            out[length++] = '-';
+        }
+
+        int start = length;
+        while (remaining != 0) {
+            out[length++] = (byte) ('0' + Math.abs(remaining % 10));
+            remaining /= 10;
+        }
+
+        // Digits were produced least significant first
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte tmp = out[i];
+            out[i] = out[j];
+            out[j] = tmp;
+        }
+        return length;
+    }
+
+    /**
+     * Read the start of a node into a byte array with a single pread and
+     * remember its first line as the shadow value of the node
+     * @return the number of bytes read, or -1 if the node cannot be read
+     */
+    private int readFirst(SysfsNode node, byte[] out) {
+        FileChannel channel = channel(node);
+        if (channel == null || !node.mReadable) {
+            return -1;
+        }
+
+        try {
+            mReadBuffer.clear();
+            int count = channel.read(mReadBuffer, 0);
+            if (count < 0) {
+                return 0;
+            }
+            mReadBuffer.flip();
+            mReadBuffer.get(out, 0, count);
+            updateShadow(node, out, lineLength(out, count));
+            return count;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading file: " + node.mPath, e);
+            invalidate(node);
+            return -1;
+        }
+    }
+
+    /**
+     * Write the first bytes of the scratch array to a node with a single pwrite,
+     * unless the node already holds that value
+     */
+    private boolean writeScratch(SysfsNode node, int length) {
+        FileChannel channel = channel(node);
+        if (channel == null || !node.mWritable) {
+            Log.e(TAG, "Cannot write to file: " + node.mPath);
+            return false;
+        }
+
+        // A known shadow that differs means the write is needed; otherwise confirm with a read-back
+        if (node.mShadowLength < 0 || matches(node.mShadow, node.mShadowLength, mScratch, length)) {
+            int count = readFirst(node, mReadback);
+            if (count >= 0 && matches(mReadback, lineLength(mReadback, count), mScratch, length)) {
+                mSkippedWriteCount++;
+                return true;
+            }
+        }
+
+        try {
+            mWriteBuffer.clear();
+            mWriteBuffer.put(mScratch, 0, length);
+            mWriteBuffer.flip();
+            if (channel.write(mWriteBuffer, 0) != length) {
+                node.mShadowLength = -1;
+                return false;
+            }
+            if (mRegularFiles) {
+                channel.truncate(length);
+            }
+            mWriteCount++;
+            if (node.mCreatesNodes) {
+                mNodeGeneration++;
+            }
+            updateShadow(node, mScratch, length);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to file: " + node.mPath, e);
+            invalidate(node);
+            return false;
+        }
+    }
+
+    /**
+     * Remember the last known value of a node
+     */
+    private void updateShadow(SysfsNode node, byte[] value, int length) {
+        if (node.mShadow == null || node.mShadow.length < length) {
+            node.mShadow = new byte[Math.max(SHADOW_SIZE, length)];
+        }
+        System.arraycopy(value, 0, node.mShadow, 0, length);
+        node.mShadowLength = length;
+    }
+
+    /**
+     * Get the length of the first line of a value, without trailing whitespace
+     */
+    private static int lineLength(byte[] value, int length) {
+        int end = 0;
+        while (end < length && value[end] != '\n') {
+            end++;
+        }
+        while (end > 0 && (value[end - 1] == ' ' || value[end - 1] == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Compare two values, ignoring trailing whitespace
+     */
+    private static boolean matches(byte[] a, int aLength, byte[] b, int bLength) {
+        aLength = lineLength(a, aLength);
+        bLength = lineLength(b, bLength);
+        if (aLength != bLength) {
+            return false;
+        }
+        for (int i = 0; i < aLength; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the open channel of a node, retrying the open if it was missing
+     */
+    private FileChannel channel(SysfsNode node) {
+        if (node.mChannel == null) {
+            synchronized (this) {
+                open(node);
+            }
+        }
+        return node.mChannel;
+    }
+
+    /**
+     * Open the channel of a node with the widest access the kernel allows.
+     * Nodes that do not exist yet (e.g. cpufreq of an offline core) are retried
+     * after a hotplug or governor write, or after a second, so probing a node
+     * the kernel does not expose does not stat the file on every access.
+     */
+    private void open(SysfsNode node) {
+        if (node.mChannel != null) {
+            return;
+        }
+        if (node.mFailedGeneration == mNodeGeneration
+                && SystemClock.uptimeMillis() - node.mFailedMillis < OPEN_RETRY_MS) {
+            return;
+        }
+        if (!node.mFile.exists()) {
+            markFailed(node, false);
+            return;
+        }
+
+        try {
+            node.mChannel = new RandomAccessFile(node.mFile, "rw").getChannel();
+            node.mReadable = true;
+            node.mWritable = true;
+            return;
+        } catch (IOException | SecurityException e) {
+            // Fall through to read-only access
+        }
+
+        try {
+            node.mChannel = new RandomAccessFile(node.mFile, "r").getChannel();
+            node.mReadable = true;
+            node.mWritable = false;
+            return;
+        } catch (IOException | SecurityException e) {
+            // Fall through to write-only access
+        }
+
+        try {
+            node.mChannel = new FileOutputStream(node.mFile).getChannel();
+            node.mReadable = false;
+            node.mWritable = true;
+            return;
+        } catch (IOException | SecurityException e) {
+            Log.e(TAG, "Cannot open file: " + node.mPath);
+        }
+        markFailed(node, true);
+    }
+
+    /**
+     * Remember a failed open so it is not retried right away
+     */
+    private void markFailed(SysfsNode node, boolean exists) {
+        node.mFailedGeneration = mNodeGeneration;
+        node.mFailedMillis = SystemClock.uptimeMillis();
+        node.mFailedExists = exists;
+    }
+
+    /**
+     * Close the channel of a node so that it is reopened on next access
+     */
+    private void invalidate(SysfsNode node) {
+        if (node.mChannel != null) {
+            try {
+                node.mChannel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            node.mChannel = null;
+        }
+        node.mReadable = false;
+        node.mWritable = false;
+        node.mShadowLength = -1;
+    }
+}
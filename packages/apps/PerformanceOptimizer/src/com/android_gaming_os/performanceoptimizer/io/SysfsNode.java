@@ -0,0 +1,68 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+
+/**
+ * Handle to a single sysfs or procfs node.
+ * Nodes are created and owned by {@link SysfsEngine}, which resolves the path once
+ * and keeps the underlying channel open for the lifetime of the engine.
+ */
+public final class SysfsNode {
+    final String mPath;
+    final File mFile;
+
+    volatile FileChannel mChannel;
+    boolean mReadable;
+    boolean mWritable;
+
+    // Last known value of the node, or -1 length if unknown
+    byte[] mShadow;
+    int mShadowLength = -1;
+
+    // Writing the node can create other nodes (CPU hotplug, governor tunables)
+    boolean mCreatesNodes;
+
+    // Last failed open: node generation of the engine, time, and whether the file existed
+    long mFailedGeneration = -1;
+    long mFailedMillis;
+    boolean mFailedExists;
+
+    SysfsNode(String path, File file) {
+        mPath = path;
+        mFile = file;
+    }
+
+    /**
+     * Get the kernel path of this node, independent of the engine root
+     */
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * Check if the node is currently open
+     */
+    public boolean isOpen() {
+        return mChannel != null;
+    }
+
+    /**
+     * Check if the node can be read
+     */
+    public boolean isReadable() {
+        return mChannel != null && mReadable;
+    }
+
+    /**
+     * Check if the node can be written
+     */
+    public boolean isWritable() {
+        return mChannel != null && mWritable;
+    }
+
+    @Override
+    public String toString() {
+        return mPath;
+    }
+}
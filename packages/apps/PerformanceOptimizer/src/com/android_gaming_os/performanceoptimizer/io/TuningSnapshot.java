@@ -0,0 +1,134 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import android.util.Log;
+
+/**
+ * Immutable record of the values of all tuning nodes before an optimization
+ * session started. It is captured once per session and is both the rollback
+ * target of a failed {@link TuningTransaction} and the source for restoring
+ * the original settings when the session ends.
+ */
+public final class TuningSnapshot {
+    private static final String TAG = "TuningSnapshot";
+
+    private final WritePlan mRestore;
+
+    private TuningSnapshot(WritePlan restore) {
+        mRestore = restore;
+    }
+
+    /**
+     * Write all captured values back, continuing past failures
+     * @return true if all values were restored
+     */
+    public boolean restore() {
+        Log.i(TAG, "Restoring " + mRestore.size() + " captured settings");
+        return mRestore.applyAll();
+    }
+
+    /**
+     * Get the number of captured settings
+     */
+    public int size() {
+        return mRestore.size();
+    }
+
+    /**
+     * Builder that declares the tuning nodes and captures their current values
+     */
+    public static final class Builder {
+        private final SysfsEngine mSysfs;
+        private final TuningTransaction mRestore;
+        private boolean mBuilt;
+
+        public Builder(SysfsEngine sysfs) {
+            mSysfs = sysfs;
+            mRestore = new TuningTransaction(sysfs);
+        }
+
+        /**
+         * Capture a node restored in the default phase
+         */
+        public Builder addValue(SysfsNode node) {
+            return addValue(node, TuningTransaction.PHASE_DEFAULT);
+        }
+
+        /**
+         * Capture a node restored in the given phase
+         */
+        public Builder addValue(SysfsNode node, int phase) {
+            checkNotBuilt();
+            String value = mSysfs.read(node);
+            if (value != null) {
+                mRestore.set(node, value, phase);
+            }
+            return this;
+        }
+
+        /**
+         * Capture a governor node
+         */
+        public Builder addGovernor(SysfsNode node) {
+            return addValue(node, TuningTransaction.PHASE_GOVERNOR);
+        }
+
+        /**
+         * Capture a node that lists its choices with the selected one in
+         * brackets, such as an I/O scheduler, restored in the governor phase
+         */
+        public Builder addSelection(SysfsNode node) {
+            checkNotBuilt();
+            String value = mSysfs.read(node);
+            int start = value != null ? value.indexOf('[') : -1;
+            int end = start >= 0 ? value.indexOf(']', start) : -1;
+            if (end > start + 1) {
+                mRestore.set(node, value.substring(start + 1, end), TuningTransaction.PHASE_GOVERNOR);
+            }
+            return this;
+        }
+
+        /**
+         * Capture a core online node
+         */
+        public Builder addOnline(SysfsNode node) {
+            checkNotBuilt();
+            long online = mSysfs.readLong(node, -1);
+            if (online >= 0) {
+                mRestore.setOnline(node, online != 0);
+            }
+            return this;
+        }
+
+        /**
+         * Capture a frequency range
+         */
+        public Builder addRange(SysfsNode minNode, SysfsNode maxNode) {
+            checkNotBuilt();
+            long min = mSysfs.readLong(minNode, -1);
+            long max = mSysfs.readLong(maxNode, -1);
+            if (min >= 0 && max >= 0) {
+                mRestore.setRange(minNode, maxNode, min, max);
+            } else if (min >= 0) {
+                addValue(minNode, TuningTransaction.PHASE_FREQUENCY);
+            } else if (max >= 0) {
+                addValue(maxNode, TuningTransaction.PHASE_FREQUENCY);
+            }
+            return this;
+        }
+
+        /**
+         * Build the immutable snapshot
+         */
+        public TuningSnapshot build() {
+            checkNotBuilt();
+            mBuilt = true;
+            return new TuningSnapshot(mRestore.compile());
+        }
+
+        private void checkNotBuilt() {
+            if (mBuilt) {
+                throw new IllegalStateException("Snapshot already built");
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Batch of node writes collected across all optimization domains.
+ * Writes are kept ordered by phase, so that cores are brought online before
+ * their cpufreq nodes are touched, governors are set before frequencies and
+ * cores are taken offline last. Frequency ranges are written max-first when
+ * raising and min-first when lowering, so the kernel never sees min above max.
+ * A transaction is compiled into a {@link WritePlan}, which can be committed
+ * repeatedly and rolls back to a {@link TuningSnapshot} if any write fails.
+ */
+public class TuningTransaction {
+    // Write phases, in commit order
+    public static final int PHASE_ONLINE = 0;     // Bring cores online
+    public static final int PHASE_GOVERNOR = 1;   // Governors
+    public static final int PHASE_FREQUENCY = 2;  // Frequency ranges
+    public static final int PHASE_DEFAULT = 3;    // Everything else
+    public static final int PHASE_OFFLINE = 4;    // Take cores offline
+
+    private static final byte[] ONLINE = { '1' };
+    private static final byte[] OFFLINE = { '0' };
+
+    private final SysfsEngine mSysfs;
+    private final List<Write> mWrites;
+
+    public TuningTransaction(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+        mWrites = new ArrayList<>();
+    }
+
+    /**
+     * Add a write of a value
+     */
+    public void set(SysfsNode node, String value) {
+        set(node, value, PHASE_DEFAULT);
+    }
+
+    /**
+     * Add a write of a value in the given phase
+     */
+    public void set(SysfsNode node, String value, int phase) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        add(new Write(phase, node, bytes));
+    }
+
+    /**
+     * Add a write of a governor
+     */
+    public void setGovernor(SysfsNode node, String governor) {
+        set(node, governor, PHASE_GOVERNOR);
+    }
+
+    /**
+     * Add a write of a core online status
+     */
+    public void setOnline(SysfsNode node, boolean online) {
+        add(new Write(online ? PHASE_ONLINE : PHASE_OFFLINE, node, online ? ONLINE : OFFLINE));
+    }
+
+    /**
+     * Add a write of a frequency range
+     */
+    public void setRange(SysfsNode minNode, SysfsNode maxNode, long min, long max) {
+        Write write = new Write(PHASE_FREQUENCY, minNode, null);
+        write.mMaxNode = maxNode;
+        write.mMin = min;
+        write.mMax = max;
+        add(write);
+    }
+
+    /**
+     * Check if the transaction has no writes
+     */
+    public boolean isEmpty() {
+        return mWrites.isEmpty();
+    }
+
+    /**
+     * Get the number of writes in the transaction
+     */
+    public int size() {
+        return mWrites.size();
+    }
+
+    /**
+     * Compile the transaction into an immutable write plan
+     */
+    public WritePlan compile() {
+        int size = mWrites.size();
+        SysfsNode[] nodes = new SysfsNode[size];
+        byte[][] values = new byte[size][];
+        SysfsNode[] maxNodes = new SysfsNode[size];
+        byte[][] maxValues = new byte[size][];
+        long[] maxTargets = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            Write write = mWrites.get(i);
+            nodes[i] = write.mNode;
+            if (write.mMaxNode == null) {
+                values[i] = write.mValue;
+            } else {
+                values[i] = encode(write.mMin);
+                maxNodes[i] = write.mMaxNode;
+                maxValues[i] = encode(write.mMax);
+                maxTargets[i] = write.mMax;
+            }
+        }
+        return new WritePlan(mSysfs, nodes, values, maxNodes, maxValues, maxTargets);
+    }
+
+    /**
+     * Compile and apply all writes, stopping at the first failure and rolling back
+     * @param rollback snapshot to restore if a write fails, or null
+     * @return true if all writes succeeded
+     */
+    public boolean commit(TuningSnapshot rollback) {
+        return compile().commit(rollback);
+    }
+
+    /**
+     * Encode a decimal number as ASCII
+     */
+    private static byte[] encode(long value) {
+        byte[] buffer = new byte[20];
+        int length = SysfsEngine.encodeLong(value, buffer);
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, 0, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Insert a write after all writes of the same or an earlier phase
+     */
+    private void add(Write write) {
+        int index = mWrites.size();
+        while (index > 0 && mWrites.get(index - 1).mPhase > write.mPhase) {
+            index--;
+        }
+        mWrites.add(index, write);
+    }
+
+    /**
+     * A single node write, or a min/max pair for frequency ranges
+     */
+    private static final class Write {
+        final int mPhase;
+        final SysfsNode mNode;
+        final byte[] mValue;
+        SysfsNode mMaxNode;
+        long mMin;
+        long mMax;
+
+        Write(int phase, SysfsNode node, byte[] value) {
+            mPhase = phase;
+            mNode = node;
+            mValue = value;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import android.util.Log;
+
+/**
+ * Compiled, immutable form of a {@link TuningTransaction}.
+ * A plan is a flat array of node handles and pre-encoded values in commit order,
+ * so applying it performs no parsing, formatting or allocation. The remaining
+ * cost is syscalls: the writes of values that change, read-backs where the
+ * shadow value cannot rule a write out, and a read of the current max of each
+ * range to order its two writes. Nodes the kernel does not expose are probed
+ * again only after a hotplug or governor write, or once a second.
+ */
+public final class WritePlan {
+    private static final String TAG = "WritePlan";
+
+    private final SysfsEngine mSysfs;
+
+    // Single writes have a null max node; frequency ranges use both columns
+    private final SysfsNode[] mNodes;
+    private final byte[][] mValues;
+    private final SysfsNode[] mMaxNodes;
+    private final byte[][] mMaxValues;
+    private final long[] mMaxTargets;
+
+    WritePlan(SysfsEngine sysfs, SysfsNode[] nodes, byte[][] values,
+              SysfsNode[] maxNodes, byte[][] maxValues, long[] maxTargets) {
+        mSysfs = sysfs;
+        mNodes = nodes;
+        mValues = values;
+        mMaxNodes = maxNodes;
+        mMaxValues = maxValues;
+        mMaxTargets = maxTargets;
+    }
+
+    /**
+     * Get the number of writes in the plan
+     */
+    public int size() {
+        return mNodes.length;
+    }
+
+    /**
+     * Apply all writes, stopping at the first failure and rolling back
+     * @param rollback snapshot to restore if a write fails, or null
+     * @return true if all writes succeeded
+     */
+    public boolean commit(TuningSnapshot rollback) {
+        int failed = execute(true);
+        if (failed < 0) {
+            return true;
+        }
+
+        Log.e(TAG, "Write to " + mNodes[failed] + " failed, rolling back");
+        if (rollback != null) {
+            rollback.restore();
+        }
+        return false;
+    }
+
+    /**
+     * Apply all writes, continuing past failures
+     * @return true if all writes succeeded
+     */
+    boolean applyAll() {
+        return execute(false) < 0;
+    }
+
+    /**
+     * Execute the writes in order
+     * @return the index of the first failed write, or -1 if all succeeded
+     */
+    private int execute(boolean stopOnFailure) {
+        int firstFailure = -1;
+        for (int i = 0; i < mNodes.length; i++) {
+            if (!execute(i)) {
+                if (firstFailure < 0) {
+                    firstFailure = i;
+                }
+                if (stopOnFailure) {
+                    break;
+                }
+            }
+        }
+        return firstFailure;
+    }
+
+    /**
+     * Execute a single write. Nodes the kernel does not expose are skipped,
+     * while a node that exists but cannot be written is a failure.
+     */
+    private boolean execute(int i) {
+        SysfsNode minNode = mNodes[i];
+        SysfsNode maxNode = mMaxNodes[i];
+        byte[] min = mValues[i];
+
+        if (maxNode == null) {
+            return !mSysfs.exists(minNode) || mSysfs.write(minNode, min, min.length);
+        }
+
+        byte[] max = mMaxValues[i];
+        boolean hasMin = mSysfs.exists(minNode);
+        boolean hasMax = mSysfs.exists(maxNode);
+        if (!hasMin || !hasMax) {
+            return (!hasMin || mSysfs.write(minNode, min, min.length))
+                    && (!hasMax || mSysfs.write(maxNode, max, max.length));
+        }
+
+        // Raise max first when raising, lower min first when lowering
+        if (mMaxTargets[i] > mSysfs.readLong(maxNode, Long.MAX_VALUE)) {
+            return mSysfs.write(maxNode, max, max.length)
+                    && mSysfs.write(minNode, min, min.length);
+        }
+        return mSysfs.write(minNode, min, min.length)
+                && mSysfs.write(maxNode, max, max.length);
+    }
+}
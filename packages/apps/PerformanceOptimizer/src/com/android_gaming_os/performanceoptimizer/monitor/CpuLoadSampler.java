@@ -0,0 +1,339 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Samples CPU utilization from /proc/stat on a dedicated thread.
+ * The file is read into a reused direct buffer and parsed in place, so a
+ * sample creates no objects. The busy, iowait and irq share of each core
+ * since the previous sample is published in permille to {@link SampleRing}s,
+ * which consumers read without locking. Channel 0 holds the total of all
+ * cores and channel n + 1 holds core n.
+ * The sampler measures its own thread CPU time and lowers its rate in
+ * proportion when sampling exceeds its CPU budget, down to BUDGET_MIN_RATE.
+ */
+public class CpuLoadSampler {
+    private static final String TAG = "CpuLoadSampler";
+
+    private static final String PROC_STAT_PATH = "/proc/stat";
+
+    // Sampling rates in Hz
+    public static final int MIN_RATE = 20;
+    public static final int MAX_RATE = 50;
+
+    // Lowest rate the CPU budget can lower sampling to, in Hz
+    static final int BUDGET_MIN_RATE = 5;
+
+    // Number of samples kept per core
+    private static final int HISTORY_SIZE = 128;
+
+    // CPU budget of the sampling thread, in permille of one core
+    private static final int CPU_BUDGET_PERMILLE = 5;
+
+    // Number of samples between budget checks
+    private static final int BUDGET_CHECK_INTERVAL = 100;
+
+    // Channel of the total of all cores
+    public static final int CHANNEL_TOTAL = 0;
+
+    // Counters kept per channel
+    private static final int COUNTER_BUSY = 0;
+    private static final int COUNTER_IOWAIT = 1;
+    private static final int COUNTER_IRQ = 2;
+    private static final int COUNTER_TOTAL = 3;
+    private static final int NUM_COUNTERS = 4;
+
+    // /proc/stat fields used, in line order
+    private static final int FIELD_IDLE = 3;
+    private static final int FIELD_IOWAIT = 4;
+    private static final int FIELD_IRQ = 5;
+    private static final int FIELD_SOFTIRQ = 6;
+    private static final int NUM_FIELDS = 8; // user nice system idle iowait irq softirq steal
+
+    private final SysfsEngine mSysfs;
+    private final SysfsNode mStatNode;
+    private final int mNumChannels;
+    private final ByteBuffer mBuffer;
+
+    // Counters of the previous sample and the fields of the line being parsed
+    private final long[] mPrevious;
+    private final long[] mCurrent;
+    private final long[] mFields;
+    private boolean mPrimed;
+
+    private final SampleRing mBusy;
+    private final SampleRing mIoWait;
+    private final SampleRing mIrq;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile int mRate = MIN_RATE;
+
+    // Cost accounting, only touched by the sampling thread
+    private long mSampleCount;
+    private long mSampleCpuNanos;
+    private long mBudgetWindowCpuNanos;
+    private long mBudgetWindowStartNanos;
+
+    public CpuLoadSampler(SysfsEngine sysfs, int numCores) {
+        mSysfs = sysfs;
+        mStatNode = sysfs.node(PROC_STAT_PATH);
+        mNumChannels = numCores + 1;
+
+        // /proc/stat lines are under 128 bytes; the rest of the file is not needed
+        mBuffer = ByteBuffer.allocateDirect(Math.max(4096, 128 * mNumChannels + 256));
+
+        mPrevious = new long[mNumChannels * NUM_COUNTERS];
+        mCurrent = new long[mNumChannels * NUM_COUNTERS];
+        mFields = new long[NUM_FIELDS];
+
+        mBusy = new SampleRing(mNumChannels, HISTORY_SIZE);
+        mIoWait = new SampleRing(mNumChannels, HISTORY_SIZE);
+        mIrq = new SampleRing(mNumChannels, HISTORY_SIZE);
+    }
+
+    /**
+     * Get the channel of a core
+     */
+    public static int channelOf(int core) {
+        return core + 1;
+    }
+
+    /**
+     * Get the busy share per channel, in permille
+     */
+    public SampleRing getBusy() {
+        return mBusy;
+    }
+
+    /**
+     * Get the iowait share per channel, in permille
+     */
+    public SampleRing getIoWait() {
+        return mIoWait;
+    }
+
+    /**
+     * Get the irq and softirq share per channel, in permille
+     */
+    public SampleRing getIrq() {
+        return mIrq;
+    }
+
+    /**
+     * Get the current sampling rate in Hz
+     */
+    public int getRate() {
+        return mRate;
+    }
+
+    /**
+     * Check if the sampler is running
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Start sampling at a rate between MIN_RATE and MAX_RATE
+     */
+    public synchronized void start(int rate) {
+        mRate = Math.max(MIN_RATE, Math.min(MAX_RATE, rate));
+        if (mThread != null) {
+            return;
+        }
+
+        mPrimed = false;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mSampleRunnable);
+
+        Log.i(TAG, "CPU load sampling started at " + mRate + " Hz");
+    }
+
+    /**
+     * Stop sampling
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mSampleRunnable);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+
+        Log.i(TAG, "CPU load sampling stopped after " + mSampleCount + " samples, average cost " +
+                   getAverageSampleCostNanos() / 1000 + "us");
+    }
+
+    /**
+     * Get the average thread CPU time of one sample, in nanoseconds
+     */
+    public long getAverageSampleCostNanos() {
+        long count = mSampleCount;
+        return count > 0 ? mSampleCpuNanos / count : 0;
+    }
+
+    /**
+     * Runnable that takes a sample and schedules the next one
+     */
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long startNanos = Debug.threadCpuTimeNanos();
+            sample();
+            long costNanos = Debug.threadCpuTimeNanos() - startNanos;
+            account(costNanos, SystemClock.elapsedRealtimeNanos());
+
+            synchronized (CpuLoadSampler.this) {
+                if (mHandler != null) {
+                    mHandler.postDelayed(this, 1000 / mRate);
+                }
+            }
+        }
+    };
+
+    /**
+     * Account the thread CPU time of a sample. If sampling used more than its
+     * CPU budget over the last BUDGET_CHECK_INTERVAL samples, the rate is
+     * lowered by the factor it was over, whatever rate it runs at.
+     */
+    void account(long costNanos, long nowNanos) {
+        mSampleCount++;
+        mSampleCpuNanos += costNanos;
+        mBudgetWindowCpuNanos += costNanos;
+        if (mSampleCount % BUDGET_CHECK_INTERVAL != 0) {
+            return;
+        }
+
+        long elapsed = nowNanos - mBudgetWindowStartNanos;
+        if (mBudgetWindowStartNanos != 0 && elapsed > 0) {
+            long permille = mBudgetWindowCpuNanos * 1000 / elapsed;
+            int rate = (int) Math.max(BUDGET_MIN_RATE, mRate * CPU_BUDGET_PERMILLE / Math.max(permille, 1));
+            if (permille > CPU_BUDGET_PERMILLE && rate < mRate) {
+                Log.i(TAG, "Sampling used " + permille + " permille of a core, lowering rate to " +
+                           rate + " Hz");
+                mRate = rate;
+            }
+        }
+        mBudgetWindowStartNanos = nowNanos;
+        mBudgetWindowCpuNanos = 0;
+    }
+
+    /**
+     * Read /proc/stat and publish the utilization since the previous sample
+     */
+    void sample() {
+        if (mSysfs.read(mStatNode, mBuffer) <= 0) {
+            return;
+        }
+
+        // Cores that are offline have no line and keep their previous counters
+        System.arraycopy(mPrevious, 0, mCurrent, 0, mCurrent.length);
+        parse(mBuffer);
+
+        if (mPrimed) {
+            for (int channel = 0; channel < mNumChannels; channel++) {
+                int base = channel * NUM_COUNTERS;
+                long total = mCurrent[base + COUNTER_TOTAL] - mPrevious[base + COUNTER_TOTAL];
+                mBusy.put(channel, permille(mCurrent, mPrevious, base + COUNTER_BUSY, total));
+                mIoWait.put(channel, permille(mCurrent, mPrevious, base + COUNTER_IOWAIT, total));
+                mIrq.put(channel, permille(mCurrent, mPrevious, base + COUNTER_IRQ, total));
+            }
+
+            long now = SystemClock.uptimeMillis();
+            mBusy.publish(now);
+            mIoWait.publish(now);
+            mIrq.publish(now);
+        }
+
+        System.arraycopy(mCurrent, 0, mPrevious, 0, mCurrent.length);
+        mPrimed = true;
+    }
+
+    /**
+     * Parse the cpu lines at the start of /proc/stat into mCurrent
+     */
+    private void parse(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos + 3 <= limit && buffer.get(pos) == 'c' && buffer.get(pos + 1) == 'p'
+                && buffer.get(pos + 2) == 'u') {
+            pos += 3;
+
+            // "cpu" is the total, "cpuN" is core N
+            int channel = CHANNEL_TOTAL;
+            if (pos < limit && isDigit(buffer.get(pos))) {
+                int core = 0;
+                while (pos < limit && isDigit(buffer.get(pos))) {
+                    core = core * 10 + (buffer.get(pos++) - '0');
+                }
+                channel = channelOf(core);
+            }
+
+            int fields = 0;
+            while (pos < limit && buffer.get(pos) != '\n') {
+                byte b = buffer.get(pos);
+                if (isDigit(b)) {
+                    long value = 0;
+                    while (pos < limit && isDigit(buffer.get(pos))) {
+                        value = value * 10 + (buffer.get(pos++) - '0');
+                    }
+                    if (fields < NUM_FIELDS) {
+                        mFields[fields] = value;
+                    }
+                    fields++;
+                } else {
+                    pos++;
+                }
+            }
+            pos++;
+
+            if (channel < mNumChannels && fields >= NUM_FIELDS) {
+                store(channel);
+            }
+        }
+    }
+
+    /**
+     * Store the fields of a parsed line as the counters of a channel
+     */
+    private void store(int channel) {
+        long total = 0;
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            total += mFields[i];
+        }
+        long idle = mFields[FIELD_IDLE] + mFields[FIELD_IOWAIT];
+
+        int base = channel * NUM_COUNTERS;
+        mCurrent[base + COUNTER_BUSY] = total - idle;
+        mCurrent[base + COUNTER_IOWAIT] = mFields[FIELD_IOWAIT];
+        mCurrent[base + COUNTER_IRQ] = mFields[FIELD_IRQ] + mFields[FIELD_SOFTIRQ];
+        mCurrent[base + COUNTER_TOTAL] = total;
+    }
+
+    private static int permille(long[] current, long[] previous, int index, long total) {
+        if (total <= 0) {
+            return 0;
+        }
+        long delta = current[index] - previous[index];
+        return (int) (Math.max(0, Math.min(delta, total)) * 1000 / total);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
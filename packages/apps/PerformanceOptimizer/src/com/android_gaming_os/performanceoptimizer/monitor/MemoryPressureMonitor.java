@@ -0,0 +1,294 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports memory pressure as it builds, from a dedicated thread.
+ * PSI triggers are registered on /proc/pressure/memory, one per stall type
+ * and threshold, and the thread blocks in poll() until the kernel signals
+ * that tasks stalled on memory for longer than the threshold within the
+ * window. Without PSI the reclaim activity in /proc/vmstat is polled
+ * instead, quickly while memory is reclaimed and backing off while it is not,
+ * which is also the fallback when the kernel removes a trigger. A pipe wakes
+ * the thread to stop it in both modes.
+ */
+public class MemoryPressureMonitor {
+    private static final String TAG = "MemoryPressureMonitor";
+
+    private static final String PSI_MEMORY_PATH = "/proc/pressure/memory";
+
+    // Pressure levels
+    public static final int PRESSURE_NONE = 0;
+    public static final int PRESSURE_MODERATE = 1; // Some tasks stalled on memory
+    public static final int PRESSURE_CRITICAL = 2; // All non-idle tasks stalled on memory
+
+    // PSI triggers: stall type, stall time and window in microseconds, and their levels
+    private static final String[] TRIGGERS = {
+        "some 70000 1000000",
+        "full 70000 1000000",
+    };
+    private static final int[] TRIGGER_LEVELS = { PRESSURE_MODERATE, PRESSURE_CRITICAL };
+
+    // Polling intervals without PSI, in milliseconds
+    private static final int MIN_POLL_INTERVAL_MS = 1000;
+    private static final int INITIAL_POLL_INTERVAL_MS = 5000;
+    private static final int MAX_POLL_INTERVAL_MS = 60000;
+
+    // Refaults of recently evicted pages above which the working set does not fit, per second
+    private static final int THRASHING_REFAULTS_PER_SECOND = 256;
+
+    // Share of scanned pages reclaimed below which reclaim is struggling, in
+    // permille, counted above a scan rate in pages per second
+    private static final int MIN_RECLAIM_EFFICIENCY = 300;
+    private static final int MIN_SCANNED_PER_SECOND = 1024;
+
+    /**
+     * Interface for receiving memory pressure, called on the monitor thread
+     */
+    public interface Listener {
+        void onMemoryPressure(int level);
+    }
+
+    private final SysfsEngine mSysfs;
+    private final MemorySampler mSampler;
+    private final Listener mListener;
+
+    private Thread mThread;
+    private FileDescriptor mWakeWrite;
+    private volatile boolean mEventDriven;
+
+    /**
+     * @param sampler sampler polled without PSI, only used on the monitor thread
+     */
+    public MemoryPressureMonitor(SysfsEngine sysfs, MemorySampler sampler, Listener listener) {
+        mSysfs = sysfs;
+        mSampler = sampler;
+        mListener = listener;
+    }
+
+    /**
+     * Get the pressure level from the reclaim activity between the last two
+     * samples of a sampler. Direct reclaim stalling allocations is critical;
+     * refaults of recently evicted pages, or scanning that reclaims little,
+     * mean the working set no longer fits and are moderate.
+     */
+    public static int getReclaimPressure(MemorySampler sampler) {
+        if (sampler.getDelta(MemorySampler.ALLOC_STALL) > 0) {
+            return PRESSURE_CRITICAL;
+        }
+        long scanned = sampler.getRate(MemorySampler.SCAN_KSWAPD) + sampler.getRate(MemorySampler.SCAN_DIRECT);
+        if (sampler.getRate(MemorySampler.REFAULT) > THRASHING_REFAULTS_PER_SECOND
+                || (scanned > MIN_SCANNED_PER_SECOND && sampler.getReclaimEfficiency() < MIN_RECLAIM_EFFICIENCY)) {
+            return PRESSURE_MODERATE;
+        }
+        return PRESSURE_NONE;
+    }
+
+    /**
+     * Check if pressure is reported by PSI triggers rather than by polling
+     */
+    public boolean isEventDriven() {
+        return mEventDriven;
+    }
+
+    /**
+     * Start monitoring
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        final FileDescriptor[] pipe;
+        try {
+            pipe = Os.pipe();
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Error creating wake pipe", e);
+            return;
+        }
+
+        mWakeWrite = pipe[1];
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                monitor(pipe[0]);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stop monitoring
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+
+        try {
+            Os.write(mWakeWrite, new byte[1], 0, 1);
+        } catch (ErrnoException | IOException e) {
+            Log.e(TAG, "Error waking the monitor thread", e);
+            mThread.interrupt();
+        }
+        close(mWakeWrite);
+        mWakeWrite = null;
+        mThread = null;
+    }
+
+    /**
+     * Wait for pressure until the wake pipe is written
+     */
+    private void monitor(FileDescriptor wake) {
+        List<FileDescriptor> triggers = openTriggers();
+        mEventDriven = !triggers.isEmpty();
+
+        StructPollfd[] fds = new StructPollfd[triggers.size() + 1];
+        fds[0] = pollFd(wake, OsConstants.POLLIN);
+        for (int i = 0; i < triggers.size(); i++) {
+            fds[i + 1] = pollFd(triggers.get(i), OsConstants.POLLPRI);
+        }
+
+        int intervalMs = mEventDriven ? -1 : INITIAL_POLL_INTERVAL_MS;
+        Log.i(TAG, mEventDriven ? "Waiting on " + triggers.size() + " PSI triggers"
+                                : "PSI not available, polling reclaim activity");
+        if (!mEventDriven) {
+            mSampler.sample();
+        }
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (StructPollfd fd : fds) {
+                    fd.revents = 0;
+                }
+
+                try {
+                    Os.poll(fds, intervalMs);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.EINTR) {
+                        continue;
+                    }
+                    Log.e(TAG, "Error waiting for memory pressure", e);
+                    break;
+                }
+
+                if (fds[0].revents != 0) {
+                    break;
+                }
+
+                int level = PRESSURE_NONE;
+                if (mEventDriven) {
+                    for (int i = 1; i < fds.length; i++) {
+                        if ((fds[i].revents & OsConstants.POLLERR) != 0) {
+                            // The kernel removed the trigger, so poll the reclaim activity instead
+                            Log.e(TAG, "PSI trigger " + TRIGGERS[i - 1] + " was removed, polling reclaim activity");
+                            for (FileDescriptor trigger : triggers) {
+                                close(trigger);
+                            }
+                            triggers.clear();
+                            fds = new StructPollfd[] { fds[0] };
+                            mEventDriven = false;
+                            intervalMs = INITIAL_POLL_INTERVAL_MS;
+                            mSampler.sample();
+                            break;
+                        }
+                        if ((fds[i].revents & OsConstants.POLLPRI) != 0) {
+                            level = Math.max(level, TRIGGER_LEVELS[i - 1]);
+                        }
+                    }
+                } else if (mSampler.sample()) {
+                    level = getReclaimPressure(mSampler);
+                    intervalMs = level > PRESSURE_NONE ? MIN_POLL_INTERVAL_MS
+                                                       : Math.min(intervalMs * 2, MAX_POLL_INTERVAL_MS);
+                }
+
+                if (level > PRESSURE_NONE) {
+                    mListener.onMemoryPressure(level);
+                }
+            }
+        } finally {
+            for (FileDescriptor trigger : triggers) {
+                close(trigger);
+            }
+            close(wake);
+            exited();
+            Log.i(TAG, "Memory pressure monitoring stopped");
+        }
+    }
+
+    /**
+     * Forget the monitor thread when it exits on an error rather than through
+     * stop(), so monitoring can be started again
+     */
+    private synchronized void exited() {
+        if (mThread != Thread.currentThread()) {
+            return;
+        }
+        Log.e(TAG, "Memory pressure monitoring failed");
+        close(mWakeWrite);
+        mWakeWrite = null;
+        mThread = null;
+        mEventDriven = false;
+    }
+
+    /**
+     * Register the PSI triggers, each on its own file descriptor
+     * @return the trigger descriptors, or an empty list if PSI is not available
+     */
+    private List<FileDescriptor> openTriggers() {
+        List<FileDescriptor> triggers = new ArrayList<>();
+        String path = mSysfs.resolve(PSI_MEMORY_PATH).getPath();
+        for (String trigger : TRIGGERS) {
+            FileDescriptor fd = null;
+            try {
+                fd = Os.open(path, OsConstants.O_RDWR | OsConstants.O_NONBLOCK | OsConstants.O_CLOEXEC, 0);
+
+                // The kernel drops the last byte of the write, so it is terminated
+                byte[] bytes = (trigger + '\0').getBytes(StandardCharsets.US_ASCII);
+                Os.write(fd, bytes, 0, bytes.length);
+                triggers.add(fd);
+            } catch (ErrnoException | IOException e) {
+                Log.i(TAG, "Cannot register PSI trigger " + trigger + ": " + e.getMessage());
+                close(fd);
+                for (FileDescriptor registered : triggers) {
+                    close(registered);
+                }
+                triggers.clear();
+                break;
+            }
+        }
+        return triggers;
+    }
+
+    private static StructPollfd pollFd(FileDescriptor fd, int events) {
+        StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd;
+        pollFd.events = (short) events;
+        return pollFd;
+    }
+
+    private static void close(FileDescriptor fd) {
+        if (fd == null) {
+            return;
+        }
+        try {
+            Os.close(fd);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Error closing descriptor", e);
+        }
+    }
+}
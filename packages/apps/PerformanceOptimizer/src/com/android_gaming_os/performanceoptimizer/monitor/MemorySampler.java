@@ -0,0 +1,276 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.os.SystemClock;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Samples /proc/meminfo and /proc/vmstat.
+ * Both files are read into a reused direct buffer and each line name is
+ * looked up by its hash in a key table built once, so a sample creates no
+ * objects. Sizes are kept in kB and reclaim counters in pages or events;
+ * counters that the kernel splits by zone or type, such as the alloc stalls,
+ * are summed into one field. The reclaim rates between the last two samples
+ * show whether memory is actually being fought over, which the available
+ * memory alone does not.
+ * A sampler is not thread safe and belongs to the thread that samples it.
+ */
+public class MemorySampler {
+    private static final String MEMINFO_PATH = "/proc/meminfo";
+    private static final String VMSTAT_PATH = "/proc/vmstat";
+
+    // Fields of /proc/meminfo, in kB
+    public static final int MEM_TOTAL = 0;
+    public static final int MEM_FREE = 1;
+    public static final int MEM_AVAILABLE = 2;
+    public static final int BUFFERS = 3;
+    public static final int CACHED = 4;
+    public static final int SWAP_CACHED = 5;
+    public static final int ACTIVE_ANON = 6;
+    public static final int INACTIVE_ANON = 7;
+    public static final int ACTIVE_FILE = 8;
+    public static final int INACTIVE_FILE = 9;
+    public static final int SWAP_TOTAL = 10;
+    public static final int SWAP_FREE = 11;
+
+    // Counters of /proc/vmstat, in pages or events
+    public static final int SCAN_KSWAPD = 12;
+    public static final int SCAN_DIRECT = 13;
+    public static final int STEAL_KSWAPD = 14;
+    public static final int STEAL_DIRECT = 15;
+    public static final int REFAULT = 16;
+    public static final int SWAP_IN = 17;
+    public static final int SWAP_OUT = 18;
+    public static final int COMPACT_STALL = 19;
+    public static final int ALLOC_STALL = 20;
+    public static final int MAJOR_FAULT = 21;
+
+    private static final int FIRST_COUNTER = SCAN_KSWAPD;
+    private static final int NUM_FIELDS = 22;
+
+    // Line names and the fields they are added to
+    private static final String[] KEY_NAMES = {
+        "MemTotal", "MemFree", "MemAvailable", "Buffers", "Cached", "SwapCached",
+        "Active(anon)", "Inactive(anon)", "Active(file)", "Inactive(file)", "SwapTotal", "SwapFree",
+        "pgscan_kswapd", "pgscan_direct", "pgsteal_kswapd", "pgsteal_direct",
+        "workingset_refault", "workingset_refault_anon", "workingset_refault_file",
+        "pswpin", "pswpout", "compact_stall",
+        "allocstall", "allocstall_dma", "allocstall_dma32", "allocstall_normal",
+        "allocstall_movable", "allocstall_device", "pgmajfault",
+    };
+    private static final int[] KEY_FIELDS = {
+        MEM_TOTAL, MEM_FREE, MEM_AVAILABLE, BUFFERS, CACHED, SWAP_CACHED,
+        ACTIVE_ANON, INACTIVE_ANON, ACTIVE_FILE, INACTIVE_FILE, SWAP_TOTAL, SWAP_FREE,
+        SCAN_KSWAPD, SCAN_DIRECT, STEAL_KSWAPD, STEAL_DIRECT,
+        REFAULT, REFAULT, REFAULT,
+        SWAP_IN, SWAP_OUT, COMPACT_STALL,
+        ALLOC_STALL, ALLOC_STALL, ALLOC_STALL, ALLOC_STALL,
+        ALLOC_STALL, ALLOC_STALL, MAJOR_FAULT,
+    };
+
+    // Open addressing table from name hash to key index + 1
+    private static final int TABLE_SIZE = 128;
+    private static final byte[][] KEY_BYTES = new byte[KEY_NAMES.length][];
+    private static final int[] KEY_HASHES = new int[KEY_NAMES.length];
+    private static final int[] KEY_TABLE = new int[TABLE_SIZE];
+
+    static {
+        for (int key = 0; key < KEY_NAMES.length; key++) {
+            KEY_BYTES[key] = KEY_NAMES[key].getBytes(StandardCharsets.US_ASCII);
+            int hash = 0;
+            for (byte b : KEY_BYTES[key]) {
+                hash = hash * 31 + b;
+            }
+            KEY_HASHES[key] = hash;
+
+            int slot = hash & (TABLE_SIZE - 1);
+            while (KEY_TABLE[slot] != 0) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            KEY_TABLE[slot] = key + 1;
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+    private final SysfsNode mMeminfoNode;
+    private final SysfsNode mVmstatNode;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(16384);
+
+    // Fields of the last two samples, and of the sample being read, which
+    // replaces them only once both files were read
+    private long[] mCurrent = new long[NUM_FIELDS];
+    private long[] mPrevious = new long[NUM_FIELDS];
+    private long[] mNext = new long[NUM_FIELDS];
+    private long mCurrentMillis;
+    private long mPreviousMillis;
+
+    public MemorySampler(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+        mMeminfoNode = sysfs.node(MEMINFO_PATH);
+        mVmstatNode = sysfs.node(VMSTAT_PATH);
+    }
+
+    /**
+     * Take a sample, keeping the previous one for rates
+     * @return false if /proc/meminfo or /proc/vmstat cannot be read, in which
+     *         case the last two samples are kept
+     */
+    public boolean sample() {
+        long[] next = mNext;
+        for (int i = 0; i < NUM_FIELDS; i++) {
+            next[i] = 0;
+        }
+        if (mSysfs.read(mMeminfoNode, mBuffer) <= 0) {
+            return false;
+        }
+        parse(mBuffer, next);
+        if (mSysfs.read(mVmstatNode, mBuffer) <= 0) {
+            return false;
+        }
+        parse(mBuffer, next);
+
+        // Rotate the arrays so a sample creates no objects
+        mNext = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = next;
+        mPreviousMillis = mCurrentMillis;
+        mCurrentMillis = SystemClock.uptimeMillis();
+        return true;
+    }
+
+    /**
+     * Get a field of the last sample
+     */
+    public long get(int field) {
+        return mCurrent[field];
+    }
+
+    /**
+     * Get the uptime of the last sample in milliseconds, or 0 if none was taken
+     */
+    public long getSampleMillis() {
+        return mCurrentMillis;
+    }
+
+    /**
+     * Get the time between the last two samples in milliseconds, or 0 if there
+     * are not two samples
+     */
+    public long getIntervalMillis() {
+        return mPreviousMillis > 0 ? mCurrentMillis - mPreviousMillis : 0;
+    }
+
+    /**
+     * Get the increase of a counter between the last two samples
+     */
+    public long getDelta(int counter) {
+        if (counter < FIRST_COUNTER || mPreviousMillis == 0) {
+            return 0;
+        }
+        return Math.max(0, mCurrent[counter] - mPrevious[counter]);
+    }
+
+    /**
+     * Get the rate of a counter between the last two samples, per second
+     */
+    public long getRate(int counter) {
+        long interval = getIntervalMillis();
+        return interval > 0 ? getDelta(counter) * 1000 / interval : 0;
+    }
+
+    /**
+     * Get the share of the pages scanned between the last two samples that
+     * were reclaimed, in permille, or 1000 if nothing was scanned
+     */
+    public int getReclaimEfficiency() {
+        long scanned = getDelta(SCAN_KSWAPD) + getDelta(SCAN_DIRECT);
+        long stolen = getDelta(STEAL_KSWAPD) + getDelta(STEAL_DIRECT);
+        return scanned > 0 ? (int) Math.min(1000, stolen * 1000 / scanned) : 1000;
+    }
+
+    /**
+     * Get the available memory share of the last sample, in percent
+     */
+    public int getAvailablePercent() {
+        long total = mCurrent[MEM_TOTAL];
+        return total > 0 ? (int) (mCurrent[MEM_AVAILABLE] * 100 / total) : 100;
+    }
+
+    /**
+     * Summarize the last sample and the rates since the previous one
+     */
+    public String summarize() {
+        return "available " + mCurrent[MEM_AVAILABLE] / 1024 + "/" + mCurrent[MEM_TOTAL] / 1024 + "MB" +
+               ", swap free " + mCurrent[SWAP_FREE] / 1024 + "/" + mCurrent[SWAP_TOTAL] / 1024 + "MB" +
+               " | per second over " + getIntervalMillis() + "ms: scan " + getRate(SCAN_KSWAPD) +
+               "+" + getRate(SCAN_DIRECT) + " direct, steal " + getRate(STEAL_KSWAPD) +
+               "+" + getRate(STEAL_DIRECT) + " direct, efficiency " + getReclaimEfficiency() / 10 + "%" +
+               ", refault " + getRate(REFAULT) + ", swap in " + getRate(SWAP_IN) +
+               " out " + getRate(SWAP_OUT) + ", alloc stall " + getRate(ALLOC_STALL) +
+               ", compact stall " + getRate(COMPACT_STALL) + ", major fault " + getRate(MAJOR_FAULT);
+    }
+
+    /**
+     * Parse "name: value" or "name value" lines into the fields of a sample
+     */
+    private static void parse(ByteBuffer buffer, long[] fields) {
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            int nameStart = pos;
+            int hash = 0;
+            while (pos < limit && buffer.get(pos) != ':' && buffer.get(pos) != ' ' && buffer.get(pos) != '\n') {
+                hash = hash * 31 + buffer.get(pos++);
+            }
+            int key = lookup(buffer, nameStart, pos - nameStart, hash);
+
+            if (key >= 0) {
+                while (pos < limit && (buffer.get(pos) < '0' || buffer.get(pos) > '9') && buffer.get(pos) != '\n') {
+                    pos++;
+                }
+                long value = 0;
+                while (pos < limit && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+                    value = value * 10 + (buffer.get(pos++) - '0');
+                }
+                fields[KEY_FIELDS[key]] += value;
+            }
+
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Find the key of a line name
+     * @return the key index, or -1 if the name is not sampled
+     */
+    private static int lookup(ByteBuffer buffer, int start, int length, int hash) {
+        int slot = hash & (TABLE_SIZE - 1);
+        while (KEY_TABLE[slot] != 0) {
+            int key = KEY_TABLE[slot] - 1;
+            if (KEY_HASHES[key] == hash && equals(buffer, start, length, KEY_BYTES[key])) {
+                return key;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private static boolean equals(ByteBuffer buffer, int start, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
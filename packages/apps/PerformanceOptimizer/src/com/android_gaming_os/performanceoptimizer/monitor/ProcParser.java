@@ -0,0 +1,113 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses files of /proc in place from a buffer holding the whole file, from
+ * position 0 to the limit, so reading a field creates no objects.
+ */
+public final class ProcParser {
+    private ProcParser() {
+    }
+
+    /**
+     * Find the position of a field of a stat file, numbered from 1 as in
+     * proc(5). The fields after the command name, which may contain spaces
+     * and parentheses, are counted from its last closing parenthesis.
+     * @param field field number, 3 or above
+     * @return the position, or -1 if the file has fewer fields
+     */
+    public static int findStatField(ByteBuffer buffer, int field) {
+        int pos = buffer.limit() - 1;
+        while (pos >= 0 && buffer.get(pos) != ')') {
+            pos--;
+        }
+        if (pos < 0) {
+            return -1;
+        }
+        return skipFields(buffer, pos + 2, field - 3);
+    }
+
+    /**
+     * Skip space separated fields
+     * @param pos position of a field
+     * @return the position of the field count fields later, or -1 if there is none
+     */
+    public static int skipFields(ByteBuffer buffer, int pos, int count) {
+        int limit = buffer.limit();
+        for (int i = 0; i < count; i++) {
+            while (pos < limit && buffer.get(pos) != ' ') {
+                pos++;
+            }
+            pos++;
+        }
+        return pos < limit ? pos : -1;
+    }
+
+    /**
+     * Parse a field of a stat file
+     * @return the value, or -1 if the file has fewer fields
+     */
+    public static long parseStatField(ByteBuffer buffer, int field) {
+        int pos = findStatField(buffer, field);
+        return pos >= 0 ? parseLong(buffer, pos) : -1;
+    }
+
+    /**
+     * Find the value of a "Name: value" line
+     * @return the value, or -1 if the line is missing
+     */
+    public static long findValue(ByteBuffer buffer, byte[] key) {
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            if (startsWith(buffer, pos, key)) {
+                return parseLong(buffer, pos + key.length);
+            }
+            while (pos < limit && buffer.get(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a decimal number at a position, skipping leading blanks
+     */
+    public static long parseLong(ByteBuffer buffer, int pos) {
+        int limit = buffer.limit();
+        while (pos < limit && (buffer.get(pos) == ' ' || buffer.get(pos) == '\t')) {
+            pos++;
+        }
+        boolean negative = pos < limit && buffer.get(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        long value = 0;
+        while (pos < limit && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+            value = value * 10 + (buffer.get(pos++) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Encode a line name for {@link #findValue}
+     */
+    public static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int pos, byte[] key) {
+        if (pos + key.length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(pos + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
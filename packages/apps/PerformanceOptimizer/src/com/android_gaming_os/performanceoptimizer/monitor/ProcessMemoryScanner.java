@@ -0,0 +1,463 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory of every process from /proc.
+ * Reading /proc/<pid>/smaps_rollup walks the page tables of the process, so
+ * the processes are read in parallel on a small pool whose workers each
+ * reuse one parse buffer. A scan produces an immutable snapshot with one
+ * primitive array per column, sorted by pid. A refresh reads only
+ * /proc/<pid>/stat and oom_score_adj of the processes in the previous
+ * snapshot and keeps their memory row unless the process is new, faulted
+ * pages in or ran since, or the row is old enough that reclaim may have
+ * swapped it out; idle background processes are then not walked at all.
+ */
+public class ProcessMemoryScanner {
+    private static final String TAG = "ProcessMemoryScanner";
+
+    private static final String PROC_PATH = "/proc/";
+    private static final String STAT = "/stat";
+    private static final String STATUS = "/status";
+    private static final String OOM_SCORE_ADJ = "/oom_score_adj";
+    private static final String SMAPS_ROLLUP = "/smaps_rollup";
+
+    // Maximum number of workers
+    private static final int MAX_THREADS = 4;
+
+    // Time after which a refresh reads the memory of an idle process again, in milliseconds
+    private static final long MAX_ROW_AGE_MS = 30000;
+
+    // Fields of smaps_rollup, in kB
+    private static final int RSS = 0;
+    private static final int PSS = 1;
+    private static final int PSS_ANON = 2;
+    private static final int PSS_FILE = 3;
+    private static final int SWAP = 4;
+    private static final int SWAP_PSS = 5;
+    private static final byte[][] ROLLUP_KEYS = {
+        ProcParser.ascii("Rss:"), ProcParser.ascii("Pss:"), ProcParser.ascii("Pss_Anon:"), ProcParser.ascii("Pss_File:"), ProcParser.ascii("Swap:"), ProcParser.ascii("SwapPss:"),
+    };
+    private static final byte[] UID_KEY = ProcParser.ascii("Uid:");
+
+    // Fields of stat: minflt, majflt, utime and stime, summed as the activity
+    // of a process, and starttime
+    private static final int[] ACTIVITY_FIELDS = { 10, 12, 14, 15 };
+    private static final int START_TIME_FIELD = 22;
+
+    /**
+     * Memory of all processes at one scan, one array per column. Row i of
+     * each column belongs to the process getPid(i).
+     */
+    public static final class Snapshot {
+        int mSize;
+        final int[] mPids;
+        final int[] mUids;
+        final int[] mOomScoreAdj;
+        final long[] mRssKb;
+        final long[] mPssKb;
+        final long[] mPssAnonKb;
+        final long[] mPssFileKb;
+        final long[] mSwapKb;
+
+        // Start time and fault and CPU time counters from stat, and uptime of
+        // the last smaps_rollup read, to find the rows a refresh can keep
+        final long[] mStartTime;
+        final long[] mActivity;
+        final long[] mReadMillis;
+
+        long mScanMillis;
+        int mReadCount;
+
+        Snapshot(int capacity) {
+            mPids = new int[capacity];
+            mUids = new int[capacity];
+            mOomScoreAdj = new int[capacity];
+            mRssKb = new long[capacity];
+            mPssKb = new long[capacity];
+            mPssAnonKb = new long[capacity];
+            mPssFileKb = new long[capacity];
+            mSwapKb = new long[capacity];
+            mStartTime = new long[capacity];
+            mActivity = new long[capacity];
+            mReadMillis = new long[capacity];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Find the row of a process
+         * @return the row, or -1 if the process was not running at the scan
+         */
+        public int indexOf(int pid) {
+            int index = Arrays.binarySearch(mPids, 0, mSize, pid);
+            return index >= 0 ? index : -1;
+        }
+
+        public int getPid(int index) {
+            return mPids[index];
+        }
+
+        public int getUid(int index) {
+            return mUids[index];
+        }
+
+        public int getOomScoreAdj(int index) {
+            return mOomScoreAdj[index];
+        }
+
+        public long getRssKb(int index) {
+            return mRssKb[index];
+        }
+
+        public long getPssKb(int index) {
+            return mPssKb[index];
+        }
+
+        public long getPssAnonKb(int index) {
+            return mPssAnonKb[index];
+        }
+
+        public long getPssFileKb(int index) {
+            return mPssFileKb[index];
+        }
+
+        /**
+         * Get the swap of a process, proportional where the kernel reports it
+         */
+        public long getSwapKb(int index) {
+            return mSwapKb[index];
+        }
+
+        /**
+         * Get the uptime of the scan in milliseconds
+         */
+        public long getScanMillis() {
+            return mScanMillis;
+        }
+
+        /**
+         * Get the number of processes whose memory this scan read, rather
+         * than kept from the previous one
+         */
+        public int getReadCount() {
+            return mReadCount;
+        }
+
+        public long getTotalPssKb() {
+            long total = 0;
+            for (int i = 0; i < mSize; i++) {
+                total += mPssKb[i];
+            }
+            return total;
+        }
+
+        /**
+         * Summarize the totals and the processes with the largest PSS
+         */
+        public String summarize(int top) {
+            int[] order = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                order[i] = i;
+            }
+
+            long swapKb = 0;
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < mSize; i++) {
+                swapKb += mSwapKb[i];
+            }
+            sb.append(mSize).append(" processes, pss ").append(getTotalPssKb() / 1024)
+              .append("MB, swap ").append(swapKb / 1024).append("MB;");
+
+            // Partial selection sort of the largest rows
+            for (int n = 0; n < Math.min(top, mSize); n++) {
+                int largest = n;
+                for (int i = n + 1; i < mSize; i++) {
+                    if (mPssKb[order[i]] > mPssKb[order[largest]]) {
+                        largest = i;
+                    }
+                }
+                int row = order[largest];
+                order[largest] = order[n];
+                order[n] = row;
+
+                sb.append(" pid ").append(mPids[row]).append(" uid ").append(mUids[row])
+                  .append(" adj ").append(mOomScoreAdj[row]).append(": pss ").append(mPssKb[row] / 1024)
+                  .append("MB (anon ").append(mPssAnonKb[row] / 1024).append(" file ")
+                  .append(mPssFileKb[row] / 1024).append("), swap ").append(mSwapKb[row] / 1024).append("MB;");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads a stripe of the rows of a scan with its own buffer
+     */
+    private final class Worker implements Callable<Void> {
+        private final int mStart;
+        private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(4096);
+        private final long[] mRollup = new long[ROLLUP_KEYS.length];
+
+        // Scan in progress
+        Snapshot mSnapshot;
+        Snapshot mPrevious;
+        int mStride;
+        int mReadCount;
+
+        Worker(int start) {
+            mStart = start;
+        }
+
+        @Override
+        public Void call() {
+            mReadCount = 0;
+            for (int i = mStart; i < mSnapshot.mSize; i += mStride) {
+                scanRow(i);
+            }
+            return null;
+        }
+
+        /**
+         * Fill a row, keeping the previous memory of a process that did not change
+         */
+        private void scanRow(int i) {
+            Snapshot s = mSnapshot;
+            String dir = PROC_PATH + s.mPids[i];
+
+            // A process that exited is dropped from the snapshot
+            if (read(dir + STAT) <= 0 || !parseStat(s, i)) {
+                s.mStartTime[i] = -1;
+                return;
+            }
+            s.mOomScoreAdj[i] = read(dir + OOM_SCORE_ADJ) > 0 ? (int) ProcParser.parseLong(mBuffer, 0) : 0;
+
+            int prev = mPrevious != null ? mPrevious.indexOf(s.mPids[i]) : -1;
+            if (prev >= 0 && mPrevious.mStartTime[prev] == s.mStartTime[i]
+                    && mPrevious.mActivity[prev] == s.mActivity[i]
+                    && s.mScanMillis - mPrevious.mReadMillis[prev] < MAX_ROW_AGE_MS) {
+                s.mUids[i] = mPrevious.mUids[prev];
+                s.mRssKb[i] = mPrevious.mRssKb[prev];
+                s.mPssKb[i] = mPrevious.mPssKb[prev];
+                s.mPssAnonKb[i] = mPrevious.mPssAnonKb[prev];
+                s.mPssFileKb[i] = mPrevious.mPssFileKb[prev];
+                s.mSwapKb[i] = mPrevious.mSwapKb[prev];
+                s.mReadMillis[i] = mPrevious.mReadMillis[prev];
+                return;
+            }
+
+            s.mUids[i] = read(dir + STATUS) > 0 ? (int) ProcParser.findValue(mBuffer, UID_KEY) : -1;
+
+            // Kernel threads have no memory and an empty rollup
+            Arrays.fill(mRollup, -1);
+            if (read(dir + SMAPS_ROLLUP) > 0) {
+                for (int key = 0; key < ROLLUP_KEYS.length; key++) {
+                    mRollup[key] = ProcParser.findValue(mBuffer, ROLLUP_KEYS[key]);
+                }
+            }
+            s.mRssKb[i] = Math.max(0, mRollup[RSS]);
+            s.mPssKb[i] = Math.max(0, mRollup[PSS]);
+            s.mPssAnonKb[i] = Math.max(0, mRollup[PSS_ANON]);
+            s.mPssFileKb[i] = Math.max(0, mRollup[PSS_FILE]);
+            s.mSwapKb[i] = Math.max(0, mRollup[SWAP_PSS] >= 0 ? mRollup[SWAP_PSS] : mRollup[SWAP]);
+            s.mReadMillis[i] = s.mScanMillis;
+            mReadCount++;
+        }
+
+        /**
+         * Read a file of a process into the buffer, bypassing the node cache
+         * that other workers would otherwise share
+         */
+        private int read(String path) {
+            return mSysfs.readOnce(path, mBuffer);
+        }
+
+        /**
+         * Parse the start time and the sum of the fault and CPU time counters
+         * from the stat file in the buffer
+         */
+        private boolean parseStat(Snapshot s, int i) {
+            int pos = ProcParser.findStatField(mBuffer, ACTIVITY_FIELDS[0]);
+            long activity = 0;
+            for (int f = 0; f < ACTIVITY_FIELDS.length && pos >= 0; f++) {
+                activity += ProcParser.parseLong(mBuffer, pos);
+                int next = f + 1 < ACTIVITY_FIELDS.length ? ACTIVITY_FIELDS[f + 1] : START_TIME_FIELD;
+                pos = ProcParser.skipFields(mBuffer, pos, next - ACTIVITY_FIELDS[f]);
+            }
+            if (pos < 0) {
+                return false;
+            }
+            s.mStartTime[i] = ProcParser.parseLong(mBuffer, pos);
+            s.mActivity[i] = activity;
+            return true;
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+    private final ThreadPoolExecutor mPool;
+    private final Worker[] mWorkers;
+    private final List<Worker> mTasks;
+
+    private volatile Snapshot mSnapshot;
+
+    public ProcessMemoryScanner(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors() / 2));
+        mPool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + "-" + mCount++);
+                    }
+                });
+        mPool.allowCoreThreadTimeOut(true);
+
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        mTasks = Arrays.asList(mWorkers);
+    }
+
+    /**
+     * Get the last snapshot, or null if none was taken
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Read the memory of all processes
+     * @return the new snapshot, or null if /proc cannot be listed
+     */
+    public synchronized Snapshot scan() {
+        return scan(null);
+    }
+
+    /**
+     * Read the memory of the processes that changed since the last snapshot,
+     * and keep the rest
+     * @return the new snapshot, or null if /proc cannot be listed
+     */
+    public synchronized Snapshot refresh() {
+        return scan(mSnapshot);
+    }
+
+    private Snapshot scan(Snapshot previous) {
+        long startNanos = System.nanoTime();
+        int[] pids = listPids();
+        if (pids == null) {
+            return null;
+        }
+
+        Snapshot snapshot = new Snapshot(pids.length);
+        System.arraycopy(pids, 0, snapshot.mPids, 0, pids.length);
+        snapshot.mSize = pids.length;
+        snapshot.mScanMillis = SystemClock.uptimeMillis();
+
+        for (Worker worker : mWorkers) {
+            worker.mSnapshot = snapshot;
+            worker.mPrevious = previous;
+            worker.mStride = mWorkers.length;
+        }
+        try {
+            for (Future<Void> future : mPool.invokeAll(mTasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Error scanning processes", e.getCause());
+            return null;
+        } finally {
+            for (Worker worker : mWorkers) {
+                snapshot.mReadCount += worker.mReadCount;
+                worker.mSnapshot = null;
+                worker.mPrevious = null;
+            }
+        }
+
+        compact(snapshot);
+        mSnapshot = snapshot;
+        Log.i(TAG, "Scanned " + snapshot.mSize + " processes, read " + snapshot.mReadCount + " in " +
+                   (System.nanoTime() - startNanos) / 1000000 + "ms on " + mWorkers.length + " threads");
+        return snapshot;
+    }
+
+    /**
+     * List the pids in /proc in ascending order
+     */
+    private int[] listPids() {
+        String[] names = mSysfs.list(PROC_PATH);
+        if (names == null) {
+            Log.e(TAG, "Cannot list " + PROC_PATH);
+            return null;
+        }
+
+        int[] pids = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.isEmpty() && Character.isDigit(name.charAt(0))) {
+                try {
+                    pids[count++] = Integer.parseInt(name);
+                } catch (NumberFormatException e) {
+                    count--;
+                }
+            }
+        }
+        pids = Arrays.copyOf(pids, count);
+        Arrays.sort(pids);
+        return pids;
+    }
+
+    /**
+     * Drop the rows of the processes that exited during the scan
+     */
+    private static void compact(Snapshot s) {
+        int size = 0;
+        for (int i = 0; i < s.mSize; i++) {
+            if (s.mStartTime[i] < 0) {
+                continue;
+            }
+            s.mPids[size] = s.mPids[i];
+            s.mUids[size] = s.mUids[i];
+            s.mOomScoreAdj[size] = s.mOomScoreAdj[i];
+            s.mRssKb[size] = s.mRssKb[i];
+            s.mPssKb[size] = s.mPssKb[i];
+            s.mPssAnonKb[size] = s.mPssAnonKb[i];
+            s.mPssFileKb[size] = s.mPssFileKb[i];
+            s.mSwapKb[size] = s.mSwapKb[i];
+            s.mStartTime[size] = s.mStartTime[i];
+            s.mActivity[size] = s.mActivity[i];
+            s.mReadMillis[size] = s.mReadMillis[i];
+            size++;
+        }
+        s.mSize = size;
+    }
+}
@@ -0,0 +1,459 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Table of the running processes, kept up to date from /proc.
+ * An update lists /proc and reads the start time of each pid from its stat
+ * file; a pid that is new or whose start time changed is a started process,
+ * and a pid that is gone is an exited one. Only started processes have their
+ * name and uid read, so the table costs one small read per process instead
+ * of a binder call that rebuilds the whole process list. Rows live in an
+ * open addressing table keyed by pid, and the packages of a uid are looked
+ * up once per uid.
+ * A process forked from the zygote carries the zygote name and uid until it
+ * specializes, so it is read again on each update and reported as started
+ * once it has its own name.
+ */
+public class ProcessTable {
+    private static final String TAG = "ProcessTable";
+
+    private static final String PROC_PATH = "/proc/";
+    private static final String STAT = "/stat";
+    private static final String STATUS = "/status";
+    private static final String CMDLINE = "/cmdline";
+
+    // Names of processes that have not specialized yet
+    private static final String[] UNSPECIALIZED_PREFIXES = { "zygote", "usap", "<pre-initialized>" };
+
+    // Minimum time between updates, in milliseconds
+    private static final long MIN_UPDATE_INTERVAL_MS = 500;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final byte[] UID_KEY = ProcParser.ascii("Uid:");
+    private static final String[] NO_PACKAGES = new String[0];
+
+    /**
+     * Receives process lifecycle events, on the thread that updates the table.
+     * Processes running at the first update are not reported.
+     */
+    public interface Listener {
+        void onProcessStarted(int pid, int uid, String name);
+
+        void onProcessExited(int pid, int uid, String name);
+    }
+
+    /**
+     * An event collected during an update and delivered after it
+     */
+    private static final class Event {
+        final boolean mStarted;
+        final int mPid;
+        final int mUid;
+        final String mName;
+
+        Event(boolean started, int pid, int uid, String name) {
+            mStarted = started;
+            mPid = pid;
+            mUid = uid;
+            mName = name;
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+    private final PackageManager mPackageManager;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(4096);
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    // Rows by slot, with pid 0 marking a free slot
+    private int[] mPids;
+    private int[] mUids;
+    private long[] mStartTimes;
+    private String[] mNames;
+    private boolean[] mSpecialized;
+    private int[] mSeen;
+    private int mSize;
+
+    private final Map<String, Integer> mPidsByName = new HashMap<>();
+    private final Map<Integer, String[]> mPackagesByUid = new HashMap<>();
+    private final List<Event> mEvents = new ArrayList<>();
+    private int mGeneration;
+    private long mUpdateMillis;
+
+    public ProcessTable(SysfsEngine sysfs, PackageManager packageManager) {
+        mSysfs = sysfs;
+        mPackageManager = packageManager;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Bring the table up to date with /proc, unless it was updated within
+     * MIN_UPDATE_INTERVAL_MS, and deliver the lifecycle events
+     * @return false if /proc cannot be listed
+     */
+    public boolean update() {
+        List<Event> events;
+        synchronized (this) {
+            long now = SystemClock.uptimeMillis();
+            if (mGeneration > 0 && now - mUpdateMillis < MIN_UPDATE_INTERVAL_MS) {
+                return true;
+            }
+            if (!diff()) {
+                return false;
+            }
+            mUpdateMillis = now;
+            if (mEvents.isEmpty()) {
+                return true;
+            }
+            events = new ArrayList<>(mEvents);
+            mEvents.clear();
+        }
+
+        for (Event event : events) {
+            for (Listener listener : mListeners) {
+                if (event.mStarted) {
+                    listener.onProcessStarted(event.mPid, event.mUid, event.mName);
+                } else {
+                    listener.onProcessExited(event.mPid, event.mUid, event.mName);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the pid of a process by name, such as the package name of the
+     * main process of an app
+     * @return the pid, or 0 if no such process is running
+     */
+    public synchronized int findPid(String name) {
+        Integer pid = mPidsByName.get(name);
+        return pid != null ? pid : 0;
+    }
+
+    /**
+     * Get the uid of a process
+     * @return the uid, or -1 if the process is not in the table
+     */
+    public synchronized int getUid(int pid) {
+        int slot = find(pid);
+        return slot >= 0 ? mUids[slot] : -1;
+    }
+
+    /**
+     * Get the name of a process
+     * @return the name, or null if the process is not in the table
+     */
+    public synchronized String getName(int pid) {
+        int slot = find(pid);
+        return slot >= 0 ? mNames[slot] : null;
+    }
+
+    /**
+     * Get the number of processes in the table
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Get the packages that run as a uid, looked up once per uid
+     * @return the packages, or an empty array if the uid has none
+     */
+    public synchronized String[] getPackages(int uid) {
+        String[] packages = mPackagesByUid.get(uid);
+        if (packages == null) {
+            packages = mPackageManager.getPackagesForUid(uid);
+            if (packages == null) {
+                packages = NO_PACKAGES;
+            }
+            mPackagesByUid.put(uid, packages);
+        }
+        return packages;
+    }
+
+    /**
+     * Diff /proc against the table, collecting events
+     */
+    private boolean diff() {
+        String[] entries = mSysfs.list(PROC_PATH);
+        if (entries == null) {
+            Log.e(TAG, "Cannot list " + PROC_PATH);
+            return false;
+        }
+
+        boolean report = mGeneration > 0;
+        mGeneration++;
+        for (String entry : entries) {
+            int pid = parsePid(entry);
+            if (pid <= 0) {
+                continue;
+            }
+            String dir = PROC_PATH + pid;
+            long startTime = readStartTime(dir);
+            if (startTime < 0) {
+                continue;
+            }
+
+            // A pid with a new start time was reused by another process
+            int slot = find(pid);
+            if (slot >= 0 && mStartTimes[slot] != startTime) {
+                exit(slot, report);
+                slot = -1;
+            }
+            if (slot < 0) {
+                slot = insert(pid, startTime);
+            }
+            mSeen[slot] = mGeneration;
+
+            if (!mSpecialized[slot]) {
+                specialize(slot, dir, report);
+            }
+        }
+
+        // Collect the exited pids first, since removal moves rows
+        int[] exited = null;
+        int count = 0;
+        for (int slot = 0; slot < mPids.length; slot++) {
+            if (mPids[slot] != 0 && mSeen[slot] != mGeneration) {
+                if (exited == null) {
+                    exited = new int[mSize];
+                }
+                exited[count++] = mPids[slot];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            exit(find(exited[i]), report);
+        }
+        return true;
+    }
+
+    /**
+     * Read the name and uid of a process, and report it as started once it
+     * no longer runs under a zygote name
+     */
+    private void specialize(int slot, String dir, boolean report) {
+        String name = readCmdline(dir);
+        if (name == null) {
+            return;
+        }
+        for (String prefix : UNSPECIALIZED_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                mNames[slot] = name;
+                return;
+            }
+        }
+
+        mNames[slot] = name;
+        mUids[slot] = read(dir + STATUS) > 0 ? (int) ProcParser.findValue(mBuffer, UID_KEY) : -1;
+        mSpecialized[slot] = true;
+
+        // Kernel threads have no command line
+        if (!name.isEmpty()) {
+            mPidsByName.put(name, mPids[slot]);
+        }
+        if (report) {
+            mEvents.add(new Event(true, mPids[slot], mUids[slot], name));
+        }
+    }
+
+    /**
+     * Remove a process from the table, reporting it as exited
+     */
+    private void exit(int slot, boolean report) {
+        int pid = mPids[slot];
+        String name = mNames[slot];
+        if (mSpecialized[slot] && name != null && !name.isEmpty()) {
+            Integer named = mPidsByName.get(name);
+            if (named != null && named == pid) {
+                mPidsByName.remove(name);
+            }
+        }
+        if (report && mSpecialized[slot]) {
+            mEvents.add(new Event(false, pid, mUids[slot], name));
+        }
+        remove(slot);
+    }
+
+    /**
+     * Find the slot of a pid
+     * @return the slot, or -1 if the pid is not in the table
+     */
+    private int find(int pid) {
+        int mask = mPids.length - 1;
+        for (int slot = hash(pid) & mask; mPids[slot] != 0; slot = (slot + 1) & mask) {
+            if (mPids[slot] == pid) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insert a pid that is not in the table, growing it beyond half full
+     * @return the slot of the new row
+     */
+    private int insert(int pid, long startTime) {
+        if ((mSize + 1) * 2 > mPids.length) {
+            grow();
+        }
+
+        int mask = mPids.length - 1;
+        int slot = hash(pid) & mask;
+        while (mPids[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        mPids[slot] = pid;
+        mUids[slot] = -1;
+        mStartTimes[slot] = startTime;
+        mNames[slot] = null;
+        mSpecialized[slot] = false;
+        mSize++;
+        return slot;
+    }
+
+    /**
+     * Remove a row, moving back the rows after it that would no longer be
+     * found past the freed slot
+     */
+    private void remove(int slot) {
+        int mask = mPids.length - 1;
+        int free = slot;
+        for (int next = (slot + 1) & mask; mPids[next] != 0; next = (next + 1) & mask) {
+            int home = hash(mPids[next]) & mask;
+
+            // Move the row unless its home lies cyclically in (free, next]
+            boolean reachable = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+            if (!reachable) {
+                move(next, free);
+                free = next;
+            }
+        }
+        mPids[free] = 0;
+        mNames[free] = null;
+        mSize--;
+    }
+
+    private void move(int from, int to) {
+        mPids[to] = mPids[from];
+        mUids[to] = mUids[from];
+        mStartTimes[to] = mStartTimes[from];
+        mNames[to] = mNames[from];
+        mSpecialized[to] = mSpecialized[from];
+        mSeen[to] = mSeen[from];
+    }
+
+    private void grow() {
+        int[] pids = mPids;
+        int[] uids = mUids;
+        long[] startTimes = mStartTimes;
+        String[] names = mNames;
+        boolean[] specialized = mSpecialized;
+        int[] seen = mSeen;
+
+        allocate(pids.length * 2);
+        int mask = mPids.length - 1;
+        for (int i = 0; i < pids.length; i++) {
+            if (pids[i] == 0) {
+                continue;
+            }
+            int slot = hash(pids[i]) & mask;
+            while (mPids[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            mPids[slot] = pids[i];
+            mUids[slot] = uids[i];
+            mStartTimes[slot] = startTimes[i];
+            mNames[slot] = names[i];
+            mSpecialized[slot] = specialized[i];
+            mSeen[slot] = seen[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mPids = new int[capacity];
+        mUids = new int[capacity];
+        mStartTimes = new long[capacity];
+        mNames = new String[capacity];
+        mSpecialized = new boolean[capacity];
+        mSeen = new int[capacity];
+    }
+
+    /**
+     * Spread sequential pids over the table
+     */
+    private static int hash(int pid) {
+        int hash = pid * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Read the start time of a process from its stat file, in clock ticks
+     * @return the start time, or -1 if the process exited
+     */
+    private long readStartTime(String dir) {
+        if (read(dir + STAT) <= 0) {
+            return -1;
+        }
+
+        // The start time is field 22
+        return ProcParser.parseStatField(mBuffer, 22);
+    }
+
+    /**
+     * Read the command line of a process up to the first argument
+     * @return the name, empty for kernel threads, or null if the process exited
+     */
+    private String readCmdline(String dir) {
+        int length = read(dir + CMDLINE);
+        if (length < 0) {
+            return null;
+        }
+        int end = 0;
+        while (end < length && mBuffer.get(end) != 0) {
+            end++;
+        }
+        mBuffer.limit(end);
+        return StandardCharsets.UTF_8.decode(mBuffer).toString();
+    }
+
+    /**
+     * Read a file of a process into the buffer, bypassing the node cache
+     * that other readers of /proc would otherwise share
+     */
+    private int read(String path) {
+        return mSysfs.readOnce(path, mBuffer);
+    }
+
+    private static int parsePid(String entry) {
+        int pid = 0;
+        for (int i = 0; i < entry.length(); i++) {
+            char c = entry.charAt(i);
+            if (c < '0' || c > '9' || pid > Integer.MAX_VALUE / 10) {
+                return -1;
+            }
+            pid = pid * 10 + (c - '0');
+        }
+        return pid;
+    }
+}
@@ -0,0 +1,545 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.io.SysfsNode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the time each frequency domain spent at each frequency.
+ * CPU policies are read from cpufreq/stats/time_in_state and total_trans,
+ * devfreq devices such as the GPU from their trans_stat table. The counters
+ * are captured into primitive arrays of a {@link Snapshot}, parsed in place
+ * from a reused direct buffer, so a capture creates no objects.
+ * Snapshots are taken at session start, at every mark and at intervals on a
+ * dedicated thread, and the residency between two of them is their delta.
+ */
+public class ResidencyCollector {
+    private static final String TAG = "ResidencyCollector";
+
+    // Formats of the residency nodes
+    private static final int FORMAT_TIME_IN_STATE = 0; // "<kHz> <10ms>" per line
+    private static final int FORMAT_TRANS_STAT = 1;    // devfreq table, Hz and ms in the last column
+
+    // time_in_state counts in USER_HZ ticks of 10ms
+    private static final int MS_PER_TICK = 10;
+    private static final int HZ_PER_KHZ = 1000;
+
+    // Frequencies read per domain
+    private static final int MAX_FREQUENCIES = 64;
+
+    // Residency shares below this are left out of summaries, in permille
+    private static final int SUMMARY_MIN_PERMILLE = 10;
+
+    /**
+     * Residency counters of all domains at one time, or between two times
+     */
+    public static final class Snapshot {
+        // Residency in ms per domain and frequency index
+        private final long[][] mResidencyMs;
+        private final long[] mTransitions;
+        private final boolean[] mValid;
+        private long mUptimeMillis;
+
+        Snapshot(long[][] residencyMs, long[] transitions) {
+            mResidencyMs = residencyMs;
+            mTransitions = transitions;
+            mValid = new boolean[transitions.length];
+        }
+
+        /**
+         * Get the time of the snapshot, or the length of a delta, in milliseconds
+         */
+        public long getUptimeMillis() {
+            return mUptimeMillis;
+        }
+
+        /**
+         * Check if the counters of a domain were read. A delta is valid only
+         * if both of its snapshots are, and an invalid domain counts no time.
+         */
+        public boolean isValid(int domain) {
+            return mValid[domain];
+        }
+
+        /**
+         * Get the time a domain spent at a frequency index, in milliseconds
+         */
+        public long getResidencyMs(int domain, int index) {
+            return mResidencyMs[domain][index];
+        }
+
+        /**
+         * Get the total time counted for a domain, in milliseconds
+         */
+        public long getTotalMs(int domain) {
+            long total = 0;
+            for (long residency : mResidencyMs[domain]) {
+                total += residency;
+            }
+            return total;
+        }
+
+        /**
+         * Get the share of a frequency index in the time of a domain, in permille
+         */
+        public int getPermille(int domain, int index) {
+            long total = getTotalMs(domain);
+            return total > 0 ? (int) (mResidencyMs[domain][index] * 1000 / total) : 0;
+        }
+
+        /**
+         * Get the number of frequency transitions of a domain
+         */
+        public long getTransitions(int domain) {
+            return mTransitions[domain];
+        }
+
+        private void copyFrom(Snapshot other) {
+            for (int d = 0; d < mResidencyMs.length; d++) {
+                System.arraycopy(other.mResidencyMs[d], 0, mResidencyMs[d], 0, mResidencyMs[d].length);
+            }
+            System.arraycopy(other.mTransitions, 0, mTransitions, 0, mTransitions.length);
+            System.arraycopy(other.mValid, 0, mValid, 0, mValid.length);
+            mUptimeMillis = other.mUptimeMillis;
+        }
+    }
+
+    /**
+     * A CPU policy or devfreq device and its frequencies in kHz
+     */
+    private static final class Domain {
+        final String mName;
+        final int mFormat;
+        final SysfsNode mStatNode;
+        final SysfsNode mTransitionsNode;
+        final long[] mFrequencies;
+
+        // Counters of the last successful read
+        final long[] mLastResidencyMs;
+        long mLastTransitions;
+        boolean mCaptured;
+
+        Domain(String name, int format, SysfsNode statNode, SysfsNode transitionsNode, long[] frequencies) {
+            mName = name;
+            mFormat = format;
+            mStatNode = statNode;
+            mTransitionsNode = transitionsNode;
+            mFrequencies = frequencies;
+            mLastResidencyMs = new long[frequencies.length];
+        }
+    }
+
+    private final SysfsEngine mSysfs;
+    private final List<Domain> mDomains = new ArrayList<>();
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(16384);
+
+    // Rows of the node being parsed
+    private final long[] mRowFrequencies = new long[MAX_FREQUENCIES];
+    private final long[] mRowResidencyMs = new long[MAX_FREQUENCIES];
+    private long mParsedTransitions;
+
+    // Snapshots of the session, created by start
+    private Snapshot mSessionStart;
+    private Snapshot mMark;
+    private Snapshot mPrevious;
+    private Snapshot mCurrent;
+    private Snapshot mInterval;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private long mIntervalMs;
+
+    public ResidencyCollector(SysfsEngine sysfs) {
+        mSysfs = sysfs;
+    }
+
+    /**
+     * Add a CPU policy from its cpufreq directory
+     * @return true if the policy has frequency statistics
+     */
+    public synchronized boolean addCpuPolicy(String name, String cpufreqPath) {
+        return addDomain(name, FORMAT_TIME_IN_STATE, mSysfs.node(cpufreqPath + "stats/time_in_state"),
+                         mSysfs.node(cpufreqPath + "stats/total_trans"));
+    }
+
+    /**
+     * Add a devfreq device from its trans_stat node
+     * @return true if the device has frequency statistics
+     */
+    public synchronized boolean addDevfreq(String name, String transStatPath) {
+        return addDomain(name, FORMAT_TRANS_STAT, mSysfs.node(transStatPath), null);
+    }
+
+    private boolean addDomain(String name, int format, SysfsNode statNode, SysfsNode transitionsNode) {
+        if (mSessionStart != null) {
+            Log.e(TAG, "Cannot add " + name + " after collection started");
+            return false;
+        }
+
+        int rows = parse(statNode, format);
+        if (rows <= 0) {
+            Log.i(TAG, "No frequency statistics for " + name);
+            return false;
+        }
+
+        long[] frequencies = new long[rows];
+        System.arraycopy(mRowFrequencies, 0, frequencies, 0, rows);
+        mDomains.add(new Domain(name, format, statNode, transitionsNode, frequencies));
+
+        Log.i(TAG, "Collecting residency of " + name + " over " + rows + " frequencies");
+        return true;
+    }
+
+    /**
+     * Get the number of domains
+     */
+    public int getDomainCount() {
+        return mDomains.size();
+    }
+
+    /**
+     * Get the name of a domain
+     */
+    public String getDomainName(int domain) {
+        return mDomains.get(domain).mName;
+    }
+
+    /**
+     * Get the number of frequencies of a domain
+     */
+    public int getFrequencyCount(int domain) {
+        return mDomains.get(domain).mFrequencies.length;
+    }
+
+    /**
+     * Get a frequency of a domain in kHz
+     */
+    public long getFrequency(int domain, int index) {
+        return mDomains.get(domain).mFrequencies[index];
+    }
+
+    /**
+     * Create a snapshot sized for the domains
+     */
+    public synchronized Snapshot newSnapshot() {
+        long[][] residencyMs = new long[mDomains.size()][];
+        for (int d = 0; d < residencyMs.length; d++) {
+            residencyMs[d] = new long[mDomains.get(d).mFrequencies.length];
+        }
+        return new Snapshot(residencyMs, new long[mDomains.size()]);
+    }
+
+    /**
+     * Check if the collector is running
+     */
+    public synchronized boolean isRunning() {
+        return mThread != null;
+    }
+
+    /**
+     * Take the session start snapshot and capture at intervals until stopped
+     */
+    public synchronized void start(long intervalMs) {
+        if (mThread != null || mDomains.isEmpty()) {
+            return;
+        }
+
+        if (mSessionStart == null) {
+            mSessionStart = newSnapshot();
+            mMark = newSnapshot();
+            mPrevious = newSnapshot();
+            mCurrent = newSnapshot();
+            mInterval = newSnapshot();
+        }
+
+        capture(mSessionStart);
+        mMark.copyFrom(mSessionStart);
+        mPrevious.copyFrom(mSessionStart);
+        delta(mSessionStart, mSessionStart, mInterval);
+
+        mIntervalMs = intervalMs;
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.postDelayed(mCaptureRunnable, mIntervalMs);
+
+        Log.i(TAG, "Residency collection started for " + mDomains.size() + " domains");
+    }
+
+    /**
+     * Stop capturing and get the residency of the whole session
+     * @param out snapshot receiving the session residency, may be null
+     */
+    public synchronized void stop(Snapshot out) {
+        if (mThread == null) {
+            return;
+        }
+
+        mHandler.removeCallbacks(mCaptureRunnable);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+
+        if (out != null) {
+            capture(mCurrent);
+            delta(mSessionStart, mCurrent, out);
+        }
+
+        Log.i(TAG, "Residency collection stopped");
+    }
+
+    /**
+     * Get the residency since the last mark, or since session start, and start
+     * a new mark. Call it when a profile changes to get the residency under the
+     * previous profile.
+     * @return false if the collector is not running
+     */
+    public synchronized boolean mark(Snapshot out) {
+        if (mThread == null) {
+            return false;
+        }
+
+        capture(mCurrent);
+        delta(mMark, mCurrent, out);
+        mMark.copyFrom(mCurrent);
+        return true;
+    }
+
+    /**
+     * Get the residency since session start
+     * @return false if the collector is not running
+     */
+    public synchronized boolean getSessionResidency(Snapshot out) {
+        if (mThread == null) {
+            return false;
+        }
+
+        capture(mCurrent);
+        delta(mSessionStart, mCurrent, out);
+        return true;
+    }
+
+    /**
+     * Get the residency of the last completed interval
+     * @return false if the collector is not running
+     */
+    public synchronized boolean getIntervalResidency(Snapshot out) {
+        if (mThread == null) {
+            return false;
+        }
+
+        out.copyFrom(mInterval);
+        return true;
+    }
+
+    /**
+     * Runnable that captures an interval and schedules the next one
+     */
+    private final Runnable mCaptureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ResidencyCollector.this) {
+                if (mHandler == null) {
+                    return;
+                }
+
+                capture(mCurrent);
+                delta(mPrevious, mCurrent, mInterval);
+                mPrevious.copyFrom(mCurrent);
+                mHandler.postDelayed(this, mIntervalMs);
+            }
+        }
+    };
+
+    /**
+     * Capture the counters of all domains. A domain that cannot be read, such
+     * as a policy that is going offline and returns EBUSY, keeps the counters
+     * of its last successful read, so the next delta does not count its time
+     * since boot. It is invalid until it was read once.
+     */
+    public synchronized void capture(Snapshot out) {
+        for (int d = 0; d < mDomains.size(); d++) {
+            Domain domain = mDomains.get(d);
+            long[] residencyMs = out.mResidencyMs[d];
+
+            int rows = parse(domain.mStatNode, domain.mFormat);
+            if (rows > 0) {
+                // Frequencies that are missing keep no time
+                Arrays.fill(domain.mLastResidencyMs, 0);
+                for (int row = 0; row < rows; row++) {
+                    int index = indexOf(domain.mFrequencies, mRowFrequencies[row], row);
+                    if (index >= 0) {
+                        domain.mLastResidencyMs[index] = mRowResidencyMs[row];
+                    }
+                }
+
+                if (domain.mTransitionsNode != null) {
+                    long transitions = parseNumber(domain.mTransitionsNode);
+                    mParsedTransitions = transitions >= 0 ? transitions : domain.mLastTransitions;
+                }
+                domain.mLastTransitions = mParsedTransitions;
+                domain.mCaptured = true;
+            }
+
+            System.arraycopy(domain.mLastResidencyMs, 0, residencyMs, 0, residencyMs.length);
+            out.mTransitions[d] = domain.mLastTransitions;
+            out.mValid[d] = domain.mCaptured;
+        }
+        out.mUptimeMillis = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Compute the residency between two snapshots. Counters that went backwards,
+     * such as after a policy went offline and was reset, count as zero, and so
+     * do domains that are invalid in either snapshot.
+     */
+    public static void delta(Snapshot from, Snapshot to, Snapshot out) {
+        for (int d = 0; d < out.mResidencyMs.length; d++) {
+            long[] residencyMs = out.mResidencyMs[d];
+            boolean valid = from.mValid[d] && to.mValid[d];
+            for (int i = 0; i < residencyMs.length; i++) {
+                residencyMs[i] = valid ? Math.max(0, to.mResidencyMs[d][i] - from.mResidencyMs[d][i]) : 0;
+            }
+            out.mTransitions[d] = valid ? Math.max(0, to.mTransitions[d] - from.mTransitions[d]) : 0;
+            out.mValid[d] = valid;
+        }
+        out.mUptimeMillis = to.mUptimeMillis - from.mUptimeMillis;
+    }
+
+    /**
+     * Summarize a residency delta, listing the frequencies of each domain with
+     * at least one percent of its time
+     */
+    public String summarize(Snapshot delta) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(delta.mUptimeMillis / 1000).append("s:");
+        for (int d = 0; d < mDomains.size(); d++) {
+            Domain domain = mDomains.get(d);
+            sb.append(' ').append(domain.mName);
+            if (!delta.mValid[d]) {
+                sb.append(" [unreadable]");
+                continue;
+            }
+            sb.append(" [");
+            boolean first = true;
+            for (int i = 0; i < domain.mFrequencies.length; i++) {
+                int permille = delta.getPermille(d, i);
+                if (permille < SUMMARY_MIN_PERMILLE) {
+                    continue;
+                }
+                if (!first) {
+                    sb.append(' ');
+                }
+                sb.append(domain.mFrequencies[i] / 1000).append("MHz ").append(permille / 10).append('%');
+                first = false;
+            }
+            sb.append("] ").append(delta.mTransitions[d]).append(" transitions");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Find a frequency, trying the expected index first
+     */
+    private static int indexOf(long[] frequencies, long frequency, int expected) {
+        if (expected < frequencies.length && frequencies[expected] == frequency) {
+            return expected;
+        }
+        for (int i = 0; i < frequencies.length; i++) {
+            if (frequencies[i] == frequency) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the rows of a residency node into mRowFrequencies and
+     * mRowResidencyMs, and the transitions of a trans_stat table into
+     * mParsedTransitions
+     * @return the number of rows, or -1 if the node cannot be read
+     */
+    private int parse(SysfsNode node, int format) {
+        if (mSysfs.read(node, mBuffer) <= 0) {
+            return -1;
+        }
+
+        mParsedTransitions = 0;
+        ByteBuffer buffer = mBuffer;
+        int limit = buffer.limit();
+        int pos = 0;
+        int rows = 0;
+        while (pos < limit) {
+            // Skip the indentation and the marker of the current frequency
+            while (pos < limit && (buffer.get(pos) == ' ' || buffer.get(pos) == '*')) {
+                pos++;
+            }
+            boolean data = pos < limit && isDigit(buffer.get(pos));
+            boolean total = pos < limit && buffer.get(pos) == 'T';
+
+            // Rows start with their frequency and end with their time
+            long firstValue = -1;
+            long lastValue = -1;
+            while (pos < limit && buffer.get(pos) != '\n') {
+                if (isDigit(buffer.get(pos))) {
+                    long value = 0;
+                    while (pos < limit && isDigit(buffer.get(pos))) {
+                        value = value * 10 + (buffer.get(pos++) - '0');
+                    }
+                    if (firstValue < 0) {
+                        firstValue = value;
+                    }
+                    lastValue = value;
+                } else {
+                    pos++;
+                }
+            }
+            pos++;
+
+            if (data && rows < MAX_FREQUENCIES && lastValue >= 0) {
+                if (format == FORMAT_TIME_IN_STATE) {
+                    mRowFrequencies[rows] = firstValue;
+                    mRowResidencyMs[rows] = lastValue * MS_PER_TICK;
+                } else {
+                    mRowFrequencies[rows] = firstValue / HZ_PER_KHZ;
+                    mRowResidencyMs[rows] = lastValue;
+                }
+                rows++;
+            } else if (total && format == FORMAT_TRANS_STAT) {
+                // "Total transition : N"
+                mParsedTransitions = Math.max(0, lastValue);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Parse a node holding a single number
+     * @return the number, or -1 if the node cannot be read
+     */
+    private long parseNumber(SysfsNode node) {
+        if (mSysfs.read(node, mBuffer) <= 0) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int pos = 0; pos < mBuffer.limit() && isDigit(mBuffer.get(pos)); pos++) {
+            value = value * 10 + (mBuffer.get(pos) - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
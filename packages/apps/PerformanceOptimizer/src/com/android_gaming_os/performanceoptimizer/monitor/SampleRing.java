@@ -0,0 +1,145 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+/**
+ * Fixed-size ring of primitive samples with one value per channel.
+ * A single sampling thread writes the values of the next sample and publishes
+ * it; any number of consumers read the published samples without locking.
+ * A read is retried if the writer overtook the slot while it was being read.
+ */
+public final class SampleRing {
+    private final int mChannels;
+    private final int mMask;
+    private final int[] mValues;
+    private final long[] mTimes;
+
+    // Number of published samples; the pending sample is written at mCount
+    private volatile long mCount;
+
+    /**
+     * @param channels number of values per sample
+     * @param capacity number of samples kept, rounded up to a power of two
+     */
+    public SampleRing(int channels, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mChannels = channels;
+        mMask = size - 1;
+        mValues = new int[size * channels];
+        mTimes = new long[size];
+    }
+
+    /**
+     * Get the number of values per sample
+     */
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Get the number of samples kept
+     */
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Get the number of samples published so far
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Set a value of the pending sample. Only called by the writer.
+     */
+    public void put(int channel, int value) {
+        mValues[(int) (mCount & mMask) * mChannels + channel] = value;
+    }
+
+    /**
+     * Publish the pending sample. Only called by the writer.
+     */
+    public void publish(long timeMillis) {
+        mTimes[(int) (mCount & mMask)] = timeMillis;
+        mCount = mCount + 1;
+    }
+
+    /**
+     * Get a value of the latest sample, or a default if there is none
+     */
+    public int getLatest(int channel, int defValue) {
+        while (true) {
+            long count = mCount;
+            if (count == 0) {
+                return defValue;
+            }
+            int value = mValues[(int) ((count - 1) & mMask) * mChannels + channel];
+            if (isValid(count - 1)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Get the time of the latest sample, or 0 if there is none
+     */
+    public long getLatestTime() {
+        while (true) {
+            long count = mCount;
+            if (count == 0) {
+                return 0;
+            }
+            long time = mTimes[(int) ((count - 1) & mMask)];
+            if (isValid(count - 1)) {
+                return time;
+            }
+        }
+    }
+
+    /**
+     * Get the average of a value over the latest samples, or a default if there are none
+     * @param samples number of samples to average, limited to the capacity
+     */
+    public int getAverage(int channel, int samples, int defValue) {
+        while (true) {
+            long count = mCount;
+            int n = (int) Math.min(Math.min(samples, mMask), count);
+            if (n <= 0) {
+                return defValue;
+            }
+
+            long sum = 0;
+            for (long sample = count - n; sample < count; sample++) {
+                sum += mValues[(int) (sample & mMask) * mChannels + channel];
+            }
+            if (isValid(count - n)) {
+                return (int) (sum / n);
+            }
+        }
+    }
+
+    /**
+     * Copy a value of the latest samples into an array, oldest first
+     * @param samples maximum number of samples to copy
+     * @return the number of values copied
+     */
+    public int copy(int channel, int[] dst, int samples) {
+        while (true) {
+            long count = mCount;
+            int n = (int) Math.min(Math.min(Math.min(samples, dst.length), mMask), count);
+            for (int i = 0; i < n; i++) {
+                dst[i] = mValues[(int) ((count - n + i) & mMask) * mChannels + channel];
+            }
+            if (n == 0 || isValid(count - n)) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Check that a sample has not been overwritten by the writer
+     */
+    private boolean isValid(long sample) {
+        // The writer may be filling the slot of sample (mCount - capacity)
+        return mCount - sample <= mMask;
+    }
+}
@@ -0,0 +1,34 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CpuTopologyTest {
+
+    @Test
+    public void formatsRunsAsRanges() {
+        assertEquals("0-3,6", CpuTopology.formatCpuList(new int[] { 0, 1, 2, 3, 6 }));
+        assertEquals("4-5", CpuTopology.formatCpuList(new int[] { 4, 5 }));
+        assertEquals("7", CpuTopology.formatCpuList(new int[] { 7 }));
+        assertEquals("", CpuTopology.formatCpuList(new int[0]));
+    }
+
+    @Test
+    public void formatsUnsortedCpusInKernelOrder() {
+        int[] cpus = { 3, 1, 2, 1, 0 };
+        assertEquals("0-3", CpuTopology.formatCpuList(cpus));
+
+        // The CPUs of the caller are not reordered
+        assertArrayEquals(new int[] { 3, 1, 2, 1, 0 }, cpus);
+    }
+
+    @Test
+    public void parsesWhatItFormats() {
+        String[] lists = { "0-3,6", "0 1 2 3 6", "0,1,2,3,6" };
+        for (String list : lists) {
+            assertEquals("0-3,6", CpuTopology.formatCpuList(CpuTopology.parseCpuList(list)));
+        }
+    }
+}
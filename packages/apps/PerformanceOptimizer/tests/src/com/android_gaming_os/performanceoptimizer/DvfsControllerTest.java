@@ -0,0 +1,152 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DvfsControllerTest {
+    private static final int TARGET_US = 16666;
+
+    /**
+     * Domain with a fixed utilization that records the ranges written to it
+     */
+    private static final class FakeDomain implements FrequencyDomain {
+        final FrequencyTable mTable;
+        int mBusy;
+        int mMinIndex = -1;
+        int mMaxIndex = -1;
+        int mWrites;
+
+        FakeDomain(String frequencies, int busy) {
+            mTable = FrequencyTable.parse(frequencies, 1);
+            mBusy = busy;
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public CpuCluster getCluster() {
+            return null;
+        }
+
+        @Override
+        public FrequencyTable getFrequencyTable() {
+            return mTable;
+        }
+
+        @Override
+        public int getBusy() {
+            return mBusy;
+        }
+
+        @Override
+        public int getCurrentFrequency() {
+            return -1;
+        }
+
+        @Override
+        public boolean setRange(int minIndex, int maxIndex) {
+            if (minIndex < 0 || maxIndex >= mTable.size() || minIndex > maxIndex) {
+                throw new IllegalArgumentException(minIndex + "-" + maxIndex);
+            }
+            mMinIndex = minIndex;
+            mMaxIndex = maxIndex;
+            mWrites++;
+            return true;
+        }
+    }
+
+    private static DvfsController newController(FakeDomain... domains) {
+        List<FrequencyDomain> list = new ArrayList<FrequencyDomain>(Arrays.asList(domains));
+        DvfsController controller = new DvfsController(list);
+        controller.setTargetFrameTime(TARGET_US);
+        return controller;
+    }
+
+    private static void reportFrames(DvfsController controller, int frameUs) {
+        int[] frames = new int[10];
+        Arrays.fill(frames, frameUs);
+        controller.reportFrameTimes(frames);
+    }
+
+    @Test
+    public void emptyTableIsNotControlled() {
+        FakeDomain empty = new FakeDomain("", 1000);
+        FakeDomain cpu = new FakeDomain("300 600 900 1200 1500", 900);
+        DvfsController controller = newController(empty, cpu);
+
+        reportFrames(controller, TARGET_US * 2);
+        controller.control();
+        controller.setCapLimits(new int[] { 0, 2 });
+        reportFrames(controller, TARGET_US / 2);
+        controller.control();
+
+        assertEquals(0, empty.mWrites);
+        assertEquals(3, cpu.mMinIndex);
+    }
+
+    @Test
+    public void slowFramesRaiseFloorOfBottleneck() {
+        FakeDomain cpu = new FakeDomain("300 600 900 1200 1500", 900);
+        FakeDomain idle = new FakeDomain("100 200 300", 100);
+        DvfsController controller = newController(cpu, idle);
+
+        // 20% over target is two steps
+        reportFrames(controller, TARGET_US * 120 / 100);
+        controller.control();
+
+        assertEquals(2, cpu.mMinIndex);
+        assertEquals(4, cpu.mMaxIndex);
+        assertEquals(0, idle.mWrites);
+    }
+
+    @Test
+    public void fastFramesLowerAfterHoldPeriods() {
+        FakeDomain cpu = new FakeDomain("300 600 900 1200 1500", 900);
+        DvfsController controller = newController(cpu);
+
+        for (int i = 0; i < 4; i++) {
+            reportFrames(controller, TARGET_US / 2);
+            controller.control();
+        }
+        assertEquals(0, cpu.mWrites);
+
+        // The floor is at the bottom, so the cap comes down
+        reportFrames(controller, TARGET_US / 2);
+        controller.control();
+        assertEquals(0, cpu.mMinIndex);
+        assertEquals(3, cpu.mMaxIndex);
+    }
+
+    @Test
+    public void capIsNotLoweredBelowHalfOfMax() {
+        FakeDomain cpu = new FakeDomain("300 600 900 1200 1500", 900);
+        DvfsController controller = newController(cpu);
+
+        for (int i = 0; i < 50; i++) {
+            reportFrames(controller, TARGET_US / 2);
+            controller.control();
+        }
+        assertEquals(2, cpu.mMaxIndex);
+    }
+
+    @Test
+    public void capLimitBoundsRaise() {
+        FakeDomain cpu = new FakeDomain("300 600 900 1200 1500", 900);
+        DvfsController controller = newController(cpu);
+        controller.setCapLimits(new int[] { 1 });
+
+        reportFrames(controller, TARGET_US * 2);
+        controller.control();
+
+        assertEquals(1, cpu.mMinIndex);
+        assertEquals(1, cpu.mMaxIndex);
+    }
+}
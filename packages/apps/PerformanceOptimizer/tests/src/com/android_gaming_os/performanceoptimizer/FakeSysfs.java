@@ -0,0 +1,62 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Temporary directory standing in for the root of sysfs and /proc, for a
+ * SysfsEngine created on {@link #getRoot()}
+ */
+public final class FakeSysfs {
+    private final File mRoot;
+
+    public FakeSysfs() throws IOException {
+        mRoot = Files.createTempDirectory("sysfs").toFile();
+    }
+
+    /**
+     * Get the root path to pass to the SysfsEngine
+     */
+    public String getRoot() {
+        return mRoot.getPath();
+    }
+
+    /**
+     * Write a file, creating its parent directories
+     * @param path absolute path on the device, such as "/proc/meminfo"
+     */
+    public void write(String path, String content) throws IOException {
+        File file = new File(mRoot, path);
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Delete a file or a directory with its contents
+     */
+    public void delete(String path) {
+        delete(new File(mRoot, path));
+    }
+
+    /**
+     * Delete the whole tree
+     */
+    public void destroy() {
+        delete(mRoot);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,260 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class ThermalModelTest {
+    private static final String FREQUENCIES = "300000 600000 900000 1200000 1500000";
+
+    // Simulated zone: dT/dt = (ambient - T + 15 * P) / tau, with P = 4 * busy
+    // for the four cores of the only cluster at their max frequency
+    private static final double TIME_CONSTANT = 40;
+    private static final double FULL_POWER_RISE = 60;
+    private static final double POWER_AT_FULL_BUSY = 4;
+    private static final double PASSIVE_TEMP = 70;
+
+    private FakeSysfs mFs;
+    private FakeDomain mDomain;
+    private ThermalZone mZone;
+    private ThermalModel mModel;
+
+    // State of the simulation
+    private double mTemp;
+    private double mAmbient = 30;
+    private long mTimeMillis = 1000;
+
+    /**
+     * Domain of a cluster at its max frequency with a settable utilization
+     */
+    private static final class FakeDomain implements FrequencyDomain {
+        final FrequencyTable mTable = FrequencyTable.parse(FREQUENCIES, 1);
+        final CpuCluster mCluster;
+        int mBusy;
+
+        FakeDomain(CpuCluster cluster) {
+            mCluster = cluster;
+        }
+
+        @Override
+        public String getName() {
+            return "cpu";
+        }
+
+        @Override
+        public CpuCluster getCluster() {
+            return mCluster;
+        }
+
+        @Override
+        public FrequencyTable getFrequencyTable() {
+            return mTable;
+        }
+
+        @Override
+        public int getBusy() {
+            return mBusy;
+        }
+
+        @Override
+        public int getCurrentFrequency() {
+            return -1;
+        }
+
+        @Override
+        public boolean setRange(int minIndex, int maxIndex) {
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mFs.write("/sys/devices/system/cpu/cpufreq/policy0/related_cpus", "0-3");
+        mFs.write("/sys/devices/system/cpu/cpufreq/policy0/cpuinfo_max_freq", "1500000");
+        for (int cpu = 0; cpu < 4; cpu++) {
+            mFs.write("/sys/devices/system/cpu/cpu" + cpu + "/online", "1");
+        }
+        mFs.write("/sys/class/thermal/thermal_zone0/type", "cpu");
+        mFs.write("/sys/class/thermal/thermal_zone0/temp", "30000");
+        mFs.write("/sys/class/thermal/thermal_zone0/trip_point_0_type", "passive");
+        mFs.write("/sys/class/thermal/thermal_zone0/trip_point_0_temp", "70000");
+
+        SysfsEngine sysfs = new SysfsEngine(mFs.getRoot());
+        CpuTopology topology = new CpuTopology(sysfs);
+        ThermalMonitor monitor = new ThermalMonitor(sysfs, topology);
+        assertEquals(1, monitor.getZones().size());
+
+        mDomain = new FakeDomain(topology.getClusters().get(0));
+        mZone = monitor.getZones().get(0);
+        List<FrequencyDomain> domains = Collections.<FrequencyDomain>singletonList(mDomain);
+        mModel = new ThermalModel(topology, monitor, domains, null);
+        mTemp = mAmbient;
+        mZone.update((int) (mTemp * 1000));
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void notTrustedBeforeEnoughFits() {
+        mDomain.mBusy = 500;
+        simulate(10);
+
+        assertFalse(mModel.isReady());
+        assertTrue(Float.isNaN(mModel.getTimeToTemperature(mZone, 60000)));
+    }
+
+    @Test
+    public void predictsTimeToThrottleAfterLearning() {
+        excite(new Random(1), 600);
+        cool();
+
+        assertTrue(mModel.isReady());
+        assertPrediction(900);
+        assertPrediction(700);
+    }
+
+    @Test
+    public void followsChangeOfAmbient() {
+        excite(new Random(2), 600);
+        mAmbient = 40;
+        excite(new Random(3), 900);
+        cool();
+
+        assertPrediction(800);
+    }
+
+    @Test
+    public void neverReachedAtLowPower() {
+        excite(new Random(4), 600);
+        cool();
+
+        // Steady state is 30 + 60 * 0.4 = 54 degrees, below the trip
+        mDomain.mBusy = 400;
+        simulate(1);
+        assertEquals(Float.POSITIVE_INFINITY, mModel.getTimeToThrottle(mZone, new int[] { 4 }), 0);
+    }
+
+    @Test
+    public void sustainableCapsHoldTheHorizon() {
+        excite(new Random(5), 600);
+        cool();
+        mDomain.mBusy = 900;
+        simulate(1);
+
+        int[] caps = new int[1];
+        assertTrue(mModel.getSustainableCaps(600, caps));
+        assertTrue(caps[0] < 4);
+        assertTrue(mModel.getTimeToThrottle(mZone, caps) >= 600);
+        assertTrue(mModel.getTimeToThrottle(mZone, new int[] { caps[0] + 1 }) < 600);
+    }
+
+    @Test
+    public void clusterWithoutDomainHasNoInputs() throws IOException {
+        // A big cluster beside the little one, and only the big cluster has a
+        // frequency table, so its domain comes first
+        mFs.write("/sys/devices/system/cpu/cpufreq/policy4/related_cpus", "4-7");
+        mFs.write("/sys/devices/system/cpu/cpufreq/policy4/cpuinfo_max_freq", "2400000");
+        for (int cpu = 4; cpu < 8; cpu++) {
+            mFs.write("/sys/devices/system/cpu/cpu" + cpu + "/online", "1");
+        }
+        mFs.write("/sys/class/thermal/thermal_zone0/type", "cpu-little");
+        mFs.write("/sys/class/thermal/thermal_zone1/type", "cpu-big");
+        mFs.write("/sys/class/thermal/thermal_zone1/temp", "30000");
+        mFs.write("/sys/class/thermal/thermal_zone1/trip_point_0_type", "passive");
+        mFs.write("/sys/class/thermal/thermal_zone1/trip_point_0_temp", "70000");
+
+        SysfsEngine sysfs = new SysfsEngine(mFs.getRoot());
+        CpuTopology topology = new CpuTopology(sysfs);
+        assertEquals(2, topology.getClusters().size());
+        ThermalMonitor monitor = new ThermalMonitor(sysfs, topology);
+        ThermalZone little = monitor.getZones().get(0);
+        ThermalZone big = monitor.getZones().get(1);
+        FakeDomain domain = new FakeDomain(topology.getFastestCluster());
+        ThermalModel model = new ThermalModel(topology, monitor,
+                Collections.<FrequencyDomain>singletonList(domain), null);
+
+        assertEquals(1, model.getDomainCount());
+        assertArrayEquals(new int[0], model.getZoneDomains(little));
+        assertArrayEquals(new int[] { 0 }, model.getZoneDomains(big));
+
+        // Sampling and capping only index the domain of the big cluster
+        for (int s = 0; s < 120; s++) {
+            domain.mBusy = s % 2 == 0 ? 900 : 100;
+            little.update(30000 + s * 10);
+            big.update(30000 + s * 100);
+            model.onTemperaturesSampled(mTimeMillis + s * 1000);
+        }
+        int[] caps = new int[1];
+        model.getSustainableCaps(600, caps);
+        assertTrue(caps[0] >= 0 && caps[0] <= 4);
+    }
+
+    /**
+     * Check the predicted time to the passive trip at a utilization against
+     * the simulated zone
+     */
+    private void assertPrediction(int busy) {
+        mDomain.mBusy = busy;
+        simulate(1);
+
+        double power = POWER_AT_FULL_BUSY * busy / 1000;
+        double steady = mAmbient + FULL_POWER_RISE / POWER_AT_FULL_BUSY * power;
+        double expected = TIME_CONSTANT * Math.log((steady - mTemp) / (steady - PASSIVE_TEMP));
+        float predicted = mModel.getTimeToThrottle(mZone, new int[] { 4 });
+        assertEquals(expected, predicted, expected * 0.1);
+    }
+
+    /**
+     * Simulate the zone with a utilization that changes every 5 to 30 seconds
+     */
+    private void excite(Random random, int seconds) {
+        while (seconds > 0) {
+            int hold = Math.min(seconds, 5 + random.nextInt(26));
+            mDomain.mBusy = random.nextInt(901);
+            simulate(hold);
+            seconds -= hold;
+        }
+    }
+
+    /**
+     * Let the zone cool well below the trip
+     */
+    private void cool() {
+        mDomain.mBusy = 0;
+        simulate(120);
+    }
+
+    /**
+     * Advance the simulation by whole seconds, sampling the model every second.
+     * The model is sampled first so it holds the new power from the start.
+     */
+    private void simulate(int seconds) {
+        double power = POWER_AT_FULL_BUSY * mDomain.mBusy / 1000;
+        double rise = FULL_POWER_RISE / POWER_AT_FULL_BUSY;
+        mModel.onTemperaturesSampled(mTimeMillis);
+        for (int s = 0; s < seconds; s++) {
+            for (int step = 0; step < 100; step++) {
+                mTemp += (mAmbient - mTemp + rise * power) / TIME_CONSTANT * 0.01;
+            }
+            mTimeMillis += 1000;
+            mZone.update((int) Math.round(mTemp * 1000));
+            mModel.onTemperaturesSampled(mTimeMillis);
+        }
+    }
+}
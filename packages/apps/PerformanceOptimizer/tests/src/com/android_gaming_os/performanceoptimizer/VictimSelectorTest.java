@@ -0,0 +1,169 @@
+package com.android_gaming_os.performanceoptimizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+import com.android_gaming_os.performanceoptimizer.monitor.ProcessMemoryScanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class VictimSelectorTest {
+    private static final long MB = 1024;
+    private static final long NOW_MILLIS = 1000000;
+    private static final long WALL_MILLIS = 1700000000000L;
+
+    private FakeSysfs mFs;
+    private ProcessMemoryScanner mScanner;
+    private VictimSelector mSelector;
+    private int mNextPid = 1000;
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mScanner = new ProcessMemoryScanner(new SysfsEngine(mFs.getRoot()));
+        mSelector = new VictimSelector();
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void choosesCheapestSetOverCheapestPerKb() throws IOException {
+        // The large package is cheapest per kB, but the two small ones free
+        // the target for less: 92 + 82 MB against 232 MB
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(newCandidate("large", 200 * MB, 0));
+        candidates.add(newCandidate("medium", 60 * MB, 0));
+        candidates.add(newCandidate("small", 50 * MB, 0));
+
+        List<VictimSelector.Candidate> victims = select(candidates, 100 * MB);
+
+        assertEquals("[medium, small]", names(victims));
+    }
+
+    @Test
+    public void recentUseMakesPackageExpensive() throws IOException {
+        VictimSelector.Candidate recent = newCandidate("recent", 60 * MB, 0);
+        recent.setLastUsedMillis(WALL_MILLIS - 60 * 1000);
+        VictimSelector.Candidate idle = newCandidate("idle", 60 * MB, 0);
+        idle.setLastUsedMillis(WALL_MILLIS - 24 * 60 * 60 * 1000);
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(recent);
+        candidates.add(idle);
+
+        assertEquals("[idle]", names(select(candidates, 50 * MB)));
+    }
+
+    @Test
+    public void killedPackageIsSparedForCooldown() throws IOException {
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(newCandidate("first", 60 * MB, 0));
+        candidates.add(newCandidate("second", 70 * MB, 0));
+        ProcessMemoryScanner.Snapshot snapshot = scan();
+
+        assertEquals("[first]", names(mSelector.select(candidates, snapshot, 50 * MB, NOW_MILLIS, WALL_MILLIS)));
+        assertEquals("[second]", names(mSelector.select(candidates, snapshot, 50 * MB, NOW_MILLIS + 1000, WALL_MILLIS)));
+
+        long afterCooldown = NOW_MILLIS + 5 * 60 * 1000;
+        assertEquals("[first]", names(mSelector.select(candidates, snapshot, 50 * MB, afterCooldown, WALL_MILLIS)));
+    }
+
+    @Test
+    public void expiredCooldownsAreForgotten() throws IOException {
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(newCandidate("first", 60 * MB, 0));
+        ProcessMemoryScanner.Snapshot snapshot = scan();
+        mSelector.select(candidates, snapshot, 50 * MB, NOW_MILLIS, WALL_MILLIS);
+        assertEquals(1, mSelector.getCooldownCount());
+
+        // A later selection without the package drops its expired cooldown
+        long afterCooldown = NOW_MILLIS + 5 * 60 * 1000;
+        mSelector.select(new ArrayList<VictimSelector.Candidate>(), snapshot, 50 * MB, afterCooldown, WALL_MILLIS);
+        assertEquals(0, mSelector.getCooldownCount());
+    }
+
+    @Test
+    public void swapCountsAtItsCompressedShare() throws IOException {
+        VictimSelector.Candidate swapped = newCandidate("swapped", 10 * MB, 300 * MB);
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(swapped);
+
+        select(candidates, 10 * MB);
+
+        assertEquals(10 * MB + 300 * MB * 33 / 100, swapped.getFreedKb());
+    }
+
+    @Test
+    public void takesAllWhenTargetExceedsCandidates() throws IOException {
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(newCandidate("a", 40 * MB, 0));
+        candidates.add(newCandidate("b", 30 * MB, 0));
+
+        assertEquals(2, select(candidates, 500 * MB).size());
+    }
+
+    @Test
+    public void skipsExitedAndNothingForNoTarget() throws IOException {
+        VictimSelector.Candidate exited = new VictimSelector.Candidate("exited");
+        exited.addProcess(99999, false);
+        List<VictimSelector.Candidate> candidates = new ArrayList<>();
+        candidates.add(exited);
+        candidates.add(newCandidate("running", 40 * MB, 0));
+
+        assertEquals(0, select(candidates, 0).size());
+        assertEquals("[running]", names(select(candidates, 100 * MB)));
+    }
+
+    private List<VictimSelector.Candidate> select(List<VictimSelector.Candidate> candidates, long targetKb) {
+        return mSelector.select(candidates, scan(), targetKb, NOW_MILLIS, WALL_MILLIS);
+    }
+
+    private ProcessMemoryScanner.Snapshot scan() {
+        ProcessMemoryScanner.Snapshot snapshot = mScanner.scan();
+        assertNotNull(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Add a package with one process of the given memory to the fake /proc
+     */
+    private VictimSelector.Candidate newCandidate(String packageName, long pssKb, long swapKb) throws IOException {
+        int pid = mNextPid++;
+        StringBuilder stat = new StringBuilder(pid + " (" + packageName + ") S");
+        for (int field = 4; field <= 21; field++) {
+            stat.append(" 0");
+        }
+        stat.append(" 100 0\n");
+        mFs.write("/proc/" + pid + "/stat", stat.toString());
+        mFs.write("/proc/" + pid + "/status", "Name:\t" + packageName + "\nUid:\t10000\t10000\t10000\t10000\n");
+        mFs.write("/proc/" + pid + "/oom_score_adj", "900\n");
+        mFs.write("/proc/" + pid + "/smaps_rollup", "00400000-ffffffff ---p 00000000 00:00 0    [rollup]\n" +
+                                                    "Rss:        " + pssKb + " kB\n" +
+                                                    "Pss:        " + pssKb + " kB\n" +
+                                                    "Pss_Anon:   " + pssKb + " kB\n" +
+                                                    "Pss_File:   0 kB\n" +
+                                                    "Swap:       " + swapKb + " kB\n" +
+                                                    "SwapPss:    " + swapKb + " kB\n");
+
+        VictimSelector.Candidate candidate = new VictimSelector.Candidate(packageName);
+        candidate.addProcess(pid, false);
+        return candidate;
+    }
+
+    private static String names(List<VictimSelector.Candidate> victims) {
+        List<String> names = new ArrayList<>();
+        for (VictimSelector.Candidate victim : victims) {
+            names.add(victim.getPackageName());
+        }
+        return names.toString();
+    }
+}
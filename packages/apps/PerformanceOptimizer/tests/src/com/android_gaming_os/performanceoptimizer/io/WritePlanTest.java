@@ -0,0 +1,95 @@
+package com.android_gaming_os.performanceoptimizer.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android_gaming_os.performanceoptimizer.FakeSysfs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class WritePlanTest {
+    private static final String CPUFREQ = "/sys/devices/system/cpu/cpufreq/policy0/";
+    private static final String SWAPPINESS = "/proc/sys/vm/swappiness";
+    private static final String MINFREE = "/sys/module/lowmemorykiller/parameters/minfree";
+
+    private FakeSysfs mFs;
+    private SysfsEngine mSysfs;
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mFs.write(CPUFREQ + "scaling_governor", "schedutil\n");
+        mFs.write(CPUFREQ + "scaling_min_freq", "300000\n");
+        mFs.write(CPUFREQ + "scaling_max_freq", "1500000\n");
+        mFs.write(SWAPPINESS, "60\n");
+        mSysfs = new SysfsEngine(mFs.getRoot());
+    }
+
+    @After
+    public void tearDown() {
+        mSysfs.close();
+        mFs.destroy();
+    }
+
+    @Test
+    public void commitDoesNotAllocate() {
+        // Switching between two profiles writes every node each time, and
+        // the missing node is skipped
+        WritePlan low = compile(300000, 900000, "100");
+        WritePlan high = compile(900000, 1500000, "10");
+        for (int i = 0; i < 1000; i++) {
+            assertTrue((i & 1) == 0 ? low.commit(null) : high.commit(null));
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean counters = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        long writes = mSysfs.getWriteCount();
+        int commits = 1000;
+        long before = counters.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < commits; i++) {
+            if (!((i & 1) == 0 ? low.commit(null) : high.commit(null))) {
+                break;
+            }
+        }
+        long allocated = counters.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(commits * 3, mSysfs.getWriteCount() - writes);
+        // Allow for the counter itself, not for anything per commit
+        assertTrue("allocated " + allocated + " bytes", allocated < commits);
+    }
+
+    @Test
+    public void missingNodeIsProbedAgainAfterGovernorWrite() throws IOException {
+        SysfsNode governor = mSysfs.node(CPUFREQ + "scaling_governor");
+        SysfsNode tunable = mSysfs.node(CPUFREQ + "schedutil/rate_limit_us");
+        assertFalse(mSysfs.exists(tunable));
+
+        // Creating the file alone is not seen until the retry interval passes
+        mFs.write(CPUFREQ + "schedutil/rate_limit_us", "1000\n");
+        assertFalse(mSysfs.exists(tunable));
+
+        // A governor switch can create tunables, so the node is probed again
+        assertTrue(mSysfs.write(governor, "performance"));
+        assertTrue(mSysfs.exists(tunable));
+        assertEquals(1000, mSysfs.readLong(tunable, -1));
+    }
+
+    private WritePlan compile(long min, long max, String swappiness) {
+        TuningTransaction tx = new TuningTransaction(mSysfs);
+        tx.setRange(mSysfs.node(CPUFREQ + "scaling_min_freq"), mSysfs.node(CPUFREQ + "scaling_max_freq"), min, max);
+        tx.set(mSysfs.node(SWAPPINESS), swappiness);
+        tx.set(mSysfs.node(MINFREE), "18432,23040,27648,32256,55296,80640");
+        return tx.compile();
+    }
+}
@@ -0,0 +1,119 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android_gaming_os.performanceoptimizer.FakeSysfs;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CpuLoadSamplerTest {
+    private static final long MS = 1000000;
+
+    private FakeSysfs mFs;
+    private CpuLoadSampler mSampler;
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mSampler = new CpuLoadSampler(new SysfsEngine(mFs.getRoot()), 2);
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void publishesSharesSincePreviousSample() throws IOException {
+        writeStat("cpu0 100 0 100 700 50 25 25 0 0 0\n" +
+                  "cpu1 100 0 100 700 50 25 25 0 0 0\n");
+        mSampler.sample();
+        assertEquals(0, mSampler.getBusy().getCount());
+
+        // Core 0 is busy for 400 of 1000 ticks, core 1 stays idle
+        writeStat("cpu0 300 0 200 1200 150 75 75 0 0 0\n" +
+                  "cpu1 100 0 100 1700 50 25 25 0 0 0\n");
+        mSampler.sample();
+
+        SampleRing busy = mSampler.getBusy();
+        assertEquals(1, busy.getCount());
+        assertEquals(400, busy.getLatest(CpuLoadSampler.channelOf(0), -1));
+        assertEquals(0, busy.getLatest(CpuLoadSampler.channelOf(1), -1));
+        assertEquals(200, busy.getLatest(CpuLoadSampler.CHANNEL_TOTAL, -1));
+        assertEquals(100, mSampler.getIoWait().getLatest(CpuLoadSampler.channelOf(0), -1));
+        assertEquals(100, mSampler.getIrq().getLatest(CpuLoadSampler.channelOf(0), -1));
+    }
+
+    @Test
+    public void offlineCoreKeepsItsCounters() throws IOException {
+        writeStat("cpu0 100 0 100 800 0 0 0 0 0 0\n" +
+                  "cpu1 100 0 100 800 0 0 0 0 0 0\n");
+        mSampler.sample();
+
+        // Core 1 goes offline and its line disappears
+        writeStat("cpu0 600 0 100 1300 0 0 0 0 0 0\n");
+        mSampler.sample();
+        assertEquals(500, mSampler.getBusy().getLatest(CpuLoadSampler.channelOf(0), -1));
+        assertEquals(0, mSampler.getBusy().getLatest(CpuLoadSampler.channelOf(1), -1));
+
+        // When it comes back, its share counts from the last line it had
+        writeStat("cpu0 600 0 100 2300 0 0 0 0 0 0\n" +
+                  "cpu1 400 0 100 1500 0 0 0 0 0 0\n");
+        mSampler.sample();
+        assertEquals(300, mSampler.getBusy().getLatest(CpuLoadSampler.channelOf(1), -1));
+    }
+
+    @Test
+    public void budgetLowersRateFromMinimum() {
+        assertEquals(CpuLoadSampler.MIN_RATE, mSampler.getRate());
+        long now = 1000 * MS;
+
+        // The first window only starts the clock; 0.1 ms per 50 ms sample is
+        // 2 permille of a core, within the budget
+        now = account(now, MS / 10, 50 * MS);
+        now = account(now, MS / 10, 50 * MS);
+        assertEquals(CpuLoadSampler.MIN_RATE, mSampler.getRate());
+
+        // 0.5 ms per sample is 10 permille, twice the budget
+        now = account(now, MS / 2, 50 * MS);
+        assertEquals(CpuLoadSampler.MIN_RATE / 2, mSampler.getRate());
+
+        // Far over the budget the rate stops at the floor
+        account(now, 10 * MS, 100 * MS);
+        assertEquals(CpuLoadSampler.BUDGET_MIN_RATE, mSampler.getRate());
+    }
+
+    /**
+     * Account one budget window of samples of the same cost and interval
+     * @return the time at the end of the window
+     */
+    private long account(long now, long costNanos, long intervalNanos) {
+        for (int i = 0; i < 100; i++) {
+            now += intervalNanos;
+            mSampler.account(costNanos, now);
+        }
+        return now;
+    }
+
+    private void writeStat(String cores) throws IOException {
+        // The total line is the sum of the core lines
+        long[] total = new long[10];
+        for (String line : cores.split("\n")) {
+            String[] fields = line.trim().split(" ");
+            for (int i = 1; i < fields.length; i++) {
+                total[i - 1] += Long.parseLong(fields[i]);
+            }
+        }
+        StringBuilder stat = new StringBuilder("cpu ");
+        for (long value : total) {
+            stat.append(' ').append(value);
+        }
+        stat.append('\n').append(cores).append("intr 12345 0 0\nctxt 67890\n");
+        mFs.write("/proc/stat", stat.toString());
+    }
+}
@@ -0,0 +1,104 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android_gaming_os.performanceoptimizer.FakeSysfs;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class MemorySamplerTest {
+    private FakeSysfs mFs;
+    private MemorySampler mSampler;
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mSampler = new MemorySampler(new SysfsEngine(mFs.getRoot()));
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void deltaCountsReclaimBetweenSamples() throws Exception {
+        writeMeminfo(4000000, 1000000);
+        writeVmstat(1000, 800, 5);
+        assertTrue(mSampler.sample());
+
+        writeVmstat(3000, 1200, 9);
+        Thread.sleep(10);
+        assertTrue(mSampler.sample());
+
+        assertEquals(25, mSampler.getAvailablePercent());
+        assertEquals(2000, mSampler.getDelta(MemorySampler.SCAN_KSWAPD));
+        assertEquals(400, mSampler.getDelta(MemorySampler.STEAL_KSWAPD));
+        assertEquals(4, mSampler.getDelta(MemorySampler.ALLOC_STALL));
+        assertEquals(200, mSampler.getReclaimEfficiency());
+    }
+
+    @Test
+    public void failedReadKeepsLastSamples() throws Exception {
+        writeMeminfo(4000000, 1000000);
+        writeVmstat(1000, 800, 5);
+        assertTrue(mSampler.sample());
+        writeVmstat(1500, 900, 5);
+        Thread.sleep(10);
+        assertTrue(mSampler.sample());
+        long sampleMillis = mSampler.getSampleMillis();
+
+        // A failed vmstat read neither zeroes the counters nor replaces the samples
+        writeMeminfo(4000000, 2000000);
+        mFs.write("/proc/vmstat", "");
+        Thread.sleep(10);
+        assertFalse(mSampler.sample());
+        assertEquals(sampleMillis, mSampler.getSampleMillis());
+        assertEquals(25, mSampler.getAvailablePercent());
+        assertEquals(500, mSampler.getDelta(MemorySampler.SCAN_KSWAPD));
+
+        // The next sample counts from the last good one, without a spike
+        writeVmstat(1700, 1000, 6);
+        Thread.sleep(10);
+        assertTrue(mSampler.sample());
+        assertEquals(200, mSampler.getDelta(MemorySampler.SCAN_KSWAPD));
+        assertEquals(100, mSampler.getDelta(MemorySampler.STEAL_KSWAPD));
+        assertEquals(1, mSampler.getDelta(MemorySampler.ALLOC_STALL));
+        assertEquals(50, mSampler.getAvailablePercent());
+    }
+
+    @Test
+    public void failedMeminfoReadKeepsLastSamples() throws Exception {
+        writeMeminfo(4000000, 1000000);
+        writeVmstat(1000, 800, 5);
+        assertTrue(mSampler.sample());
+
+        mFs.write("/proc/meminfo", "");
+        assertFalse(mSampler.sample());
+        assertEquals(4000000, mSampler.get(MemorySampler.MEM_TOTAL));
+        assertEquals(1000, mSampler.get(MemorySampler.SCAN_KSWAPD));
+        assertEquals(0, mSampler.getIntervalMillis());
+    }
+
+    private void writeMeminfo(long totalKb, long availableKb) throws IOException {
+        mFs.write("/proc/meminfo", "MemTotal:       " + totalKb + " kB\n" +
+                                   "MemFree:        " + availableKb / 2 + " kB\n" +
+                                   "MemAvailable:   " + availableKb + " kB\n");
+    }
+
+    private void writeVmstat(long scanned, long stolen, long allocStalls) throws IOException {
+        // Alloc stalls are split by zone and summed
+        mFs.write("/proc/vmstat", "nr_free_pages 12345\n" +
+                                  "pgscan_kswapd " + scanned + "\n" +
+                                  "pgsteal_kswapd " + stolen + "\n" +
+                                  "allocstall_normal " + (allocStalls - 1) + "\n" +
+                                  "allocstall_movable 1\n");
+    }
+}
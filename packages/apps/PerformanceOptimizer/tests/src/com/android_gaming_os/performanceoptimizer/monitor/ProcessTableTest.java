@@ -0,0 +1,146 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android_gaming_os.performanceoptimizer.FakeSysfs;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ProcessTableTest {
+    // Longer than the minimum update interval of the table
+    private static final long UPDATE_WAIT_MS = 600;
+
+    private FakeSysfs mFs;
+    private ProcessTable mTable;
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mTable = new ProcessTable(new SysfsEngine(mFs.getRoot()), null);
+        mTable.addListener(new ProcessTable.Listener() {
+            @Override
+            public void onProcessStarted(int pid, int uid, String name) {
+                mEvents.add("+" + pid + " " + uid + " " + name);
+            }
+
+            @Override
+            public void onProcessExited(int pid, int uid, String name) {
+                mEvents.add("-" + pid + " " + uid + " " + name);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void firstUpdateReportsNothing() throws IOException {
+        addProcess(100, 10, "com.example.game", 10100);
+        addProcess(2, 1, "", 0);
+
+        assertTrue(mTable.update());
+        assertEquals(0, mEvents.size());
+        assertEquals(2, mTable.size());
+        assertEquals(100, mTable.findPid("com.example.game"));
+        assertEquals(10100, mTable.getUid(100));
+    }
+
+    @Test
+    public void updateReportsStartsAndExits() throws Exception {
+        addProcess(100, 10, "com.example.game", 10100);
+        addProcess(200, 20, "com.example.chat", 10200);
+        mTable.update();
+
+        removeProcess(200);
+        addProcess(300, 30, "com.example.music", 10300);
+        updateAfterInterval();
+
+        assertEquals(2, mEvents.size());
+        assertTrue(mEvents.contains("-200 10200 com.example.chat"));
+        assertTrue(mEvents.contains("+300 10300 com.example.music"));
+        assertEquals(0, mTable.findPid("com.example.chat"));
+        assertEquals(300, mTable.findPid("com.example.music"));
+    }
+
+    @Test
+    public void reusedPidIsANewProcess() throws Exception {
+        addProcess(100, 10, "com.example.game", 10100);
+        mTable.update();
+
+        removeProcess(100);
+        addProcess(100, 50, "com.example.chat", 10200);
+        updateAfterInterval();
+
+        assertEquals(2, mEvents.size());
+        assertEquals("-100 10100 com.example.game", mEvents.get(0));
+        assertEquals("+100 10200 com.example.chat", mEvents.get(1));
+        assertEquals(0, mTable.findPid("com.example.game"));
+        assertEquals(10200, mTable.getUid(100));
+    }
+
+    @Test
+    public void zygoteChildIsReportedOnceSpecialized() throws Exception {
+        mTable.update();
+
+        addProcess(400, 40, "zygote64", 0);
+        updateAfterInterval();
+        assertEquals(0, mEvents.size());
+
+        addProcess(400, 40, "com.example.game", 10100);
+        updateAfterInterval();
+        assertEquals(1, mEvents.size());
+        assertEquals("+400 10100 com.example.game", mEvents.get(0));
+    }
+
+    @Test
+    public void manyExitsKeepTableConsistent() throws Exception {
+        for (int i = 1; i <= 3000; i++) {
+            addProcess(i * 3, i, "app" + i, 10000 + i % 50);
+        }
+        mTable.update();
+
+        for (int i = 1; i <= 3000; i += 2) {
+            removeProcess(i * 3);
+        }
+        updateAfterInterval();
+
+        assertEquals(1500, mTable.size());
+        for (int i = 1; i <= 3000; i++) {
+            int pid = i % 2 == 0 ? i * 3 : 0;
+            assertEquals("app" + i, pid, mTable.findPid("app" + i));
+        }
+    }
+
+    private void updateAfterInterval() throws InterruptedException {
+        Thread.sleep(UPDATE_WAIT_MS);
+        assertTrue(mTable.update());
+    }
+
+    private void addProcess(int pid, long startTime, String name, int uid) throws IOException {
+        // The command name may contain spaces and parentheses
+        StringBuilder stat = new StringBuilder(pid + " (a) b) S");
+        for (int field = 4; field <= 21; field++) {
+            stat.append(" 0");
+        }
+        stat.append(' ').append(startTime).append(" 0\n");
+
+        mFs.write("/proc/" + pid + "/stat", stat.toString());
+        mFs.write("/proc/" + pid + "/cmdline", name.isEmpty() ? "" : name + "\0--flag\0");
+        mFs.write("/proc/" + pid + "/status", "Name:\ta\nUid:\t" + uid + "\t" + uid + "\t" + uid + "\t" + uid + "\n");
+    }
+
+    private void removeProcess(int pid) {
+        mFs.delete("/proc/" + pid);
+    }
+}
@@ -0,0 +1,136 @@
+package com.android_gaming_os.performanceoptimizer.monitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android_gaming_os.performanceoptimizer.FakeSysfs;
+import com.android_gaming_os.performanceoptimizer.io.SysfsEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class ResidencyCollectorTest {
+    private static final String CPUFREQ = "/sys/devices/system/cpu/cpufreq/policy0/";
+    private static final String TRANS_STAT = "/sys/class/devfreq/gpu/trans_stat";
+
+    private FakeSysfs mFs;
+    private ResidencyCollector mCollector;
+
+    @Before
+    public void setUp() throws IOException {
+        mFs = new FakeSysfs();
+        mCollector = new ResidencyCollector(new SysfsEngine(mFs.getRoot()));
+    }
+
+    @After
+    public void tearDown() {
+        mFs.destroy();
+    }
+
+    @Test
+    public void deltaCountsTimeBetweenCaptures() throws IOException {
+        writeTimeInState(100, 50, 10);
+        assertTrue(mCollector.addCpuPolicy("policy0", CPUFREQ));
+
+        ResidencyCollector.Snapshot from = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot to = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot delta = mCollector.newSnapshot();
+        mCollector.capture(from);
+        writeTimeInState(150, 80, 14);
+        mCollector.capture(to);
+        ResidencyCollector.delta(from, to, delta);
+
+        assertTrue(delta.isValid(0));
+        assertEquals(500, delta.getResidencyMs(0, 0));
+        assertEquals(300, delta.getResidencyMs(0, 1));
+        assertEquals(800, delta.getTotalMs(0));
+        assertEquals(625, delta.getPermille(0, 0));
+        assertEquals(4, delta.getTransitions(0));
+    }
+
+    @Test
+    public void failedReadKeepsPreviousCounters() throws IOException {
+        writeTimeInState(100, 50, 10);
+        mCollector.addCpuPolicy("policy0", CPUFREQ);
+
+        ResidencyCollector.Snapshot first = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot second = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot third = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot delta = mCollector.newSnapshot();
+        mCollector.capture(first);
+
+        // An offline policy reads as nothing
+        mFs.write(CPUFREQ + "stats/time_in_state", "");
+        mFs.write(CPUFREQ + "stats/total_trans", "");
+        mCollector.capture(second);
+        ResidencyCollector.delta(first, second, delta);
+        assertTrue(delta.isValid(0));
+        assertEquals(0, delta.getTotalMs(0));
+        assertEquals(0, delta.getTransitions(0));
+
+        writeTimeInState(120, 60, 12);
+        mCollector.capture(third);
+        ResidencyCollector.delta(second, third, delta);
+        assertEquals(200, delta.getResidencyMs(0, 0));
+        assertEquals(100, delta.getResidencyMs(0, 1));
+        assertEquals(2, delta.getTransitions(0));
+    }
+
+    @Test
+    public void domainNotYetReadIsInvalid() throws IOException {
+        writeTimeInState(100, 50, 10);
+        mCollector.addCpuPolicy("policy0", CPUFREQ);
+
+        ResidencyCollector.Snapshot from = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot to = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot delta = mCollector.newSnapshot();
+        mFs.write(CPUFREQ + "stats/time_in_state", "");
+        mCollector.capture(from);
+        assertFalse(from.isValid(0));
+
+        // The time since boot must not show up as residency of the delta
+        writeTimeInState(5000, 5000, 900);
+        mCollector.capture(to);
+        ResidencyCollector.delta(from, to, delta);
+        assertFalse(delta.isValid(0));
+        assertEquals(0, delta.getTotalMs(0));
+        assertEquals(0, delta.getTransitions(0));
+    }
+
+    @Test
+    public void devfreqTransStatIsParsed() throws IOException {
+        writeTransStat(1200, 800, 5);
+        assertTrue(mCollector.addDevfreq("gpu", TRANS_STAT));
+        assertEquals(2, mCollector.getFrequencyCount(0));
+        assertEquals(257000, mCollector.getFrequency(0, 0));
+
+        ResidencyCollector.Snapshot from = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot to = mCollector.newSnapshot();
+        ResidencyCollector.Snapshot delta = mCollector.newSnapshot();
+        mCollector.capture(from);
+        writeTransStat(1500, 1000, 9);
+        mCollector.capture(to);
+        ResidencyCollector.delta(from, to, delta);
+
+        assertEquals(300, delta.getResidencyMs(0, 0));
+        assertEquals(200, delta.getResidencyMs(0, 1));
+        assertEquals(4, delta.getTransitions(0));
+    }
+
+    private void writeTimeInState(long lowTicks, long highTicks, long transitions) throws IOException {
+        mFs.write(CPUFREQ + "stats/time_in_state", "300000 " + lowTicks + "\n600000 " + highTicks + "\n");
+        mFs.write(CPUFREQ + "stats/total_trans", transitions + "\n");
+    }
+
+    private void writeTransStat(long lowMs, long highMs, long transitions) throws IOException {
+        mFs.write(TRANS_STAT, "     From  :   To\n" +
+                              "           :  257000000 342000000   time(ms)\n" +
+                              "*  257000000:         0         3      " + lowMs + "\n" +
+                              "   342000000:         2         0      " + highMs + "\n" +
+                              "Total transition : " + transitions + "\n");
+    }
+}